@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.event.Event;
+import org.openmrs.module.pihmalawi.sql.CohortResultCache;
+
+/**
+ * Creates the tables of the cohort result cache, and subscribes it to changes to the data and metadata that cohorts
+ * are evaluated from, so that the cohorts cached before each change are no longer used
+ */
+public class CohortResultCacheInitializer implements Initializer {
+
+	/**
+	 * @see Initializer#started()
+	 */
+	@Override
+	public synchronized void started() {
+		CohortResultCache cache = getCache();
+		cache.createTables();
+		for (Class<?> type : CohortResultCache.CHANGE_TABLES.keySet()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.subscribe(type, action.name(), cache);
+			}
+		}
+	}
+
+	/**
+	 * @see Initializer#stopped()
+	 */
+	@Override
+	public void stopped() {
+		CohortResultCache cache = getCache();
+		for (Class<?> type : CohortResultCache.CHANGE_TABLES.keySet()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.unsubscribe(type, action, cache);
+			}
+		}
+	}
+
+	protected CohortResultCache getCache() {
+		return Context.getRegisteredComponents(CohortResultCache.class).get(0);
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.event.Event;
+import org.openmrs.module.pihmalawi.metadata.MetadataCache;
+import org.openmrs.module.pihmalawi.metadata.MetadataCacheInvalidator;
+
+/**
+ * Subscribes the metadata cache to the save events of the metadata it depends on, so that it is invalidated when
+ * that metadata is edited
+ */
+public class MetadataCacheInitializer implements Initializer {
+
+	protected static final Log log = LogFactory.getLog(MetadataCacheInitializer.class);
+
+	private static final MetadataCacheInvalidator invalidator = new MetadataCacheInvalidator(MetadataCache.getInstance());
+
+	/**
+	 * @see Initializer#started()
+	 */
+	@Override
+	public synchronized void started() {
+		MetadataCache.getInstance().invalidateAll();
+		for (Class<?> type : MetadataCache.getInvalidatingTypes()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.subscribe(type, action.name(), invalidator);
+			}
+		}
+	}
+
+	/**
+	 * @see Initializer#stopped()
+	 */
+	@Override
+	public void stopped() {
+		for (Class<?> type : MetadataCache.getInvalidatingTypes()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.unsubscribe(type, action, invalidator);
+			}
+		}
+		log.info("Metadata cache stopped: " + MetadataCache.getInstance());
+		MetadataCache.getInstance().invalidateAll();
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.event.Event;
+import org.openmrs.module.pihmalawi.common.PatientSearchIndexUpdater;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the patient search index, and subscribes it to changes to patients, their identifiers, their names and their
+ * person details
+ */
+public class PatientSearchIndexInitializer implements Initializer {
+
+	/**
+	 * @see Initializer#started()
+	 */
+	@Override
+	public synchronized void started() {
+		PatientSearchIndexUpdater updater = getUpdater();
+		for (Class<?> type : getSubscribedTypes()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.subscribe(type, action.name(), updater);
+			}
+		}
+		updater.buildIndex();
+	}
+
+	/**
+	 * @see Initializer#stopped()
+	 */
+	@Override
+	public void stopped() {
+		PatientSearchIndexUpdater updater = getUpdater();
+		for (Class<?> type : getSubscribedTypes()) {
+			for (Event.Action action : Event.Action.values()) {
+				Event.unsubscribe(type, action, updater);
+			}
+		}
+		updater.clearIndex();
+	}
+
+	protected List<Class<?>> getSubscribedTypes() {
+		List<Class<?>> l = new ArrayList<Class<?>>(Arrays.asList(PatientSearchIndexUpdater.INDEXED_TYPES));
+		l.addAll(Arrays.asList(PatientSearchIndexUpdater.COUNTED_TYPES));
+		return l;
+	}
+
+	protected PatientSearchIndexUpdater getUpdater() {
+		return Context.getRegisteredComponents(PatientSearchIndexUpdater.class).get(0);
+	}
+}
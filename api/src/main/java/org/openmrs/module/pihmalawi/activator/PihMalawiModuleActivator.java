@@ -53,7 +53,10 @@ public class PihMalawiModuleActivator extends BaseModuleActivator {
     public List<Initializer> getInitializers() {
 		List<Initializer> l = new ArrayList<Initializer>();
 		l.add(new MetadataInitializer());
+		l.add(new MetadataCacheInitializer());
 		l.add(new SoundexInitializer());
+		l.add(new PatientSearchIndexInitializer());
+		l.add(new CohortResultCacheInitializer());
 		l.add(new AddressTemplateInitializer());
 		l.add(new HtmlFormInitializer());
 		l.add(new ReportInitializer());
@@ -86,6 +86,7 @@ public class ReportInitializer implements Initializer {
 
                     ReportDefinition rd = new ReportDefinition();
                     String designUuid = null;
+                    String warehouse = null;
                     StringBuilder sql = new StringBuilder();
 
                     for (String line : lineByLineContents) {
@@ -113,6 +114,9 @@ public class ReportInitializer implements Initializer {
                             else if (key.equals("design_uuid")) {
                                 designUuid = value;
                             }
+                            else if (key.equals("warehouse")) {
+                                warehouse = value;
+                            }
                         }
                         sql.append(line).append(System.getProperty("line.separator"));
                     }
@@ -123,6 +127,7 @@ public class ReportInitializer implements Initializer {
 
                     MysqlCmdDataSetDefinition dsd = new MysqlCmdDataSetDefinition();
                     dsd.setSql(sql.toString());
+                    dsd.setWarehouse(warehouse);
                     dsd.setParameters(rd.getParameters());
 
                     rd.addDataSetDefinition(r.getFilename(), Mapped.mapStraightThrough(dsd));
@@ -0,0 +1,223 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Calculates the appointment adherence of a single patient over an adherence period, from the dates of their
+ * actual visits and the appointment dates scheduled at those visits.  Each scheduled appointment is matched to the
+ * actual visit closest to it, and any days late beyond a grace period are counted as missed.  This is done overall,
+ * while the patient was attending the report location, and for each interval from the start of the period:
+ * every 90 days for the first year, and then every 180 days up to 3600 days.
+ *
+ * This has no dependencies on the database, so the inputs for a whole cohort can be loaded up front.
+ */
+public class AppointmentAdherenceCalculator {
+
+	public static final int GRACE_PERIOD_DAYS = 2;
+
+	private Date adherencePeriodStart;
+	private Date adherencePeriodEnd;
+	private Set<Date> scheduledVisits = new TreeSet<Date>();
+	private Map<Date, Boolean> actualVisits = new TreeMap<Date, Boolean>(); // Dates of actual visits, and true if they are at the report location
+
+	public AppointmentAdherenceCalculator(Date adherencePeriodStart, Date adherencePeriodEnd) {
+		this.adherencePeriodStart = adherencePeriodStart;
+		this.adherencePeriodEnd = adherencePeriodEnd;
+	}
+
+	/**
+	 * Adds a visit that the patient actually attended during the adherence period
+	 */
+	public void addActualVisit(Date visitDate, boolean atLocation) {
+		actualVisits.put(visitDate, atLocation);
+	}
+
+	/**
+	 * Adds an appointment date scheduled at one of the actual visits.  Appointments after the adherence period are ignored.
+	 */
+	public void addScheduledVisit(Date scheduledVisitDate) {
+		if (scheduledVisitDate != null && scheduledVisitDate.compareTo(adherencePeriodEnd) <= 0) {
+			scheduledVisits.add(scheduledVisitDate);
+		}
+	}
+
+	/**
+	 * @return the intervals, in days from the start of the adherence period, to calculate adherence for.
+	 * The first interval is null, and represents the whole adherence period.
+	 */
+	public static List<Integer> getIntervals() {
+		List<Integer> intervals = new ArrayList<Integer>();
+		intervals.add(null);  // Represents the overall total interval
+		for (int i=90; i<=360; i+=90) {
+			intervals.add(i);  // Every 90 days for first year
+		}
+		for (int i=180; i<=3600; i+=180) { // Every 180 days for 10 more years
+			intervals.add(i);
+		}
+		return intervals;
+	}
+
+	/**
+	 * @return the adherence values, keyed on column name, in the order in which they should be displayed
+	 */
+	public Map<String, Integer> calculate() {
+		Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+
+		Map<Date, Boolean> remainingVisits = new TreeMap<Date, Boolean>(actualVisits);
+
+		// Remove the first actual visit in the list since it does not correspond to a scheduled visit date from a previous visit
+		if (remainingVisits.size() > 0) {
+			Iterator<Date> i = remainingVisits.keySet().iterator();
+			i.next();
+			i.remove();
+		}
+
+		ret.put("Num Scheduled Visits", scheduledVisits.size());
+		ret.put("Num Actual Visits", remainingVisits.size());
+
+		// Determine what dates the patient was "enrolled" in the report Location, based on encounter data
+
+		Map<Date, Date> datesAtLocation = new LinkedHashMap<Date, Date>();
+		Date currentPeriodStart = null;
+		boolean lastVisitAtLocation = false;
+		for (Date d1 : remainingVisits.keySet()) {
+			if (currentPeriodStart == null) {
+				currentPeriodStart = adherencePeriodStart;
+			}
+			lastVisitAtLocation = remainingVisits.get(d1);
+
+			if (lastVisitAtLocation) {
+				datesAtLocation.put(currentPeriodStart, d1);
+			}
+			currentPeriodStart = nextDay(d1);
+		}
+		if (lastVisitAtLocation) {
+			datesAtLocation.put(currentPeriodStart, adherencePeriodEnd);
+		}
+
+		int overallDaysAtLocation = 0;
+		int missedDaysAtLocation = 0;
+		int lateApptsAtLocation = 0;
+		int overallApptsAtLocation = 0;
+
+		for (Map.Entry<Date, Date> e : datesAtLocation.entrySet()) {
+			overallDaysAtLocation += numDaysInRange(e.getKey(), e.getValue());
+		}
+
+		// Iterate across all of the scheduled visit dates that fall within the period
+		Map<Date, Integer> daysMissedByScheduledVisitDate = new TreeMap<Date, Integer>();
+		for (Date scheduledVisitDate : scheduledVisits) {
+
+			// Find the actual visit date that is is closest to the scheduled visit date
+			Date closestVisitDate = null;
+			for (Iterator<Date> i = remainingVisits.keySet().iterator(); i.hasNext();) {
+				Date actualVisitDate = i.next();
+				if (actualVisitDate.compareTo(scheduledVisitDate) <= 0 || closestVisitDate == null) {
+					closestVisitDate = actualVisitDate;
+					i.remove();
+				}
+			}
+			if (closestVisitDate == null) {
+				closestVisitDate = adherencePeriodEnd;
+			}
+
+			int daysBetweenScheduledAndActualVisit = daysBetween(scheduledVisitDate, closestVisitDate);
+			daysMissedByScheduledVisitDate.put(scheduledVisitDate, daysBetweenScheduledAndActualVisit);
+
+			// If the patient is "enrolled" at the current location at the visit date, include them for the location
+			for (Map.Entry<Date, Date> e : datesAtLocation.entrySet()) {
+				if (isDateInRange(closestVisitDate, e.getKey(), e.getValue())) {
+					int daysFromDate = daysBetweenScheduledAndActualVisit - GRACE_PERIOD_DAYS;
+					if (daysFromDate > 0) {
+						missedDaysAtLocation += daysFromDate;
+						lateApptsAtLocation++;
+					}
+					overallApptsAtLocation++;
+				}
+			}
+		}
+
+		// First report on overall adherence at the report Location
+		ret.put("LocationDaysMissed", missedDaysAtLocation);
+		ret.put("LocationDaysOverall", overallDaysAtLocation);
+		ret.put("LocationOntimeAppts", (overallApptsAtLocation-lateApptsAtLocation));
+		ret.put("LocationOverallAppts", overallApptsAtLocation);
+
+		// Now look at adherence overall for the patient across all Locations
+
+		int adherencePeriodDays = numDaysInRange(adherencePeriodStart, adherencePeriodEnd);
+
+		for (Integer interval : getIntervals()) {
+
+			if (interval == null || adherencePeriodDays >= interval) {
+
+				int missedDays = 0;
+				int overallDays = (interval != null ? interval : adherencePeriodDays);
+				int lateAppts = 0;
+				int overallAppts = 0;
+
+				for (Map.Entry<Date, Integer> e : daysMissedByScheduledVisitDate.entrySet()) {
+					int daysFromStart = daysBetween(adherencePeriodStart, e.getKey());
+					if (interval == null || daysFromStart <= interval) {
+						int daysFromDate = e.getValue() - GRACE_PERIOD_DAYS;
+						if (interval != null && (daysFromStart + daysFromDate > interval)) {
+							daysFromDate = interval - daysFromStart;
+						}
+						if (daysFromDate > 0) {
+							missedDays += daysFromDate;
+							lateAppts++;
+						}
+						overallAppts++;
+					}
+				}
+
+				String prefix = (interval == null ? "" : interval + "d");
+				ret.put(prefix + "DaysMissed", missedDays);
+				ret.put(prefix + "DaysOverall", overallDays);
+				ret.put(prefix + "OntimeAppts", (overallAppts-lateAppts));
+				ret.put(prefix + "OverallAppts", overallAppts);
+			}
+		}
+
+		return ret;
+	}
+
+	private int daysBetween(Date from, Date to) {
+		return (int)((to.getTime() - from.getTime())/1000/60/60/24);
+	}
+
+	private int numDaysInRange(Date from, Date to) {
+		int d = daysBetween(DateUtil.getStartOfDay(from), DateUtil.getStartOfDay(to));
+		return d < 0 ? (d-1) : (d+1);
+	}
+
+	private Date nextDay(Date d) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(d);
+		c.add(Calendar.DATE, 1);
+		return c.getTime();
+	}
+
+	private boolean isDateInRange(Date dateToCheck, Date lowerBound, Date upperBound) {
+		if (dateToCheck.getTime() >= lowerBound.getTime()) {
+			DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+			if (df.format(dateToCheck).compareTo(df.format(upperBound)) <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,244 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Concept;
+import org.openmrs.DrugOrder;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Relationship;
+import org.openmrs.api.context.Context;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the encounters, relationships, drug orders and obs of a cohort of patients, loaded with a few set-based
+ * queries in batches, so that data about each patient can be looked up without querying the database per patient.
+ * Drug orders are loaded the first time they are requested.  Obs are loaded for the whole cohort for the concepts
+ * passed to loadObs in a single query, and for any other concept the first time it is requested.
+ *
+ * The lookups mirror the encounter, obs, order and relationship service methods used per patient, including their
+ * ordering and filtering of voided data.
+ *
+ * Each batch is evicted from the Hibernate session once it is loaded, so that the session does not keep a snapshot of
+ * every encounter, obs, order and relationship of the cohort to dirty check on each flush.  The objects held are
+ * therefore detached, and their own collections, such as Encounter#getObs, must not be used.
+ */
+public class BatchPatientData {
+
+	private static final int BATCH_SIZE = 1000;
+
+	private List<Integer> patientIds;
+	private Set<Integer> patientIdSet;
+	private Map<Integer, List<Encounter>> encounters = new HashMap<Integer, List<Encounter>>();
+	private Map<Integer, List<DrugOrder>> drugOrders = null;
+	private Map<Integer, List<Relationship>> relationships = new HashMap<Integer, List<Relationship>>();
+	private Map<Integer, Map<Integer, List<Obs>>> obs = new HashMap<Integer, Map<Integer, List<Obs>>>();
+
+	public BatchPatientData(Collection<Integer> patientIds) {
+		this.patientIds = new ArrayList<Integer>(patientIds);
+		this.patientIdSet = new HashSet<Integer>(patientIds);
+		for (List<Integer> batch : getBatches()) {
+			for (Object o : query("from Encounter e where e.voided = false and e.patient.patientId in (:ids) order by e.encounterDatetime, e.encounterId", batch)) {
+				Encounter e = (Encounter) o;
+				addToList(encounters, e.getPatient().getPatientId(), e);
+			}
+		}
+		// getRelationshipsByPerson returns the relationships where the person is person A, followed by those where they are person B
+		for (String side : new String[] {"personA", "personB"}) {
+			for (List<Integer> batch : getBatches()) {
+				for (Object o : query("select distinct r from Relationship r join fetch r.personB b left join fetch b.names where r.voided = false and r." + side + ".personId in (:ids) order by r.relationshipId", batch)) {
+					Relationship r = (Relationship) o;
+					addToList(relationships, ("personA".equals(side) ? r.getPersonA() : r.getPersonB()).getPersonId(), r);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if data was loaded for the given patient
+	 */
+	public boolean contains(Patient p) {
+		return p != null && patientIdSet.contains(p.getPatientId());
+	}
+
+	/**
+	 * Loads the obs of the whole cohort for all of the given concepts not already loaded, with a single query per batch
+	 */
+	public void loadObs(Collection<Concept> concepts) {
+		List<Concept> toLoad = new ArrayList<Concept>();
+		for (Concept concept : concepts) {
+			if (concept != null && !obs.containsKey(concept.getConceptId())) {
+				toLoad.add(concept);
+				obs.put(concept.getConceptId(), new HashMap<Integer, List<Obs>>());
+			}
+		}
+		if (!toLoad.isEmpty()) {
+			for (List<Integer> batch : getBatches()) {
+				Query q = getSessionFactory().getCurrentSession().createQuery("from Obs o where o.voided = false and o.concept in (:concepts) and o.personId in (:ids) order by o.obsDatetime desc, o.obsId desc");
+				q.setParameterList("concepts", toLoad);
+				q.setParameterList("ids", batch);
+				for (Object o : evict(q.list())) {
+					Obs ob = (Obs) o;
+					addToList(obs.get(ob.getConcept().getConceptId()), ob.getPersonId(), ob);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the non-voided encounters of the patient on or before toDate (if specified), of the given types
+	 * (if any are specified), ordered by encounter date, as returned by EncounterService#getEncounters
+	 */
+	public List<Encounter> getEncounters(Patient p, Date toDate, Collection<EncounterType> encounterTypes) {
+		Set<Integer> encounterTypeIds = new HashSet<Integer>();
+		if (encounterTypes != null) {
+			for (EncounterType type : encounterTypes) {
+				encounterTypeIds.add(type == null ? null : type.getEncounterTypeId());
+			}
+		}
+		List<Encounter> ret = new ArrayList<Encounter>();
+		for (Encounter e : getList(encounters, p.getPatientId())) {
+			if (toDate != null && e.getEncounterDatetime().after(toDate)) {
+				continue;
+			}
+			if (!encounterTypeIds.isEmpty() && !encounterTypeIds.contains(e.getEncounterType().getEncounterTypeId())) {
+				continue;
+			}
+			ret.add(e);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the non-voided obs of the patient for the given concept, most recent first
+	 */
+	public List<Obs> getObs(Patient p, Concept concept) {
+		if (concept == null) {
+			return Collections.emptyList();
+		}
+		loadObs(Collections.singleton(concept));
+		return getList(obs.get(concept.getConceptId()), p.getPatientId());
+	}
+
+	/**
+	 * @return the most recent obs of the patient for the concept on or before toDate (if specified).  As with
+	 * ObsService#getObservations, the obs must belong to one of the given encounters, unless none are given.
+	 */
+	public Obs getLatestObs(Patient p, Concept concept, Date toDate, Collection<Encounter> inEncounters) {
+		List<Obs> l = getObs(p, concept, toDate, inEncounters);
+		return l.isEmpty() ? null : l.get(0);
+	}
+
+	/**
+	 * @return the obs of the patient for the concept on or before toDate (if specified), most recent first.  As with
+	 * ObsService#getObservations, the obs must belong to one of the given encounters, unless none are given.
+	 */
+	public List<Obs> getObs(Patient p, Concept concept, Date toDate, Collection<Encounter> inEncounters) {
+		boolean restrictToEncounters = (inEncounters != null && !inEncounters.isEmpty());
+		Set<Integer> encounterIds = new HashSet<Integer>();
+		if (restrictToEncounters) {
+			for (Encounter e : inEncounters) {
+				if (e != null) {
+					encounterIds.add(e.getEncounterId());
+				}
+			}
+		}
+		List<Obs> ret = new ArrayList<Obs>();
+		for (Obs o : getObs(p, concept)) {
+			if (toDate != null && o.getObsDatetime().after(toDate)) {
+				continue;
+			}
+			if (restrictToEncounters && (o.getEncounter() == null || !encounterIds.contains(o.getEncounter().getEncounterId()))) {
+				continue;
+			}
+			ret.add(o);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the non-voided drug orders of the patient for the given concept (or any concept if null), ordered by
+	 * start date, as returned by OrderService#getOrders
+	 */
+	public List<DrugOrder> getDrugOrders(Patient p, Concept concept) {
+		if (drugOrders == null) {
+			drugOrders = new HashMap<Integer, List<DrugOrder>>();
+			for (List<Integer> batch : getBatches()) {
+				for (Object o : query("from DrugOrder o where o.voided = false and o.patient.patientId in (:ids) order by o.startDate, o.orderId", batch)) {
+					DrugOrder drugOrder = (DrugOrder) o;
+					addToList(drugOrders, drugOrder.getPatient().getPatientId(), drugOrder);
+				}
+			}
+		}
+		List<DrugOrder> ret = new ArrayList<DrugOrder>();
+		for (DrugOrder drugOrder : getList(drugOrders, p.getPatientId())) {
+			if (concept == null || concept.equals(drugOrder.getConcept())) {
+				ret.add(drugOrder);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the non-voided relationships of the patient, as returned by PersonService#getRelationshipsByPerson
+	 */
+	public List<Relationship> getRelationships(Patient p) {
+		return getList(relationships, p.getPatientId());
+	}
+
+	protected List<List<Integer>> getBatches() {
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		for (int i=0; i<patientIds.size(); i+=BATCH_SIZE) {
+			batches.add(patientIds.subList(i, Math.min(i+BATCH_SIZE, patientIds.size())));
+		}
+		return batches;
+	}
+
+	protected List<?> query(String hql, List<Integer> ids) {
+		Query q = getSessionFactory().getCurrentSession().createQuery(hql);
+		q.setParameterList("ids", ids);
+		return evict(q.list());
+	}
+
+	/**
+	 * Evicts the given entities from the current session.  Only these are evicted, rather than clearing the session,
+	 * so that the patients, metadata and other entities the caller holds stay attached.
+	 */
+	protected List<?> evict(List<?> entities) {
+		Session session = getSessionFactory().getCurrentSession();
+		for (Object entity : entities) {
+			session.evict(entity);
+		}
+		return entities;
+	}
+
+	protected SessionFactory getSessionFactory() {
+		return Context.getRegisteredComponents(SessionFactory.class).get(0);
+	}
+
+	protected <T> void addToList(Map<Integer, List<T>> map, Integer key, T value) {
+		List<T> l = map.get(key);
+		if (l == null) {
+			l = new ArrayList<T>();
+			map.put(key, l);
+		}
+		l.add(value);
+	}
+
+	protected <T> List<T> getList(Map<Integer, List<T>> map, Integer key) {
+		List<T> l = map.get(key);
+		return (l == null ? Collections.<T>emptyList() : l);
+	}
+}
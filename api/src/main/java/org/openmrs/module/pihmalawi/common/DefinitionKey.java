@@ -0,0 +1,260 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.reporting.evaluation.Definition;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds keys that are equal for definitions with the same configuration, so that separately constructed copies of a
+ * definition can be recognised as the same and evaluated only once.  A key is made up of the class of the object and
+ * the keys of each of its fields, other than the name, uuid and other fields common to all definitions that only
+ * describe it.  Saved OpenMRS objects are compared by type and id, and anything that cannot safely be compared by its
+ * fields, such as an unsaved OpenMRS object or an object that refers back to itself, only matches itself.
+ *
+ * Keys can also be reduced to a digest that is the same in every run, so that results can be cached beyond the life
+ * of the definitions they were evaluated from.
+ */
+public class DefinitionKey {
+
+	/**
+	 * The classes whose fields describe a definition rather than change how it is evaluated
+	 */
+	public static final Set<String> IGNORED_CLASSES = new HashSet<String>(Arrays.asList(
+			"org.openmrs.BaseOpenmrsObject",
+			"org.openmrs.BaseOpenmrsMetadata",
+			"org.openmrs.module.reporting.evaluation.BaseDefinition"
+	));
+
+	private Map<Object, Object> keys = new IdentityHashMap<Object, Object>();
+	private Map<Object, Object> inProgress = new IdentityHashMap<Object, Object>();
+
+	/**
+	 * @return a key for the object, which is equal to the key of any other object with the same configuration
+	 */
+	public static Object of(Object o) {
+		return new DefinitionKey().getKey(o);
+	}
+
+	/**
+	 * @return a hex-encoded SHA-256 digest of a canonical form of the key, which is the same in every run for equal
+	 * keys, or null if the key includes anything that only matches itself and so cannot be recognised in another run
+	 */
+	public static String digest(Object key) {
+		StringBuilder canonical = new StringBuilder();
+		if (!appendCanonical(canonical, key)) {
+			return null;
+		}
+		try {
+			return digest(canonical.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("Unable to compute digest", e);
+		}
+	}
+
+	/**
+	 * @return a hex-encoded SHA-256 digest of the bytes
+	 */
+	public static String digest(byte[] bytes) {
+		try {
+			StringBuilder ret = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+				ret.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return ret.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Unable to compute digest", e);
+		}
+	}
+
+	/**
+	 * Appends the canonical form of the key, in which the elements of sets and maps are sorted so that it does not
+	 * depend on the order in which they happen to be held
+	 * @return false if the key cannot be written in a form that is the same in every run
+	 */
+	protected static boolean appendCanonical(StringBuilder sb, Object key) {
+		if (key == null) {
+			sb.append("null");
+		}
+		else if (key instanceof String) {
+			sb.append('"').append(((String) key).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		else if (key instanceof Number || key instanceof Boolean || key instanceof Character) {
+			sb.append(key.getClass().getSimpleName()).append(':').append(key);
+		}
+		else if (key instanceof Enum) {
+			sb.append(((Enum<?>) key).getDeclaringClass().getName()).append('.').append(((Enum<?>) key).name());
+		}
+		else if (key instanceof Class) {
+			sb.append("class:").append(((Class<?>) key).getName());
+		}
+		else if (key instanceof List) {
+			sb.append('[');
+			for (Object element : (List<?>) key) {
+				if (!appendCanonical(sb, element)) {
+					return false;
+				}
+				sb.append(',');
+			}
+			sb.append(']');
+		}
+		else if (key instanceof Set || key instanceof Map) {
+			List<String> elements = new ArrayList<String>();
+			Collection<?> entries = (key instanceof Set ? (Set<?>) key : ((Map<?, ?>) key).entrySet());
+			for (Object element : entries) {
+				StringBuilder elementString = new StringBuilder();
+				if (element instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) element;
+					if (!appendCanonical(elementString, entry.getKey()) || !appendCanonical(elementString.append('='), entry.getValue())) {
+						return false;
+					}
+				}
+				else if (!appendCanonical(elementString, element)) {
+					return false;
+				}
+				elements.add(elementString.toString());
+			}
+			Collections.sort(elements);
+			sb.append('{');
+			for (String element : elements) {
+				sb.append(element).append(',');
+			}
+			sb.append('}');
+		}
+		else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a key for the object, reusing the keys already built by this instance for any objects it refers to
+	 */
+	public Object getKey(Object o) {
+		if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Character) {
+			return o;
+		}
+		if (o instanceof Enum || o instanceof Class) {
+			return o;
+		}
+		if (o instanceof Date) {
+			return Arrays.asList(Date.class, ((Date) o).getTime());
+		}
+		Object key = keys.get(o);
+		if (key == null) {
+			if (inProgress.containsKey(o)) {
+				return new IdentityKey(o);
+			}
+			inProgress.put(o, o);
+			try {
+				key = buildKey(o);
+			}
+			finally {
+				inProgress.remove(o);
+			}
+			keys.put(o, key);
+		}
+		return key;
+	}
+
+	protected Object buildKey(Object o) {
+		if (o instanceof OpenmrsObject && !(o instanceof Definition)) {
+			Integer id = ((OpenmrsObject) o).getId();
+			return (id == null ? new IdentityKey(o) : Arrays.asList(getPersistentClass(o.getClass()), id));
+		}
+		if (o instanceof Collection) {
+			List<Object> elements = new ArrayList<Object>();
+			for (Object element : (Collection<?>) o) {
+				elements.add(getKey(element));
+			}
+			return (o instanceof Set ? new HashSet<Object>(elements) : elements);
+		}
+		if (o instanceof Map) {
+			Map<Object, Object> entries = new HashMap<Object, Object>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+				entries.put(getKey(e.getKey()), getKey(e.getValue()));
+			}
+			return entries;
+		}
+		if (o.getClass().isArray()) {
+			List<Object> elements = new ArrayList<Object>();
+			for (int i = 0; i < Array.getLength(o); i++) {
+				elements.add(getKey(Array.get(o, i)));
+			}
+			return elements;
+		}
+		Map<String, Object> fields = new HashMap<String, Object>();
+		try {
+			for (Class<?> c = o.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					if (Modifier.isStatic(f.getModifiers()) || isIgnored(f)) {
+						continue;
+					}
+					f.setAccessible(true);
+					fields.put(c.getName() + "." + f.getName(), getKey(f.get(o)));
+				}
+			}
+		}
+		catch (Exception e) {
+			return new IdentityKey(o);
+		}
+		return Arrays.asList(o.getClass(), fields);
+	}
+
+	/**
+	 * @return true if the field only describes the object, rather than changing how it is evaluated
+	 */
+	protected boolean isIgnored(Field f) {
+		return IGNORED_CLASSES.contains(f.getDeclaringClass().getName()) && !"parameters".equals(f.getName());
+	}
+
+	/**
+	 * @return the mapped class, rather than that of any proxy generated for it
+	 */
+	protected Class<?> getPersistentClass(Class<?> c) {
+		while (c.getName().contains("$$") && c.getSuperclass() != null) {
+			c = c.getSuperclass();
+		}
+		return c;
+	}
+
+	/**
+	 * A key that is only equal to the key of the same instance
+	 */
+	private static class IdentityKey {
+
+		private Object o;
+
+		public IdentityKey(Object o) {
+			this.o = o;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof IdentityKey && ((IdentityKey) other).o == o;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(o);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Blocking index used to find patients that may be duplicates of each other.  The names of all patients are added
+ * once, grouped into blocks by their given and family name soundex codes, and within those by gender and birth year
+ * bucket.  Finding the matches for a patient then only compares them with the names in the blocks they could match,
+ * rather than querying for each patient in turn.
+ *
+ * Two names match if their soundex codes match (optionally with the given and family names swapped), their genders
+ * match, and their birth years fall in the same or adjacent buckets.  An unknown gender or birthdate matches any.
+ * Each match is scored from 0.5 to 1 by how many of the exact names, gender and birth year also agree.
+ */
+public class DuplicatePatientIndex {
+
+	public static final int BIRTH_YEAR_BUCKET_SIZE = 5;
+
+	private Map<String, Map<String, List<Name>>> blocks = new HashMap<String, Map<String, List<Name>>>();
+	private Map<Integer, List<Name>> namesByPatient = new HashMap<Integer, List<Name>>();
+
+	public DuplicatePatientIndex() {}
+
+	/**
+	 * Adds a name of a patient to the index.  Names without both soundex codes can never match, so are ignored.
+	 */
+	public void addName(Integer patientId, String givenName, String familyName, String givenNameCode, String familyNameCode, String gender, Date birthdate) {
+		if (StringUtils.isEmpty(givenNameCode) || StringUtils.isEmpty(familyNameCode)) {
+			return;
+		}
+		Name name = new Name(patientId, givenName, familyName, givenNameCode, familyNameCode, gender, birthdate);
+		Map<String, List<Name>> block = blocks.get(name.getBlockKey(false));
+		if (block == null) {
+			block = new HashMap<String, List<Name>>();
+			blocks.put(name.getBlockKey(false), block);
+		}
+		addToList(block, name.getSubBlockKey(), name);
+		addToList(namesByPatient, patientId, name);
+	}
+
+	/**
+	 * @return the patients in candidatePatientIds (or any indexed patients if null) that may be duplicates of the
+	 * given patient, with the best score across all of their names, ordered by descending score and then patient id
+	 */
+	public List<Match> findMatches(Integer patientId, boolean swapGivenAndFamilyName, Set<Integer> candidatePatientIds) {
+		Map<Integer, Match> matches = new LinkedHashMap<Integer, Match>();
+		List<Name> referenceNames = namesByPatient.get(patientId);
+		if (referenceNames != null) {
+			for (Name reference : referenceNames) {
+				Map<String, List<Name>> block = blocks.get(reference.getBlockKey(swapGivenAndFamilyName));
+				if (block == null) {
+					continue;
+				}
+				for (List<Name> subBlock : block.values()) {
+					Name first = subBlock.get(0);
+					if (!reference.genderMatches(first) || !reference.birthYearMatches(first)) {
+						continue;  // All names in a sub-block have the same gender and birth year bucket
+					}
+					for (Name candidate : subBlock) {
+						if (candidate.patientId.equals(patientId)) {
+							continue;
+						}
+						if (candidatePatientIds != null && !candidatePatientIds.contains(candidate.patientId)) {
+							continue;
+						}
+						double score = reference.score(candidate, swapGivenAndFamilyName);
+						Match existing = matches.get(candidate.patientId);
+						if (existing == null || existing.getScore() < score) {
+							matches.put(candidate.patientId, new Match(candidate.patientId, score));
+						}
+					}
+				}
+			}
+		}
+		List<Match> ret = new ArrayList<Match>(matches.values());
+		Collections.sort(ret, new Comparator<Match>() {
+			public int compare(Match m1, Match m2) {
+				int ret = Double.compare(m2.getScore(), m1.getScore());
+				return ret != 0 ? ret : m1.getPatientId().compareTo(m2.getPatientId());
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * @return the ids of all patients with at least one name in the index
+	 */
+	public Collection<Integer> getPatientIds() {
+		return namesByPatient.keySet();
+	}
+
+	private <K, T> void addToList(Map<K, List<T>> map, K key, T value) {
+		List<T> l = map.get(key);
+		if (l == null) {
+			l = new ArrayList<T>();
+			map.put(key, l);
+		}
+		l.add(value);
+	}
+
+	/**
+	 * A patient that may be a duplicate, with a score from 0.5 to 1 of how similar they are
+	 */
+	public static class Match {
+
+		private Integer patientId;
+		private double score;
+
+		public Match(Integer patientId, double score) {
+			this.patientId = patientId;
+			this.score = score;
+		}
+
+		public Integer getPatientId() {
+			return patientId;
+		}
+
+		public double getScore() {
+			return score;
+		}
+	}
+
+	private static class Name {
+
+		private Integer patientId;
+		private String givenName;
+		private String familyName;
+		private String givenNameCode;
+		private String familyNameCode;
+		private String gender;
+		private Integer birthYear;
+
+		public Name(Integer patientId, String givenName, String familyName, String givenNameCode, String familyNameCode, String gender, Date birthdate) {
+			this.patientId = patientId;
+			this.givenName = givenName;
+			this.familyName = familyName;
+			this.givenNameCode = givenNameCode;
+			this.familyNameCode = familyNameCode;
+			this.gender = (StringUtils.isEmpty(gender) ? null : gender.toUpperCase());
+			if (birthdate != null) {
+				Calendar c = Calendar.getInstance();
+				c.setTime(birthdate);
+				this.birthYear = c.get(Calendar.YEAR);
+			}
+		}
+
+		public String getBlockKey(boolean swapGivenAndFamilyName) {
+			if (swapGivenAndFamilyName) {
+				return familyNameCode + "|" + givenNameCode;
+			}
+			return givenNameCode + "|" + familyNameCode;
+		}
+
+		public String getSubBlockKey() {
+			return gender + "|" + getBirthYearBucket();
+		}
+
+		public Integer getBirthYearBucket() {
+			return (birthYear == null ? null : birthYear / BIRTH_YEAR_BUCKET_SIZE);
+		}
+
+		public boolean genderMatches(Name other) {
+			return gender == null || other.gender == null || gender.equals(other.gender);
+		}
+
+		public boolean birthYearMatches(Name other) {
+			if (birthYear == null || other.birthYear == null) {
+				return true;
+			}
+			return Math.abs(getBirthYearBucket() - other.getBirthYearBucket()) <= 1;
+		}
+
+		public double score(Name other, boolean swapGivenAndFamilyName) {
+			double score = 0.5;
+			if (StringUtils.isNotEmpty(givenName) && givenName.equalsIgnoreCase(swapGivenAndFamilyName ? other.familyName : other.givenName)) {
+				score += 0.15;
+			}
+			if (StringUtils.isNotEmpty(familyName) && familyName.equalsIgnoreCase(swapGivenAndFamilyName ? other.givenName : other.familyName)) {
+				score += 0.15;
+			}
+			if (gender != null && gender.equals(other.gender)) {
+				score += 0.1;
+			}
+			if (birthYear != null && birthYear.equals(other.birthYear)) {
+				score += 0.1;
+			}
+			return score;
+		}
+	}
+}
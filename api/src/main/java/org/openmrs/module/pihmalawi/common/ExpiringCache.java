@@ -0,0 +1,174 @@
+package org.openmrs.module.pihmalawi.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Bounded cache of values that expire a fixed time after they are loaded, or as soon as the generation of the data
+ * they were loaded from changes.  Callers pass the current generation, such as a count of changes to the underlying
+ * data, so that a value loaded before a change is never returned after it.
+ *
+ * Concurrent requests for the same key and generation are coalesced, so that the value is only loaded once and every
+ * caller waits for that load rather than repeating it.  Failed loads are not cached.
+ */
+public class ExpiringCache<K, V> {
+
+	private final long timeToLive;
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final ConcurrentMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param timeToLive the number of milliseconds after which a value expires
+	 * @param maxSize the maximum number of values held, beyond which the least recently used are removed
+	 */
+	public ExpiringCache(long timeToLive, final int maxSize) {
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value for the key and generation, loading it with the loader if it is absent or expired
+	 */
+	public V get(K key, long generation, Callable<V> loader) throws Exception {
+		V value = getIfPresent(key, generation);
+		if (value != null) {
+			return value;
+		}
+
+		Load<V> load = new Load<V>(generation, loader);
+		Load<V> existing = loads.putIfAbsent(key, load);
+		while (existing != null && existing.generation != generation) {
+			// A load for an older generation is still running, so replace it rather than wait for a stale value
+			if (loads.replace(key, existing, load)) {
+				existing = null;
+			}
+			else {
+				existing = loads.putIfAbsent(key, load);
+			}
+		}
+		if (existing != null) {
+			return getResult(existing);
+		}
+
+		try {
+			load.task.run();
+			value = getResult(load);
+			put(key, value, generation);
+			return value;
+		}
+		finally {
+			loads.remove(key, load);
+		}
+	}
+
+	/**
+	 * @return the cached value for the key and generation, or null if it is absent or expired
+	 */
+	public synchronized V getIfPresent(K key, long generation) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && (entry.generation < generation || entry.expiry <= currentTimeMillis())) {
+			entries.remove(key);
+			entry = null;
+		}
+		else if (entry != null && entry.generation > generation) {
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Caches the value for the key, as loaded from the given generation of the underlying data, unless a value from a
+	 * later generation is already cached
+	 */
+	public synchronized void put(K key, V value, long generation) {
+		Entry<V> existing = entries.get(key);
+		if (value != null && (existing == null || existing.generation <= generation)) {
+			entries.put(key, new Entry<V>(value, generation, currentTimeMillis() + timeToLive));
+		}
+	}
+
+	/**
+	 * Removes all cached values
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ExpiringCache[size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+
+	/**
+	 * @return the current time, against which values expire
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private V getResult(Load<V> load) throws Exception {
+		try {
+			return load.task.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static class Entry<V> {
+
+		private final V value;
+		private final long generation;
+		private final long expiry;
+
+		public Entry(V value, long generation, long expiry) {
+			this.value = value;
+			this.generation = generation;
+			this.expiry = expiry;
+		}
+	}
+
+	private static class Load<V> {
+
+		private final long generation;
+		private final FutureTask<V> task;
+
+		public Load(long generation, Callable<V> loader) {
+			this.generation = generation;
+			this.task = new FutureTask<V>(loader);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads obs as scalar columns rather than as entities, for evaluators that only need the value and date of each obs.
+ * Each obs is returned as a new Obs that is not attached to the session, with only its id, person, question, date and
+ * values set, so none of the encounter, person or concept graphs are loaded and nothing is left for the session to
+ * track or flush.  Coded values are looked up once for each distinct answer.
+ */
+@Component
+public class ObsProjectionHelper {
+
+	@Autowired
+	EvaluationService evaluationService;
+
+	/**
+	 * @return the non-voided obs of the patients in the context for any of the questions, recorded in an encounter of
+	 * one of the given types if any are given, on or before the end date if there is one, keyed on patient id and
+	 * ordered from earliest to most recent
+	 */
+	public Map<Integer, List<Obs>> getObs(Collection<Concept> questions, Collection<EncounterType> encounterTypes, Date endDate, EvaluationContext context) {
+		Map<Integer, List<Obs>> ret = new LinkedHashMap<Integer, List<Obs>>();
+		if (questions.isEmpty() || (context.getBaseCohort() != null && context.getBaseCohort().isEmpty())) {
+			return ret;
+		}
+
+		Map<Integer, Concept> concepts = new HashMap<Integer, Concept>();
+		for (Concept question : questions) {
+			concepts.put(question.getConceptId(), question);
+		}
+
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append("select 	o.obs_id, o.person_id, o.concept_id, o.obs_datetime, o.value_numeric, o.value_coded, o.value_datetime, o.value_text");
+		q.append("from 		obs o");
+		if (encounterTypes != null && !encounterTypes.isEmpty()) {
+			List<Integer> encounterTypeIds = new ArrayList<Integer>();
+			for (EncounterType type : encounterTypes) {
+				encounterTypeIds.add(type.getEncounterTypeId());
+			}
+			q.append("inner join encounter e on e.encounter_id = o.encounter_id and e.encounter_type in (" + OpenmrsUtil.join(encounterTypeIds, ",") + ")");
+		}
+		q.append("where 	o.voided = 0");
+		q.append("and		o.concept_id in (" + OpenmrsUtil.join(concepts.keySet(), ",") + ")");
+		if (endDate != null) {
+			q.append("and		o.obs_datetime <= :endDate");
+			q.addParameter("endDate", endDate);
+		}
+		if (context.getBaseCohort() != null) {
+			q.append("and		o.person_id in (" + OpenmrsUtil.join(context.getBaseCohort().getMemberIds(), ",") + ")");
+		}
+		q.append("order by 	o.obs_datetime, o.obs_id");
+
+		for (Object[] row : evaluationService.evaluateToList(q, context)) {
+			Obs o = toObs(row, concepts);
+			List<Obs> obsForPatient = ret.get(o.getPersonId());
+			if (obsForPatient == null) {
+				obsForPatient = new ArrayList<Obs>();
+				ret.put(o.getPersonId(), obsForPatient);
+			}
+			obsForPatient.add(o);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return an Obs with the values of a row of obs_id, person_id, concept_id, obs_datetime, value_numeric,
+	 * value_coded, value_datetime and value_text, looking up any concepts that are not already in the given map
+	 */
+	protected Obs toObs(Object[] row, Map<Integer, Concept> concepts) {
+		Obs o = new Obs();
+		o.setObsId(toInteger(row[0]));
+		o.setPerson(new Person(toInteger(row[1])));
+		o.setConcept(getConcept(toInteger(row[2]), concepts));
+		o.setObsDatetime((Date) row[3]);
+		o.setValueNumeric(row[4] == null ? null : ((Number) row[4]).doubleValue());
+		o.setValueCoded(getConcept(toInteger(row[5]), concepts));
+		o.setValueDatetime((Date) row[6]);
+		o.setValueText((String) row[7]);
+		return o;
+	}
+
+	protected Concept getConcept(Integer conceptId, Map<Integer, Concept> concepts) {
+		if (conceptId == null) {
+			return null;
+		}
+		Concept concept = concepts.get(conceptId);
+		if (concept == null) {
+			concept = Context.getConceptService().getConcept(conceptId);
+			concepts.put(conceptId, concept);
+		}
+		return concept;
+	}
+
+	protected Integer toInteger(Object o) {
+		return (o == null ? null : ((Number) o).intValue());
+	}
+}
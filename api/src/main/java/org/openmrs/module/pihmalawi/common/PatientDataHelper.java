@@ -17,7 +17,6 @@ import org.openmrs.Person;
 import org.openmrs.PersonAddress;
 import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
-import org.openmrs.api.EncounterService;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.OrderService;
 import org.openmrs.api.context.Context;
@@ -43,11 +42,49 @@ import java.util.TreeSet;
 
 public class PatientDataHelper {
 
+	/**
+	 * The concepts of the obs looked up by getReasonStartingArvs
+	 */
+	public static final List<String> REASON_STARTING_ARVS_CONCEPTS = Arrays.asList("CD4 count", "Kaposis sarcoma side effects worsening while on ARVs?", "5965", "WHO stage", "CD4 percent", "Presumed severe HIV criteria present");
+
 	protected Log log = LogFactory.getLog(this.getClass());
 
 	private Map<String, EncounterType> encounterTypeCache = new HashMap<String, EncounterType>();
 	private Map<String, RelationshipType> relTypeCache = new HashMap<String, RelationshipType>();
 	private CommonMetadata commonMetadata = new CommonMetadata();
+	private BatchPatientData patientData;
+
+	public PatientDataHelper() {}
+
+	/**
+	 * Uses the given data, loaded for a cohort of patients, instead of querying the data of each of these patients as
+	 * it is requested.  Patients not in the cohort are still queried.
+	 */
+	public void setPatientData(BatchPatientData patientData) {
+		this.patientData = patientData;
+	}
+
+	/**
+	 * @return a helper that looks up the data of the given patients from data loaded up front, with the obs for each of
+	 * the given concepts, specified by name or id, loaded together
+	 */
+	public static PatientDataHelper forPatients(Collection<Integer> patientIds, Collection<String> concepts) {
+		PatientDataHelper helper = new PatientDataHelper();
+		helper.setPatientData(new BatchPatientData(patientIds));
+		helper.prefetchObs(concepts);
+		return helper;
+	}
+
+	/**
+	 * Loads the obs of the cohort for each of the given concepts, specified by name or id, together
+	 */
+	public void prefetchObs(Collection<String> concepts) {
+		List<Concept> l = new ArrayList<Concept>();
+		for (String concept : concepts) {
+			l.add(commonMetadata.getConcept(concept));
+		}
+		patientData.loadObs(l);
+	}
 
 	// Data Set Utilities
 
@@ -99,7 +136,7 @@ public class PatientDataHelper {
 
 	public String vhwName(Patient p, boolean guardianIfNoChw) {
 
-		List<Relationship> ships = Context.getPersonService().getRelationshipsByPerson(p);
+		List<Relationship> ships = getRelationships(p);
 		String vhw = "";
 
 		RelationshipType vhwType = lookupRelationshipType("Patient/Village Health Worker");
@@ -177,8 +214,10 @@ public class PatientDataHelper {
 		Concept c = commonMetadata.getConcept(concept);
 		List<Encounter> encs = null;
 		if (onlyInEncountersOfType != null) {
-			EncounterService es = Context.getEncounterService();
-			encs = es.getEncounters(p, null, null, endDate, null, onlyInEncountersOfType, null, false);
+			encs = getEncounters(p, endDate, onlyInEncountersOfType);
+		}
+		if (isLoaded(p)) {
+			return patientData.getLatestObs(p, c, endDate, encs);
 		}
 		ObsService os = Context.getObsService();
 		List<Obs> l = os.getObservations(Arrays.asList((Person)p), encs, Arrays.asList(c), null, null, null, null, 1, null, null, endDate, false);
@@ -192,10 +231,15 @@ public class PatientDataHelper {
 		Concept c = commonMetadata.getConcept(concept);
 		List<Encounter> encs = null;
 		if (onlyInEncountersOfType != null) {
-			encs = Context.getEncounterService().getEncounters(p, null, null, endDate, null, onlyInEncountersOfType, null, false);
+			encs = getEncounters(p, endDate, onlyInEncountersOfType);
+		}
+		List<Obs> l;
+		if (isLoaded(p)) {
+			l = patientData.getObs(p, c, endDate, encs);
+		}
+		else {
+			l = Context.getObsService().getObservations(Arrays.asList((Person)p), encs, Arrays.asList(c), null, null, null, null, null, null, null, endDate, false);
 		}
-		ObsService os = Context.getObsService();
-		List<Obs> l = os.getObservations(Arrays.asList((Person)p), encs, Arrays.asList(c), null, null, null, null, null, null, null, endDate, false);
 		Map<Date, Obs> m = new TreeMap<Date, Obs>();
 		for (Obs o : l) {
 			m.put(o.getObsDatetime(), o);
@@ -272,7 +316,7 @@ public class PatientDataHelper {
 	public List<DrugOrder> getDrugOrdersByStartDateAscending(Patient p, String conceptNameOrId, Date onOrBeforeDate) {
 		Map<Date, DrugOrder> m = new TreeMap<Date, DrugOrder>();
 		Concept drugConcept = commonMetadata.getConcept(conceptNameOrId);
-		for (DrugOrder drugOrder : Context.getOrderService().getOrders(DrugOrder.class, Arrays.asList(p), Arrays.asList(drugConcept), OrderService.ORDER_STATUS.NOTVOIDED, null, null, null)) {
+		for (DrugOrder drugOrder : getDrugOrders(p, drugConcept)) {
 			if (onOrBeforeDate == null || drugOrder.getStartDate().compareTo(onOrBeforeDate) <= 0) {
 				m.put(drugOrder.getStartDate(), drugOrder);
 			}
@@ -290,7 +334,7 @@ public class PatientDataHelper {
 
 	public Set<Concept> getDrugsTakingOnDate(Patient p, Date onDate) {
 		Set<Concept> l = new HashSet<Concept>();
-		for (DrugOrder drugOrder : Context.getOrderService().getOrders(DrugOrder.class, Arrays.asList(p), null, OrderService.ORDER_STATUS.NOTVOIDED, null, null, null)) {
+		for (DrugOrder drugOrder : getDrugOrders(p, null)) {
 			if (drugOrder.isCurrent(onDate)) {
 				l.add(drugOrder.getConcept());
 			}
@@ -342,7 +386,7 @@ public class PatientDataHelper {
 		return getFirstEncounterAtLocationOfType(p, encounterTypes, endDate, null);
 	}
     public Encounter getFirstEncounterAtLocationOfType(Patient p, List<EncounterType> encounterTypes, Date endDate, Location location) {
-        List<Encounter> encounters = Context.getEncounterService().getEncounters(p, null, null, endDate, null, encounterTypes, null, false);
+        List<Encounter> encounters = getEncounters(p, endDate, encounterTypes);
         Encounter ret = null;
         for (Encounter e : encounters) {
             if (ret == null || e.getEncounterDatetime().before(ret.getEncounterDatetime())) {
@@ -354,6 +398,37 @@ public class PatientDataHelper {
         return ret;
     }
 
+	// Patient Data Lookup Utilities
+
+	protected boolean isLoaded(Patient p) {
+		return patientData != null && patientData.contains(p);
+	}
+
+	protected List<Encounter> getEncounters(Patient p, Date endDate, List<EncounterType> encounterTypes) {
+		if (isLoaded(p)) {
+			return patientData.getEncounters(p, endDate, encounterTypes);
+		}
+		return Context.getEncounterService().getEncounters(p, null, null, endDate, null, encounterTypes, null, false);
+	}
+
+	/**
+	 * @return the non-voided drug orders of the patient for the given concept, or for any concept if null
+	 */
+	protected List<DrugOrder> getDrugOrders(Patient p, Concept concept) {
+		if (isLoaded(p)) {
+			return patientData.getDrugOrders(p, concept);
+		}
+		List<Concept> concepts = (concept == null ? null : Arrays.asList(concept));
+		return Context.getOrderService().getOrders(DrugOrder.class, Arrays.asList(p), concepts, OrderService.ORDER_STATUS.NOTVOIDED, null, null, null);
+	}
+
+	protected List<Relationship> getRelationships(Patient p) {
+		if (isLoaded(p)) {
+			return patientData.getRelationships(p);
+		}
+		return Context.getPersonService().getRelationshipsByPerson(p);
+	}
+
 	// Metadata Lookup Utilities
 
 	protected EncounterType lookupEncounterType(String string) {
@@ -0,0 +1,394 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition.MatchMode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the identifiers and names of all patients, used to find patients matching a search phrase without
+ * running LIKE queries that cannot use a database index.  Each distinct identifier and name value is indexed by its
+ * trigrams, with start and end markers so that prefix and suffix searches of any length can use the index.  Values
+ * whose trigrams all match are then checked against the search phrase, so the index never returns false matches.
+ *
+ * Matching follows the queries of PatientSearchCohortDefinitionEvaluator: identifiers match case-insensitively and
+ * only for non-voided patients, and every word of a name search must match the given, family or second family name
+ * of the same name.  Results are ranked by the quality of their best match: exact, then at the start, then anywhere.
+ */
+public class PatientSearchIndex {
+
+	public static final int EXACT_MATCH = 3;
+	public static final int START_MATCH = 2;
+	public static final int ANYWHERE_MATCH = 1;
+
+	private static final char START_MARKER = '\u0002';
+	private static final char END_MARKER = '\u0003';
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private TrigramIndex identifierIndex = new TrigramIndex();
+	private TrigramIndex nameIndex = new TrigramIndex();
+
+	private Map<Integer, List<String>> identifiersByPatient = new HashMap<Integer, List<String>>();
+	private Map<Integer, List<Integer>> nameIdsByPatient = new HashMap<Integer, List<Integer>>();
+	private Map<Integer, String[]> namesById = new HashMap<Integer, String[]>();
+	private Map<Integer, Integer> patientsByNameId = new HashMap<Integer, Integer>();
+	private Set<Integer> voidedPatients = new HashSet<Integer>();
+
+	private boolean built = false;
+
+	public PatientSearchIndex() {}
+
+	/**
+	 * Replaces the indexed data of the given patient, or removes the patient if they have no identifiers or names
+	 * @param identifiers the identifiers of the patient
+	 * @param names each name of the patient, keyed on person name id, as given name, family name and family name 2
+	 */
+	public void setPatient(Integer patientId, boolean voided, List<String> identifiers, Map<Integer, String[]> names) {
+		lock.writeLock().lock();
+		try {
+			removePatientData(patientId);
+			if (voided) {
+				voidedPatients.add(patientId);
+			}
+			if (identifiers != null && !identifiers.isEmpty()) {
+				for (String identifier : identifiers) {
+					identifierIndex.add(identifier, patientId);
+				}
+				identifiersByPatient.put(patientId, new ArrayList<String>(identifiers));
+			}
+			if (names != null && !names.isEmpty()) {
+				for (Map.Entry<Integer, String[]> e : names.entrySet()) {
+					for (String name : e.getValue()) {
+						nameIndex.add(name, e.getKey());
+					}
+					namesById.put(e.getKey(), e.getValue());
+					patientsByNameId.put(e.getKey(), patientId);
+				}
+				nameIdsByPatient.put(patientId, new ArrayList<Integer>(names.keySet()));
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all indexed data of the given patient
+	 */
+	public void removePatient(Integer patientId) {
+		lock.writeLock().lock();
+		try {
+			removePatientData(patientId);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all patients, and marks the index as not built
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			identifierIndex = new TrigramIndex();
+			nameIndex = new TrigramIndex();
+			identifiersByPatient.clear();
+			nameIdsByPatient.clear();
+			namesById.clear();
+			patientsByNameId.clear();
+			voidedPatients.clear();
+			built = false;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the ids of the non-voided patients with an identifier matching the search phrase, best matches first
+	 */
+	public List<Integer> findPatientsByIdentifier(String searchPhrase, MatchMode matchMode) {
+		String query = normalize(searchPhrase);
+		if (StringUtils.isEmpty(query)) {
+			return new ArrayList<Integer>();
+		}
+		lock.readLock().lock();
+		try {
+			Map<Integer, Integer> matches = identifierIndex.find(query, matchMode);
+			matches.keySet().removeAll(voidedPatients);
+			return rank(matches);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the ids of the patients with a name matching every word of the search phrase, best matches first
+	 */
+	public List<Integer> findPatientsByName(String searchPhrase, MatchMode matchMode) {
+		String query = normalize(searchPhrase);
+		if (StringUtils.isEmpty(query)) {
+			return new ArrayList<Integer>();
+		}
+		lock.readLock().lock();
+		try {
+			// Each word must match some part of the same name, so intersect the names matching each word in turn
+			Map<Integer, Integer> matchingNames = null;
+			for (String word : query.split(" ")) {
+				Map<Integer, Integer> wordMatches = nameIndex.find(word, matchMode);
+				if (matchingNames == null) {
+					matchingNames = wordMatches;
+				}
+				else {
+					matchingNames.keySet().retainAll(wordMatches.keySet());
+					for (Map.Entry<Integer, Integer> e : matchingNames.entrySet()) {
+						e.setValue(e.getValue() + wordMatches.get(e.getKey()));
+					}
+				}
+			}
+			Map<Integer, Integer> matches = new HashMap<Integer, Integer>();
+			for (Map.Entry<Integer, Integer> e : matchingNames.entrySet()) {
+				Integer patientId = patientsByNameId.get(e.getKey());
+				Integer existing = matches.get(patientId);
+				if (existing == null || existing < e.getValue()) {
+					matches.put(patientId, e.getValue());
+				}
+			}
+			return rank(matches);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of patients with any identifier or name in the index
+	 */
+	public int getNumPatients() {
+		lock.readLock().lock();
+		try {
+			Set<Integer> patientIds = new HashSet<Integer>(identifiersByPatient.keySet());
+			patientIds.addAll(nameIdsByPatient.keySet());
+			return patientIds.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the index has been fully built, and so can be used in place of querying the database
+	 */
+	public boolean isBuilt() {
+		return built;
+	}
+
+	public void setBuilt(boolean built) {
+		this.built = built;
+	}
+
+	/**
+	 * @return the search phrase as it is matched against the index, in lower case with single spaces between words
+	 */
+	public static String normalize(String s) {
+		if (s == null) {
+			return null;
+		}
+		return s.replaceAll("\\s+", " ").trim().toLowerCase();
+	}
+
+	private void removePatientData(Integer patientId) {
+		voidedPatients.remove(patientId);
+		List<String> identifiers = identifiersByPatient.remove(patientId);
+		if (identifiers != null) {
+			for (String identifier : identifiers) {
+				identifierIndex.remove(identifier, patientId);
+			}
+		}
+		List<Integer> nameIds = nameIdsByPatient.remove(patientId);
+		if (nameIds != null) {
+			for (Integer nameId : nameIds) {
+				for (String name : namesById.remove(nameId)) {
+					nameIndex.remove(name, nameId);
+				}
+				patientsByNameId.remove(nameId);
+			}
+		}
+	}
+
+	private List<Integer> rank(final Map<Integer, Integer> matches) {
+		List<Integer> ret = new ArrayList<Integer>(matches.keySet());
+		Collections.sort(ret, new Comparator<Integer>() {
+			public int compare(Integer p1, Integer p2) {
+				int ret = matches.get(p2).compareTo(matches.get(p1));
+				return ret != 0 ? ret : p1.compareTo(p2);
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Index of distinct values by their trigrams, each with the ids of the items that have that value
+	 */
+	private static class TrigramIndex {
+
+		private Map<String, Integer> valueIds = new HashMap<String, Integer>();
+		private List<String> values = new ArrayList<String>();
+		private List<Set<Integer>> owners = new ArrayList<Set<Integer>>();
+		private Map<String, IntList> postings = new HashMap<String, IntList>();
+
+		public void add(String value, Integer ownerId) {
+			value = normalize(value);
+			if (StringUtils.isEmpty(value)) {
+				return;
+			}
+			Integer valueId = valueIds.get(value);
+			if (valueId == null) {
+				valueId = values.size();
+				valueIds.put(value, valueId);
+				values.add(value);
+				owners.add(new HashSet<Integer>());
+				for (String trigram : getTrigrams(START_MARKER + value + END_MARKER)) {
+					IntList l = postings.get(trigram);
+					if (l == null) {
+						l = new IntList();
+						postings.put(trigram, l);
+					}
+					l.add(valueId);
+				}
+			}
+			owners.get(valueId).add(ownerId);
+		}
+
+		/**
+		 * Removes the owner from the value.  The value stays in the postings, but matches nothing once it has no owners.
+		 */
+		public void remove(String value, Integer ownerId) {
+			value = normalize(value);
+			Integer valueId = (value == null ? null : valueIds.get(value));
+			if (valueId != null) {
+				owners.get(valueId).remove(ownerId);
+			}
+		}
+
+		/**
+		 * @return the ids of the owners of values matching the query, each with the quality of its best match
+		 */
+		public Map<Integer, Integer> find(String query, MatchMode matchMode) {
+			Map<Integer, Integer> ret = new HashMap<Integer, Integer>();
+			if (matchMode == MatchMode.EXACT) {
+				Integer valueId = valueIds.get(query);
+				if (valueId != null) {
+					addOwners(ret, valueId, EXACT_MATCH);
+				}
+				return ret;
+			}
+
+			String pattern = query;
+			if (matchMode == MatchMode.START) {
+				pattern = START_MARKER + pattern;
+			}
+			else if (matchMode == MatchMode.END) {
+				pattern = pattern + END_MARKER;
+			}
+
+			Set<String> trigrams = getTrigrams(pattern);
+			IntList candidates = null;
+			for (String trigram : trigrams) {
+				IntList l = postings.get(trigram);
+				if (l == null) {
+					return ret;
+				}
+				if (candidates == null || l.size() < candidates.size()) {
+					candidates = l;
+				}
+			}
+
+			if (candidates == null) {  // Too short to have any trigrams, so check every value
+				for (int valueId = 0; valueId < values.size(); valueId++) {
+					checkMatch(ret, valueId, query, matchMode);
+				}
+			}
+			else {
+				for (int i = 0; i < candidates.size(); i++) {
+					checkMatch(ret, candidates.get(i), query, matchMode);
+				}
+			}
+			return ret;
+		}
+
+		private void checkMatch(Map<Integer, Integer> matches, int valueId, String query, MatchMode matchMode) {
+			String value = values.get(valueId);
+			boolean matched;
+			if (matchMode == MatchMode.START) {
+				matched = value.startsWith(query);
+			}
+			else if (matchMode == MatchMode.END) {
+				matched = value.endsWith(query);
+			}
+			else {
+				matched = value.contains(query);
+			}
+			if (matched) {
+				int quality = (value.equals(query) ? EXACT_MATCH : value.startsWith(query) ? START_MATCH : ANYWHERE_MATCH);
+				addOwners(matches, valueId, quality);
+			}
+		}
+
+		private void addOwners(Map<Integer, Integer> matches, int valueId, int quality) {
+			for (Integer ownerId : owners.get(valueId)) {
+				Integer existing = matches.get(ownerId);
+				if (existing == null || existing < quality) {
+					matches.put(ownerId, quality);
+				}
+			}
+		}
+
+		private Set<String> getTrigrams(String s) {
+			Set<String> ret = new LinkedHashSet<String>();
+			for (int i = 0; i + 3 <= s.length(); i++) {
+				ret.add(s.substring(i, i + 3));
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Growable list of primitive ints, to keep postings compact
+	 */
+	private static class IntList {
+
+		private int[] elements = new int[4];
+		private int size = 0;
+
+		public void add(int i) {
+			if (size == elements.length) {
+				int[] newElements = new int[size * 2];
+				System.arraycopy(elements, 0, newElements, 0, size);
+				elements = newElements;
+			}
+			elements[size++] = i;
+		}
+
+		public int get(int index) {
+			return elements[index];
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+}
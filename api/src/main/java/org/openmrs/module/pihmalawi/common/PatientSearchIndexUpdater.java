@@ -0,0 +1,293 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.event.EventListener;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the PatientSearchIndex from the database, and keeps it up to date as patients, their identifiers and their
+ * names are saved.  Events are received outside of any session, so they only record the uuid of what has changed, and
+ * the affected patients are reloaded before the index is next searched.  If a changed object can no longer be found,
+ * as when it has been purged, the whole index is rebuilt in the background, and the previous index continues to be
+ * searched until the new one is ready.
+ */
+@Component
+public class PatientSearchIndexUpdater implements EventListener {
+
+	protected static final Log log = LogFactory.getLog(PatientSearchIndexUpdater.class);
+
+	public static final Class<?>[] INDEXED_TYPES = { Patient.class, PatientIdentifier.class, PersonName.class };
+
+	/**
+	 * Types that are not indexed, but whose changes are counted as they are shown alongside search results
+	 */
+	public static final Class<?>[] COUNTED_TYPES = { Person.class };
+
+	@Autowired
+	EvaluationService evaluationService;
+
+	private final Map<Class<?>, Set<String>> pendingChanges = new LinkedHashMap<Class<?>, Set<String>>();
+	private volatile boolean rebuildRequired = false;
+	private final AtomicLong changeCount = new AtomicLong();
+
+	private PatientSearchIndex index;
+	private boolean rebuilding = false;
+
+	/**
+	 * Records the uuid of the changed patient, identifier or name, to be reloaded before the next search
+	 */
+	@Override
+	public void onMessage(Message message) {
+		changeCount.incrementAndGet();
+		try {
+			MapMessage mapMessage = (MapMessage) message;
+			Class<?> type = Class.forName(mapMessage.getString("classname"));
+			if (Arrays.asList(COUNTED_TYPES).contains(type)) {
+				return;
+			}
+			synchronized (pendingChanges) {
+				Set<String> uuids = pendingChanges.get(type);
+				if (uuids == null) {
+					uuids = new HashSet<String>();
+					pendingChanges.put(type, uuids);
+				}
+				uuids.add(mapMessage.getString("uuid"));
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to determine the patient changed, the patient search index will be rebuilt", e);
+			rebuildRequired = true;
+		}
+	}
+
+	/**
+	 * @return the number of changes to patients, their identifiers, their names or their person details received so
+	 * far, with which results derived from patient search can be checked for staleness
+	 */
+	public long getChangeCount() {
+		return changeCount.get();
+	}
+
+	/**
+	 * @return the index, with any changes since it was last used applied, or null if it is not built.  While the index
+	 * is being rebuilt, the previous index is returned without applying changes, which are left to be applied to the
+	 * new index once it is ready.
+	 */
+	public synchronized PatientSearchIndex getIndex() {
+		if (index == null || rebuilding) {
+			return index;
+		}
+		if (rebuildRequired) {
+			startRebuild();
+			return index;
+		}
+		Map<Class<?>, Set<String>> changes;
+		synchronized (pendingChanges) {
+			changes = new HashMap<Class<?>, Set<String>>(pendingChanges);
+			pendingChanges.clear();
+		}
+		if (!changes.isEmpty()) {
+			Set<Integer> patientIds = new HashSet<Integer>();
+			for (Map.Entry<Class<?>, Set<String>> e : changes.entrySet()) {
+				List<Integer> changedIds = getPatientIds(e.getKey(), e.getValue());
+				if (changedIds.size() < e.getValue().size()) {
+					log.debug("Changed " + e.getKey().getSimpleName() + " not found, rebuilding the patient search index");
+					rebuildRequired = true;
+					startRebuild();
+					return index;
+				}
+				patientIds.addAll(changedIds);
+			}
+			loadPatients(index, patientIds);
+		}
+		return index;
+	}
+
+	/**
+	 * Loads the identifiers and names of all patients into a new index, and then replaces the current index with it
+	 */
+	public void buildIndex() {
+		long startTime = System.currentTimeMillis();
+		synchronized (pendingChanges) {
+			pendingChanges.clear();
+		}
+		rebuildRequired = false;
+		PatientSearchIndex newIndex = new PatientSearchIndex();
+		loadPatients(newIndex, null);
+		newIndex.setBuilt(true);
+		synchronized (this) {
+			index = newIndex;
+		}
+		log.info("Built patient search index of " + newIndex.getNumPatients() + " patients in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * Discards the index, so that searches query the database until it is built again
+	 */
+	public synchronized void clearIndex() {
+		index = null;
+	}
+
+	/**
+	 * @return true if the index is being rebuilt in the background
+	 */
+	public synchronized boolean isRebuilding() {
+		return rebuilding;
+	}
+
+	/**
+	 * Starts rebuilding the index in the background, unless it is already being rebuilt
+	 */
+	protected synchronized void startRebuild() {
+		if (rebuilding) {
+			return;
+		}
+		rebuilding = true;
+		runInBackground(new Runnable() {
+			public void run() {
+				try {
+					buildIndex();
+				}
+				catch (RuntimeException e) {
+					log.warn("Unable to rebuild the patient search index, it will be rebuilt before the next search", e);
+					rebuildRequired = true;
+				}
+				finally {
+					synchronized (PatientSearchIndexUpdater.this) {
+						rebuilding = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the task on a new thread, in a session of its own with the current user
+	 */
+	protected void runInBackground(final Runnable task) {
+		final UserContext userContext = Context.getUserContext();
+		Thread thread = new Thread("Patient search index rebuild") {
+			public void run() {
+				Context.openSession();
+				try {
+					Context.setUserContext(userContext);
+					task.run();
+				}
+				finally {
+					Context.closeSession();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Replaces the indexed data of the given patients in the given index, or all patients if null
+	 */
+	protected void loadPatients(PatientSearchIndex index, Collection<Integer> patientIds) {
+		if (patientIds != null && patientIds.isEmpty()) {
+			return;
+		}
+		String patientRestriction = (patientIds == null ? "" : "and pt.patient_id in (" + StringUtils.join(patientIds, ",") + ")");
+
+		Map<Integer, Boolean> voided = new HashMap<Integer, Boolean>();
+		Map<Integer, List<String>> identifiers = new HashMap<Integer, List<String>>();
+		Map<Integer, Map<Integer, String[]>> names = new HashMap<Integer, Map<Integer, String[]>>();
+
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append("select 	pt.patient_id, pt.voided");
+		q.append("from 		patient pt");
+		q.append("where 	1 = 1 " + patientRestriction);
+		for (Object[] row : evaluationService.evaluateToList(q, new EvaluationContext())) {
+			voided.put((Integer) row[0], isTrue(row[1]));
+		}
+
+		q = new SqlQueryBuilder();
+		q.append("select 	pi.patient_id, pi.identifier");
+		q.append("from 		patient_identifier pi, patient pt");
+		q.append("where 	pi.patient_id = pt.patient_id " + patientRestriction);
+		for (Object[] row : evaluationService.evaluateToList(q, new EvaluationContext())) {
+			Integer patientId = (Integer) row[0];
+			List<String> l = identifiers.get(patientId);
+			if (l == null) {
+				l = new ArrayList<String>();
+				identifiers.put(patientId, l);
+			}
+			l.add((String) row[1]);
+		}
+
+		q = new SqlQueryBuilder();
+		q.append("select 	pn.person_id, pn.person_name_id, pn.given_name, pn.family_name, pn.family_name2");
+		q.append("from 		person_name pn, patient pt");
+		q.append("where 	pn.person_id = pt.patient_id " + patientRestriction);
+		for (Object[] row : evaluationService.evaluateToList(q, new EvaluationContext())) {
+			Integer patientId = (Integer) row[0];
+			Map<Integer, String[]> m = names.get(patientId);
+			if (m == null) {
+				m = new HashMap<Integer, String[]>();
+				names.put(patientId, m);
+			}
+			m.put((Integer) row[1], new String[] { (String) row[2], (String) row[3], (String) row[4] });
+		}
+
+		if (patientIds != null) {
+			for (Integer patientId : patientIds) {
+				if (!voided.containsKey(patientId)) {
+					index.removePatient(patientId);
+				}
+			}
+		}
+		for (Map.Entry<Integer, Boolean> e : voided.entrySet()) {
+			index.setPatient(e.getKey(), e.getValue(), identifiers.get(e.getKey()), names.get(e.getKey()));
+		}
+	}
+
+	/**
+	 * @return the ids of the patients of the objects of the given type with the given uuids
+	 */
+	protected List<Integer> getPatientIds(Class<?> type, Set<String> uuids) {
+		HqlQueryBuilder q = new HqlQueryBuilder();
+		if (type == Patient.class) {
+			q.select("x.patientId").from(Patient.class, "x");
+		}
+		else if (type == PatientIdentifier.class) {
+			q.select("x.patient.patientId").from(PatientIdentifier.class, "x");
+		}
+		else {
+			q.select("x.person.personId").from(PersonName.class, "x");
+		}
+		q.whereIn("x.uuid", uuids);
+		return evaluationService.evaluateToList(q, Integer.class, new EvaluationContext());
+	}
+
+	private boolean isTrue(Object o) {
+		return o != null && (Boolean.TRUE.equals(o) || "1".equals(o.toString()) || "true".equalsIgnoreCase(o.toString()));
+	}
+}
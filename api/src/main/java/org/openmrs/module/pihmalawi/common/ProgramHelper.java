@@ -1,5 +1,7 @@
 package org.openmrs.module.pihmalawi.common;
 
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientProgram;
@@ -11,9 +13,11 @@ import org.openmrs.api.context.Context;
 import org.openmrs.util.OpenmrsUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -21,13 +25,87 @@ import java.util.Set;
 import java.util.TreeMap;
 
 public class ProgramHelper {
+
+	private static final int BATCH_SIZE = 1000;
+
+	private Map<Integer, List<PatientProgram>> patientPrograms;
+	private Map<String, List<PatientState>> statesInWorkflow = new HashMap<String, List<PatientState>>();
+
+	public ProgramHelper() {}
+
+	/**
+	 * Uses the given program enrollments, keyed on patient id and ordered by enrollment date, instead of querying
+	 * the enrollments of each of these patients as they are requested.  Patients not in the map are still queried.
+	 * These enrollments are treated as unchanging, so the ordered states of each are computed only once.
+	 */
+	public void setPatientPrograms(Map<Integer, List<PatientProgram>> patientPrograms) {
+		this.patientPrograms = new HashMap<Integer, List<PatientProgram>>();
+		for (Map.Entry<Integer, List<PatientProgram>> e : patientPrograms.entrySet()) {
+			this.patientPrograms.put(e.getKey(), Collections.unmodifiableList(new ArrayList<PatientProgram>(e.getValue())));
+		}
+		this.patientPrograms = Collections.unmodifiableMap(this.patientPrograms);
+		this.statesInWorkflow.clear();
+	}
+
+	/**
+	 * @return a helper that answers every question about the given patients from their enrollments, loaded up front
+	 */
+	public static ProgramHelper forPatients(Collection<Integer> patientIds) {
+		ProgramHelper helper = new ProgramHelper();
+		helper.setPatientPrograms(loadPatientPrograms(patientIds));
+		return helper;
+	}
+
+	/**
+	 * @return the non-voided program enrollments of each patient, ordered by enrollment date, with their states loaded,
+	 * queried in batches.  Every patient has an entry, which is empty if they have no enrollments.
+	 */
+	public static Map<Integer, List<PatientProgram>> loadPatientPrograms(Collection<Integer> patientIds) {
+		Map<Integer, List<PatientProgram>> ret = new HashMap<Integer, List<PatientProgram>>();
+		for (Integer patientId : patientIds) {
+			ret.put(patientId, new ArrayList<PatientProgram>());
+		}
+		List<Integer> ids = new ArrayList<Integer>(ret.keySet());
+		SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		for (int i=0; i<ids.size(); i+=BATCH_SIZE) {
+			Query q = sessionFactory.getCurrentSession().createQuery("select distinct pp from PatientProgram pp left join fetch pp.states where pp.voided = false and pp.patient.patientId in (:ids) order by pp.dateEnrolled, pp.patientProgramId");
+			q.setParameterList("ids", ids.subList(i, Math.min(i+BATCH_SIZE, ids.size())));
+			for (Object o : q.list()) {
+				PatientProgram pp = (PatientProgram) o;
+				ret.get(pp.getPatient().getPatientId()).add(pp);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the non-voided enrollments of the patient in the program (or all programs if null), enrolled on or
+	 * before maxEnrollmentDate (if specified)
+	 */
+	protected List<PatientProgram> getPatientPrograms(Patient p, Program program, Date maxEnrollmentDate) {
+		if (patientPrograms == null || !patientPrograms.containsKey(p.getPatientId())) {
+			return Context.getProgramWorkflowService().getPatientPrograms(p, program, null, maxEnrollmentDate, null, null, false);
+		}
+		List<PatientProgram> ret = new ArrayList<PatientProgram>();
+		for (PatientProgram pp : patientPrograms.get(p.getPatientId())) {
+			if (program != null && !program.getProgramId().equals(pp.getProgram().getProgramId())) {
+				continue;
+			}
+			if (maxEnrollmentDate != null && (pp.getDateEnrolled() == null || pp.getDateEnrolled().after(maxEnrollmentDate))) {
+				continue;
+			}
+			ret.add(pp);
+		}
+		return ret;
+	}
 	
+
 	public PatientState getFirstTimeInState(Patient p, Program program, ProgramWorkflowState firstTimeInState, Date endDate) {
 		return getFirstTimeInStateAtLocation(p, program, firstTimeInState, endDate, null);
 	}
 
 	public PatientState getFirstTimeInStateAtLocation(Patient p, Program program, ProgramWorkflowState firstTimeInState, Date endDate, Location location) {
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, program, null, endDate, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, program, endDate);
 		Map<Long, PatientState> validPatientStates = new TreeMap<Long, PatientState>();
 		for (PatientProgram pp : pps) {
 			List<PatientState> states = statesInWorkflow(pp, firstTimeInState.getProgramWorkflow());
@@ -49,7 +127,7 @@ public class ProgramHelper {
 
 	public PatientProgram getMostRecentProgramEnrollment(Patient p, Program program, Date asOfDate) {
 		PatientProgram ret = null;
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, program, null, asOfDate, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, program, asOfDate);
 		for (PatientProgram pp : pps) {
 			if (!pp.isVoided()) {
 				if (ret == null || pp.getDateEnrolled().after(ret.getDateEnrolled())) {
@@ -62,7 +140,7 @@ public class ProgramHelper {
 
 	public PatientProgram getMostRecentProgramEnrollmentAtLocation(Patient p, Program program, Location enrollmentLocation) {
 		PatientProgram ret = null;
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, program, null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, program, null);
 		for (PatientProgram pp : pps) {
 			Location location = pp.getLocation();
             if (!pp.isVoided() && location != null && location.getId().equals(enrollmentLocation.getId())) {
@@ -76,7 +154,7 @@ public class ProgramHelper {
 
 	public PatientState getMostRecentStateAtLocation(Patient p, ProgramWorkflow programWorkflow, Location enrollmentLocation) {
 		List<PatientState> lastStateOfAllPatientPrograms = new ArrayList<PatientState>();
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, programWorkflow.getProgram(), null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, programWorkflow.getProgram(), null);
 		
 		// get all last states of patientprograms
 		for (PatientProgram pp : pps) {
@@ -105,7 +183,7 @@ public class ProgramHelper {
 	
 	public PatientState getMostRecentStateAtLocationAndDate(Patient p, ProgramWorkflow programWorkflow, Location enrollmentLocation, Date endDate) {
 		List<PatientState> lastStateOfAllPatientPrograms = new ArrayList<PatientState>();
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, programWorkflow.getProgram(), null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, programWorkflow.getProgram(), null);
 		
 		// get all last states of patientprograms as of enddate
 		for (PatientProgram pp : pps) {
@@ -138,7 +216,7 @@ public class ProgramHelper {
 	
 	public PatientState getStateAfterStateAtLocation(Patient p, ProgramWorkflow programWorkflow, List<ProgramWorkflowState> referenceStates, Location enrollmentLocation, Date endDate) {
 		List<PatientProgram> ppsWithReferenceState = new ArrayList<PatientProgram>();
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, programWorkflow.getProgram(), null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, programWorkflow.getProgram(), null);
 
 		for (PatientProgram pp : pps) {
 			Location programLocation = pp.getLocation();
@@ -196,6 +274,19 @@ public class ProgramHelper {
 	// quick hack copied from bugfix for PatientProgram from ProgramLocation module
 	// once OpenMRS can handle same-day-transitions this could be removed
 	private List<PatientState> statesInWorkflow(PatientProgram patientProgram, ProgramWorkflow programWorkflow) {
+		if (patientProgram != null && patientPrograms != null && patientPrograms.containsKey(patientProgram.getPatient().getPatientId())) {
+			String key = patientProgram.getPatientProgramId() + "|" + programWorkflow.getProgramWorkflowId();
+			List<PatientState> ret = statesInWorkflow.get(key);
+			if (ret == null) {
+				ret = Collections.unmodifiableList(sortedStatesInWorkflow(patientProgram, programWorkflow));
+				statesInWorkflow.put(key, ret);
+			}
+			return ret;
+		}
+		return sortedStatesInWorkflow(patientProgram, programWorkflow);
+	}
+
+	private List<PatientState> sortedStatesInWorkflow(PatientProgram patientProgram, ProgramWorkflow programWorkflow) {
 		List<PatientState> ret = new ArrayList<PatientState>();
 		for (PatientState st : patientProgram.getStates()) {
 			if (st.getState().getProgramWorkflow().equals(programWorkflow) && !st.getVoided()) {
@@ -219,7 +310,7 @@ public class ProgramHelper {
 	}
 
 	public PatientState getMostRecentStateAtDate(Patient p, ProgramWorkflow programWorkflow, Date endDate) {
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, programWorkflow.getProgram(), null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, programWorkflow.getProgram(), null);
 		PatientState lastStateOnDate = null;
 		try {
 			for (PatientProgram pp : pps) {
@@ -244,7 +335,7 @@ public class ProgramHelper {
 	public List<PatientState> getPatientStatesByWorkflowAtLocation(Patient p, ProgramWorkflowState programWorkflowState, Location enrollmentLocation) {
 		
 		Integer programWorkflowStateId = programWorkflowState.getId();
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, programWorkflowState.getProgramWorkflow().getProgram(), null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, programWorkflowState.getProgramWorkflow().getProgram(), null);
 		
 		// list of patientstates (patient, workflow)
 		List<PatientState> patientStateList = new ArrayList<PatientState>();
@@ -276,7 +367,7 @@ public class ProgramHelper {
 	}
 
 	public Set<PatientState> getMostRecentStates(Patient p) {
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, null, null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, null, null);
 		Set<PatientState> allStates = new HashSet<PatientState>();
 		for (PatientProgram pp : pps) {
 			allStates.addAll(pp.getCurrentStates());
@@ -285,7 +376,7 @@ public class ProgramHelper {
 	}
 
 	public Set<PatientState> getActiveStatesOnDate(Patient p, Date d) {
-		List<PatientProgram> pps = Context.getProgramWorkflowService().getPatientPrograms(p, null, null, null, null, null, false);
+		List<PatientProgram> pps = getPatientPrograms(p, null, null);
 		Set<PatientState> allStates = new HashSet<PatientState>();
 		for (PatientProgram pp : pps) {
 			for (PatientState ps : pp.getStates()) {
@@ -802,17 +802,32 @@ public class CommonMetadata extends Metadata {
 		return getPrimaryFacilities();
 	}
 
+	/**
+	 * @return the location code attribute of each location, or its name if it has none.  The codes are cached by
+	 * location uuid, as reading the attributes of every location is slow, until any location is changed.
+	 */
 	public Map<Location, String> getLocationShortNames() {
+		Map<String, String> codesByUuid = (Map<String, String>) getMetadataCache().get(Location.class, "shortNames");
+		List<Location> locations = Context.getLocationService().getAllLocations();
+		if (codesByUuid == null) {
+			long generation = getMetadataCache().getGeneration();
+			codesByUuid = new HashMap<String, String>();
+			LocationAttributeType locationCode = getLocationAttributeType(LocationAttributeTypes.LOCATION_CODE.uuid());
+			for (Location l : locations) {
+				String code = l.getName();
+				List<LocationAttribute> codes = l.getActiveAttributes(locationCode);
+				if (codes != null && codes.size() > 0) {
+					code = codes.get(0).getValueReference();
+				}
+				codesByUuid.put(l.getUuid(), code);
+			}
+			getMetadataCache().put(Location.class, "shortNames", codesByUuid, generation);
+		}
 		Map<Location, String> locationShortNames = new HashMap<Location, String>();
-        LocationAttributeType locationCode = getLocationAttributeType(LocationAttributeTypes.LOCATION_CODE.uuid());
-        for (Location l : Context.getLocationService().getAllLocations()) {
-            String code = l.getName();
-            List<LocationAttribute> codes = l.getActiveAttributes(locationCode);
-            if (codes != null && codes.size() > 0) {
-                code = codes.get(0).getValueReference();
-            }
-            locationShortNames.put(l, code);
-        }
-        return locationShortNames;
+		for (Location l : locations) {
+			String code = codesByUuid.get(l.getUuid());
+			locationShortNames.put(l, code == null ? l.getName() : code);
+		}
+		return locationShortNames;
 	}
 }
\ No newline at end of file
@@ -32,20 +32,31 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.common.ObjectUtil;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public abstract class Metadata {
 
 	protected final Log log = LogFactory.getLog(getClass());
 
-	private Map<String, Concept> conceptCache = new HashMap<String, Concept>();
+	/**
+	 * @return the cache of metadata lookups shared by all Metadata instances
+	 */
+	protected MetadataCache getMetadataCache() {
+		return MetadataCache.getInstance();
+	}
 
 	/**
 	 * @return the Program that matches the passed uuid, concept name, name, or primary key id
 	 */
 	public Program getProgram(String lookup) {
+		Integer cachedId = (Integer) getMetadataCache().get(Program.class, lookup);
+		if (cachedId != null) {
+			Program program = Context.getProgramWorkflowService().getProgram(cachedId);
+			if (program != null) {
+				return program;
+			}
+		}
+		long generation = getMetadataCache().getGeneration();
 		Program program = Context.getProgramWorkflowService().getProgramByUuid(lookup);
 		if (program == null) {
 			program = Context.getProgramWorkflowService().getProgramByName(lookup);
@@ -66,7 +77,7 @@ public abstract class Metadata {
 		if (program == null) {
 			throw new IllegalArgumentException("Unable to find program using key: " + lookup);
 		}
-
+		getMetadataCache().put(Program.class, lookup, program.getProgramId(), generation);
 		return program;
 	}
 
@@ -74,6 +85,15 @@ public abstract class Metadata {
 	 * @return the ProgramWorkflow matching the given programLookup and workflowLookup
 	 */
 	public ProgramWorkflow getProgramWorkflow(String programLookup, String workflowLookup) {
+		String cacheKey = programLookup + "|" + workflowLookup;
+		Integer cachedId = (Integer) getMetadataCache().get(ProgramWorkflow.class, cacheKey);
+		if (cachedId != null) {
+			ProgramWorkflow wf = Context.getProgramWorkflowService().getWorkflow(cachedId);
+			if (wf != null) {
+				return wf;
+			}
+		}
+		long generation = getMetadataCache().getGeneration();
 		Program p = getProgram(programLookup);
 		ProgramWorkflow wf = p.getWorkflowByName(workflowLookup);
 
@@ -93,6 +113,7 @@ public abstract class Metadata {
 		if (wf == null) {
 			throw new IllegalArgumentException("Unable to find workflow using " + programLookup + " - " + workflowLookup);
 		}
+		getMetadataCache().put(ProgramWorkflow.class, cacheKey, wf.getProgramWorkflowId(), generation);
 		return wf;
 	}
 
@@ -100,6 +121,15 @@ public abstract class Metadata {
 	 * @return the ProgramWorkflowState matching the given programLookup and workflowLookup and stateLookup
 	 */
 	public ProgramWorkflowState getProgramWorkflowState(String programLookup, String workflowLookup, String stateLookup) {
+		String cacheKey = programLookup + "|" + workflowLookup + "|" + stateLookup;
+		Integer cachedId = (Integer) getMetadataCache().get(ProgramWorkflowState.class, cacheKey);
+		if (cachedId != null) {
+			ProgramWorkflowState s = Context.getProgramWorkflowService().getState(cachedId);
+			if (s != null) {
+				return s;
+			}
+		}
+		long generation = getMetadataCache().getGeneration();
 		ProgramWorkflow wf = getProgramWorkflow(programLookup, workflowLookup);
 		ProgramWorkflowState s = wf.getStateByName(stateLookup);
 		if (s == null) {
@@ -124,6 +154,7 @@ public abstract class Metadata {
 		if (s == null) {
 			throw new IllegalArgumentException("Unable to find state using " + programLookup + " - " + workflowLookup + " - " + stateLookup);
 		}
+		getMetadataCache().put(ProgramWorkflowState.class, cacheKey, s.getProgramWorkflowStateId(), generation);
 		return s;
 	}
 
@@ -131,6 +162,14 @@ public abstract class Metadata {
 	 * @return the PatientIdentifier that matches the passed uuid, name, or primary key id
 	 */
 	public PatientIdentifierType getPatientIdentifierType(String lookup) {
+		Integer cachedId = (Integer) getMetadataCache().get(PatientIdentifierType.class, lookup);
+		if (cachedId != null) {
+			PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierType(cachedId);
+			if (pit != null) {
+				return pit;
+			}
+		}
+		long generation = getMetadataCache().getGeneration();
 		PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByUuid(lookup);
 		if (pit == null) {
 			pit = Context.getPatientService().getPatientIdentifierTypeByName(lookup);
@@ -144,6 +183,7 @@ public abstract class Metadata {
 		if (pit == null) {
 			throw new RuntimeException("Unable to find Patient Identifier using key: " + lookup);
 		}
+		getMetadataCache().put(PatientIdentifierType.class, lookup, pit.getPatientIdentifierTypeId(), generation);
 		return pit;
 	}
 
@@ -151,8 +191,13 @@ public abstract class Metadata {
 	 * @return the Concept that matches the passed uuid, name, source:code mapping, or primary key id
 	 */
 	public Concept getConcept(String lookup) {
-		Concept c = conceptCache.get(lookup);
+		Concept c = null;
+		Integer cachedId = (Integer) getMetadataCache().get(Concept.class, lookup);
+		if (cachedId != null) {
+			c = Context.getConceptService().getConcept(cachedId);
+		}
 		if (c == null) {
+			long generation = getMetadataCache().getGeneration();
 			c = Context.getConceptService().getConceptByUuid(lookup);
 			if (c == null) {
 				c = Context.getConceptService().getConceptByName(lookup);
@@ -175,7 +220,7 @@ public abstract class Metadata {
 			if (c == null) {
 				throw new IllegalArgumentException("Unable to find Concept using key: " + lookup);
 			}
-			conceptCache.put(lookup, c);
+			getMetadataCache().put(Concept.class, lookup, c.getConceptId(), generation);
 		}
 		return c;
 	}
@@ -0,0 +1,227 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.metadata;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptComplex;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptNumeric;
+import org.openmrs.Location;
+import org.openmrs.LocationAttribute;
+import org.openmrs.LocationAttributeType;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size-bounded cache of metadata lookups, shared by all Metadata instances so that it stays hot across requests.
+ * Entries are keyed by the type of metadata and the lookup string, and typically hold the primary key of the
+ * metadata found, so that it is always reloaded in the current session.  When full, the least recently used entry
+ * is evicted.
+ *
+ * When metadata is saved, the entries of every type whose lookups may depend on it are invalidated.  For example,
+ * changing a concept name invalidates concepts, and also programs, workflows and states which can be looked up
+ * by the name of their concept.  To avoid caching a result that was looked up before such a change but put
+ * afterwards, callers read the generation before their lookup and pass it back when putting the result.
+ */
+public class MetadataCache {
+
+	public static final int DEFAULT_MAX_SIZE = 5000;
+
+	private static final MetadataCache instance = new MetadataCache(DEFAULT_MAX_SIZE);
+
+	private static final Map<Class<?>, List<Class<?>>> dependentTypes = new HashMap<Class<?>, List<Class<?>>>();
+
+	/**
+	 * Subclasses of the types in dependentTypes that are saved under their own class name, and so raise their own events
+	 */
+	private static final List<Class<?>> invalidatingSubtypes = Arrays.<Class<?>>asList(ConceptNumeric.class, ConceptComplex.class);
+
+	static {
+		List<Class<?>> conceptDependents = Arrays.<Class<?>>asList(Concept.class, Program.class, ProgramWorkflow.class, ProgramWorkflowState.class);
+		dependentTypes.put(Concept.class, conceptDependents);
+		dependentTypes.put(ConceptName.class, conceptDependents);
+		dependentTypes.put(ConceptMap.class, conceptDependents);
+
+		List<Class<?>> programDependents = Arrays.<Class<?>>asList(Program.class, ProgramWorkflow.class, ProgramWorkflowState.class);
+		dependentTypes.put(Program.class, programDependents);
+		dependentTypes.put(ProgramWorkflow.class, programDependents);
+		dependentTypes.put(ProgramWorkflowState.class, programDependents);
+
+		dependentTypes.put(PatientIdentifierType.class, Arrays.<Class<?>>asList(PatientIdentifierType.class));
+
+		List<Class<?>> locationDependents = Arrays.<Class<?>>asList(Location.class);
+		dependentTypes.put(Location.class, locationDependents);
+		dependentTypes.put(LocationAttribute.class, locationDependents);
+		dependentTypes.put(LocationAttributeType.class, locationDependents);
+	}
+
+	private final int maxSize;
+	private final LinkedHashMap<String, Object> entries;
+
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @return the cache shared by all Metadata instances
+	 */
+	public static MetadataCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return the types of metadata that are invalidated by a change to metadata of the given type, or of any of its
+	 * superclasses, so that subclasses such as ConceptNumeric and Hibernate proxies invalidate the same types
+	 */
+	public static List<Class<?>> getDependentTypes(Class<?> changedType) {
+		Set<Class<?>> ret = new LinkedHashSet<Class<?>>();
+		for (Map.Entry<Class<?>, List<Class<?>>> e : dependentTypes.entrySet()) {
+			if (e.getKey().isAssignableFrom(changedType)) {
+				ret.addAll(e.getValue());
+			}
+		}
+		return new ArrayList<Class<?>>(ret);
+	}
+
+	/**
+	 * @return the types of metadata that, when changed, invalidate entries in the cache
+	 */
+	public static List<Class<?>> getInvalidatingTypes() {
+		List<Class<?>> ret = new ArrayList<Class<?>>(dependentTypes.keySet());
+		ret.addAll(invalidatingSubtypes);
+		return ret;
+	}
+
+	public MetadataCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				if (size() > MetadataCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the value cached for the given type and lookup, or null if there is none
+	 */
+	public synchronized Object get(Class<?> type, String lookup) {
+		Object value = entries.get(getKey(type, lookup));
+		if (value == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Caches the value for the given type and lookup, unless the cache was invalidated since the given generation
+	 */
+	public synchronized void put(Class<?> type, String lookup, Object value, long generation) {
+		if (value != null && generation == this.generation) {
+			entries.put(getKey(type, lookup), value);
+		}
+	}
+
+	/**
+	 * @return the current generation, which is incremented each time the cache is invalidated
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Removes the entries of every type that may depend on metadata of the given type
+	 */
+	public synchronized void invalidate(Class<?> changedType) {
+		List<Class<?>> types = getDependentTypes(changedType);
+		if (!types.isEmpty()) {
+			generation++;
+			invalidations++;
+			for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();) {
+				String key = i.next();
+				for (Class<?> type : types) {
+					if (key.startsWith(type.getName() + "|")) {
+						i.remove();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidations++;
+		entries.clear();
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MetadataCache[size=" + entries.size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses +
+				", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+	}
+
+	private String getKey(Class<?> type, String lookup) {
+		return type.getName() + "|" + lookup;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.metadata;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.event.EventListener;
+
+import javax.jms.MapMessage;
+import javax.jms.Message;
+
+/**
+ * Listens for metadata save events, and invalidates the entries in the MetadataCache that may depend on them
+ */
+public class MetadataCacheInvalidator implements EventListener {
+
+	protected static final Log log = LogFactory.getLog(MetadataCacheInvalidator.class);
+
+	private MetadataCache cache;
+
+	public MetadataCacheInvalidator(MetadataCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		try {
+			String className = ((MapMessage) message).getString("classname");
+			cache.invalidate(Class.forName(className));
+			log.debug("Invalidated metadata cache following change to " + className + ": " + cache);
+		}
+		catch (Exception e) {
+			log.warn("Unable to determine the metadata changed, invalidating the whole metadata cache", e);
+			cache.invalidateAll();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.openmrs.module.pihmalawi.reporting;
 
 import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.reporting.definition.renderer.StreamingExcelRenderer;
 import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.report.ReportDesign;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
@@ -45,4 +46,13 @@ public class ApzuReportUtil {
         design.addPropertyValue(XlsReportRenderer.PASSWORD_PROPERTY, getExcelPassword());
         return design;
     }
+
+    /**
+     * @return a new ReportDesign for an Excel output that is streamed, for data exports too large to hold in memory
+     */
+    public static ReportDesign createStreamingExcelDesign(String reportDesignUuid, ReportDefinition reportDefinition) {
+        ReportDesign design = createExcelDesign(reportDesignUuid, reportDefinition);
+        design.setRendererType(StreamingExcelRenderer.class);
+        return design;
+    }
 }
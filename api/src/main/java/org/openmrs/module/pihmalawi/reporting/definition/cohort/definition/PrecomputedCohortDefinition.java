@@ -0,0 +1,40 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.definition;
+
+import org.openmrs.Cohort;
+import org.openmrs.module.reporting.cohort.definition.BaseCohortDefinition;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
+
+/**
+ * A cohort that has already been evaluated, which stands in for the definition it was evaluated from while the rest
+ * of a data set is evaluated.  It is only constructed during evaluation and is never saved.
+ */
+public class PrecomputedCohortDefinition extends BaseCohortDefinition {
+
+	@ConfigurationProperty
+	private Cohort cohort;
+
+	public PrecomputedCohortDefinition() {
+		super();
+	}
+
+	public Cohort getCohort() {
+		return cohort;
+	}
+
+	public void setCohort(Cohort cohort) {
+		this.cohort = cohort;
+	}
+}
@@ -14,23 +14,27 @@
 package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 
 import org.openmrs.Cohort;
-import org.openmrs.Encounter;
-import org.openmrs.PatientState;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.EncounterAfterTerminalStateCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
-import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * Finds the patients whose most recent encounter at a location is after the start of their most recent state in the
+ * program at that location, where that state is terminal, in a single query
+ */
 @Handler(supports = { EncounterAfterTerminalStateCohortDefinition.class })
 public class EncounterAfterTerminalStateCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
@@ -41,68 +45,88 @@ public class EncounterAfterTerminalStateCohortDefinitionEvaluator implements Coh
 		EncounterAfterTerminalStateCohortDefinition cd = (EncounterAfterTerminalStateCohortDefinition) cohortDefinition;
 
 		Cohort c = new Cohort();
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return new EvaluatedCohort(c, cd, context);
+		}
 
-		HqlQueryBuilder maxStateStart = new HqlQueryBuilder();
-		maxStateStart.select("ps.patientProgram.patient.patientId", "ps.patientProgram.location.locationId", "max(ps.startDate)");
-		maxStateStart.from(PatientState.class, "ps");
-		maxStateStart.wherePatientIn("ps.patientProgram.patient.patientId", context);
-		maxStateStart.whereEqual("ps.patientProgram.program", cd.getProgram());
-		maxStateStart.whereIn("ps.patientProgram.location", cd.getLocations());
-		maxStateStart.groupBy("ps.patientProgram.patient.patientId").groupBy("ps.patientProgram.location.locationId");
-
-		Map<Integer, Map<Integer, Date>> maxStateDates = getPatientLocationDateMap(maxStateStart, context);
-
-		HqlQueryBuilder maxTerminalStart = new HqlQueryBuilder();
-		maxTerminalStart.select("ps.patientProgram.patient.patientId", "ps.patientProgram.location.locationId", "max(ps.startDate)");
-		maxTerminalStart.from(PatientState.class, "ps");
-		maxTerminalStart.wherePatientIn("ps.patientProgram.patient.patientId", context);
-		maxTerminalStart.whereEqual("ps.patientProgram.program", cd.getProgram());
-		maxTerminalStart.whereIn("ps.patientProgram.location", cd.getLocations());
-		maxTerminalStart.whereEqual("ps.state.terminal", true);
-		maxTerminalStart.groupBy("ps.patientProgram.patient.patientId").groupBy("ps.patientProgram.location.locationId");
-
-		Map<Integer, Map<Integer, Date>>  maxTerminalStateDates = getPatientLocationDateMap(maxTerminalStart, context);
-
-		HqlQueryBuilder encounterQuery = new HqlQueryBuilder();
-		encounterQuery.select("e.patient.patientId", "e.location.locationId", "max(e.encounterDatetime)");
-		encounterQuery.from(Encounter.class, "e");
-		encounterQuery.wherePatientIn("e.patient.patientId", context);
-		encounterQuery.whereEqual("e.patient.voided", false);
-		encounterQuery.whereIn("e.encounterType", cd.getEncounterTypes());
-		encounterQuery.whereIn("e.location", cd.getLocations());
-		encounterQuery.groupBy("e.patient.patientId").groupBy("e.location.locationId");
-
-		Map<Integer, Map<Integer, Date>> maxEncounterDates = getPatientLocationDateMap(encounterQuery, context);
-
-		for (Integer pId : maxEncounterDates.keySet()) {
-			Map<Integer, Date> encounterDateMap = maxEncounterDates.get(pId);
-			Map<Integer, Date> maxStateDateMap = maxStateDates.get(pId);
-			Map<Integer, Date> maxTerminalStateDateMap = maxTerminalStateDates.get(pId);
-
-			for (Integer locationId : encounterDateMap.keySet()) {
-				Date encounterDate = encounterDateMap.get(locationId);
-				Date stateDate = (maxStateDateMap != null ? maxStateDateMap.get(locationId) : null);
-				Date terminalDate = (maxTerminalStateDateMap != null ? maxTerminalStateDateMap.get(locationId) : null);
-				if (terminalDate != null && encounterDate.after(terminalDate) && terminalDate.equals(stateDate)) {
-					c.addMember(pId);
-				}
+		List<Integer> encounterTypeIds = null;
+		if (cd.getEncounterTypes() != null) {
+			encounterTypeIds = new ArrayList<Integer>();
+			for (EncounterType type : cd.getEncounterTypes()) {
+				encounterTypeIds.add(type.getEncounterTypeId());
 			}
 		}
+		List<Integer> locationIds = null;
+		if (cd.getLocations() != null) {
+			locationIds = new ArrayList<Integer>();
+			for (Location location : cd.getLocations()) {
+				locationIds.add(location.getLocationId());
+			}
+		}
+		Collection<Integer> patientIds = (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
+
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append(getQuery(cd.getProgram().getProgramId(), encounterTypeIds, locationIds, patientIds));
+		for (Integer pId : evaluationService.evaluateToList(q, Integer.class, context)) {
+			c.addMember(pId);
+		}
 
 		return new EvaluatedCohort(c, cd, context);
 	}
 
-	protected Map<Integer, Map<Integer, Date>> getPatientLocationDateMap(HqlQueryBuilder query, EvaluationContext context) {
-		Map<Integer, Map<Integer, Date>> m = new HashMap<Integer, Map<Integer, Date>>();
-		List<Object[]> queryResults = evaluationService.evaluateToList(query, context);
-		for (Object[] row : queryResults) {
-			Map<Integer, Date> locationMap = m.get(row[0]);
-			if (locationMap == null) {
-				locationMap = new HashMap<Integer, Date>();
-				m.put((Integer)row[0], locationMap);
-			}
-			locationMap.put((Integer)row[1], (Date)row[2]);
+	/**
+	 * The latest start date of any state and of any terminal state are found together for each patient and location,
+	 * and joined with the latest encounter at the same location.  Voided encounters, states and programs are excluded,
+	 * and as before the end date is not applied.
+	 * @return the query for the ids of the matching patients, limited to the given encounter types, locations and
+	 * patients if these are not null
+	 */
+	public static String getQuery(Integer programId, Collection<Integer> encounterTypeIds, Collection<Integer> locationIds, Collection<Integer> patientIds) {
+		StringBuilder q = new StringBuilder();
+		q.append("select 	distinct e.patient_id\n");
+		q.append("from (\n");
+		q.append("	select 	e.patient_id, e.location_id, max(e.encounter_datetime) as encounter_date\n");
+		q.append("	from 	encounter e, patient p\n");
+		q.append("	where 	e.patient_id = p.patient_id\n");
+		q.append("	and		p.voided = 0\n");
+		q.append("	and		e.voided = 0\n");
+		q.append("	and		e.location_id is not null\n");
+		if (encounterTypeIds != null) {
+			q.append("	and		e.encounter_type in (" + join(encounterTypeIds) + ")\n");
+		}
+		if (locationIds != null) {
+			q.append("	and		e.location_id in (" + join(locationIds) + ")\n");
 		}
-		return m;
+		if (patientIds != null) {
+			q.append("	and		e.patient_id in (" + join(patientIds) + ")\n");
+		}
+		q.append("	group by e.patient_id, e.location_id\n");
+		q.append(") e\n");
+		q.append("inner join (\n");
+		q.append("	select 	pp.patient_id, pp.location_id, max(ps.start_date) as state_date,\n");
+		q.append("			max(case when pws.terminal = 1 then ps.start_date else null end) as terminal_date\n");
+		q.append("	from 	patient_state ps, patient_program pp, program_workflow_state pws\n");
+		q.append("	where 	ps.patient_program_id = pp.patient_program_id\n");
+		q.append("	and		ps.state = pws.program_workflow_state_id\n");
+		q.append("	and		ps.voided = 0\n");
+		q.append("	and		pp.voided = 0\n");
+		q.append("	and		pp.program_id = " + programId + "\n");
+		q.append("	and		pp.location_id is not null\n");
+		if (locationIds != null) {
+			q.append("	and		pp.location_id in (" + join(locationIds) + ")\n");
+		}
+		if (patientIds != null) {
+			q.append("	and		pp.patient_id in (" + join(patientIds) + ")\n");
+		}
+		q.append("	group by pp.patient_id, pp.location_id\n");
+		q.append(") s on s.patient_id = e.patient_id and s.location_id = e.location_id\n");
+		q.append("where 	s.terminal_date is not null\n");
+		q.append("and		s.terminal_date = s.state_date\n");
+		q.append("and		e.encounter_date > s.terminal_date\n");
+		return q.toString();
+	}
+
+	private static String join(Collection<Integer> ids) {
+		return (ids.isEmpty() ? "null" : OpenmrsUtil.join(ids, ","));
 	}
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 
 import org.openmrs.Cohort;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.HccCohortDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
@@ -23,33 +24,120 @@ import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinition
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The patients who started Pre-ART or Exposed Child at the location by the end date and have an HCC number there,
+ * optionally with all of those who started Pre-ART regardless of HCC number.  Both states are read in a single query,
+ * and the HCC numbers once, and the branches are combined as sets of patient ids.
+ */
 @Handler(supports = { HccCohortDefinition.class })
 public class HccCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
 	@Autowired
 	CohortDefinitionService cohortDefinitionService;
 
+	@Autowired
+	EvaluationService evaluationService;
+
+	@Autowired
+	HivMetadata hivMetadata;
+
 	@Autowired
 	HivCohortDefinitionLibrary hivCohorts;
 
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
 		HccCohortDefinition cd = (HccCohortDefinition) cohortDefinition;
+		Cohort c = new Cohort();
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return new EvaluatedCohort(c, cd, context);
+		}
+
+		Integer preArtStateId = hivMetadata.getPreArtState().getProgramWorkflowStateId();
+		Integer exposedChildStateId = hivMetadata.getExposedChildState().getProgramWorkflowStateId();
+		Collection<Integer> patientIds = (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
+
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append(getStartedStatesQuery(cd, patientIds, preArtStateId, exposedChildStateId));
+		if (cd.getEndDate() != null) {
+			q.addParameter("endDate", cd.getEndDate());
+		}
+		Map<Integer, BitSet> startedStates = getPatientsByState(evaluationService.evaluateToList(q, context), preArtStateId, exposedChildStateId);
+
 		EvaluationContext childContext = context.shallowCopy();
 		childContext.addParameterValue("location", cd.getLocation());
 		childContext.addParameterValue("endDate", cd.getEndDate());
-		Cohort c = new Cohort();
-		add(hivCohorts.getStartedPreArtWithHccNumberAtLocationByEndDate(), childContext, c);
-		add(hivCohorts.getStartedExposedChildWithHccNumberAtLocationByEndDate(), childContext, c);
-		if (cd.getIncludeOldPreArtPatients()) {
-			add(hivCohorts.getStartedPreArtIncludingOldPatientsAtLocationByEndDate(), childContext, c);
+		BitSet hasHccNumber = new BitSet();
+		for (Integer pId : cohortDefinitionService.evaluate(hivCohorts.getPatientsWithAnHccNumberAtLocation(), childContext).getMemberIds()) {
+			hasHccNumber.set(pId);
+		}
+
+		BitSet members = getMembers(startedStates.get(preArtStateId), startedStates.get(exposedChildStateId), hasHccNumber, Boolean.TRUE.equals(cd.getIncludeOldPreArtPatients()));
+		for (int pId = members.nextSetBit(0); pId >= 0; pId = members.nextSetBit(pId + 1)) {
+			c.addMember(pId);
 		}
 		return new EvaluatedCohort(c, cd, context);
 	}
 
-	public void add(CohortDefinition cd, EvaluationContext context, Cohort c) throws EvaluationException {
-		Cohort pats = cohortDefinitionService.evaluate(cd, context);
-		c.getMemberIds().addAll(pats.getMemberIds());
+	/**
+	 * The start dates are compared with the :endDate parameter, if the end date is set on the definition
+	 * @return the query for the patients and states for each of the states started at the location by the end date,
+	 * limited to the given patients if these are not null
+	 */
+	public static String getStartedStatesQuery(HccCohortDefinition cd, Collection<Integer> patientIds, Integer... stateIds) {
+		StringBuilder q = new StringBuilder();
+		q.append("select 	distinct pp.patient_id, ps.state\n");
+		q.append("from 		patient_state ps, patient_program pp\n");
+		q.append("where 	ps.patient_program_id = pp.patient_program_id\n");
+		q.append("and		ps.voided = 0 and pp.voided = 0\n");
+		q.append("and		ps.state in (" + OpenmrsUtil.join(Arrays.asList(stateIds), ",") + ")\n");
+		if (cd.getEndDate() != null) {
+			q.append("and		ps.start_date <= :endDate\n");
+		}
+		if (cd.getLocation() != null) {
+			q.append("and		pp.location_id = " + cd.getLocation().getLocationId() + "\n");
+		}
+		if (patientIds != null) {
+			q.append("and		pp.patient_id in (" + (patientIds.isEmpty() ? "null" : OpenmrsUtil.join(patientIds, ",")) + ")\n");
+		}
+		return q.toString();
+	}
+
+	/**
+	 * @return the patients in the rows of the started states query that started each of the states
+	 */
+	public static Map<Integer, BitSet> getPatientsByState(List<Object[]> rows, Integer... stateIds) {
+		Map<Integer, BitSet> ret = new HashMap<Integer, BitSet>();
+		for (Integer stateId : stateIds) {
+			ret.put(stateId, new BitSet());
+		}
+		for (Object[] row : rows) {
+			ret.get(((Number) row[1]).intValue()).set(((Number) row[0]).intValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the patients who started Pre-ART or Exposed Child and have an HCC number, together with all of those who
+	 * started Pre-ART if old Pre-ART patients are included
+	 */
+	public static BitSet getMembers(BitSet startedPreArt, BitSet startedExposedChild, BitSet hasHccNumber, boolean includeOldPreArtPatients) {
+		BitSet members = (BitSet) startedPreArt.clone();
+		members.or(startedExposedChild);
+		members.and(hasHccNumber);
+		if (includeOldPreArtPatients) {
+			members.or(startedPreArt);
+		}
+		return members;
 	}
-}
\ No newline at end of file
+}
@@ -14,7 +14,6 @@
 package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 
 import org.openmrs.Cohort;
-import org.openmrs.PatientState;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.InAgeRangeAtStateStartCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
@@ -23,12 +22,19 @@ import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinition
 import org.openmrs.module.reporting.common.Age;
 import org.openmrs.module.reporting.common.AgeRange;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
-import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
+/**
+ * Finds the patients who were in an age range when they started a state, with the age computed in the query
+ */
 @Handler(supports = { InAgeRangeAtStateStartCohortDefinition.class })
 public class InAgeRangeAtStartStartCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
@@ -39,34 +45,122 @@ public class InAgeRangeAtStartStartCohortDefinitionEvaluator implements CohortDe
 
 		InAgeRangeAtStateStartCohortDefinition cd = (InAgeRangeAtStateStartCohortDefinition) cohortDefinition;
 
-		HqlQueryBuilder q = new HqlQueryBuilder();
-		q.select("p.patientId, p.birthdate, ps.startDate");
-		q.from(PatientState.class, "ps");
-		q.innerJoin("ps.patientProgram", "pp");
-		q.innerJoin("pp.patient", "p");
-		q.whereEqual("pp.voided", false);
-		q.whereEqual("p.voided", false);
-		q.whereEqual("ps.state", cd.getState());
-		q.whereGreaterOrEqualTo("ps.startDate", cd.getStartedOnOrAfter());
-		q.whereLessOrEqualTo("ps.startDate", cd.getStartedOnOrBefore());
-		q.whereEqual("pp.location", cd.getLocation());
+		AgeRange ageRange = new AgeRange(cd.getMinAge(), cd.getMinAgeUnit(), cd.getMaxAge(), cd.getMaxAgeUnit(), "");
+		Cohort c = getPatientsInAgeRanges(cd, Arrays.asList(ageRange), context).get(0);
 
-		Cohort c = new Cohort();
+		return new EvaluatedCohort(c, cd, context);
+	}
 
-		AgeRange ageRange = new AgeRange(cd.getMinAge(), cd.getMinAgeUnit(), cd.getMaxAge(), cd.getMaxAgeUnit(), "");
+	/**
+	 * Evaluates several age ranges for the same state, dates and location in a single query
+	 * @return the patients who started the state in each of the age ranges, in the order of the ranges
+	 */
+	public List<Cohort> getPatientsInAgeRanges(InAgeRangeAtStateStartCohortDefinition cd, List<AgeRange> ageRanges, EvaluationContext context) {
+		List<Cohort> ret = new ArrayList<Cohort>();
+		for (int i = 0; i < ageRanges.size(); i++) {
+			ret.add(new Cohort());
+		}
+		if (ageRanges.isEmpty() || (context.getBaseCohort() != null && context.getBaseCohort().isEmpty())) {
+			return ret;
+		}
+		Collection<Integer> patientIds = (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
 
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append(getQuery(cd, ageRanges, patientIds));
+		if (cd.getStartedOnOrAfter() != null) {
+			q.addParameter("startedOnOrAfter", cd.getStartedOnOrAfter());
+		}
+		if (cd.getStartedOnOrBefore() != null) {
+			q.addParameter("startedOnOrBefore", cd.getStartedOnOrBefore());
+		}
 		for (Object[] row : evaluationService.evaluateToList(q, context)) {
-			Integer pId = (Integer) row[0];
-			Date bd = (Date) row[1];
-			Date sd = (Date) row[2];
-			if (bd != null && sd != null) {
-				Age age = new Age(bd, sd);
-				if (ageRange.isInRange(age)) {
-					c.addMember(pId);
+			Integer pId = ((Number) row[0]).intValue();
+			for (int i = 0; i < ageRanges.size(); i++) {
+				if (((Number) row[i + 1]).intValue() == 1) {
+					ret.get(i).addMember(pId);
 				}
 			}
 		}
+		return ret;
+	}
 
-		return new EvaluatedCohort(c, cd, context);
+	/**
+	 * @return the query for the ids of the patients who started the state in the age range of the definition, with a
+	 * flag column that is 1 for each of them
+	 * @see #getQuery(InAgeRangeAtStateStartCohortDefinition, List, Collection)
+	 */
+	public static String getQuery(InAgeRangeAtStateStartCohortDefinition cd, Collection<Integer> patientIds) {
+		AgeRange ageRange = new AgeRange(cd.getMinAge(), cd.getMinAgeUnit(), cd.getMaxAge(), cd.getMaxAgeUnit(), "");
+		return getQuery(cd, Arrays.asList(ageRange), patientIds);
+	}
+
+	/**
+	 * The start dates are compared with the :startedOnOrAfter and :startedOnOrBefore parameters, if these are set on
+	 * the definition.  Voided states, programs and patients are excluded.
+	 * @return the query for the ids of the patients who started the state in any of the age ranges, limited to the
+	 * given patients if these are not null, with one column for each range that is 1 if they started it in that range
+	 */
+	public static String getQuery(InAgeRangeAtStateStartCohortDefinition cd, List<AgeRange> ageRanges, Collection<Integer> patientIds) {
+		List<String> conditions = new ArrayList<String>();
+		for (AgeRange ageRange : ageRanges) {
+			conditions.add(getAgeRangeCondition(ageRange, "pe.birthdate", "ps.start_date"));
+		}
+
+		StringBuilder q = new StringBuilder();
+		q.append("select 	pp.patient_id");
+		for (String condition : conditions) {
+			q.append(", max(case when " + condition + " then 1 else 0 end)");
+		}
+		q.append("\n");
+		q.append("from 		patient_state ps, patient_program pp, patient p, person pe\n");
+		q.append("where 	ps.patient_program_id = pp.patient_program_id\n");
+		q.append("and		pp.patient_id = p.patient_id\n");
+		q.append("and		p.patient_id = pe.person_id\n");
+		q.append("and		ps.voided = 0 and pp.voided = 0 and p.voided = 0\n");
+		q.append("and		ps.state = " + cd.getState().getProgramWorkflowStateId() + "\n");
+		q.append("and		ps.start_date is not null and pe.birthdate is not null\n");
+		if (cd.getStartedOnOrAfter() != null) {
+			q.append("and		ps.start_date >= :startedOnOrAfter\n");
+		}
+		if (cd.getStartedOnOrBefore() != null) {
+			q.append("and		ps.start_date <= :startedOnOrBefore\n");
+		}
+		if (cd.getLocation() != null) {
+			q.append("and		pp.location_id = " + cd.getLocation().getLocationId() + "\n");
+		}
+		if (patientIds != null) {
+			q.append("and		pp.patient_id in (" + (patientIds.isEmpty() ? "null" : OpenmrsUtil.join(patientIds, ",")) + ")\n");
+		}
+		q.append("and		(" + OpenmrsUtil.join(conditions, " or ") + ")\n");
+		q.append("group by	pp.patient_id\n");
+		return q.toString();
+	}
+
+	/**
+	 * @return a condition that is true if the age on the date is within the range, in the same way as AgeRange
+	 */
+	public static String getAgeRangeCondition(AgeRange ageRange, String birthdate, String onDate) {
+		List<String> conditions = new ArrayList<String>();
+		if (ageRange.getMinAge() != null) {
+			conditions.add(getAge(ageRange.getMinAgeUnit(), birthdate, onDate) + " >= " + ageRange.getMinAge());
+		}
+		if (ageRange.getMaxAge() != null) {
+			conditions.add(getAge(ageRange.getMaxAgeUnit(), birthdate, onDate) + " <= " + ageRange.getMaxAge());
+		}
+		return (conditions.isEmpty() ? "1 = 1" : "(" + OpenmrsUtil.join(conditions, " and ") + ")");
+	}
+
+	/**
+	 * Estimated birthdates are used as they are, as Age does.  This gives the same full years and months as
+	 * timestampdiff on MySQL, and also works on databases without it.
+	 * @return an expression for the age on the date in full months if the unit is months, otherwise in full years
+	 */
+	public static String getAge(Age.Unit unit, String birthdate, String onDate) {
+		if (unit == Age.Unit.MONTHS) {
+			return "((year(" + onDate + ") - year(" + birthdate + ")) * 12 + month(" + onDate + ") - month(" + birthdate + ")" +
+					" - case when dayofmonth(" + onDate + ") < dayofmonth(" + birthdate + ") then 1 else 0 end)";
+		}
+		return "(year(" + onDate + ") - year(" + birthdate + ")" +
+				" - case when month(" + onDate + ") * 100 + dayofmonth(" + onDate + ") < month(" + birthdate + ") * 100 + dayofmonth(" + birthdate + ") then 1 else 0 end)";
 	}
-}
\ No newline at end of file
+}
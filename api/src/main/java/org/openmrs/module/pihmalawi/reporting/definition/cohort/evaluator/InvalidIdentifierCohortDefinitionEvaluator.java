@@ -23,8 +23,19 @@ import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinition
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the identifiers of the given type once, and checks each against the format compiled for every location code,
+ * rather than having the database apply one regular expression per location to every identifier
+ */
 @Handler(supports = { InvalidIdentifierCohortDefinition.class })
 public class InvalidIdentifierCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
@@ -36,27 +47,64 @@ public class InvalidIdentifierCohortDefinitionEvaluator implements CohortDefinit
 
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) {
 		InvalidIdentifierCohortDefinition cd = (InvalidIdentifierCohortDefinition) cohortDefinition;
+
+		Cohort c = new Cohort();
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return new EvaluatedCohort(c, cd, context);
+		}
+
+		List<Pattern> validFormats = getValidFormats(cd.getIdentifierFormat(), metadata.getLocationShortNames().values());
+
 		SqlQueryBuilder q = new SqlQueryBuilder();
-		q.append("select 	distinct p.patient_id");
+		q.append("select 	p.patient_id, i.identifier");
 		q.append("from 		patient_identifier i, patient p");
 		q.append("where 	i.patient_id = p.patient_id");
 		q.append("and		i.voided = 0 and p.voided = 0");
 		q.append("and		i.identifier_type = " + cd.getIdentifierType().getPatientIdentifierTypeId());
-		q.append("and (");
-		if (cd.getIdentifierFormat().contains("<location>")) {
-			int numLocations = 0;
-			for (String locCode : metadata.getLocationShortNames().values()) {
-				q.append(numLocations == 0 ? "" : " and ");
-				q.append("identifier NOT regexp '"+cd.getIdentifierFormat().replace("<location>", locCode)+"'");
-				numLocations++;
+		if (context.getBaseCohort() != null) {
+			q.append("and		p.patient_id in (" + OpenmrsUtil.join(context.getBaseCohort().getMemberIds(), ",") + ")");
+		}
+
+		for (Object[] row : evaluationService.evaluateToList(q, context)) {
+			if (!isValid((String) row[1], validFormats)) {
+				c.addMember(((Number) row[0]).intValue());
+			}
+		}
+		return new EvaluatedCohort(c, cd, context);
+	}
+
+	/**
+	 * Formats are matched anywhere in the identifier and regardless of case, as MySQL regexp did, so they should be
+	 * anchored with ^ and $ to match a whole identifier
+	 * @return the compiled format for each location code if the format contains a location placeholder, otherwise the
+	 * compiled format alone
+	 */
+	public static List<Pattern> getValidFormats(String identifierFormat, Collection<String> locationCodes) {
+		Collection<String> formats = new LinkedHashSet<String>();
+		if (identifierFormat.contains("<location>")) {
+			for (String locationCode : locationCodes) {
+				formats.add(identifierFormat.replace("<location>", locationCode));
 			}
 		}
 		else {
-			q.append("identifier NOT regexp '").append(cd.getIdentifierFormat()).append("'");
+			formats.add(identifierFormat);
+		}
+		List<Pattern> ret = new ArrayList<Pattern>();
+		for (String format : formats) {
+			ret.add(Pattern.compile(format, Pattern.CASE_INSENSITIVE));
 		}
-		q.append(")");
+		return ret;
+	}
 
-		Cohort c = new Cohort(evaluationService.evaluateToList(q, Integer.class, context));
-		return new EvaluatedCohort(c, cd, context);
+	/**
+	 * @return true if the identifier matches any of the valid formats
+	 */
+	public static boolean isValid(String identifier, List<Pattern> validFormats) {
+		for (Pattern format : validFormats) {
+			if (format.matcher(identifier).find()) {
+				return true;
+			}
+		}
+		return false;
 	}
-}
\ No newline at end of file
+}
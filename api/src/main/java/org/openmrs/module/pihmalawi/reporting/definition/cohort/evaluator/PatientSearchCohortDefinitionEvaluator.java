@@ -20,6 +20,8 @@ import org.openmrs.PersonName;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.namephonetics.NamePhoneticsService;
+import org.openmrs.module.pihmalawi.common.PatientSearchIndex;
+import org.openmrs.module.pihmalawi.common.PatientSearchIndexUpdater;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
@@ -30,33 +32,54 @@ import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import static org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition.MatchMode;
 
+/**
+ * Finds patients by identifier, or failing that by name.  Searches use the PatientSearchIndex once it has been built,
+ * and otherwise query the database directly.  Soundex name searches always use the name phonetics module.
+ * As a cohort has no order, callers that show the best matches first should use getMatchingPatients.
+ */
 @Handler(supports = { PatientSearchCohortDefinition.class })
 public class PatientSearchCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
 	@Autowired
 	EvaluationService evaluationService;
 
+	@Autowired
+	PatientSearchIndexUpdater patientSearchIndexUpdater;
+
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) {
 		PatientSearchCohortDefinition cd = (PatientSearchCohortDefinition) cohortDefinition;
-		Cohort c = new Cohort();
-		c.getMemberIds().addAll(getPatientsMatchingIdentifier(cd.getSearchPhrase(), cd.getIdentifierMatchMode(), context));
-		if (c.getMemberIds().isEmpty()) {
+		Cohort c = new Cohort(getMatchingPatients(cd, context));
+		return new EvaluatedCohort(c, cd, context);
+	}
+
+	/**
+	 * @return the ids of the patients matching the search, ranked with the best matches first when found in the index
+	 */
+	public List<Integer> getMatchingPatients(PatientSearchCohortDefinition cd, EvaluationContext context) {
+		List<Integer> ret = getPatientsMatchingIdentifier(cd.getSearchPhrase(), cd.getIdentifierMatchMode(), context);
+		if (ret.isEmpty()) {
 			boolean isSoundex = cd.getSoundexEnabled() == Boolean.TRUE;
-			c.getMemberIds().addAll(getPatientsMatchingName(cd.getSearchPhrase(), isSoundex, cd.getNameMatchMode(), context));
+			ret = getPatientsMatchingName(cd.getSearchPhrase(), isSoundex, cd.getNameMatchMode(), context);
 		}
-		return new EvaluatedCohort(c, cd, context);
+		return ret;
 	}
 
-	protected Set<Integer> getPatientsMatchingIdentifier(String searchString, MatchMode matchMode, EvaluationContext context) {
+	protected List<Integer> getPatientsMatchingIdentifier(String searchString, MatchMode matchMode, EvaluationContext context) {
 		if (ObjectUtil.isNull(searchString)) {
-			return new HashSet<Integer>();
+			return new ArrayList<Integer>();
 		}
+		PatientSearchIndex index = patientSearchIndexUpdater.getIndex();
+		if (index != null) {
+			return index.findPatientsByIdentifier(searchString, matchMode);
+		}
+
 		HqlQueryBuilder q = new HqlQueryBuilder();
 		q.select("distinct pi.patient.patientId");
 		q.from(PatientIdentifier.class, "pi");
@@ -76,12 +99,11 @@ public class PatientSearchCohortDefinitionEvaluator implements CohortDefinitionE
 			q.whereLike("pi.identifier", searchString);
 		}
 
-		List<Integer> l = evaluationService.evaluateToList(q, Integer.class, context);
-		return new HashSet<Integer>(l);
+		return evaluationService.evaluateToList(q, Integer.class, context);
 	}
 
-	protected Set<Integer> getPatientsMatchingName(String searchString, boolean isSoundex, MatchMode matchMode, EvaluationContext context) {
-		Set<Integer> ret = new HashSet<Integer>();
+	protected List<Integer> getPatientsMatchingName(String searchString, boolean isSoundex, MatchMode matchMode, EvaluationContext context) {
+		List<Integer> ret = new ArrayList<Integer>();
 		if (ObjectUtil.notNull(searchString)) {
 			Set<Integer> personIds = new HashSet<Integer>();
 			if (isSoundex) {
@@ -91,6 +113,10 @@ public class PatientSearchCohortDefinitionEvaluator implements CohortDefinitionE
 				}
 			}
 			else {
+				PatientSearchIndex index = patientSearchIndexUpdater.getIndex();
+				if (index != null) {
+					return index.findPatientsByName(searchString, matchMode);
+				}
 				HqlQueryBuilder q = new HqlQueryBuilder();
 				q.select("pn.person.personId");
 				q.from(PersonName.class, "pn");
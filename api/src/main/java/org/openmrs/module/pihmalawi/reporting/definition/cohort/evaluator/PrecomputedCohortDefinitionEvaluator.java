@@ -0,0 +1,35 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.openmrs.Cohort;
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PrecomputedCohortDefinition;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+
+@Handler(supports = { PrecomputedCohortDefinition.class })
+public class PrecomputedCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
+
+	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
+		PrecomputedCohortDefinition cd = (PrecomputedCohortDefinition) cohortDefinition;
+		if (cd.getCohort() == null) {
+			throw new EvaluationException("Precomputed cohort has not been evaluated");
+		}
+		return new EvaluatedCohort(new Cohort(cd.getCohort().getMemberIds()), cd, context);
+	}
+}
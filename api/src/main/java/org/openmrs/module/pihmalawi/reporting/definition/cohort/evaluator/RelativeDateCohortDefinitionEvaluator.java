@@ -14,105 +14,309 @@
 package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 
 import org.openmrs.Cohort;
+import org.openmrs.Location;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.RelativeDateCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
-import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.common.DurationUnit;
 import org.openmrs.module.reporting.common.RangeComparator;
+import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.converter.PropertyConverter;
 import org.openmrs.module.reporting.data.patient.PatientData;
+import org.openmrs.module.reporting.data.patient.definition.ConvertedPatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.ProgramStatesForPatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.evaluation.parameter.Parameterizable;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * When both dates are the start date of the first or last of a program state, the dates are compared in a single
+ * query.  Otherwise both date definitions are evaluated and the dates are compared for each patient.
+ */
 @Handler(supports = { RelativeDateCohortDefinition.class })
 public class RelativeDateCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
+	/**
+	 * Stands in for a missing date when dates are compared as milliseconds
+	 */
+	public static final long NO_DATE = Long.MIN_VALUE;
+
 	@Autowired
 	PatientDataService patientDataService;
 
+	@Autowired
+	EvaluationService evaluationService;
+
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
 		RelativeDateCohortDefinition cd = (RelativeDateCohortDefinition) cohortDefinition;
 
 		Cohort c = new Cohort();
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return new EvaluatedCohort(c, cd, context);
+		}
 
-		PatientData data1 = patientDataService.evaluate(cd.getEarlierDateDefinition(), context);
-		PatientData data2 = patientDataService.evaluate(cd.getLaterDateDefinition(), context);
-
-		Set<Integer> allPats = new HashSet<Integer>(data1.getData().keySet());
-		allPats.addAll(data2.getData().keySet());
+		StateStartDateQuery earlier = getStateStartDateQuery(cd.getEarlierDateDefinition(), context);
+		StateStartDateQuery later = getStateStartDateQuery(cd.getLaterDateDefinition(), context);
 
-		RangeComparator operator = cd.getDifferenceOperator();
+		if (earlier != null && later != null && (cd.getDifferenceNumber() == null || cd.getDifferenceUnit() != null)) {
+			for (Integer pId : evaluationService.evaluateToList(getQuery(cd, earlier, later, context), Integer.class, context)) {
+				c.addMember(pId);
+			}
+		}
+		else {
+			PatientData data1 = patientDataService.evaluate(cd.getEarlierDateDefinition(), context);
+			PatientData data2 = patientDataService.evaluate(cd.getLaterDateDefinition(), context);
 
-		for (Integer pId : allPats) {
-			Date d1 = (Date) data1.getData().get(pId);
-			Date d2 = (Date) data2.getData().get(pId);
+			Set<Integer> allPats = new HashSet<Integer>(data1.getData().keySet());
+			allPats.addAll(data2.getData().keySet());
 
-			boolean includePatient = false;
-			if (d1 == null) {
-				if (cd.isPassIfDate1Null()) {
-					includePatient = true;
-				}
-			}
-			else if (d2 == null) {
-				if (cd.isPassIfDate2Null()) {
-					includePatient = true;
-				}
-			}
-			else {
-				Integer diffNum = cd.getDifferenceNumber();
-				DurationUnit diffUnit = cd.getDifferenceUnit();
-				if (diffNum == null) {
-					int comparison = d1.compareTo(d2);
-					if (comparison < 0) {
-						if (operator == RangeComparator.LESS_THAN || operator == RangeComparator.LESS_EQUAL) {
-							includePatient = true;
-						}
-					}
-					else if (comparison > 0) {
-						if (operator == RangeComparator.GREATER_THAN || operator == RangeComparator.GREATER_EQUAL) {
-							includePatient = true;
-						}
-					}
-					else {
-						if (operator == RangeComparator.EQUAL || operator == RangeComparator.LESS_EQUAL || operator == RangeComparator.GREATER_EQUAL) {
-							includePatient = true;
-						}
-					}
-				}
-				else {
-					Date adjustedD1 = DateUtil.adjustDate(d1, diffNum, diffUnit);
-					int comparison = adjustedD1.compareTo(d2);
-					if (comparison < 0) { // This means that more than the configured units has gone by
-						if (operator == RangeComparator.GREATER_THAN || operator == RangeComparator.GREATER_EQUAL) {
-							includePatient = true;
-						}
-					}
-					else if (comparison > 0) {
-						if (operator == RangeComparator.LESS_THAN || operator == RangeComparator.LESS_EQUAL) {
-							includePatient = true;
-						}
-					}
-					else {
-						if (operator == RangeComparator.EQUAL || operator == RangeComparator.LESS_EQUAL || operator == RangeComparator.GREATER_EQUAL) {
-							includePatient = true;
-						}
-					}
-				}
+			int[] pIds = new int[allPats.size()];
+			int i = 0;
+			for (Integer pId : allPats) {
+				pIds[i++] = pId;
 			}
+			Arrays.sort(pIds);
+			long[] earlierDates = toMillis(pIds, data1.getData());
+			long[] laterDates = toMillis(pIds, data2.getData());
 
-			if (includePatient) {
-				c.addMember(pId);
+			Calendar cal = Calendar.getInstance();
+			for (i = 0; i < pIds.length; i++) {
+				if (isIncluded(cd, earlierDates[i], laterDates[i], cal)) {
+					c.addMember(pIds[i]);
+				}
 			}
 		}
 
 		return new EvaluatedCohort(c, cd, context);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return whether a patient with the given dates, in milliseconds or NO_DATE if missing, passes the comparison
+	 * @param cal used to adjust the earlier date by the configured difference, in the time zone of the server
+	 */
+	public static boolean isIncluded(RelativeDateCohortDefinition cd, long earlier, long later, Calendar cal) {
+		if (earlier == NO_DATE) {
+			return cd.isPassIfDate1Null();
+		}
+		if (later == NO_DATE) {
+			return cd.isPassIfDate2Null();
+		}
+		Integer diffNum = cd.getDifferenceNumber();
+		if (diffNum == null) {
+			return passes(cd.getDifferenceOperator(), compare(earlier, later));
+		}
+		// When the later date is after the adjusted date, more than the configured units have gone by
+		DurationUnit diffUnit = cd.getDifferenceUnit();
+		cal.setTimeInMillis(earlier);
+		cal.add(diffUnit.getCalendarField(), diffNum * diffUnit.getFieldQuantity());
+		return passes(cd.getDifferenceOperator(), compare(later, cal.getTimeInMillis()));
+	}
+
+	/**
+	 * @return the condition on the earlier and later date columns that matches isIncluded for patients with both dates
+	 */
+	public static String getComparison(RelativeDateCohortDefinition cd, String earlierColumn, String laterColumn) {
+		Integer diffNum = cd.getDifferenceNumber();
+		if (diffNum == null) {
+			return getComparison(cd.getDifferenceOperator(), earlierColumn, laterColumn);
+		}
+		String adjusted = "date_add(" + earlierColumn + ", " + getInterval(diffNum, cd.getDifferenceUnit()) + ")";
+		return getComparison(cd.getDifferenceOperator(), laterColumn, adjusted);
+	}
+
+	/**
+	 * @return a MySQL interval that adjusts a date in the same way as adding the given units to a Calendar
+	 */
+	public static String getInterval(int number, DurationUnit unit) {
+		int quantity = number * unit.getFieldQuantity();
+		switch (unit.getCalendarField()) {
+			case Calendar.SECOND: return "interval " + quantity + " SECOND";
+			case Calendar.MINUTE: return "interval " + quantity + " MINUTE";
+			case Calendar.HOUR: return "interval " + quantity + " HOUR";
+			case Calendar.HOUR_OF_DAY: return "interval " + quantity + " HOUR";
+			case Calendar.DATE: return "interval " + quantity + " DAY";
+			case Calendar.MONTH: return "interval " + quantity + " MONTH";
+			case Calendar.YEAR: return "interval " + quantity + " YEAR";
+		}
+		throw new IllegalArgumentException("Unable to compare dates in " + unit);
+	}
+
+	/**
+	 * @return whether the given comparison of one date with another passes the operator
+	 */
+	protected static boolean passes(RangeComparator operator, int comparison) {
+		if (comparison < 0) {
+			return operator == RangeComparator.LESS_THAN || operator == RangeComparator.LESS_EQUAL;
+		}
+		if (comparison > 0) {
+			return operator == RangeComparator.GREATER_THAN || operator == RangeComparator.GREATER_EQUAL;
+		}
+		return operator == RangeComparator.EQUAL || operator == RangeComparator.LESS_EQUAL || operator == RangeComparator.GREATER_EQUAL;
+	}
+
+	protected static String getComparison(RangeComparator operator, String column, String comparedTo) {
+		if (operator == RangeComparator.LESS_THAN) {
+			return column + " < " + comparedTo;
+		}
+		if (operator == RangeComparator.LESS_EQUAL) {
+			return column + " <= " + comparedTo;
+		}
+		if (operator == RangeComparator.EQUAL) {
+			return column + " = " + comparedTo;
+		}
+		if (operator == RangeComparator.GREATER_EQUAL) {
+			return column + " >= " + comparedTo;
+		}
+		if (operator == RangeComparator.GREATER_THAN) {
+			return column + " > " + comparedTo;
+		}
+		return "1 = 0";
+	}
+
+	protected static int compare(long d1, long d2) {
+		return (d1 < d2 ? -1 : (d1 == d2 ? 0 : 1));
+	}
+
+	protected long[] toMillis(int[] pIds, Map<Integer, Object> data) {
+		long[] ret = new long[pIds.length];
+		for (int i = 0; i < pIds.length; i++) {
+			Date d = (Date) data.get(pIds[i]);
+			ret[i] = (d == null ? NO_DATE : d.getTime());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the patients in either set of state start dates that pass the comparison
+	 */
+	protected SqlQueryBuilder getQuery(RelativeDateCohortDefinition cd, StateStartDateQuery earlier, StateStartDateQuery later, EvaluationContext context) {
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append(getQuery(cd, earlier, later, context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds()));
+		q.addParameter("earlierOnOrBefore", earlier.startedOnOrBefore);
+		q.addParameter("laterOnOrBefore", later.startedOnOrBefore);
+		return q;
+	}
+
+	/**
+	 * The two sets of start dates are full outer joined by taking the union of both, each with a null date in the
+	 * column of the other, and grouping it by patient, so that each is only queried once.  States are limited to the
+	 * given patients if these are not null, and to the :earlierOnOrBefore and :laterOnOrBefore parameters.
+	 * @return the query of getQuery
+	 */
+	public static String getQuery(RelativeDateCohortDefinition cd, StateStartDateQuery earlier, StateStartDateQuery later, Collection<Integer> patientIds) {
+		StringBuilder q = new StringBuilder();
+		q.append("select 	patient_id\n");
+		q.append("from (\n");
+		q.append("	select 	patient_id, max(earlier_date) as d1, max(later_date) as d2\n");
+		q.append("	from (\n");
+		appendStateStartDates(q, earlier, true, patientIds);
+		q.append("		union all\n");
+		appendStateStartDates(q, later, false, patientIds);
+		q.append("	) dates\n");
+		q.append("	group by patient_id\n");
+		q.append(") d\n");
+		q.append("where 	(d1 is null and " + (cd.isPassIfDate1Null() ? "1 = 1" : "1 = 0") + ")\n");
+		q.append("or		(d1 is not null and d2 is null and " + (cd.isPassIfDate2Null() ? "1 = 1" : "1 = 0") + ")\n");
+		q.append("or		(d1 is not null and d2 is not null and " + getComparison(cd, "d1", "d2") + ")\n");
+		return q.toString();
+	}
+
+	/**
+	 * Appends the query of the start date of each patient, in the earlier_date or later_date column
+	 */
+	protected static void appendStateStartDates(StringBuilder q, StateStartDateQuery query, boolean isEarlier, Collection<Integer> patientIds) {
+		String startDate = (query.which == TimeQualifier.FIRST ? "min" : "max") + "(ps.start_date)";
+		q.append("		select 	pp.patient_id, ");
+		q.append((isEarlier ? startDate : "cast(null as date)") + " as earlier_date, ");
+		q.append((isEarlier ? "cast(null as date)" : startDate) + " as later_date\n");
+		q.append("		from 	patient_state ps, patient_program pp\n");
+		q.append("		where 	ps.patient_program_id = pp.patient_program_id\n");
+		q.append("		and		ps.voided = 0 and pp.voided = 0\n");
+		q.append("		and		ps.state = " + query.stateId + "\n");
+		q.append("		and		ps.start_date <= :" + (isEarlier ? "earlierOnOrBefore" : "laterOnOrBefore") + "\n");
+		if (query.locationId != null) {
+			q.append("		and		pp.location_id = " + query.locationId + "\n");
+		}
+		if (patientIds != null) {
+			q.append("		and		pp.patient_id in (" + OpenmrsUtil.join(patientIds, ",") + ")\n");
+		}
+		q.append("		group by pp.patient_id\n");
+	}
+
+	/**
+	 * @return the state, location and end date to query when the definition is the start date of the first or last
+	 * of a program state started by an end date, as built by the DataFactory, or null if it is anything else
+	 */
+	protected StateStartDateQuery getStateStartDateQuery(Mapped<? extends PatientDataDefinition> mapped, EvaluationContext context) throws EvaluationException {
+		if (!(mapped.getParameterizable() instanceof ConvertedPatientDataDefinition)) {
+			return null;
+		}
+		ConvertedPatientDataDefinition converted = (ConvertedPatientDataDefinition) mapped.getParameterizable();
+		if (converted.getConverters() == null || converted.getConverters().size() != 1 || !(converted.getConverters().get(0) instanceof PropertyConverter)) {
+			return null;
+		}
+		if (!"startDate".equals(((PropertyConverter) converted.getConverters().get(0)).getProperty())) {
+			return null;
+		}
+		Mapped<? extends PatientDataDefinition> toConvert = converted.getDefinitionToConvert();
+		if (toConvert == null || !(toConvert.getParameterizable() instanceof ProgramStatesForPatientDataDefinition)) {
+			return null;
+		}
+
+		ProgramStatesForPatientDataDefinition def = (ProgramStatesForPatientDataDefinition) toConvert.getParameterizable();
+		EvaluationContext childContext = EvaluationContext.cloneForChild(EvaluationContext.cloneForChild(context, mapped), toConvert);
+		Date startedOnOrBefore = (Date) getValue(def, "startedOnOrBefore", def.getStartedOnOrBefore(), childContext);
+		Location location = (Location) getValue(def, "location", def.getLocation(), childContext);
+
+		boolean otherCriteria = getValue(def, "startedOnOrAfter", def.getStartedOnOrAfter(), childContext) != null
+				|| getValue(def, "endedOnOrAfter", def.getEndedOnOrAfter(), childContext) != null
+				|| getValue(def, "endedOnOrBefore", def.getEndedOnOrBefore(), childContext) != null
+				|| getValue(def, "activeOnDate", def.getActiveOnDate(), childContext) != null;
+		boolean firstOrLast = def.getWhich() == TimeQualifier.FIRST || def.getWhich() == TimeQualifier.LAST;
+
+		// States without a start date are only excluded from the first or last state when there is an end date
+		if (def.getState() == null || def.getWorkflow() != null || !firstOrLast || otherCriteria || startedOnOrBefore == null) {
+			return null;
+		}
+		return new StateStartDateQuery(def.getState().getProgramWorkflowStateId(), def.getWhich(), startedOnOrBefore, location == null ? null : location.getLocationId());
+	}
+
+	/**
+	 * @return the value of the parameter if the definition has one with the given name, otherwise the configured value
+	 */
+	protected Object getValue(Parameterizable definition, String property, Object configuredValue, EvaluationContext context) {
+		return (definition.getParameter(property) != null ? context.getParameterValue(property) : configuredValue);
+	}
+
+	protected static class StateStartDateQuery {
+
+		private Integer stateId;
+		private TimeQualifier which;
+		private Date startedOnOrBefore;
+		private Integer locationId;
+
+		public StateStartDateQuery(Integer stateId, TimeQualifier which, Date startedOnOrBefore, Integer locationId) {
+			this.stateId = stateId;
+			this.which = which;
+			this.startedOnOrBefore = startedOnOrBefore;
+			this.locationId = locationId;
+		}
+	}
+}
@@ -13,49 +13,38 @@
  */
 package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
 
-import org.openmrs.Cohort;
-import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
-import org.openmrs.Obs;
 import org.openmrs.ProgramWorkflowState;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.pihmalawi.common.AppointmentInfo;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.AppointmentStatusDataDefinition;
-import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
-import org.openmrs.module.reporting.cohort.definition.InStateCohortDefinition;
-import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 /**
- * Evaluates a Cd4DataDefinition to produce a PatientData
+ * Evaluates an AppointmentStatusDataDefinition to produce a PatientData.  The last encounter date, the latest scheduled
+ * appointment date and whether each patient is actively enrolled are all found with a single grouped query.
  */
 @Handler(supports = AppointmentStatusDataDefinition.class, order = 50)
 public class AppointmentStatusDataEvaluator implements PatientDataEvaluator {
 
-    @Autowired
-    CohortDefinitionService cohortDefinitionService;
-
 	@Autowired
 	private HivMetadata metadata;
 
-    @Autowired
-    private DataFactory df;
-
 	@Autowired
 	private EvaluationService evaluationService;
 	
@@ -70,52 +59,18 @@ public class AppointmentStatusDataEvaluator implements PatientDataEvaluator {
             return c;
         }
 
-        List<ProgramWorkflowState> activeStates = def.getActiveStates();
-        List<Integer> encounterTypes = new ArrayList<Integer>();
-        for (EncounterType et : def.getEncounterTypes()) {
-            encounterTypes.add(et.getEncounterTypeId());
-        }
-        List<Integer> locationIds = null;
-        if (def.getLocations() != null) {
-            locationIds = new ArrayList<Integer>();
-            for (Location l : def.getLocations()) {
-                locationIds.add(l.getLocationId());
-            }
-        }
-
-        // First, only those patients who are actively enrolled will have an appointment status
-        Cohort enrolled = getPatientsActivelyEnrolled(activeStates, def.getLocations(), def.getOnDate(), context);
-
-        // Of these patients, keep those who have their latest scheduled appointment obs in the past, and no subsequent encounter
-
-        HqlQueryBuilder lastEncounterBuilder = new HqlQueryBuilder();
-        lastEncounterBuilder.select("e.patient.patientId", "max(e.encounterDatetime) as lastActualDate");
-        lastEncounterBuilder.from(Encounter.class, "e");
-        lastEncounterBuilder.wherePatientIn("e.patient.patientId", context);
-        lastEncounterBuilder.where("e.encounterType.encounterTypeId in (" + OpenmrsUtil.join(encounterTypes, ",") + ")");
-        lastEncounterBuilder.whereLessOrEqualTo("e.encounterDatetime", def.getOnDate());
-        lastEncounterBuilder.whereIn("e.location.locationId", locationIds);
-        lastEncounterBuilder.groupBy("e.patient.patientId");
-        Map<Integer, Date> lastEncounterDates = evaluationService.evaluateToMap(lastEncounterBuilder, Integer.class, Date.class, context);
-
-        HqlQueryBuilder nextScheduledBuilder = new HqlQueryBuilder();
-        nextScheduledBuilder.select("o.personId", "max(o.valueDatetime) as lastPlannedDate");
-        nextScheduledBuilder.from(Obs.class, "o");
-        nextScheduledBuilder.where("o.encounter.encounterType.encounterTypeId in (" + OpenmrsUtil.join(encounterTypes, ",") + ")");
-        lastEncounterBuilder.whereLessOrEqualTo("o.encounter.encounterDatetime", def.getOnDate());
-        lastEncounterBuilder.whereIn("o.encounter.location.locationId", locationIds);
-        nextScheduledBuilder.wherePersonIn("o.personId", context);
-        nextScheduledBuilder.whereInAny("o.concept", metadata.getAppointmentDateConcept());
-        nextScheduledBuilder.groupBy("o.personId");
-        Map<Integer, Date> nextScheduledDates = evaluationService.evaluateToMap(nextScheduledBuilder, Integer.class, Date.class, context);
-
         Date effectiveDate = (def.getOnDate() == null ? new Date() : def.getOnDate());
 
-		for (Integer pId : nextScheduledDates.keySet()) {
-            Date nextScheduledDate = enrolled.contains(pId) ? nextScheduledDates.get(pId) : null;
-            Date lastEncounterDate = lastEncounterDates.get(pId);
-            c.addData(pId, new AppointmentInfo(effectiveDate, enrolled.contains(pId), lastEncounterDate, nextScheduledDate));
-		}
+        // Only those patients who are actively enrolled will have a scheduled appointment.  The appointment must be
+        // recorded in an encounter of the given types, at the given locations, on or before the date.
+
+        for (Object[] row : evaluationService.evaluateToList(getAppointmentStatusQuery(def, context), context)) {
+            Integer pId = ((Number) row[0]).intValue();
+            Date lastEncounterDate = (Date) row[1];
+            boolean enrolled = ((Number) row[3]).intValue() > 0;
+            Date nextScheduledDate = enrolled ? (Date) row[2] : null;
+            c.addData(pId, new AppointmentInfo(effectiveDate, enrolled, lastEncounterDate, nextScheduledDate));
+        }
 
         // Ensure that any members of the original base cohort are in the return data, even if they have no data found
         if (context.getBaseCohort() != null) {
@@ -129,11 +84,90 @@ public class AppointmentStatusDataEvaluator implements PatientDataEvaluator {
 		return c;
 	}
 
-    protected Cohort getPatientsActivelyEnrolled(List<ProgramWorkflowState> activeStates, List<Location> locations, Date endDate, EvaluationContext context) throws EvaluationException {
-        InStateCohortDefinition cd = new InStateCohortDefinition();
-        cd.setStates(activeStates);
-        cd.setLocations(locations);
-        cd.setOnDate(endDate);
-        return cohortDefinitionService.evaluate(cd, context);
+    /**
+     * @return a query for each patient with an encounter of the given types, or in one of the active states, of the
+     * patient id, the date of the last encounter, the latest appointment date scheduled in any of those encounters,
+     * and 1 if the patient is in one of the active states on the date, otherwise 0
+     */
+    protected SqlQueryBuilder getAppointmentStatusQuery(AppointmentStatusDataDefinition def, EvaluationContext context) {
+        List<Integer> encounterTypeIds = new ArrayList<Integer>();
+        for (EncounterType et : def.getEncounterTypes()) {
+            encounterTypeIds.add(et.getEncounterTypeId());
+        }
+        List<Integer> stateIds = new ArrayList<Integer>();
+        for (ProgramWorkflowState state : def.getActiveStates()) {
+            stateIds.add(state.getProgramWorkflowStateId());
+        }
+        List<Integer> locationIds = null;
+        if (def.getLocations() != null) {
+            locationIds = new ArrayList<Integer>();
+            for (Location l : def.getLocations()) {
+                locationIds.add(l.getLocationId());
+            }
+        }
+        Collection<Integer> patientIds = (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
+
+        SqlQueryBuilder q = new SqlQueryBuilder();
+        q.append(getQuery(metadata.getAppointmentDateConcept().getConceptId(), encounterTypeIds, stateIds, locationIds, patientIds, def.getOnDate() != null));
+        if (def.getOnDate() != null) {
+            q.addParameter("onDate", def.getOnDate());
+        }
+        return q;
+    }
+
+    /**
+     * Encounters and states are limited to the given locations and patients if these are not null, and to the :onDate
+     * parameter if onDate is true.  Voided encounters, obs, states and programs are excluded, as are voided patients,
+     * which need only be excluded by a join to the patient table when there is no base cohort.
+     * @return the query of getAppointmentStatusQuery
+     */
+    public static String getQuery(Integer appointmentDateConceptId, Collection<Integer> encounterTypeIds, Collection<Integer> stateIds,
+                                  Collection<Integer> locationIds, Collection<Integer> patientIds, boolean onDate) {
+        StringBuilder q = new StringBuilder();
+        q.append("select 	patient_id, max(last_encounter_date), max(next_scheduled_date), max(enrolled)\n");
+        q.append("from (\n");
+        q.append("	select 	e.patient_id, e.encounter_datetime as last_encounter_date, o.value_datetime as next_scheduled_date, 0 as enrolled\n");
+        q.append("	from 	encounter e\n");
+        if (patientIds == null) {
+            q.append("	inner join patient p on p.patient_id = e.patient_id and p.voided = 0\n");
+        }
+        q.append("	left join obs o on o.encounter_id = e.encounter_id and o.voided = 0 and o.concept_id = " + appointmentDateConceptId + "\n");
+        q.append("	where 	e.voided = 0\n");
+        q.append("	and		e.encounter_type in (" + join(encounterTypeIds) + ")\n");
+        if (onDate) {
+            q.append("	and		e.encounter_datetime <= :onDate\n");
+        }
+        if (locationIds != null) {
+            q.append("	and		e.location_id in (" + join(locationIds) + ")\n");
+        }
+        if (patientIds != null) {
+            q.append("	and		e.patient_id in (" + join(patientIds) + ")\n");
+        }
+        q.append("	union all\n");
+        q.append("	select 	pp.patient_id, null, null, 1\n");
+        q.append("	from 	patient_state ps\n");
+        q.append("	inner join patient_program pp on ps.patient_program_id = pp.patient_program_id\n");
+        if (patientIds == null) {
+            q.append("	inner join patient p on p.patient_id = pp.patient_id and p.voided = 0\n");
+        }
+        q.append("	where 	ps.voided = 0 and pp.voided = 0\n");
+        q.append("	and		ps.state in (" + join(stateIds) + ")\n");
+        if (onDate) {
+            q.append("	and		(ps.start_date is null or ps.start_date <= :onDate)\n");
+            q.append("	and		(ps.end_date is null or ps.end_date >= :onDate)\n");
+        }
+        if (locationIds != null) {
+            q.append("	and		pp.location_id in (" + join(locationIds) + ")\n");
+        }
+        if (patientIds != null) {
+            q.append("	and		pp.patient_id in (" + join(patientIds) + ")\n");
+        }
+        q.append(") appointment_status\n");
+        q.append("group by 	patient_id\n");
+        return q.toString();
+    }
+
+    private static String join(Collection<Integer> ids) {
+        return (ids.isEmpty() ? "null" : OpenmrsUtil.join(ids, ","));
     }
 }
@@ -13,8 +13,9 @@
  */
 package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
 
-import org.openmrs.Obs;
+import org.openmrs.Concept;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.common.ObsProjectionHelper;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.Cd4DataDefinition;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
@@ -22,15 +23,13 @@ import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinitio
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
-import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Evaluates a Cd4DataDefinition to produce a PatientData
+ * Evaluates a Cd4DataDefinition to produce a PatientData.  The obs are read as scalar values rather than as entities.
  */
 @Handler(supports = Cd4DataDefinition.class, order = 50)
 public class Cd4DataEvaluator implements PatientDataEvaluator {
@@ -39,7 +38,7 @@ public class Cd4DataEvaluator implements PatientDataEvaluator {
 	private HivMetadata metadata;
 
 	@Autowired
-	private EvaluationService evaluationService;
+	private ObsProjectionHelper obsProjectionHelper;
 	
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context) throws EvaluationException {
@@ -51,25 +50,8 @@ public class Cd4DataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-		HqlQueryBuilder q = new HqlQueryBuilder();
-		q.select("o.personId", "o");
-		q.from(Obs.class, "o");
-		q.wherePersonIn("o.personId", context);
-		q.whereInAny("o.concept", metadata.getCd4CountConcept(), metadata.getClinicianReportedCd4Concept());
-		q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-		q.orderAsc("o.obsDatetime");
-
-		List<Object[]> results = evaluationService.evaluateToList(q, context);
-		for (Object[] row : results) {
-			Integer pId = (Integer)row[0];
-			Obs o = (Obs)row[1];
-			List<Obs> obsForPatient = (List<Obs>)c.getData().get(pId);
-			if (obsForPatient == null) {
-				obsForPatient = new ArrayList<Obs>();
-				c.getData().put(pId, obsForPatient);
-			}
-			obsForPatient.add(o);
-		}
+		List<Concept> questions = Arrays.asList(metadata.getCd4CountConcept(), metadata.getClinicianReportedCd4Concept());
+		c.getData().putAll(obsProjectionHelper.getObs(questions, null, def.getEndDate(), context));
 
 		return c;
 	}
@@ -17,24 +17,25 @@ import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.common.ObsProjectionHelper;
 import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.DiagnosesBasedOnMastercardsPatientDataDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.ChronicCareCohortDefinitionLibrary;
-import org.openmrs.module.pihmalawi.reporting.library.ChronicCarePatientDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
+import org.openmrs.module.reporting.ReportingConstants;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
-import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
-import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -60,10 +61,7 @@ public class DiagnosesBasedOnMastercardsPatientDataEvaluator implements PatientD
     private ChronicCareCohortDefinitionLibrary ccCohorts;
 
     @Autowired
-    private ChronicCarePatientDataLibrary ccPatientData;
-
-    @Autowired
-    private PatientDataService patientDataService;
+    private ObsProjectionHelper obsProjectionHelper;
 
     @Autowired
     private CohortDefinitionService cohortDefinitionService;
@@ -83,9 +81,11 @@ public class DiagnosesBasedOnMastercardsPatientDataEvaluator implements PatientD
         diagnosesDisplay.put(ccMetadata.getType2DiabetesConcept(), "Type 2 DM");
         diagnosesDisplay.put(ccMetadata.getHypertensionConcept(), "Hypertension");
 
-        PatientData diagosisData = patientDataService.evaluate(ccPatientData.getAllChronicCareDiagnosisObsByEndDate(), context);
-        for (Integer pId : diagosisData.getData().keySet()) {
-            List<Obs> diagnosisObs = (List<Obs>) diagosisData.getData().get(pId);
+        Date endDate = (Date) context.getParameterValue(ReportingConstants.END_DATE_PARAMETER.getName());
+        List<Concept> questions = Arrays.asList(ccMetadata.getChronicCareDiagnosisConcept());
+        Map<Integer, List<Obs>> diagnosisData = obsProjectionHelper.getObs(questions, ccMetadata.getChronicCareEncounterTypes(), endDate, context);
+        for (Integer pId : diagnosisData.keySet()) {
+            List<Obs> diagnosisObs = diagnosisData.get(pId);
             for (Obs o : diagnosisObs) {
                 Concept diagnosis = o.getValueCoded();
                 String diagnosisName = ObjectUtil.nvl(diagnosesDisplay.get(diagnosis), ObjectUtil.format(o.getValueCoded()));
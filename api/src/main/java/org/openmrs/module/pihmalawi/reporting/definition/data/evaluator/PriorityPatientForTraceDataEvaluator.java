@@ -24,27 +24,24 @@ import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary
 import org.openmrs.module.reporting.ReportingConstants;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
-import org.openmrs.module.reporting.data.encounter.library.BuiltInEncounterDataLibrary;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
-import org.openmrs.module.reporting.dataset.DataSet;
-import org.openmrs.module.reporting.dataset.DataSetRow;
-import org.openmrs.module.reporting.dataset.definition.EncounterDataSetDefinition;
-import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Collection;
+import java.util.Date;
 import java.util.Set;
 import java.util.TreeSet;
 
 /**
- * Evaluates a DiagnosesBasedOnMastercardsPatientDataDefinition to produce a PatientData
+ * Evaluates a PriorityPatientForTracePatientDataDefinition to produce a PatientData
  */
 @Handler(supports = PriorityPatientForTracePatientDataDefinition.class, order = 50)
 public class PriorityPatientForTraceDataEvaluator implements PatientDataEvaluator {
@@ -61,19 +58,21 @@ public class PriorityPatientForTraceDataEvaluator implements PatientDataEvaluato
     @Autowired
     private ChronicCareCohortDefinitionLibrary ccCohorts;
 
-    @Autowired
-    private BuiltInEncounterDataLibrary builtInEncounterData;
-
     @Autowired
     private CohortDefinitionService cohortDefinitionService;
 
 	@Autowired
-	private DataSetDefinitionService dataSetDefinitionService;
+	private EvaluationService evaluationService;
 
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context) throws EvaluationException {
 
 		EvaluatedPatientData pd = new EvaluatedPatientData(definition, context);
+
+        if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+            return pd;
+        }
+
         add(pd, "HIV", hivCohorts.getEverEnrolledInHivProgramByEndDate(), context);  // 1. HIV patients (all)
         add(pd, "BP > 180/110", getPatientsEverWithHighBloodPressureByEndDate(context)); // 2. Hypertension patients with BP ever greater than 180/110 (both systolic and diastolic should exceed threshold)
         add(pd, "On Insulin", df.getPatientsWithCodedObsByEndDate(ccMetadata.getCurrentDrugsUsedConcept(), Arrays.asList(ccMetadata.getInsulinConcept())), context); // 3. Diabetes patients on insulin
@@ -87,33 +86,56 @@ public class PriorityPatientForTraceDataEvaluator implements PatientDataEvaluato
 		return pd;
 	}
 
+    /**
+     * @return the patients in the base cohort with a systolic blood pressure over 180 and a diastolic blood pressure
+     * over 110 recorded in the same chronic care encounter, on or before the end date if there is one
+     */
     public Cohort getPatientsEverWithHighBloodPressureByEndDate(EvaluationContext context) throws EvaluationException {
-        Cohort c = new Cohort();
-
-        EncounterDataSetDefinition dsd = new EncounterDataSetDefinition();
-        dsd.addParameter(ReportingConstants.END_DATE_PARAMETER);
-
-        List<EncounterType> types = ccMetadata.getChronicCareEncounterTypes();
-        types.addAll(ccMetadata.getHtnDiabetesEncounterTypes());
-        dsd.addRowFilter(Mapped.mapStraightThrough(df.getEncountersOfTypeByEndDate(types)));
-
-        dsd.addColumn("PID", builtInEncounterData.getPatientId(), "");
-        dsd.addColumn("SYS", df.getSingleObsValueNumericForEncounter(ccMetadata.getSystolicBloodPressureConcept()), "");
-        dsd.addColumn("DIAS", df.getSingleObsValueNumericForEncounter(ccMetadata.getDiastolicBloodPressureConcept()), "");
-
-        DataSet ds = dataSetDefinitionService.evaluate(dsd, context);
-        for (Iterator<DataSetRow> iterator = ds.iterator(); iterator.hasNext();) {
-            DataSetRow row = iterator.next();
-            Integer pId = (Integer) row.getColumnValue("PID");
-            Double sys = (Double) row.getColumnValue("SYS");
-            Double dias = (Double) row.getColumnValue("DIAS");
-            // Hypertension patients with BP ever greater than 180/110 (both systolic and diastolic should exceed threshold)
-            if (sys != null && dias != null && sys > 180 && dias > 110) {
-                c.addMember(pId);
-            }
+        Set<Integer> encounterTypes = new TreeSet<Integer>();
+        for (EncounterType type : ccMetadata.getChronicCareEncounterTypes()) {
+            encounterTypes.add(type.getEncounterTypeId());
+        }
+        for (EncounterType type : ccMetadata.getHtnDiabetesEncounterTypes()) {
+            encounterTypes.add(type.getEncounterTypeId());
         }
+        Date endDate = (Date) context.getParameterValue(ReportingConstants.END_DATE_PARAMETER.getName());
+        Collection<Integer> patientIds = (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
+        if (patientIds != null && patientIds.isEmpty()) {
+            return new Cohort();
+        }
+
+        SqlQueryBuilder q = new SqlQueryBuilder();
+        q.append(getHighBloodPressureQuery(ccMetadata.getSystolicBloodPressureConcept().getConceptId(),
+                ccMetadata.getDiastolicBloodPressureConcept().getConceptId(), encounterTypes, patientIds, endDate != null));
+        if (endDate != null) {
+            q.addParameter("endDate", endDate);
+        }
+        return new Cohort(evaluationService.evaluateToList(q, Integer.class, context));
+    }
 
-        return c;
+    /**
+     * Encounters are limited to the given patients if these are not null, and to the :endDate parameter if endDate
+     * is true.  Voided encounters and obs are excluded.
+     * @return the query of getPatientsEverWithHighBloodPressureByEndDate
+     */
+    public static String getHighBloodPressureQuery(Integer systolicConceptId, Integer diastolicConceptId, Collection<Integer> encounterTypeIds,
+                                                   Collection<Integer> patientIds, boolean endDate) {
+        StringBuilder q = new StringBuilder();
+        q.append("select 	s.person_id\n");
+        q.append("from 		obs s, obs d, encounter e\n");
+        q.append("where 	s.encounter_id = e.encounter_id and d.encounter_id = e.encounter_id\n");
+        q.append("and		s.voided = 0 and d.voided = 0 and e.voided = 0\n");
+        q.append("and		e.encounter_type in (" + OpenmrsUtil.join(encounterTypeIds, ",") + ")\n");
+        q.append("and		s.concept_id = " + systolicConceptId + " and s.value_numeric > 180\n");
+        q.append("and		d.concept_id = " + diastolicConceptId + " and d.value_numeric > 110\n");
+        if (endDate) {
+            q.append("and		e.encounter_datetime <= :endDate\n");
+        }
+        if (patientIds != null) {
+            q.append("and		s.person_id in (" + OpenmrsUtil.join(patientIds, ",") + ")\n");
+        }
+        q.append("group by 	s.person_id\n");
+        return q.toString();
     }
 
     public void add(EvaluatedPatientData data, String priorityReason, CohortDefinition cd, EvaluationContext context) throws EvaluationException {
@@ -13,62 +13,102 @@
  */
 package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
 
+import org.openmrs.Concept;
+import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.common.ObsProjectionHelper;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.ObsValueBooleanYesNoConverter;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.PregnantLactatingConverter;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.TbStatusConverter;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.WhoStageConverter;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.ReasonForStartingArvsPatientDataDefinition;
-import org.openmrs.module.pihmalawi.reporting.library.HivPatientDataLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
-import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
-import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Evaluates a ReasonForStartingArvsPatientDataDefinition to produce a PatientData
+ * All of the reasons are read in a single query of the obs in ART initial encounters, and the first obs of each reason
+ * is then converted in the same way as the individual firstArtInitialEncounter definitions in the HivPatientDataLibrary
  */
 @Handler(supports = ReasonForStartingArvsPatientDataDefinition.class, order = 50)
 public class ReasonForStartingArvsPatientDataDefinitionEvaluator implements PatientDataEvaluator {
 
 	@Autowired
-	private HivPatientDataLibrary hivLibrary;
+	private HivMetadata hivMetadata;
 
 	@Autowired
-	private PatientDataService patientDataService;
+	private DataFactory pdf;
+
+	@Autowired
+	private ObsProjectionHelper obsProjectionHelper;
 	
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context) throws EvaluationException {
 
 		EvaluatedPatientData pd = new EvaluatedPatientData(definition, context);
 
-		Map<String, PatientDataDefinition> m = new LinkedHashMap<String, PatientDataDefinition>();
-		m.put("CD4", hivLibrary.getFirstArtInitialCd4Count());
-		m.put("KS", hivLibrary.getFirstArtInitialKsSideEffectsWorsening());
-		m.put("TB", hivLibrary.getFirstArtInitialTbTreatmentStatus());
-		m.put("STAGE", hivLibrary.getFirstArtInitialWhoStage());
-		m.put("TLC", hivLibrary.getFirstArtInitialCd4Percent());
-		m.put("PSHD", hivLibrary.getFirstArtInitialPresumedSevereHivPresent());
-        m.put("CONDITIONS", hivLibrary.getFirstArtInitialWhoClinicalConditions());
-        m.put("PREG", hivLibrary.getFirstArtInitialPregnantLactating());
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return pd;
+		}
 
-		for (String questionKey : m.keySet()) {
-			PatientDataDefinition def = m.get(questionKey);
-			PatientData data = patientDataService.evaluate(Mapped.mapStraightThrough(def), context);
-			for (Map.Entry<Integer, Object> e : data.getData().entrySet()) {
-				Map<String, Object> reasonsForPatient = (Map<String, Object>)pd.getData().get(e.getKey());
-				if (reasonsForPatient == null) {
-					reasonsForPatient = new LinkedHashMap<String, Object>();
-					pd.getData().put(e.getKey(), reasonsForPatient);
-				}
-				reasonsForPatient.put(questionKey, e.getValue());
+		Map<String, Concept> questions = new LinkedHashMap<String, Concept>();
+		Map<String, DataConverter> converters = new LinkedHashMap<String, DataConverter>();
+		addReason("CD4", hivMetadata.getCd4CountConcept(), pdf.getObsValueNumericConverter(), questions, converters);
+		addReason("KS", hivMetadata.getKsSideEffectsWorseningOnArvsConcept(), new ObsValueBooleanYesNoConverter(), questions, converters);
+		addReason("TB", hivMetadata.getTbTreatmentStatusConcept(), new TbStatusConverter(), questions, converters);
+		addReason("STAGE", hivMetadata.getWhoStageConcept(), new WhoStageConverter(), questions, converters);
+		addReason("TLC", hivMetadata.getCd4PercentConcept(), pdf.getObjectFormatter(), questions, converters);
+		addReason("PSHD", hivMetadata.getPresumedSevereHivCriteriaPresentConcept(), pdf.getObjectFormatter(), questions, converters);
+		addReason("CONDITIONS", hivMetadata.getWhoClinicalConditionsConcept(), pdf.getObsValueTextConverter(), questions, converters);
+		addReason("PREG", hivMetadata.getPregnantOrLactatingConcept(), new PregnantLactatingConverter(), questions, converters);
+
+		Date endDate = (Date) context.getParameterValue("endDate");
+		Map<Integer, List<Obs>> obs = obsProjectionHelper.getObs(questions.values(), Arrays.asList(hivMetadata.getArtInitialEncounterType()), endDate, context);
+
+		for (Map.Entry<Integer, List<Obs>> e : obs.entrySet()) {
+			Map<String, Object> reasonsForPatient = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Obs> reason : getFirstObsForEachReason(e.getValue(), questions).entrySet()) {
+				reasonsForPatient.put(reason.getKey(), converters.get(reason.getKey()).convert(reason.getValue()));
 			}
+			pd.getData().put(e.getKey(), reasonsForPatient);
 		}
 
 		return pd;
 	}
+
+	/**
+	 * @param obs the obs of a single patient, ordered from earliest to most recent
+	 * @param questions the question for each reason, keyed on reason in the order they should be returned
+	 * @return the earliest obs for each reason that has one, keyed on reason in the order of the given questions
+	 */
+	public static Map<String, Obs> getFirstObsForEachReason(List<Obs> obs, Map<String, Concept> questions) {
+		Map<String, Obs> ret = new LinkedHashMap<String, Obs>();
+		for (Map.Entry<String, Concept> question : questions.entrySet()) {
+			for (Obs o : obs) {
+				if (o.getConcept() != null && o.getConcept().getConceptId().equals(question.getValue().getConceptId())) {
+					ret.put(question.getKey(), o);
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void addReason(String key, Concept question, DataConverter converter, Map<String, Concept> questions, Map<String, DataConverter> converters) {
+		questions.put(key, question);
+		converters.put(key, converter);
+	}
 }
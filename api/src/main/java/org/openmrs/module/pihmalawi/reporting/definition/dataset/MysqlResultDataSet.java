@@ -0,0 +1,98 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.dataset;
+
+import org.openmrs.module.pihmalawi.sql.MysqlResult;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetMetaData;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSetMetaData;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * DataSet backed by the typed rows streamed into a MysqlResult.
+ * Each column is represented by a single DataSetColumn, typed from the result set metadata, which is shared
+ * by every row.  DataSetRows are only constructed as the data set is iterated, so the data is held once,
+ * as compact value arrays, rather than as a row map per record.
+ */
+public class MysqlResultDataSet implements DataSet {
+
+	private DataSetDefinition definition;
+	private EvaluationContext context;
+	private SimpleDataSetMetaData metaData;
+	private List<Object[]> rows;
+
+	public MysqlResultDataSet(DataSetDefinition definition, EvaluationContext context, MysqlResult result) {
+		this.definition = definition;
+		this.context = context;
+		this.metaData = new SimpleDataSetMetaData();
+		for (int i=0; i<result.getColumns().size(); i++) {
+			String column = result.getColumns().get(i);
+			Class<?> type = (i < result.getColumnTypes().size() ? result.getColumnTypes().get(i) : String.class);
+			metaData.addColumn(new DataSetColumn(column, column, type));
+		}
+		this.rows = result.getRows();
+	}
+
+	/**
+	 * @see DataSet#iterator()
+	 */
+	public Iterator<DataSetRow> iterator() {
+		final List<DataSetColumn> columns = metaData.getColumns();
+		final Iterator<Object[]> rowIterator = rows.iterator();
+		return new Iterator<DataSetRow>() {
+
+			public boolean hasNext() {
+				return rowIterator.hasNext();
+			}
+
+			public DataSetRow next() {
+				Object[] values = rowIterator.next();
+				DataSetRow row = new DataSetRow();
+				for (int i=0; i<columns.size(); i++) {
+					row.addColumnValue(columns.get(i), values[i]);
+				}
+				return row;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Rows cannot be removed from a MysqlResultDataSet");
+			}
+		};
+	}
+
+	/**
+	 * @return the number of rows in the data set
+	 */
+	public int getNumRows() {
+		return rows.size();
+	}
+
+	public DataSetMetaData getMetaData() {
+		return metaData;
+	}
+
+	public EvaluationContext getContext() {
+		return context;
+	}
+
+	public DataSetDefinition getDefinition() {
+		return definition;
+	}
+}
@@ -24,6 +24,9 @@ public class MysqlCmdDataSetDefinition extends BaseDataSetDefinition {
 	@ConfigurationProperty
 	private String sql;
 
+	@ConfigurationProperty
+	private String warehouse;
+
 	/**
 	 * Constructor
 	 */
@@ -36,4 +39,15 @@ public class MysqlCmdDataSetDefinition extends BaseDataSetDefinition {
     public void setSql(String sql) {
         this.sql = sql;
     }
+
+    /**
+     * @return the name of an IncrementalWarehouse to refresh before executing the sql, if any
+     */
+    public String getWarehouse() {
+        return warehouse;
+    }
+
+    public void setWarehouse(String warehouse) {
+        this.warehouse = warehouse;
+    }
 }
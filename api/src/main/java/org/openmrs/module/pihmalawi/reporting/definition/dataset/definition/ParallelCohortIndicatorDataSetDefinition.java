@@ -0,0 +1,27 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.definition;
+
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition;
+
+/**
+ * A cohort indicator data set that is evaluated by first evaluating each distinct cohort that its indicators and
+ * dimensions are built from, concurrently where they do not depend on each other
+ */
+public class ParallelCohortIndicatorDataSetDefinition extends CohortIndicatorDataSetDefinition {
+
+	public ParallelCohortIndicatorDataSetDefinition() {
+		super();
+	}
+}
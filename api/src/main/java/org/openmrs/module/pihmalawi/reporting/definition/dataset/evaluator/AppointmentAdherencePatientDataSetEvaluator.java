@@ -12,51 +12,73 @@ import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PatientProgram;
 import org.openmrs.PatientState;
-import org.openmrs.Person;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
+import org.openmrs.Relationship;
+import org.openmrs.RelationshipType;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.common.AppointmentAdherenceCalculator;
 import org.openmrs.module.pihmalawi.common.PatientDataHelper;
 import org.openmrs.module.pihmalawi.common.ProgramHelper;
-import org.openmrs.module.pihmalawi.metadata.CommonMetadata;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.AppointmentAdherencePatientDataSetDefinition;
-import org.openmrs.module.pihmalawi.reporting.definition.renderer.ArtRegisterBreakdownRenderer;
 import org.openmrs.module.reporting.cohort.CohortUtil;
-import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.common.ObjectUtil;
+import org.openmrs.module.reporting.data.patient.PatientData;
+import org.openmrs.module.reporting.data.patient.definition.EncountersForPatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.ProgramEnrollmentsForPatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.service.PatientDataService;
+import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
+import org.openmrs.module.reporting.data.person.definition.PersonToPatientDataDefinition;
+import org.openmrs.module.reporting.data.person.definition.RelationshipsForPersonDataDefinition;
 import org.openmrs.module.reporting.dataset.DataSet;
 import org.openmrs.module.reporting.dataset.DataSetRow;
 import org.openmrs.module.reporting.dataset.SimpleDataSet;
 import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
-// TODO: Convert to use Data Definitions
+/**
+ * Evaluates an AppointmentAdherencePatientDataSetDefinition.  The encounters, obs, HIV program enrollments and
+ * VHW relationships of the whole cohort are loaded up front with one data definition each, and each row is then
+ * built from these in memory, with the adherence itself computed by the AppointmentAdherenceCalculator.
+ */
 @Handler(supports = { AppointmentAdherencePatientDataSetDefinition.class })
 public class AppointmentAdherencePatientDataSetEvaluator implements DataSetEvaluator {
 
 	protected Log log = LogFactory.getLog(this.getClass());
 
-	private final static long MILLISECONDS_PER_WEEK = (long) 7 * 24 * 60 * 60 * 1000;
+	public static final String APPOINTMENT_DATE = "Appointment date";
+	public static final String DATE_OF_HIV_DIAGNOSIS = "DATE OF HIV DIAGNOSIS";
+	public static final String WEIGHT = "Weight (kg)";
+	public static final String HEIGHT = "Height (cm)";
 
-	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) {
+	@Autowired
+	private PatientDataService patientDataService;
+
+	@Autowired
+	private HivMetadata hivMetadata;
+
+	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) throws EvaluationException {
 
 		SimpleDataSet dataSet = new SimpleDataSet(dataSetDefinition, context);
 		AppointmentAdherencePatientDataSetDefinition definition = (AppointmentAdherencePatientDataSetDefinition) dataSetDefinition;
@@ -88,13 +110,42 @@ public class AppointmentAdherencePatientDataSetEvaluator implements DataSetEvalu
 		// Get a list of patients based on the cohort members
 		List<Patient> patients = Context.getPatientSetService().getPatients(cohort.getMemberIds());
 
+		Program hivProgram = hivMetadata.getHivProgram();
+		ProgramWorkflow hivTreatmentStatus = hivMetadata.getTreatmentStatusWorkfow();
+		ProgramWorkflowState onArvState = hivMetadata.getOnArvsState();
+		List<EncounterType> artEncounterTypes = hivMetadata.getArtEncounterTypes();
+		List<EncounterType> artInitialEncounterTypes = Collections.singletonList(hivMetadata.getArtInitialEncounterType());
+		Map<String, String> reasonConcepts = getReasonForStartingArvsConcepts();
+
+		// Load the data for the whole cohort
+
+		EvaluationContext cohortContext = context.shallowCopy();
+		cohortContext.setBaseCohort(cohort);
+
+		List<EncounterType> encounterTypesToLoad = null;  // If no encounter types are configured, adherence is based on encounters of all types
+		if (ets != null && !ets.isEmpty()) {
+			encounterTypesToLoad = new ArrayList<EncounterType>(ets);
+			encounterTypesToLoad.addAll(artEncounterTypes);
+		}
+		Map<Integer, List<Encounter>> encounters = getEncounters(encounterTypesToLoad, cohortContext);
+
+		Map<String, Map<Integer, List<Obs>>> obs = new HashMap<String, Map<Integer, List<Obs>>>();
+		List<String> obsConcepts = new ArrayList<String>(reasonConcepts.values());
+		obsConcepts.addAll(Arrays.asList(DATE_OF_HIV_DIAGNOSIS, APPOINTMENT_DATE, WEIGHT, HEIGHT));
+		for (String concept : obsConcepts) {
+			obs.put(concept, getObs(hivMetadata.getConcept(concept), cohortContext));
+		}
+
+		ProgramHelper programHelper = new ProgramHelper();
+		programHelper.setPatientPrograms(getPatientPrograms(hivProgram, cohort, cohortContext));
+
+		Map<Integer, List<Relationship>> vhwRelationships = getRelationships(hivMetadata.getChwRelationshipType(), cohortContext);
+
 		PatientDataHelper pdh = new PatientDataHelper();
-        ArtRegisterBreakdownRenderer brr = new ArtRegisterBreakdownRenderer();
-		HivMetadata hivMetadata = new HivMetadata();
-		CommonMetadata commonMetadata = new CommonMetadata();
 
 		for (Patient p : patients) {
 			DataSetRow row = new DataSetRow();
+			List<Encounter> patientEncounters = getList(encounters, p.getPatientId());
 
 			pdh.addCol(row, "#", p.getPatientId());
             pdh.addCol(row, "Given Name", pdh.getGivenName(p));
@@ -105,74 +156,72 @@ public class AppointmentAdherencePatientDataSetEvaluator implements DataSetEvalu
 			pdh.addCol(row, "M/F", pdh.getGender(p));
 			pdh.addCol(row, "TA", pdh.getTraditionalAuthority(p));
 			pdh.addCol(row, "Village", pdh.getVillage(p));
-			pdh.addCol(row, "VHW", pdh.vhwName(p, false));
+			pdh.addCol(row, "VHW", getVhwName(p, getList(vhwRelationships, p.getPatientId())));
 
-			Obs mostRecentDxDate = pdh.getLatestObs(p, "DATE OF HIV DIAGNOSIS", null, endDateParameter);
+			Obs mostRecentDxDate = getLatestObs(getList(obs.get(DATE_OF_HIV_DIAGNOSIS), p.getPatientId()), null, endDateParameter);
 			pdh.addCol(row, "HIV dx date", pdh.getValueDatetime(mostRecentDxDate));
 
-			Map<String, String> reasonsForStartingArvs = pdh.getReasonStartingArvs(p, endDateParameter);
-			for (String reasonKey : reasonsForStartingArvs.keySet()) {
-				pdh.addCol(row, "ARV Reason " + reasonKey, reasonsForStartingArvs.get(reasonKey));
+			List<Encounter> artInitialEncounters = getEncounters(patientEncounters, artInitialEncounterTypes, null, endDateParameter);
+			for (Map.Entry<String, String> reason : reasonConcepts.entrySet()) {
+				Obs reasonObs = getLatestObs(getList(obs.get(reason.getValue()), p.getPatientId()), artInitialEncounters, endDateParameter);
+				pdh.addCol(row, "ARV Reason " + reason.getKey(), pdh.formatValue(reasonObs));
 			}
 
-			Program hivProgram = hivMetadata.getHivProgram();
-			ProgramWorkflow hivTreatmentStatus = hivMetadata.getTreatmentStatusWorkfow();
-			ProgramWorkflowState onArvState = hivMetadata.getOnArvsState();
-
-			PatientState earliestOnArvsState = new ProgramHelper().getFirstTimeInState(p, hivProgram, onArvState, endDateParameter);
+			PatientState earliestOnArvsState = programHelper.getFirstTimeInState(p, hivProgram, onArvState, endDateParameter);
 			Date arvStartDate = (earliestOnArvsState == null ? null : earliestOnArvsState.getStartDate());
 
 			pdh.addCol(row, "First On ARVs State Start Date", arvStartDate);
 
-			PatientState earliestOnArvsStateAtLocation = new ProgramHelper().getFirstTimeInStateAtLocation(p, hivProgram, onArvState, endDateParameter, location);
+			PatientState earliestOnArvsStateAtLocation = programHelper.getFirstTimeInStateAtLocation(p, hivProgram, onArvState, endDateParameter, location);
 			Date arvStartDateAtLocation = (earliestOnArvsStateAtLocation == null ? null : earliestOnArvsStateAtLocation.getStartDate());
 			pdh.addCol(row, "First On ARVs State Start Date At Location", arvStartDateAtLocation);
 
-			List<EncounterType> artEncounterTypes = hivMetadata.getArtEncounterTypes();
-			Encounter firstArtEncounter = pdh.getFirstEncounterOfType(p, artEncounterTypes, endDateParameter);
-
+			List<Encounter> artEncounters = getEncounters(patientEncounters, artEncounterTypes, null, endDateParameter);
+			Encounter firstArtEncounter = getFirstEncounterAtLocation(artEncounters, null);
             pdh.addCol(row, "First ART Encounter Date", (firstArtEncounter == null ? null : firstArtEncounter.getEncounterDatetime()));
 
-            Encounter firstArtEncounterAtLocation = pdh.getFirstEncounterAtLocationOfType(p, artEncounterTypes, endDateParameter, location);
+            Encounter firstArtEncounterAtLocation = getFirstEncounterAtLocation(artEncounters, location);
             pdh.addCol(row, "First ART Encounter Date at Location", firstArtEncounterAtLocation == null ? null : firstArtEncounterAtLocation.getEncounterDatetime());
 
-			PatientState latestTxStatusStateAtLocation = new ProgramHelper().getMostRecentStateAtLocationAndDate(p, hivTreatmentStatus, location, endDateParameter);
+			PatientState latestTxStatusStateAtLocation = programHelper.getMostRecentStateAtLocationAndDate(p, hivTreatmentStatus, location, endDateParameter);
 
 			pdh.addCol(row, "HIV Tx Status at Location", pdh.formatStateName(latestTxStatusStateAtLocation));
 			pdh.addCol(row, "HIV Tx Status at Location Date", pdh.getStateStartDate(latestTxStatusStateAtLocation));
 
-			PatientState latestTxStatusStateOverall = new ProgramHelper().getMostRecentStateAtDate(p, hivTreatmentStatus, endDateParameter);
+			PatientState latestTxStatusStateOverall = programHelper.getMostRecentStateAtDate(p, hivTreatmentStatus, endDateParameter);
 			pdh.addCol(row, "HIV Tx Status Overall", pdh.formatStateName(latestTxStatusStateOverall));
 			pdh.addCol(row, "HIV Tx Status Overall Date", pdh.getStateStartDate(latestTxStatusStateOverall));
 
-			Obs nextApptDate = pdh.getLatestObs(p, "Appointment date", ets, null); // This is as of the report generation date
+			List<Obs> appointmentObs = getList(obs.get(APPOINTMENT_DATE), p.getPatientId());
+			List<Encounter> appointmentEncounters = (ets == null ? null : getEncounters(patientEncounters, ets, null, null));
+			Obs nextApptDate = getLatestObs(appointmentObs, appointmentEncounters, null); // This is as of the report generation date
 			pdh.addCol(row, "Next Appt Date", pdh.getValueDatetime(nextApptDate));
 
-			Obs weightAtArtStart = pdh.getLatestObs(p, "Weight (kg)", null, arvStartDate);
+			List<Obs> weights = getList(obs.get(WEIGHT), p.getPatientId());
+			Obs weightAtArtStart = getLatestObs(weights, null, arvStartDate);
 			pdh.addCol(row, "ART START WT", pdh.formatValue(weightAtArtStart));
 
-			Obs weight = pdh.getLatestObs(p, "Weight (kg)", null, endDateParameter);
+			Obs weight = getLatestObs(weights, null, endDateParameter);
 			pdh.addCol(row, "LAST WT", pdh.formatValue(weight));
 			pdh.addCol(row, "LAST WT DATE", pdh.getObsDatetime(weight));
 
-			Obs heightAtArtStart = pdh.getLatestObs(p, "Height (cm)", null, arvStartDate);
+			List<Obs> heights = getList(obs.get(HEIGHT), p.getPatientId());
+			Obs heightAtArtStart = getLatestObs(heights, null, arvStartDate);
 			pdh.addCol(row, "ART START HT", pdh.formatValue(heightAtArtStart));
 
-			Obs height = pdh.getLatestObs(p, "Height (cm)", null, endDateParameter);
+			Obs height = getLatestObs(heights, null, endDateParameter);
 			pdh.addCol(row, "LAST HT", pdh.formatValue(height));
 			pdh.addCol(row, "LAST HT DATE", pdh.getObsDatetime(height));
 
 			// app adherence
 
-			Map<Date, Integer> daysMissedByScheduledVisitDate = new TreeMap<Date, Integer>();
-
 			// consider adherence between the patient's arv start date and program completion date, as well as report parameters
 			Date adherencePeriodStart = startDateParameter;
 			if (arvStartDate != null && (adherencePeriodStart == null || arvStartDate.after(adherencePeriodStart))) {
 				adherencePeriodStart = arvStartDate;
 			}
 
-			PatientProgram latestHivProgramEnrollment = new ProgramHelper().getMostRecentProgramEnrollment(p, hivProgram, endDateParameter);
+			PatientProgram latestHivProgramEnrollment = programHelper.getMostRecentProgramEnrollment(p, hivProgram, endDateParameter);
 
 			Date adherencePeriodEnd = endDateParameter;
 			if (latestHivProgramEnrollment != null && latestHivProgramEnrollment.getDateCompleted() != null) {
@@ -185,178 +234,219 @@ public class AppointmentAdherencePatientDataSetEvaluator implements DataSetEvalu
 			pdh.addCol(row, "Adherence Period End", adherencePeriodEnd);
 
 			// Get all scheduled and actual encounters during this period
-			Set<Date> scheduledVisits = new TreeSet<Date>();
-			Map<Date, Boolean> actualVisits = new TreeMap<Date, Boolean>(); // Dates of actual visits, and true if they are at the passed location
-
-			List<Encounter> es = Context.getEncounterService().getEncounters(p, null, adherencePeriodStart, adherencePeriodEnd, null, ets, null, false);
+			AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(adherencePeriodStart, adherencePeriodEnd);
+			List<Encounter> es = getEncounters(patientEncounters, ets, adherencePeriodStart, adherencePeriodEnd);
+			Set<Integer> encounterIds = new HashSet<Integer>();
 			for (Encounter e : es) {
-				actualVisits.put(e.getEncounterDatetime(), e.getLocation().equals(location));
+				calculator.addActualVisit(e.getEncounterDatetime(), OpenmrsUtil.nullSafeEquals(e.getLocation(), location));
+				encounterIds.add(e.getEncounterId());
 			}
-			if (es.size() > 0) {
-				Concept apptDateConcept = commonMetadata.getAppointmentDateConcept();
-				for (Obs o : Context.getObsService().getObservations(Arrays.asList((Person) p), es, Arrays.asList(apptDateConcept), null, null, null, null, null, null, null, null, false)) {
-					if (o.getValueDatetime() != null && o.getValueDatetime().compareTo(adherencePeriodEnd) <= 0) {
-						scheduledVisits.add(o.getValueDatetime());
-					}
+			for (Obs o : appointmentObs) {
+				if (o.getEncounter() != null && encounterIds.contains(o.getEncounter().getEncounterId())) {
+					calculator.addScheduledVisit(o.getValueDatetime());
 				}
 			}
 
-			// Remove the first actual visit in the list since it does not correspond to a scheduled visit date from a previous visit
-			if (actualVisits.size() > 0) {
-				Iterator<Date> i = actualVisits.keySet().iterator();
-				i.next();
-				i.remove();
+			for (Map.Entry<String, Integer> adherence : calculator.calculate().entrySet()) {
+				pdh.addCol(row, adherence.getKey(), adherence.getValue());
 			}
 
-			pdh.addCol(row, "Num Scheduled Visits", scheduledVisits.size());
-			pdh.addCol(row, "Num Actual Visits", actualVisits.size());
+			dataSet.addRow(row);
+		}
+		return dataSet;
+	}
 
-			// Determine what dates the patient was "enrolled" in the passed in Location, based on encounter data
+	/**
+	 * @return the concepts of the obs that indicate the reason for starting ARVs, keyed on the column suffix,
+	 * as looked up by PatientDataHelper#getReasonStartingArvs
+	 */
+	protected Map<String, String> getReasonForStartingArvsConcepts() {
+		Map<String, String> m = new LinkedHashMap<String, String>();
+		m.put("CD4", "CD4 count");
+		m.put("KS", "Kaposis sarcoma side effects worsening while on ARVs?");
+		m.put("TB", "5965"); // TB Tx Status Concept, was giving a duplicate concept warning by name
+		m.put("STAGE", "WHO stage");
+		m.put("TLC", "CD4 percent");
+		m.put("PSHD", "Presumed severe HIV criteria present");
+		return m;
+	}
 
-			Map<Date, Date> datesAtLocation = new LinkedHashMap<Date, Date>();
-			Date currentPeriodStart = null;
-			boolean lastVisitAtLocation = false;
-			for (Date d1 : actualVisits.keySet()) {
-				if (currentPeriodStart == null) {
-					currentPeriodStart = adherencePeriodStart;
+	//***** Cohort data *****
+
+	/**
+	 * @return the non-voided encounters of each patient of the given types (or all types if null), ordered by date
+	 */
+	protected Map<Integer, List<Encounter>> getEncounters(List<EncounterType> types, EvaluationContext context) throws EvaluationException {
+		EncountersForPatientDataDefinition def = new EncountersForPatientDataDefinition();
+		def.setTypes(types);
+		Map<Integer, List<Encounter>> ret = evaluateToLists(def, Encounter.class, context);
+		for (List<Encounter> l : ret.values()) {
+			Collections.sort(l, new Comparator<Encounter>() {
+				public int compare(Encounter e1, Encounter e2) {
+					int ret = e1.getEncounterDatetime().compareTo(e2.getEncounterDatetime());
+					return ret != 0 ? ret : e1.getEncounterId().compareTo(e2.getEncounterId());
 				}
-				lastVisitAtLocation = actualVisits.get(d1);
+			});
+		}
+		return ret;
+	}
 
-				if (lastVisitAtLocation) {
-					datesAtLocation.put(currentPeriodStart, d1);
+	/**
+	 * @return the non-voided obs of each patient for the given concept, most recent first
+	 */
+	protected Map<Integer, List<Obs>> getObs(Concept question, EvaluationContext context) throws EvaluationException {
+		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition();
+		def.setQuestion(question);
+		Map<Integer, List<Obs>> ret = evaluateToLists(new PersonToPatientDataDefinition(def), Obs.class, context);
+		for (List<Obs> l : ret.values()) {
+			Collections.sort(l, new Comparator<Obs>() {
+				public int compare(Obs o1, Obs o2) {
+					int ret = o2.getObsDatetime().compareTo(o1.getObsDatetime());
+					return ret != 0 ? ret : o2.getObsId().compareTo(o1.getObsId());
 				}
-				currentPeriodStart = addDays(d1, 1);
-			}
-			if (lastVisitAtLocation) {
-				datesAtLocation.put(currentPeriodStart, adherencePeriodEnd);
-			}
-
-			int overallDaysAtLocation = 0;
-			int missedDaysAtLocation = 0;
-			int lateApptsAtLocation = 0;
-			int overallApptsAtLocation = 0;
+			});
+		}
+		return ret;
+	}
 
-			for (Map.Entry<Date, Date> e : datesAtLocation.entrySet()) {
-				overallDaysAtLocation += numDaysInRange(e.getKey(), e.getValue());
+	/**
+	 * @return the non-voided enrollments in the program of every patient in the cohort, ordered by enrollment date.
+	 * Every patient has an entry, so that the ProgramHelper does not query the enrollments of those without any.
+	 */
+	protected Map<Integer, List<PatientProgram>> getPatientPrograms(Program program, Cohort cohort, EvaluationContext context) throws EvaluationException {
+		ProgramEnrollmentsForPatientDataDefinition def = new ProgramEnrollmentsForPatientDataDefinition();
+		def.setProgram(program);
+		Map<Integer, List<PatientProgram>> ret = evaluateToLists(def, PatientProgram.class, context);
+		for (Integer pId : cohort.getMemberIds()) {
+			if (!ret.containsKey(pId)) {
+				ret.put(pId, new ArrayList<PatientProgram>());
 			}
-
-			// Iterate across all of the scheduled visit dates that fall within the period
-			for (Date scheduledVisitDate : scheduledVisits) {
-
-				log.debug("Looking at scheduled visit for: " + scheduledVisitDate);
-
-				// Find the actual visit date that is is closest to the scheduled visit date
-				Date closestVisitDate = null;
-				for (Iterator<Date> i = actualVisits.keySet().iterator(); i.hasNext();) {
-					Date actualVisitDate = i.next();
-					if (actualVisitDate.compareTo(scheduledVisitDate) <= 0 || closestVisitDate == null) {
-						closestVisitDate = actualVisitDate;
-						i.remove();
-					}
-				}
-				if (closestVisitDate == null) {
-					closestVisitDate = adherencePeriodEnd;
+		}
+		for (List<PatientProgram> l : ret.values()) {
+			Collections.sort(l, new Comparator<PatientProgram>() {
+				public int compare(PatientProgram pp1, PatientProgram pp2) {
+					int ret = OpenmrsUtil.compareWithNullAsEarliest(pp1.getDateEnrolled(), pp2.getDateEnrolled());
+					return ret != 0 ? ret : pp1.getPatientProgramId().compareTo(pp2.getPatientProgramId());
 				}
+			});
+		}
+		return ret;
+	}
 
-				log.debug("Found closest matching visit of: " + closestVisitDate);
-
-				int daysBetweenScheduledAndActualVisit = daysBetween(scheduledVisitDate, closestVisitDate);
-				daysMissedByScheduledVisitDate.put(scheduledVisitDate, daysBetweenScheduledAndActualVisit);
-
-				// If the patient is "enrolled" at the current location at the visit date, include them for the location
-				for (Map.Entry<Date, Date> e : datesAtLocation.entrySet()) {
-					if (isDateInRange(closestVisitDate, e.getKey(), e.getValue())) {
-						int daysFromDate = daysBetweenScheduledAndActualVisit - 2;
-						if (daysFromDate > 0) {
-							missedDaysAtLocation += daysFromDate;
-							lateApptsAtLocation++;
-						}
-						overallApptsAtLocation++;
-					}
-				}
+	/**
+	 * @return the relationships of the given type in which each patient is either person
+	 */
+	protected Map<Integer, List<Relationship>> getRelationships(RelationshipType type, EvaluationContext context) throws EvaluationException {
+		RelationshipsForPersonDataDefinition def = new RelationshipsForPersonDataDefinition();
+		def.addRelationshipType(type);
+		def.setValuesArePersonA(true);
+		def.setValuesArePersonB(true);
+		return evaluateToLists(new PersonToPatientDataDefinition(def), Relationship.class, context);
+	}
 
-				log.debug("Days missed for this scheduled date: " + daysBetweenScheduledAndActualVisit);
+	protected <T> Map<Integer, List<T>> evaluateToLists(PatientDataDefinition def, Class<T> type, EvaluationContext context) throws EvaluationException {
+		Map<Integer, List<T>> ret = new HashMap<Integer, List<T>>();
+		PatientData data = patientDataService.evaluate(def, context);
+		for (Map.Entry<Integer, Object> e : data.getData().entrySet()) {
+			List<T> l = new ArrayList<T>();
+			if (e.getValue() instanceof Collection) {
+				for (Object o : (Collection) e.getValue()) {
+					l.add(type.cast(o));
+				}
 			}
+			else if (e.getValue() != null) {
+				l.add(type.cast(e.getValue()));
+			}
+			ret.put(e.getKey(), l);
+		}
+		return ret;
+	}
 
-			// First report on overall adherence at the report Location
-			pdh.addCol(row, "LocationDaysMissed", missedDaysAtLocation);
-			pdh.addCol(row, "LocationDaysOverall", overallDaysAtLocation);
-			pdh.addCol(row, "LocationOntimeAppts", (overallApptsAtLocation-lateApptsAtLocation));
-			pdh.addCol(row, "LocationOverallAppts", overallApptsAtLocation);
-
-			// Now look at adherence overall for the patient across all Locations
-
-			Integer adherencePeriodDays = numDaysInRange(adherencePeriodStart, adherencePeriodEnd);
-
-			List<Integer> intervals = new ArrayList<Integer>();
-			intervals.add(null);  // Represents the overall total interval
-			for (int i=90; i<=360; i+=90) {
-				intervals.add(i);  // Every 90 days for first year
+	//***** Patient data *****
+
+	/**
+	 * @return the encounters of the given types (or any type if none are given) from fromDate to toDate inclusive,
+	 * as returned by EncounterService#getEncounters
+	 */
+	protected List<Encounter> getEncounters(List<Encounter> encounters, List<EncounterType> types, Date fromDate, Date toDate) {
+		Set<Integer> typeIds = new HashSet<Integer>();
+		if (types != null) {
+			for (EncounterType type : types) {
+				typeIds.add(type.getEncounterTypeId());
 			}
-			for (int i=180; i<=3600; i+=180) { // Every 180 days for 10 more years
-				intervals.add(i);
+		}
+		List<Encounter> ret = new ArrayList<Encounter>();
+		for (Encounter e : encounters) {
+			if (!typeIds.isEmpty() && !typeIds.contains(e.getEncounterType().getEncounterTypeId())) {
+				continue;
 			}
-
-			for (Integer interval : intervals) {
-
-				if (interval == null || adherencePeriodDays >= interval) {
-
-					int missedDays = 0;
-					int overallDays = (interval != null ? interval : adherencePeriodDays);
-					int lateAppts = 0;
-					int overallAppts = 0;
-
-					for (Date d : daysMissedByScheduledVisitDate.keySet()) {
-						int daysFromStart = daysBetween(adherencePeriodStart, d);
-						if (interval == null || daysFromStart <= interval) {
-							Integer daysFromDate = daysMissedByScheduledVisitDate.get(d) - 2;
-							if (interval != null && (daysFromStart + daysFromDate > interval)) {
-								daysFromDate = interval - daysFromStart;
-							}
-							if (daysFromDate > 0) {
-								missedDays += daysFromDate;
-								lateAppts++;
-							}
-							overallAppts++;
-						}
-					}
-
-					String prefix = (interval == null ? "" : interval + "d");
-					pdh.addCol(row, prefix + "DaysMissed", missedDays);
-					pdh.addCol(row, prefix + "DaysOverall", overallDays);
-					pdh.addCol(row, prefix + "OntimeAppts", (overallAppts-lateAppts));
-					pdh.addCol(row, prefix + "OverallAppts", overallAppts);
-				}
+			if (fromDate != null && e.getEncounterDatetime().before(fromDate)) {
+				continue;
 			}
-
-			dataSet.addRow(row);
+			if (toDate != null && e.getEncounterDatetime().after(toDate)) {
+				continue;
+			}
+			ret.add(e);
 		}
-		return dataSet;
+		return ret;
 	}
 
-	private int daysBetween(Date from, Date to) {
-		return (int)((to.getTime() - from.getTime())/1000/60/60/24);
+	/**
+	 * @return the earliest of the given encounters (ordered by date) at the location, or at any location if null
+	 */
+	protected Encounter getFirstEncounterAtLocation(List<Encounter> encounters, Location location) {
+		for (Encounter e : encounters) {
+			if (location == null || location.equals(e.getLocation())) {
+				return e;
+			}
+		}
+		return null;
 	}
 
-	private int numDaysInRange(Date from, Date to) {
-		int d = daysBetween(DateUtil.getStartOfDay(from), DateUtil.getStartOfDay(to));
-		return d < 0 ? (d-1) : (d+1);
+	/**
+	 * @return the most recent of the given obs (ordered most recent first) on or before toDate (if specified).
+	 * As with ObsService#getObservations, the obs must belong to one of the given encounters, unless none are given.
+	 */
+	protected Obs getLatestObs(List<Obs> obs, List<Encounter> inEncounters, Date toDate) {
+		Set<Integer> encounterIds = new HashSet<Integer>();
+		if (inEncounters != null) {
+			for (Encounter e : inEncounters) {
+				encounterIds.add(e.getEncounterId());
+			}
+		}
+		for (Obs o : obs) {
+			if (toDate != null && o.getObsDatetime().after(toDate)) {
+				continue;
+			}
+			if (!encounterIds.isEmpty() && (o.getEncounter() == null || !encounterIds.contains(o.getEncounter().getEncounterId()))) {
+				continue;
+			}
+			return o;
+		}
+		return null;
 	}
 
-	private Date addDays(Date d, int increment) {
-		Calendar c = Calendar.getInstance();
-		c.setTime(d);
-		c.add(Calendar.DATE, 1);
-		return c.getTime();
+	/**
+	 * @return the full name of person B of the last of the patient's VHW relationships, as PatientDataHelper#vhwName
+	 * does, which lists the relationships in which the patient is person A before those in which they are person B
+	 */
+	protected String getVhwName(final Patient p, List<Relationship> relationships) {
+		List<Relationship> l = new ArrayList<Relationship>(relationships);
+		Collections.sort(l, new Comparator<Relationship>() {
+			public int compare(Relationship r1, Relationship r2) {
+				boolean r1IsPersonA = r1.getPersonA().getPersonId().equals(p.getPatientId());
+				boolean r2IsPersonA = r2.getPersonA().getPersonId().equals(p.getPatientId());
+				if (r1IsPersonA != r2IsPersonA) {
+					return r1IsPersonA ? -1 : 1;
+				}
+				return r1.getRelationshipId().compareTo(r2.getRelationshipId());
+			}
+		});
+		return l.isEmpty() ? "" : l.get(l.size() - 1).getPersonB().getPersonName().getFullName();
 	}
 
-	private boolean isDateInRange(Date dateToCheck, Date lowerBound, Date upperBound) {
-		if (dateToCheck.getTime() >= lowerBound.getTime()) {
-			DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-			if (df.format(dateToCheck).compareTo(df.format(upperBound)) <= 0) {
-				return true;
-			}
-		}
-		return false;
+	private <T> List<T> getList(Map<Integer, List<T>> map, Integer patientId) {
+		List<T> l = (map == null ? null : map.get(patientId));
+		return (l == null ? Collections.<T>emptyList() : l);
 	}
 }
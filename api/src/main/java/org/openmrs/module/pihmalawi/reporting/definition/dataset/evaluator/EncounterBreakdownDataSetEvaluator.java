@@ -15,7 +15,6 @@ package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.User;
@@ -32,17 +31,22 @@ import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Evaluates an EncounterBreakdownDataSetDefinition and produces results
@@ -69,74 +73,71 @@ public class EncounterBreakdownDataSetEvaluator implements DataSetEvaluator {
 
 		EncounterBreakdownDataSetDefinition dsd = (EncounterBreakdownDataSetDefinition) dataSetDefinition;
 
+		// Count the encounters created in each week, by encounter type and by user or location, with a single query
+		boolean groupByUser = (dsd.getGrouping() == EncounterBreakdownDataSetDefinition.Grouping.User);
+		List<EncounterCount> counts = getEncounterCounts(dsd.getEndDate(), dsd.getNumberOfWeeks(), groupByUser, context);
+
 		// Construct the encounter filters to iterate across
-		Map<String, List<EncounterType>> encounterTypeFilters = new LinkedHashMap<String, List<EncounterType>>();
-		List<EncounterType> otherEncounterTypes = Context.getEncounterService().getAllEncounterTypes();
+		Map<String, IdFilter> encounterTypeFilters = new LinkedHashMap<String, IdFilter>();
+		Set<Integer> encounterTypeIds = new HashSet<Integer>();
 		for (int encTypeNum=1; encTypeNum<=dsd.getTypes().size(); encTypeNum++) {
 			EncounterType encounterType = dsd.getTypes().get(encTypeNum-1);
-			encounterTypeFilters.put("enc"+encTypeNum, Arrays.asList(encounterType));
-			otherEncounterTypes.remove(encounterType);
+			encounterTypeFilters.put("enc"+encTypeNum, new IdFilter(encounterType.getEncounterTypeId()));
+			encounterTypeIds.add(encounterType.getEncounterTypeId());
 		}
-		encounterTypeFilters.put("otherenc", otherEncounterTypes);
+		encounterTypeFilters.put("otherenc", IdFilter.allExcept(encounterTypeIds));
 
-		// Construct the user and location filters to iterate across
-		Map<String, List<User>> userFilters = new LinkedHashMap<String, List<User>>();
-		Map<String, List<Location>> locationFilters = new LinkedHashMap<String, List<Location>>();
+		// Construct the user or location filters to iterate across
+		Map<String, IdFilter> groupFilters = new LinkedHashMap<String, IdFilter>();
 
-		if (dsd.getGrouping() == EncounterBreakdownDataSetDefinition.Grouping.User) {
+		if (groupByUser) {
 
 			// Determine what users to iterate across.  Default to top 10, and "other"
-			List<User> mostFrequentUsers = getUsersOrderedByNumEncounters(DateUtil.adjustDate(dsd.getEndDate(), -7*dsd.getNumberOfWeeks(), Calendar.DATE), dsd.getEndDate(), context);
-			List<User> otherUsers = Context.getUserService().getAllUsers();
+			List<User> mostFrequentUsers = getUsersOrderedByNumEncounters(counts);
+			Set<Integer> userIds = new HashSet<Integer>();
 
 			for (int userNum=1; userNum<=mostFrequentUsers.size() && userNum <= 10; userNum++) {
 				User user = mostFrequentUsers.get(userNum - 1);
 				String userKey = "user"+userNum;
-				userFilters.put(userKey, Arrays.asList(user));
-				otherUsers.remove(user);
+				groupFilters.put(userKey, new IdFilter(user.getUserId()));
+				userIds.add(user.getUserId());
 				data.addData(new DataSetColumn(userKey+"name", userKey+"name", String.class), user.getUsername());
 			}
-			userFilters.put("userother", otherUsers);
+			groupFilters.put("userother", IdFilter.allExcept(userIds));
 		}
 		else {
 
 			List<Location> locations = metadata.getSystemLocations();
-			List<Location> otherLocations = Context.getLocationService().getAllLocations();
+			Set<Integer> locationIds = new HashSet<Integer>();
 			for (int locationNum=1; locationNum<=locations.size(); locationNum++) {
 				Location location = locations.get(locationNum - 1);
 				String locationKey = "loc"+locationNum;
-				List<Location> locList = metadata.getAllLocations(location);
-				locationFilters.put(locationKey, locList);
-				otherLocations.removeAll(locList);
+				IdFilter locationFilter = new IdFilter();
+				for (Location l : metadata.getAllLocations(location)) {
+					locationFilter.getIds().add(l.getLocationId());
+				}
+				groupFilters.put(locationKey, locationFilter);
+				locationIds.addAll(locationFilter.getIds());
 				data.addData(new DataSetColumn(locationKey+"name", locationKey+"name", String.class), location.getName());
 			}
-			locationFilters.put("locother", otherLocations);
-
+			groupFilters.put("locother", IdFilter.allExcept(locationIds));
 		}
 
 		// Now, iterate across the product of all of these and add them to the data set
 
-		Date startDate, endDate = null;
-
 		for (int weekNum=0; weekNum<dsd.getNumberOfWeeks(); weekNum++) {
-
-			endDate = (endDate == null ? dsd.getEndDate() : DateUtil.adjustDate(endDate, -7, Calendar.DATE));
-			startDate = DateUtil.adjustDate(endDate, -6, Calendar.DATE);
-
 			for (String encounterTypeKey : encounterTypeFilters.keySet()) {
-
-				List<EncounterType> encounterTypes = encounterTypeFilters.get(encounterTypeKey);
-
-				for (String userKey : userFilters.keySet()) {
-					List<User> users = userFilters.get(userKey);
-					String key = userKey + encounterTypeKey + "ago" + weekNum;
-					addData(data, key, startDate, endDate, encounterTypes, users, null, context);
-				}
-
-				for (String locationKey : locationFilters.keySet()) {
-					List<Location> locations = locationFilters.get(locationKey);
-					String key = locationKey + encounterTypeKey + "ago" + weekNum;
-					addData(data, key, startDate, endDate, encounterTypes, null, locations, context);
+				IdFilter encounterTypeFilter = encounterTypeFilters.get(encounterTypeKey);
+				for (String groupKey : groupFilters.keySet()) {
+					IdFilter groupFilter = groupFilters.get(groupKey);
+					int count = 0;
+					for (EncounterCount c : counts) {
+						if (c.getWeekNum() == weekNum && encounterTypeFilter.matches(c.getEncounterTypeId()) && groupFilter.matches(c.getGroupId())) {
+							count += c.getCount();
+						}
+					}
+					String key = groupKey + encounterTypeKey + "ago" + weekNum;
+					data.addData(new DataSetColumn(key, key, Integer.class), count);
 				}
 			}
 		}
@@ -144,34 +145,127 @@ public class EncounterBreakdownDataSetEvaluator implements DataSetEvaluator {
 		return data;
 	}
 
-	public List<User> getUsersOrderedByNumEncounters(Date startDate, Date endDate, EvaluationContext context) {
+	/**
+	 * Counts the encounters (including voided encounters) created during the numberOfWeeks weeks up to the end date,
+	 * grouped by week, encounter type, and creator or location.  Week 0 runs from 6 days before the end date up to the
+	 * end date, week 1 is the 7 days before that, and so on.  Encounters created from 7 * numberOfWeeks days before the
+	 * end date but outside any of these weeks are counted with a week number of -1, so that the creators can be ranked
+	 * by their number of encounters over that whole period.
+	 */
+	public List<EncounterCount> getEncounterCounts(Date endDate, int numberOfWeeks, boolean groupByUser, EvaluationContext context) {
+		String groupColumn = (groupByUser ? "e.creator" : "e.location_id");
+
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append("select 	case");
+		Date weekEndDate = null;
+		for (int weekNum=0; weekNum<numberOfWeeks; weekNum++) {
+			weekEndDate = (weekEndDate == null ? endDate : DateUtil.adjustDate(weekEndDate, -7, Calendar.DATE));
+			Date weekStartDate = DateUtil.adjustDate(weekEndDate, -6, Calendar.DATE);
+			q.append("when e.date_created >= :week" + weekNum + "Start and e.date_created <= :week" + weekNum + "End then " + weekNum);
+			q.addParameter("week" + weekNum + "Start", weekStartDate);
+			q.addParameter("week" + weekNum + "End", weekEndDate);
+		}
+		q.append("else -1 end as week_num, e.encounter_type, " + groupColumn + ", count(*)");
+		q.append("from 		encounter e");
+		q.append("where 	e.date_created >= :startDate and e.date_created <= :endDate");
+		q.append("group by 	week_num, e.encounter_type, " + groupColumn);
+		q.addParameter("startDate", DateUtil.adjustDate(endDate, -7*numberOfWeeks, Calendar.DATE));
+		q.addParameter("endDate", endDate);
+
+		List<EncounterCount> ret = new ArrayList<EncounterCount>();
+		for (Object[] row : evaluationService.evaluateToList(q, context)) {
+			Integer groupId = (row[2] == null ? null : ((Number) row[2]).intValue());
+			ret.add(new EncounterCount(((Number) row[0]).intValue(), ((Number) row[1]).intValue(), groupId, ((Number) row[3]).intValue()));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the users that created any of the counted encounters, ordered by the number of encounters they created
+	 */
+	public List<User> getUsersOrderedByNumEncounters(List<EncounterCount> counts) {
+		final Map<Integer, Integer> countsByUser = new HashMap<Integer, Integer>();
+		for (EncounterCount c : counts) {
+			Integer existing = countsByUser.get(c.getGroupId());
+			countsByUser.put(c.getGroupId(), (existing == null ? 0 : existing) + c.getCount());
+		}
+		List<Integer> userIds = new ArrayList<Integer>(countsByUser.keySet());
+		userIds.remove(null);
+		Collections.sort(userIds, new Comparator<Integer>() {
+			public int compare(Integer u1, Integer u2) {
+				int ret = countsByUser.get(u2).compareTo(countsByUser.get(u1));
+				return ret != 0 ? ret : u1.compareTo(u2);
+			}
+		});
 		List<User> ret = new ArrayList<User>();
-		HqlQueryBuilder qb = new HqlQueryBuilder();
-		qb.select("e.creator, count(*)");
-		qb.from(Encounter.class, "e");
-		qb.whereGreaterOrEqualTo("e.dateCreated", startDate);
-		qb.whereLessOrEqualTo("e.dateCreated", endDate);
-		qb.groupBy("e.creator");
-		qb.orderDesc("count(*)");
-		for (Object[] row : evaluationService.evaluateToList(qb, context)) {
-			ret.add((User)row[0]);
+		for (Integer userId : userIds) {
+			ret.add(Context.getUserService().getUser(userId));
 		}
 		return ret;
 	}
 
-	public void addData(MapDataSet dataSet, String key, Date startDate, Date endDate, List<EncounterType> encounterTypes, List<User> users, List<Location> locations, EvaluationContext context) {
+	/**
+	 * The number of encounters created in a week with a given encounter type and creator or location
+	 */
+	public static class EncounterCount {
+
+		private int weekNum;
+		private Integer encounterTypeId;
+		private Integer groupId;
+		private int count;
+
+		public EncounterCount(int weekNum, Integer encounterTypeId, Integer groupId, int count) {
+			this.weekNum = weekNum;
+			this.encounterTypeId = encounterTypeId;
+			this.groupId = groupId;
+			this.count = count;
+		}
+
+		public int getWeekNum() {
+			return weekNum;
+		}
+
+		public Integer getEncounterTypeId() {
+			return encounterTypeId;
+		}
+
+		public Integer getGroupId() {
+			return groupId;
+		}
+
+		public int getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Matches either the given ids, or any id other than the given ids
+	 */
+	private static class IdFilter {
+
+		private Set<Integer> ids = new HashSet<Integer>();
+		private boolean allExcept = false;
+
+		public IdFilter(Integer... ids) {
+			this.ids.addAll(Arrays.asList(ids));
+		}
+
+		public static IdFilter allExcept(Set<Integer> ids) {
+			IdFilter f = new IdFilter();
+			f.ids.addAll(ids);
+			f.allExcept = true;
+			return f;
+		}
 
-		HqlQueryBuilder qb = new HqlQueryBuilder();
-		qb.select("e.encounterId");
-		qb.from(Encounter.class, "e");
-		qb.whereGreaterOrEqualTo("e.dateCreated", startDate);
-		qb.whereLessOrEqualTo("e.dateCreated", endDate);
-		qb.whereIn("e.encounterType", encounterTypes);
-		qb.whereIn("e.creator", users);
-		qb.whereIn("e.location", locations);
+		public Set<Integer> getIds() {
+			return ids;
+		}
 
-		List<Integer> matchingEncounters = evaluationService.evaluateToList(qb, Integer.class, context);
-		DataSetColumn column = new DataSetColumn(key, key, Integer.class);
-		dataSet.addData(column, matchingEncounters.size());
+		public boolean matches(Integer id) {
+			if (allExcept) {
+				return id != null && !ids.contains(id);
+			}
+			return ids.contains(id);
+		}
 	}
 }
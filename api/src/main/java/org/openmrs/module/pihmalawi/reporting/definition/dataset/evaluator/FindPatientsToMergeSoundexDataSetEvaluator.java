@@ -1,16 +1,17 @@
 package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.PatientState;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.common.DuplicatePatientIndex;
 import org.openmrs.module.pihmalawi.common.ProgramHelper;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.FindPatientsToMergeSoundexDataSetDefinition;
 import org.openmrs.module.reporting.cohort.CohortUtil;
@@ -26,14 +27,16 @@ import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 
+import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 @Handler(supports = { FindPatientsToMergeSoundexDataSetDefinition.class })
 public class FindPatientsToMergeSoundexDataSetEvaluator implements DataSetEvaluator {
@@ -58,64 +61,60 @@ public class FindPatientsToMergeSoundexDataSetEvaluator implements DataSetEvalua
 			CohortUtil.limitCohort(cohort, context.getLimit());
 		}
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(" select pn2.person_id, person2.gender ");
-        sb.append(" from person_name_code p1, person_name_code p2, person_name pn1, person_name pn2, person person2, patient patient2 ");
-        sb.append(" where pn1.person_id <> pn2.person_id and ");
-        sb.append(" and pn2.person_id = person2.person_id"); // This allows us to get gender in sql, rather than getting the full object later
-        sb.append(" and person2.person_id = patient2.person_id"); // This allows us to ensure the person is a patient
-        if (dsds.isSwapFirstLastName()) {
-            sb.append("p1.family_name_code = p2.given_name_code and p1.given_name_code = p2.family_name_code ");
-        } else {
-            sb.append("p1.given_name_code = p2.given_name_code and p1.family_name_code = p2.family_name_code ");
-        }
-        sb.append(" and pn1.person_id not in (select user_id from users) and pn2.person_id not in (select user_id from users) ");
-        sb.append(" and pn2.person_id in (:personIds)");
-        sb.append(" and pn1.person_name_id=p1.person_name_id and pn2.person_name_id=p2.person_name_id and pn1.person_id=:referenceId ;");
-        String query = sb.toString();
+		DuplicatePatientIndex index = getDuplicatePatientIndex();
 
 		Set<Integer> memberIds = cohort.getMemberIds();
 		if (dsds.getEncounterTypesToLookForDuplicates() != null) {
 
 			CohortQueryService cqs = Context.getService(CohortQueryService.class);
 			memberIds = cqs.getPatientsHavingEncounters(null, null, null, dsds.getEncounterTypesToLookForDuplicates(), null, null, null).getMemberIds();
-			Set<Integer> memberIdsWithoutIdentifierType = new HashSet<Integer>();
-			
+
 			if (dsds.getPatientIdentifierTypeRequiredToLookForDuplicates() != null) {
-				for (Integer id : memberIds) {
-					if (Context.getPatientService().getPatient(id).getPatientIdentifier(dsds.getPatientIdentifierTypeRequiredToLookForDuplicates()) == null) {
-						memberIdsWithoutIdentifierType.add(id);
-					}
-				}
 				// mkae sure to exclude all patients without any hcc number
-				memberIds.removeAll(memberIdsWithoutIdentifierType);
+				memberIds.retainAll(getPatientsWithIdentifierType(dsds.getPatientIdentifierTypeRequiredToLookForDuplicates()));
 			}
 			// make sure the sets are disjunct
 			memberIds.removeAll(cohort.getMemberIds());
 		}
 
-		List<Patient> patients = Context.getPatientSetService().getPatients(cohort.getMemberIds());
+		// Find the matches for every patient before loading only those patients that have any
+		Map<Integer, List<DuplicatePatientIndex.Match>> matchesByPatient = new LinkedHashMap<Integer, List<DuplicatePatientIndex.Match>>();
+		Set<Integer> patientIdsToLoad = new HashSet<Integer>();
+		for (Integer pId : new TreeSet<Integer>(cohort.getMemberIds())) {
+			List<DuplicatePatientIndex.Match> matches = index.findMatches(pId, dsds.isSwapFirstLastName(), memberIds);
+			if (!matches.isEmpty()) {
+				matchesByPatient.put(pId, matches);
+				patientIdsToLoad.add(pId);
+				for (DuplicatePatientIndex.Match match : matches) {
+					patientIdsToLoad.add(match.getPatientId());
+				}
+			}
+		}
+
+		Map<Integer, Patient> patients = new HashMap<Integer, Patient>();
+		for (Patient p : Context.getPatientSetService().getPatients(patientIdsToLoad)) {
+			patients.put(p.getPatientId(), p);
+		}
+		ProgramHelper programHelper = ProgramHelper.forPatients(patientIdsToLoad);
 
-		for (Patient p : patients) {
+		for (Map.Entry<Integer, List<DuplicatePatientIndex.Match>> e : matchesByPatient.entrySet()) {
+			Patient p = patients.get(e.getKey());
 			DataSetRow row = new DataSetRow();
 			DataSetColumn col;
 			try {
-				Collection<Patient> ps = soundexMatches(query, p, memberIds);
-				if (!ps.isEmpty()) {
-					col = new DataSetColumn("#", "#", String.class);
-					row.addColumnValue(col, linkifyId(p, dsds.getEncounterTypesForSummary(), dsds.getProgramWorkflowForSummary()));
-					int i = 1;
-					for (Patient potential : ps) {
-						col = new DataSetColumn("potential match_" + i, "potential match_" + i, String.class);
-						row.addColumnValue(col, linkifyMerge(p, potential, dsds.getEncounterTypesForSummary(), dsds.getProgramWorkflowForSummary()));
-						i++;
-					}
-					dataSet.addRow(row);
+				col = new DataSetColumn("#", "#", String.class);
+				row.addColumnValue(col, linkifyId(p, dsds.getEncounterTypesForSummary(), dsds.getProgramWorkflowForSummary(), programHelper));
+				int i = 1;
+				for (DuplicatePatientIndex.Match match : e.getValue()) {
+					col = new DataSetColumn("potential match_" + i, "potential match_" + i, String.class);
+					row.addColumnValue(col, linkifyMerge(p, patients.get(match.getPatientId()), match.getScore(), dsds.getEncounterTypesForSummary(), dsds.getProgramWorkflowForSummary(), programHelper));
+					i++;
 				}
+				dataSet.addRow(row);
 			}
             catch (Throwable t) {
 				col = new DataSetColumn("Error", "Error", String.class);
-				row.addColumnValue(col, "Error while loading patient " + p.getId());
+				row.addColumnValue(col, "Error while loading patient " + e.getKey());
 				dataSet.addRow(row);
 			}
 		}
@@ -123,52 +122,67 @@ public class FindPatientsToMergeSoundexDataSetEvaluator implements DataSetEvalua
 		return dataSet;
 	}
 
-	private Collection<Patient> soundexMatches(String query, Patient referencePatient, Set<Integer> cohortOfPatients) {
-        Map<Integer, Patient> potentialDuplicates = new HashMap<Integer, Patient>();
-
-        SqlQueryBuilder qb = new SqlQueryBuilder(query);
-        qb.addParameter("referenceId", referencePatient.getId());
-        qb.addParameter("personIds", cohortOfPatients);
-
-        EvaluationService evaluationService = Context.getService(EvaluationService.class);
-        Map<Integer, String> m = evaluationService.evaluateToMap(qb, Integer.class, String.class, new EvaluationContext());
+	/**
+	 * @return an index of the soundex codes of the non-voided names of all patients that are not users, loaded with a single query
+	 */
+	private DuplicatePatientIndex getDuplicatePatientIndex() {
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append("select 	pn.person_id, pn.given_name, pn.family_name, c.given_name_code, c.family_name_code, p.gender, p.birthdate");
+		q.append("from 		person_name_code c, person_name pn, person p, patient pt");
+		q.append("where 	c.person_name_id = pn.person_name_id and pn.person_id = p.person_id and p.person_id = pt.patient_id");
+		q.append("and		pn.voided = 0 and p.voided = 0 and pt.voided = 0");
+		q.append("and		p.person_id not in (select person_id from users)");
+
+		DuplicatePatientIndex index = new DuplicatePatientIndex();
+		for (Object[] row : getEvaluationService().evaluateToList(q, new EvaluationContext())) {
+			index.addName((Integer) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4], (String) row[5], (Date) row[6]);
+		}
+		return index;
+	}
 
-        for (Integer pId : m.keySet()) {
-            String gender = m.get(pId);
-            String referenceGender= referencePatient.getGender();
-            if (StringUtils.isEmpty(gender) || StringUtils.isEmpty(referenceGender) || gender.equalsIgnoreCase(referenceGender)) {
-                potentialDuplicates.put(pId, Context.getPatientService().getPatient(pId));
-            }
-        }
+	/**
+	 * @return the patients with a non-voided identifier of the given type, loaded with a single query
+	 */
+	private Set<Integer> getPatientsWithIdentifierType(PatientIdentifierType type) {
+		SqlQueryBuilder q = new SqlQueryBuilder();
+		q.append("select 	distinct i.patient_id");
+		q.append("from 		patient_identifier i");
+		q.append("where 	i.voided = 0");
+		q.append("and		i.identifier_type = :identifierType");
+		q.addParameter("identifierType", type.getPatientIdentifierTypeId());
+		return new HashSet<Integer>(getEvaluationService().evaluateToList(q, Integer.class, new EvaluationContext()));
+	}
 
-		return potentialDuplicates.values();
+	private EvaluationService getEvaluationService() {
+		return Context.getService(EvaluationService.class);
 	}
 
-	private String linkifyId(Patient p, List<EncounterType> encounterTypes, ProgramWorkflow pw) {
+	private String linkifyId(Patient p, List<EncounterType> encounterTypes, ProgramWorkflow pw, ProgramHelper programHelper) {
 		return "<a href=" + OPENMRS_SERVER
 				+ "/openmrs/patientDashboard.form?patientId=" + p.getId() + ">"
 				+ p.getGivenName() + " " + p.getFamilyName() + "</a>"
 				+ "<br/>" + p.getGender() + ", " + p.getAge() + ", " + currentVillage(p) 
 				+ "<br/>" + firstLastEncounter(p, encounterTypes)
-				+ "<br/>" + currentOutcome(p, pw);
+				+ "<br/>" + currentOutcome(p, pw, programHelper);
 	}
 
 	private String currentVillage(Patient p) {
 		return p.getAddresses().iterator().next().getCityVillage();
 	}
 
-	private String linkifyMerge(Patient p, Patient p2, List<EncounterType> encounterTypes, ProgramWorkflow pw) {
+	private String linkifyMerge(Patient p, Patient p2, double score, List<EncounterType> encounterTypes, ProgramWorkflow pw, ProgramHelper programHelper) {
 		return "<a href=" + OPENMRS_SERVER
 				+ "/openmrs/admin/patients/mergePatients.form?patientId="
 				+ p2.getId() + "&patientId=" + p.getId() + ">"
 				+ p2.getGivenName() + " " + p2.getFamilyName() + "</a>"
 				+ "<br/>" + p2.getGender() + ", " + p2.getAge() + ", " + currentVillage(p2) 
 				+ "<br/>" + firstLastEncounter(p2, encounterTypes)
-				+ "<br/>" + currentOutcome(p2, pw);
+				+ "<br/>" + currentOutcome(p2, pw, programHelper)
+				+ "<br/>Similarity: " + new DecimalFormat("0.00").format(score);
 	}
 
-	private String currentOutcome(Patient p, ProgramWorkflow pw) {
-		PatientState ps = new ProgramHelper().getMostRecentStateAtDate(p, pw, new Date());
+	private String currentOutcome(Patient p, ProgramWorkflow pw, ProgramHelper programHelper) {
+		PatientState ps = programHelper.getMostRecentStateAtDate(p, pw, new Date());
 		if (ps != null) {
 			return ps.getState().getConcept().getName() + "@" + (ps.getEndDate() == null ? formatDate(ps.getStartDate()) : formatDate(ps.getEndDate())); 
 		}
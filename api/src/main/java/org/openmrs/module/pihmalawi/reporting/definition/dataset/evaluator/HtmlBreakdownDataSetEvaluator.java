@@ -67,6 +67,9 @@ public class HtmlBreakdownDataSetEvaluator implements DataSetEvaluator {
 		// framework!
 		sortByIdentifier(patients, dsd.getPatientIdentifierType(), locationParameter);
 
+		// load the data of all patients with a few queries, rather than several for each row
+		renderer.prefetch(cohort.getMemberIds());
+
 		for (Patient p : patients) {
 			dataSet.addRow(renderer.renderRow(p, dsd.getPatientIdentifierType(), locationParameter, startDateParameter, endDateParameter));
 		}
@@ -17,6 +17,8 @@ import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Location;
 import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
 import org.openmrs.module.pihmalawi.metadata.group.ChronicCareTreatmentGroup;
 import org.openmrs.module.pihmalawi.metadata.group.TreatmentGroup;
@@ -26,6 +28,7 @@ import org.openmrs.module.pihmalawi.reporting.library.BaseEncounterDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.ChronicCarePatientDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.pihmalawi.sql.CohortResultCache;
 import org.openmrs.module.reporting.ReportingConstants;
 import org.openmrs.module.reporting.cohort.definition.BaseObsCohortDefinition.TimeModifier;
 import org.openmrs.module.reporting.cohort.definition.CodedObsCohortDefinition;
@@ -40,6 +43,7 @@ import org.openmrs.module.reporting.data.encounter.definition.PatientToEncounter
 import org.openmrs.module.reporting.data.encounter.library.BuiltInEncounterDataLibrary;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataSetDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.PatientIdDataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.StaticValuePatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.library.BuiltInPatientDataLibrary;
 import org.openmrs.module.reporting.dataset.DataSet;
@@ -58,8 +62,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Handler(supports={MissedAppointmentDataSetDefinition.class})
 public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
@@ -76,6 +89,9 @@ public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
 	@Autowired
 	private CohortDefinitionService cohortDefinitionService;
 
+	@Autowired
+	private CohortResultCache cohortResultCache;
+
 	@Autowired
 	private DataSetDefinitionService dataSetDefinitionService;
 
@@ -91,6 +107,16 @@ public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
 	@Autowired
 	private BaseEncounterDataLibrary baseEncounterData;
 
+	/**
+	 * The maximum number of cohorts to evaluate at once
+	 */
+	public static final int MAX_THREADS = 4;
+
+	/**
+	 * The column holding the patient id in the patient data evaluated for all indicators, by which it is split
+	 */
+	private static final String PATIENT_ID_COLUMN = "patientId";
+
 	@Override
 	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) throws EvaluationException {
 		MissedAppointmentDataSetDefinition dsd = (MissedAppointmentDataSetDefinition) dataSetDefinition;
@@ -99,149 +125,362 @@ public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
 		TreatmentGroup treatmentGroup = dsd.getTreatmentGroup();
 		Map<Location, String> locationCodes = metadata.getLocationShortNames();
 
-		for (Location location : dsd.getLocations()) {
-			String locationCode = locationCodes.get(location);
+		// Only include previous weeks for overview report
+		List<Integer> weeksAgo = new ArrayList<Integer>();
+		for (int i = 0; i < (dsd.getMode() == Mode.OVERVIEW ? 3 : 1); i++) {
+			weeksAgo.add(i);
+		}
 
-			DataSetRow row = new DataSetRow();
-			row.addColumnValue(new DataSetColumn("location", "Location", String.class), location.getName());
+		List<Indicator> indicators = new ArrayList<Indicator>();
 
-			// All modes except for patients over 3 weeks late include patients with no appointment
-			if (dsd.getMode() != Mode.MORE_THAN_3_WEEKS_LATE) {
-				for (int i = 0; i < 3; i++) {
-					if (dsd.getMode() == Mode.OVERVIEW || i == 0) {  // Only include previous weeks for overview report
-						Date endDate = DateUtil.adjustDate(dsd.getEndDate(), -1 * i, DurationUnit.WEEKS);
+		// All modes except for patients over 3 weeks late include patients with no appointment
+		if (dsd.getMode() != Mode.MORE_THAN_3_WEEKS_LATE) {
+			for (Integer i : weeksAgo) {
+				CodedObsCohortDefinition noAppt = new CodedObsCohortDefinition();
+				noAppt.setTimeModifier(TimeModifier.NO);
+				noAppt.setQuestion(metadata.getAppointmentDateConcept());
+				noAppt.setEncounterTypeList(treatmentGroup.getEncounterTypes());
+				noAppt.setOnOrBefore(getEndDate(dsd, i));
 
-						EvaluationContext childContext = context.shallowCopy();
-						childContext.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), endDate);
-						childContext.addParameterValue(ReportingConstants.LOCATION_PARAMETER.getName(), location);
+				String key = "noapp" + (i > 0 ? i : "");
+				String label = "No appointment" + (i == 1 ? " 1 week ago" : (i > 1 ? " " + i + " weeks ago" : ""));
+				indicators.add(new Indicator(key, label, i, noAppt, true));
+			}
+		}
 
-						CodedObsCohortDefinition noAppt = new CodedObsCohortDefinition();
-						noAppt.setTimeModifier(TimeModifier.NO);
-						noAppt.setQuestion(metadata.getAppointmentDateConcept());
-						noAppt.setEncounterTypeList(treatmentGroup.getEncounterTypes());
-						noAppt.setOnOrBefore(endDate);
+		List<Integer[]> weekRangesToInclude = new ArrayList<Integer[]>();
+		if (dsd.getMode() == Mode.OVERVIEW || dsd.getMode() == Mode.BETWEEN_2_AND_3_WEEKS_LATE) {
+			weekRangesToInclude.add(new Integer[]{2, 3});
+		}
+		if (dsd.getMode() == Mode.MORE_THAN_A_WEEK_LATE) {
+			weekRangesToInclude.add(new Integer[]{1, null});
+		}
+		if (dsd.getMode() == Mode.OVERVIEW || dsd.getMode() == Mode.MORE_THAN_3_WEEKS_LATE) {
+			weekRangesToInclude.add(new Integer[]{3, 8});
+			weekRangesToInclude.add(new Integer[]{8, 12});
+			weekRangesToInclude.add(new Integer[]{12, null});
+		}
 
-						CohortDefinition indicatorCohort = df.getPatientsInAll(dsd.getBaseCohort(), noAppt);
+		// Missed appointment.  Include missed by 2-3 weeks, 3-8 weeks, 8-12 weeks, and 12 weeks+.  Include data as of endDate, 1 week prior, 2 weeks prior
+		for (Integer[] weekRange : weekRangesToInclude) {
+			for (Integer i : weeksAgo) {
+				Concept apptDate = metadata.getAppointmentDateConcept();
+				String olderThan = weekRange[0] + "w";
+				String onOrPriorTo = weekRange[1] == null ? null : (weekRange[1] + "w");
+				CohortDefinition lastApptInRange = df.getPatientsWhoseMostRecentObsDateIsBetweenValuesByEndDate(apptDate, treatmentGroup.getEncounterTypes(), olderThan, onOrPriorTo);
+
+				String key = olderThan + "msd" + (i > 0 ? i : "");
+				String label = "Missed appointment >" + weekRange[0] + (weekRange[1] == null ? "" : " <=" + weekRange[1]) + " weeks " + (i == 1 ? "1 week ago" : (i > 1 ? i + " weeks ago" : ""));
+				indicators.add(new Indicator(key, label, i, lastApptInRange, false));
+			}
+		}
 
-						String key = "noapp" + (i > 0 ? i : "");
-						String label = "No appointment" + (i == 1 ? " 1 week ago" : (i > 1 ? " " + i + " weeks ago" : ""));
+		// Evaluate the base cohort once for each location and end date, and each indicator once for all locations together
+		Map<Location, Map<Integer, Cohort>> baseCohorts = new HashMap<Location, Map<Integer, Cohort>>();
+		Map<Indicator, Cohort> indicatorCohorts = new HashMap<Indicator, Cohort>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+		try {
+			Map<Location, Map<Integer, Future<Cohort>>> baseFutures = new LinkedHashMap<Location, Map<Integer, Future<Cohort>>>();
+			for (Location location : dsd.getLocations()) {
+				baseFutures.put(location, new HashMap<Integer, Future<Cohort>>());
+				for (Integer i : weeksAgo) {
+					EvaluationContext childContext = getChildContext(dsd, context, i, location);
+					baseFutures.get(location).put(i, evaluateInBackground(executor, dsd.getBaseCohort(), childContext));
+				}
+			}
 
-						if (dsd.getMode() == Mode.OVERVIEW) { // Overview mode only shows the indicator number
-							Cohort base = cohortDefinitionService.evaluate(dsd.getBaseCohort(), childContext);
-							row.addColumnValue(new DataSetColumn("base" + (i > 0 ? i : ""), "base" + (i > 0 ? i : ""), Cohort.class), base);
-							Cohort c = cohortDefinitionService.evaluate(indicatorCohort, childContext);
-							row.addColumnValue(new DataSetColumn(key, label, Cohort.class), c);
-						}
-						else {
-							DataSet patientDataSet = getPatientDataSet(indicatorCohort, treatmentGroup, childContext);
-							row.addColumnValue(new DataSetColumn(key + locationCode, label + " (" + location.getName() + ")", DataSet.class), patientDataSet);
-						}
+			Map<Integer, Set<Integer>> baseForAllLocations = new HashMap<Integer, Set<Integer>>();
+			for (Location location : baseFutures.keySet()) {
+				baseCohorts.put(location, new HashMap<Integer, Cohort>());
+				for (Integer i : weeksAgo) {
+					Cohort base = getResult(baseFutures.get(location).get(i));
+					baseCohorts.get(location).put(i, base);
+					if (!baseForAllLocations.containsKey(i)) {
+						baseForAllLocations.put(i, new HashSet<Integer>());
 					}
+					baseForAllLocations.get(i).addAll(base.getMemberIds());
 				}
 			}
 
-			List<Integer[]> weekRangesToInclude = new ArrayList<Integer[]>();
-			if (dsd.getMode() == Mode.OVERVIEW || dsd.getMode() == Mode.BETWEEN_2_AND_3_WEEKS_LATE) {
-				weekRangesToInclude.add(new Integer[]{2, 3});
+			Map<Indicator, Future<Cohort>> indicatorFutures = new LinkedHashMap<Indicator, Future<Cohort>>();
+			for (Indicator indicator : indicators) {
+				EvaluationContext childContext = getChildContext(dsd, context, indicator.getWeeksAgo(), null);
+				childContext.setBaseCohort(new Cohort(baseForAllLocations.get(indicator.getWeeksAgo())));
+				indicatorFutures.put(indicator, evaluateInBackground(executor, indicator.getDefinition(), childContext));
 			}
-			if (dsd.getMode() == Mode.MORE_THAN_A_WEEK_LATE) {
-				weekRangesToInclude.add(new Integer[]{1, null});
+			for (Indicator indicator : indicatorFutures.keySet()) {
+				indicatorCohorts.put(indicator, getResult(indicatorFutures.get(indicator)));
 			}
-			if (dsd.getMode() == Mode.OVERVIEW || dsd.getMode() == Mode.MORE_THAN_3_WEEKS_LATE) {
-				weekRangesToInclude.add(new Integer[]{3, 8});
-				weekRangesToInclude.add(new Integer[]{8, 12});
-				weekRangesToInclude.add(new Integer[]{12, null});
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Map<Location, Map<Indicator, Cohort>> cohorts = new LinkedHashMap<Location, Map<Indicator, Cohort>>();
+		for (Location location : dsd.getLocations()) {
+			cohorts.put(location, new LinkedHashMap<Indicator, Cohort>());
+			for (Indicator indicator : indicators) {
+				Cohort base = baseCohorts.get(location).get(indicator.getWeeksAgo());
+				cohorts.get(location).put(indicator, Cohort.intersect(base, indicatorCohorts.get(indicator)));
 			}
+		}
 
-			// Missed appointment.  Include missed by 2-3 weeks, 3-8 weeks, 8-12 weeks, and 12 weeks+.  Include data as of endDate, 1 week prior, 2 weeks prior
-			for (Integer[] weekRange : weekRangesToInclude) {
-				for (int i = 0; i < 3; i++) {
-					if (dsd.getMode() == Mode.OVERVIEW || i == 0) {  // Only include previous weeks for overview report
-						Date endDate = DateUtil.adjustDate(dsd.getEndDate(), -1 * i, DurationUnit.WEEKS);
+		Map<Location, Map<Indicator, DataSet>> patientDataSets = null;
+		if (dsd.getMode() != Mode.OVERVIEW) {
+			patientDataSets = getPatientDataSets(dsd, cohorts, context);
+		}
 
-						EvaluationContext childContext = context.shallowCopy();
-						childContext.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), endDate);
-						childContext.addParameterValue(ReportingConstants.LOCATION_PARAMETER.getName(), location);
+		for (Location location : dsd.getLocations()) {
+			String locationCode = locationCodes.get(location);
 
-						Concept apptDate = metadata.getAppointmentDateConcept();
-						String olderThan = weekRange[0] + "w";
-						String onOrPriorTo = weekRange[1] == null ? null : (weekRange[1] + "w");
-						CohortDefinition lastApptInRange = df.getPatientsWhoseMostRecentObsDateIsBetweenValuesByEndDate(apptDate, treatmentGroup.getEncounterTypes(), olderThan, onOrPriorTo);
+			DataSetRow row = new DataSetRow();
+			row.addColumnValue(new DataSetColumn("location", "Location", String.class), location.getName());
 
-						CohortDefinition indicatorCohort = df.getPatientsInAll(dsd.getBaseCohort(), lastApptInRange);
+			for (Indicator indicator : indicators) {
+				int i = indicator.getWeeksAgo();
+				if (dsd.getMode() == Mode.OVERVIEW) { // Overview mode only shows the indicator number
+					if (indicator.isIncludeBase()) {
+						Cohort base = baseCohorts.get(location).get(i);
+						row.addColumnValue(new DataSetColumn("base" + (i > 0 ? i : ""), "base" + (i > 0 ? i : ""), Cohort.class), base);
+					}
+					row.addColumnValue(new DataSetColumn(indicator.getKey(), indicator.getLabel(), Cohort.class), cohorts.get(location).get(indicator));
+				}
+				else {
+					DataSet patientDataSet = patientDataSets.get(location).get(indicator);
+					row.addColumnValue(new DataSetColumn(indicator.getKey() + locationCode, indicator.getLabel() + " (" + location.getName() + ")", DataSet.class), patientDataSet);
+				}
+			}
 
-						String key = olderThan + "msd" + (i > 0 ? i : "");
-						String label = "Missed appointment >" + weekRange[0] + (weekRange[1] == null ? "" : " <=" + weekRange[1]) + " weeks " + (i == 1 ? "1 week ago" : (i > 1 ? i + " weeks ago" : ""));
+			dataSet.addRow(row);
+		}
 
-						if (dsd.getMode() == Mode.OVERVIEW) { // Overview mode only shows the indicator number
-							Cohort c = cohortDefinitionService.evaluate(indicatorCohort, childContext);
-							row.addColumnValue(new DataSetColumn(key, label, Cohort.class), c);
-						}
-						else {
-							DataSet patientDataSet = getPatientDataSet(indicatorCohort, treatmentGroup, childContext);
-							row.addColumnValue(new DataSetColumn(key + locationCode, label + " (" + location.getName() + ")", DataSet.class), patientDataSet);
+		return dataSet;
+	}
+
+	protected Date getEndDate(MissedAppointmentDataSetDefinition dsd, int weeksAgo) {
+		return DateUtil.adjustDate(dsd.getEndDate(), -1 * weeksAgo, DurationUnit.WEEKS);
+	}
+
+	/**
+	 * @return a copy of the context as of the given number of weeks before the end date, with its own cache so that
+	 * it can be evaluated independently of other contexts
+	 */
+	protected EvaluationContext getChildContext(MissedAppointmentDataSetDefinition dsd, EvaluationContext context, int weeksAgo, Location location) {
+		EvaluationContext childContext = context.shallowCopy();
+		childContext.setCache(new HashMap<String, Object>());
+		childContext.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), getEndDate(dsd, weeksAgo));
+		if (location != null) {
+			childContext.addParameterValue(ReportingConstants.LOCATION_PARAMETER.getName(), location);
+		}
+		return childContext;
+	}
+
+	/**
+	 * Evaluates the cohort definition on the executor, in a session of its own with the current user, reusing any
+	 * result for it in the cohort cache
+	 */
+	protected Future<Cohort> evaluateInBackground(ExecutorService executor, final CohortDefinition definition, final EvaluationContext context) {
+		final UserContext userContext = Context.getUserContext();
+		return executor.submit(new Callable<Cohort>() {
+			public Cohort call() throws Exception {
+				Context.openSession();
+				try {
+					Context.setUserContext(userContext);
+					return cohortResultCache.evaluate(definition, context);
+				}
+				finally {
+					Context.closeSession();
+				}
+			}
+		});
+	}
+
+	protected Cohort getResult(Future<Cohort> future) throws EvaluationException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EvaluationException("Interrupted while evaluating missed appointment cohorts", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof EvaluationException) {
+				throw (EvaluationException) e.getCause();
+			}
+			throw new EvaluationException("Unable to evaluate missed appointment cohort", e.getCause());
+		}
+	}
+
+	/**
+	 * Evaluates the patient data of all of the given cohorts together, and splits it into a data set for each location
+	 * and indicator.  Columns that depend on the location, and the identifier that the rows are sorted by, are
+	 * evaluated once for each location over all of the patients in its cohorts.  All other columns are evaluated once
+	 * over the patients of every location.
+	 */
+	protected Map<Location, Map<Indicator, DataSet>> getPatientDataSets(MissedAppointmentDataSetDefinition dsd, Map<Location, Map<Indicator, Cohort>> cohorts, EvaluationContext context) throws EvaluationException {
+		TreatmentGroup treatmentGroup = dsd.getTreatmentGroup();
+		String sortColumn = treatmentGroup.getIdentifierTypeShortName();
+
+		Map<String, PatientDataDefinition> columns = getPatientDataColumns(treatmentGroup);
+		Map<String, PatientDataDefinition> commonColumns = new LinkedHashMap<String, PatientDataDefinition>();
+		Map<String, PatientDataDefinition> locationColumns = new LinkedHashMap<String, PatientDataDefinition>();
+		for (Map.Entry<String, PatientDataDefinition> e : columns.entrySet()) {
+			if (e.getKey().equals(sortColumn) || e.getValue().getParameter(ReportingConstants.LOCATION_PARAMETER.getName()) != null) {
+				locationColumns.put(e.getKey(), e.getValue());
+			}
+			else {
+				commonColumns.put(e.getKey(), e.getValue());
+			}
+		}
+
+		Map<Integer, Set<Integer>> allPatients = new HashMap<Integer, Set<Integer>>();
+		for (Map<Indicator, Cohort> locationCohorts : cohorts.values()) {
+			addPatients(allPatients, locationCohorts);
+		}
+		Map<Integer, DataSet> commonData = new HashMap<Integer, DataSet>();
+		for (Integer i : allPatients.keySet()) {
+			EvaluationContext childContext = getChildContext(dsd, context, i, null);
+			commonData.put(i, evaluatePatientData(commonColumns, null, allPatients.get(i), childContext));
+		}
+
+		Map<Location, Map<Indicator, DataSet>> ret = new HashMap<Location, Map<Indicator, DataSet>>();
+		for (Location location : cohorts.keySet()) {
+			ret.put(location, new HashMap<Indicator, DataSet>());
+			Map<Integer, Set<Integer>> locationPatients = new HashMap<Integer, Set<Integer>>();
+			addPatients(locationPatients, cohorts.get(location));
+			for (Integer i : locationPatients.keySet()) {
+				EvaluationContext childContext = getChildContext(dsd, context, i, location);
+				DataSet locationData = evaluatePatientData(locationColumns, sortColumn, locationPatients.get(i), childContext);
+				Map<Integer, DataSetRow> commonRows = getRowsByPatient(commonData.get(i));
+				Map<Integer, DataSetRow> locationRows = getRowsByPatient(locationData);
+
+				List<DataSetColumn> allColumns = new ArrayList<DataSetColumn>();
+				for (String column : columns.keySet()) {
+					DataSet from = (locationColumns.containsKey(column) ? locationData : commonData.get(i));
+					allColumns.add(from.getMetaData().getColumn(column));
+				}
+
+				for (Map.Entry<Indicator, Cohort> e : cohorts.get(location).entrySet()) {
+					if (e.getKey().getWeeksAgo() != i) {
+						continue;
+					}
+					SimpleDataSet patientDataSet = new SimpleDataSet(getPatientDataSetDefinition(), childContext);
+					for (DataSetColumn column : allColumns) {
+						patientDataSet.getMetaData().addColumn(column);
+					}
+					for (Integer patientId : locationRows.keySet()) {
+						if (e.getValue().contains(patientId)) {
+							DataSetRow row = new DataSetRow();
+							for (DataSetColumn column : allColumns) {
+								DataSetRow from = (locationColumns.containsKey(column.getName()) ? locationRows : commonRows).get(patientId);
+								row.addColumnValue(column, from.getColumnValue(column));
+							}
+							patientDataSet.addRow(row);
 						}
 					}
+					ret.get(location).put(e.getKey(), patientDataSet);
 				}
 			}
+		}
+		return ret;
+	}
 
-			dataSet.addRow(row);
+	/**
+	 * Adds the members of each of the given cohorts to the patients as of the number of weeks ago of its indicator
+	 */
+	protected void addPatients(Map<Integer, Set<Integer>> patients, Map<Indicator, Cohort> cohorts) {
+		for (Map.Entry<Indicator, Cohort> e : cohorts.entrySet()) {
+			Integer i = e.getKey().getWeeksAgo();
+			if (!patients.containsKey(i)) {
+				patients.put(i, new HashSet<Integer>());
+			}
+			patients.get(i).addAll(e.getValue().getMemberIds());
 		}
+	}
 
-		return dataSet;
+	/**
+	 * @return the given columns evaluated for the given patients, with the patient id of each row, sorted by the given
+	 * column if there is one
+	 */
+	protected DataSet evaluatePatientData(Map<String, PatientDataDefinition> columns, String sortColumn, Set<Integer> patientIds, EvaluationContext context) throws EvaluationException {
+		PatientDataSetDefinition dsd = getPatientDataSetDefinition();
+		addColumn(dsd, PATIENT_ID_COLUMN, new PatientIdDataDefinition());
+		for (Map.Entry<String, PatientDataDefinition> e : columns.entrySet()) {
+			addColumn(dsd, e.getKey(), e.getValue());
+		}
+		if (sortColumn != null) {
+			dsd.addSortCriteria(sortColumn, SortDirection.ASC);
+		}
+		context.setBaseCohort(new Cohort(patientIds));
+		return dataSetDefinitionService.evaluate(dsd, context);
+	}
+
+	/**
+	 * @return the rows of the given data set, keyed and in the order of their patient id column
+	 */
+	protected Map<Integer, DataSetRow> getRowsByPatient(DataSet dataSet) {
+		Map<Integer, DataSetRow> ret = new LinkedHashMap<Integer, DataSetRow>();
+		for (DataSetRow row : dataSet) {
+			ret.put((Integer) row.getColumnValue(PATIENT_ID_COLUMN), row);
+		}
+		return ret;
 	}
 
 	/**
-	 * @return the base patient data set definition to return for all data sets
+	 * @return a new definition of the patient data set returned for an indicator at a location
 	 */
-	protected DataSet getPatientDataSet(CohortDefinition filter, TreatmentGroup treatmentGroup, EvaluationContext context) throws EvaluationException {
+	protected PatientDataSetDefinition getPatientDataSetDefinition() {
 		PatientDataSetDefinition dsd = new PatientDataSetDefinition();
 		dsd.addParameter(ReportingConstants.END_DATE_PARAMETER);
 		dsd.addParameter(ReportingConstants.LOCATION_PARAMETER);
+		return dsd;
+	}
 
-		dsd.addRowFilter(Mapped.mapStraightThrough(filter));
-
-		dsd.addSortCriteria(treatmentGroup.getIdentifierTypeShortName(), SortDirection.ASC);
-
-		addColumn(dsd, treatmentGroup.getIdentifierTypeShortName(), treatmentGroup.getPreferredIdentifierDefinition());
-		addColumn(dsd, "All " + treatmentGroup.getIdentifierTypeShortName() + "s", treatmentGroup.getAllIdentifiersDefinition());
+	/**
+	 * @return the columns of the patient data sets to return for the given treatment group, in order
+	 */
+	protected Map<String, PatientDataDefinition> getPatientDataColumns(TreatmentGroup treatmentGroup) {
+		Map<String, PatientDataDefinition> columns = new LinkedHashMap<String, PatientDataDefinition>();
+		columns.put(treatmentGroup.getIdentifierTypeShortName(), treatmentGroup.getPreferredIdentifierDefinition());
+		columns.put("All " + treatmentGroup.getIdentifierTypeShortName() + "s", treatmentGroup.getAllIdentifiersDefinition());
 
 		if (treatmentGroup instanceof ChronicCareTreatmentGroup) {
-			addColumn(dsd, "Given name", builtInPatientData.getPreferredGivenName());
-			addColumn(dsd, "Last name", builtInPatientData.getPreferredFamilyName());
-			addColumn(dsd, "Birthdate", basePatientData.getBirthdate());
-			addColumn(dsd, "Village", basePatientData.getVillage());
-			addColumn(dsd, "TA", basePatientData.getTraditionalAuthority());
-			addColumn(dsd, "District", basePatientData.getDistrict());
-			addColumn(dsd, "VHW", basePatientData.getChwOrGuardian());
-			addColumn(dsd, "Diagnosis", ccPatientData.getAllChronicCareDiagnosesByEndDate());
-			addColumn(dsd, "High risk", ccPatientData.getIsPatientHighRisk());
-			addColumn(dsd, "Time to clinic in hours", ccPatientData.getTimeSpentTravelingToClinicInHours());
-			addColumn(dsd, "Time to clinic in minutes", ccPatientData.getTimeSpentTravelingToClinicInMinutes());
-			addColumn(dsd, "Last visit date", ccPatientData.getMostRecentEncounterDateByEndDate());
-			addColumn(dsd, "Last recorded 'next appt date'", ccPatientData.getMostRecentAppointmentDateByEndDate());
+			columns.put("Given name", builtInPatientData.getPreferredGivenName());
+			columns.put("Last name", builtInPatientData.getPreferredFamilyName());
+			columns.put("Birthdate", basePatientData.getBirthdate());
+			columns.put("Village", basePatientData.getVillage());
+			columns.put("TA", basePatientData.getTraditionalAuthority());
+			columns.put("District", basePatientData.getDistrict());
+			columns.put("VHW", basePatientData.getChwOrGuardian());
+			columns.put("Diagnosis", ccPatientData.getAllChronicCareDiagnosesByEndDate());
+			columns.put("High risk", ccPatientData.getIsPatientHighRisk());
+			columns.put("Time to clinic in hours", ccPatientData.getTimeSpentTravelingToClinicInHours());
+			columns.put("Time to clinic in minutes", ccPatientData.getTimeSpentTravelingToClinicInMinutes());
+			columns.put("Last visit date", ccPatientData.getMostRecentEncounterDateByEndDate());
+			columns.put("Last recorded 'next appt date'", ccPatientData.getMostRecentAppointmentDateByEndDate());
 		}
 		else {
-			addColumn(dsd, "Given name", builtInPatientData.getPreferredGivenName());
-			addColumn(dsd, "Last name", builtInPatientData.getPreferredFamilyName());
-			addColumn(dsd, "Birthdate", basePatientData.getBirthdate());
-			addColumn(dsd, "Current Age (yr)", basePatientData.getAgeAtEndInYears());
-			addColumn(dsd, "Current Age (mth)", basePatientData.getAgeAtEndInMonths());
-			addColumn(dsd, "M/F", builtInPatientData.getGender());
-			addColumn(dsd, "Village", basePatientData.getVillage());
-			addColumn(dsd, "TA", basePatientData.getTraditionalAuthority());
-			addColumn(dsd, "District", basePatientData.getDistrict());
-			addColumn(dsd, "VHW", basePatientData.getChwOrGuardian());
-
-			addColumn(dsd, "Outcome", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateNameConverter()));
-			addColumn(dsd, "Outcome change date", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateStartDateConverter()));
-			addColumn(dsd, "Outcome location", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateLocationConverter()));
-			addColumn(dsd, "Last Outcome in DB (not filtered)", treatmentGroup.getCurrentStateDefinition(df.getStateNameConverter()));
-			addColumn(dsd, "Last Outcome change date", treatmentGroup.getCurrentStateDefinition(df.getStateStartDateConverter()));
-			addColumn(dsd, "Last Outcome change loc", treatmentGroup.getCurrentStateDefinition(df.getStateLocationConverter()));
+			columns.put("Given name", builtInPatientData.getPreferredGivenName());
+			columns.put("Last name", builtInPatientData.getPreferredFamilyName());
+			columns.put("Birthdate", basePatientData.getBirthdate());
+			columns.put("Current Age (yr)", basePatientData.getAgeAtEndInYears());
+			columns.put("Current Age (mth)", basePatientData.getAgeAtEndInMonths());
+			columns.put("M/F", builtInPatientData.getGender());
+			columns.put("Village", basePatientData.getVillage());
+			columns.put("TA", basePatientData.getTraditionalAuthority());
+			columns.put("District", basePatientData.getDistrict());
+			columns.put("VHW", basePatientData.getChwOrGuardian());
+
+			columns.put("Outcome", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateNameConverter()));
+			columns.put("Outcome change date", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateStartDateConverter()));
+			columns.put("Outcome location", treatmentGroup.getCurrentStateAtLocationDefinition(df.getStateLocationConverter()));
+			columns.put("Last Outcome in DB (not filtered)", treatmentGroup.getCurrentStateDefinition(df.getStateNameConverter()));
+			columns.put("Last Outcome change date", treatmentGroup.getCurrentStateDefinition(df.getStateStartDateConverter()));
+			columns.put("Last Outcome change loc", treatmentGroup.getCurrentStateDefinition(df.getStateLocationConverter()));
 
 			EncounterDataSetDefinition encDsd = new EncounterDataSetDefinition();
-			encDsd.addParameters(dsd.getParameters());
+			encDsd.addParameter(ReportingConstants.END_DATE_PARAMETER);
 			encDsd.addRowFilter(Mapped.mapStraightThrough(treatmentGroup.getAllEncountersDefinition()));
 			addColumn(encDsd, "encounterDate", builtInEncounterData.getEncounterDatetime());
 			addColumn(encDsd, "locationName", builtInEncounterData.getLocationName());
@@ -250,17 +489,17 @@ public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
 			encDsd.addSortCriteria("encounterDate", SortDirection.ASC);
 
 			PatientDataSetDataDefinition followups = new PatientDataSetDataDefinition(encDsd);
-			addColumn(dsd, "Last Visit date in " + treatmentGroup.getName() + " (not filtered)", df.convert(followups, df.getLastDataSetItemConverter("encounterDate", "(no encounter found)")));
-			addColumn(dsd, "Last Visit loc", df.convert(followups, df.getLastDataSetItemConverter("locationName", "")));
-			addColumn(dsd, "Last Visit appt date", df.convert(followups, df.getLastDataSetItemConverter("appointmentDate", "")));
-			addColumn(dsd, "Last Visit type", df.convert(followups, df.getLastDataSetItemConverter("encounterTypeName", "")));
+			columns.put("Last Visit date in " + treatmentGroup.getName() + " (not filtered)", df.convert(followups, df.getLastDataSetItemConverter("encounterDate", "(no encounter found)")));
+			columns.put("Last Visit loc", df.convert(followups, df.getLastDataSetItemConverter("locationName", "")));
+			columns.put("Last Visit appt date", df.convert(followups, df.getLastDataSetItemConverter("appointmentDate", "")));
+			columns.put("Last Visit type", df.convert(followups, df.getLastDataSetItemConverter("encounterTypeName", "")));
 		}
 
-		addColumn(dsd, "Confirmed Missed Appt", new StaticValuePatientDataDefinition(""));
-		addColumn(dsd, "Unable to Verify", new StaticValuePatientDataDefinition(""));
-		addColumn(dsd, "Missed Data Entry", new StaticValuePatientDataDefinition(""));
+		columns.put("Confirmed Missed Appt", new StaticValuePatientDataDefinition(""));
+		columns.put("Unable to Verify", new StaticValuePatientDataDefinition(""));
+		columns.put("Missed Data Entry", new StaticValuePatientDataDefinition(""));
 
-		return dataSetDefinitionService.evaluate(dsd, context);
+		return columns;
 	}
 
 	protected void addColumn(PatientDataSetDefinition dsd, String columnName, PatientDataDefinition pdd) {
@@ -274,4 +513,45 @@ public class MissedAppointmentDataSetEvaluator implements DataSetEvaluator {
 	protected void addColumn(EncounterDataSetDefinition dsd, String columnName, EncounterDataDefinition edd) {
 		dsd.addColumn(columnName, edd, ObjectUtil.toString(Mapped.straightThroughMappings(edd), "=", ","));
 	}
+
+	/**
+	 * A column of the data set, which is the patients in the base cohort and in the indicator cohort as of the given
+	 * number of weeks before the end date
+	 */
+	static class Indicator {
+
+		private String key;
+		private String label;
+		private int weeksAgo;
+		private CohortDefinition definition;
+		private boolean includeBase;
+
+		public Indicator(String key, String label, int weeksAgo, CohortDefinition definition, boolean includeBase) {
+			this.key = key;
+			this.label = label;
+			this.weeksAgo = weeksAgo;
+			this.definition = definition;
+			this.includeBase = includeBase;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getWeeksAgo() {
+			return weeksAgo;
+		}
+
+		public CohortDefinition getDefinition() {
+			return definition;
+		}
+
+		public boolean isIncludeBase() {
+			return includeBase;
+		}
+	}
 }
@@ -13,28 +13,28 @@
  */
 package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.MysqlResultDataSet;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.MysqlCmdDataSetDefinition;
+import org.openmrs.module.pihmalawi.sql.IncrementalWarehouse;
 import org.openmrs.module.pihmalawi.sql.MysqlResult;
 import org.openmrs.module.pihmalawi.sql.MysqlRunner;
 import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.dataset.DataSet;
-import org.openmrs.module.reporting.dataset.DataSetColumn;
-import org.openmrs.module.reporting.dataset.DataSetRow;
-import org.openmrs.module.reporting.dataset.SimpleDataSet;
-import org.openmrs.module.reporting.dataset.SimpleDataSetMetaData;
 import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.util.OpenmrsUtil;
 
-import java.util.Map;
+import java.sql.Connection;
 
 /**
- * Evaluates an MysqlCmdDataSetDefinition and produces results
+ * Evaluates an MysqlCmdDataSetDefinition and produces a typed MysqlResultDataSet
  */
 @Handler(supports={MysqlCmdDataSetDefinition.class})
 public class MysqlCmdDataSetEvaluator implements DataSetEvaluator {
@@ -47,29 +47,43 @@ public class MysqlCmdDataSetEvaluator implements DataSetEvaluator {
 	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) throws EvaluationException {
 		
 		context = ObjectUtil.nvl(context, new EvaluationContext());
-        SimpleDataSet data = new SimpleDataSet(dataSetDefinition, context);
 
         MysqlCmdDataSetDefinition dsd = (MysqlCmdDataSetDefinition) dataSetDefinition;
-        MysqlResult resultData = MysqlRunner.executeSql(dsd.getSql(), context.getParameterValues());
-
-        if (resultData.getData().isEmpty() && !resultData.getErrors().isEmpty()) {
-            throw new EvaluationException("Errors occurred during mysql execution: " + OpenmrsUtil.join(resultData.getErrors(), "; "));
+        MysqlResult resultData = new MysqlResult();
+        Connection connection = MysqlRunner.openConnection();
+        try {
+            if (StringUtils.isNotBlank(dsd.getWarehouse())) {
+                // The warehouse only holds rows for the latest end date, so it is read before any other refresh
+                IncrementalWarehouse warehouse = getWarehouse(dsd.getWarehouse());
+                synchronized (warehouse) {
+                    warehouse.refresh(connection, context.getParameterValues());
+                    MysqlRunner.executeSql(connection, dsd.getSql(), context.getParameterValues(), resultData);
+                }
+            }
+            else {
+                MysqlRunner.executeSql(connection, dsd.getSql(), context.getParameterValues(), resultData);
+            }
         }
-
-        SimpleDataSetMetaData metaData = new SimpleDataSetMetaData();
-        for (String column : resultData.getColumns()) {
-            metaData.addColumn(new DataSetColumn(column, column, String.class));
+        finally {
+            MysqlRunner.closeQuietly(connection);
         }
-        data.setMetaData(metaData);
 
-        for (Map<String, String> rowData : resultData.getData()) {
-            DataSetRow row = new DataSetRow();
-            for (DataSetColumn column : metaData.getColumns()) {
-                row.addColumnValue(column, rowData.get(column.getName()));
-            }
-            data.addRow(row);
+        if (resultData.getRows().isEmpty() && !resultData.getErrors().isEmpty()) {
+            throw new EvaluationException("Errors occurred during mysql execution: " + OpenmrsUtil.join(resultData.getErrors(), "; "));
         }
 
-		return data;
+		return new MysqlResultDataSet(dataSetDefinition, context, resultData);
+	}
+
+	/**
+	 * @return the registered IncrementalWarehouse with the given name
+	 */
+	protected IncrementalWarehouse getWarehouse(String name) throws EvaluationException {
+		for (IncrementalWarehouse warehouse : Context.getRegisteredComponents(IncrementalWarehouse.class)) {
+			if (name.equals(warehouse.getName())) {
+				return warehouse;
+			}
+		}
+		throw new EvaluationException("No warehouse named " + name + " is registered");
 	}
 }
@@ -0,0 +1,301 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.pihmalawi.common.DefinitionKey;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PrecomputedCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
+import org.openmrs.module.pihmalawi.sql.CohortResultCache;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.MappedParametersCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.ObjectUtil;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition.CohortIndicatorAndDimensionColumn;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.indicator.CohortIndicator;
+import org.openmrs.module.reporting.indicator.dimension.CohortDefinitionDimension;
+import org.openmrs.module.reporting.indicator.dimension.Dimension;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates a cohort indicator data set by planning all of the cohorts that its indicators and dimensions are built
+ * from before evaluating any of them.  Compositions are broken down into the cohorts they combine, and each distinct
+ * cohort definition is evaluated only once for each set of parameter values, however many indicators it is part of.
+ * The cohorts that do not depend on any others are evaluated concurrently, each in its own session, and then combined.
+ * The data set is then evaluated as usual with each cohort replaced by its result, so the indicator results are the
+ * same as if it had been evaluated as a plain cohort indicator data set.
+ *
+ * Indicators other than counts of a single cohort are left to be evaluated as usual.
+ */
+@Handler(supports = { ParallelCohortIndicatorDataSetDefinition.class }, order = 50)
+public class ParallelCohortIndicatorDataSetEvaluator implements DataSetEvaluator {
+
+	protected Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * The maximum number of cohorts to evaluate at once
+	 */
+	public static final int MAX_THREADS = 4;
+
+	@Autowired
+	private CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	private CohortResultCache cohortResultCache;
+
+	@Autowired
+	private DataSetDefinitionService dataSetDefinitionService;
+
+	@Override
+	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) throws EvaluationException {
+		ParallelCohortIndicatorDataSetDefinition dsd = (ParallelCohortIndicatorDataSetDefinition) dataSetDefinition;
+		context = ObjectUtil.nvl(context, new EvaluationContext());
+		long startTime = System.currentTimeMillis();
+
+		Plan plan = new Plan(context);
+		CohortIndicatorDataSetDefinition planned = new CohortIndicatorDataSetDefinition();
+		planned.setUuid(dsd.getUuid());
+		planned.setName(dsd.getName());
+		planned.setDescription(dsd.getDescription());
+		planned.setParameters(dsd.getParameters());
+		for (String dimensionKey : dsd.getDimensions().keySet()) {
+			planned.addDimension(dimensionKey, plan.addDimension(dsd.getDimensions().get(dimensionKey)));
+		}
+		for (CohortIndicatorAndDimensionColumn column : dsd.getColumns()) {
+			planned.addColumn(column.getName(), column.getLabel(), plan.addIndicator(column.getIndicator()), column.getDimensionOptions());
+		}
+
+		plan.evaluate();
+		log.info("Evaluated " + plan.getNumCohorts() + " distinct cohorts for " + dsd.getColumns().size() + " indicators in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		return dataSetDefinitionService.evaluate(planned, context);
+	}
+
+	/**
+	 * Evaluates the cohort definition on the executor, in a session of its own with the current user, reusing any
+	 * result for it in the cohort cache
+	 */
+	protected Future<Cohort> evaluateInBackground(ExecutorService executor, final CohortDefinition definition, EvaluationContext context) {
+		final EvaluationContext childContext = context.shallowCopy();
+		childContext.setCache(new HashMap<String, Object>());
+		final UserContext userContext = Context.getUserContext();
+		return executor.submit(new Callable<Cohort>() {
+			public Cohort call() throws Exception {
+				Context.openSession();
+				try {
+					Context.setUserContext(userContext);
+					return cohortResultCache.evaluate(definition, childContext);
+				}
+				finally {
+					Context.closeSession();
+				}
+			}
+		});
+	}
+
+	protected Cohort getResult(Future<Cohort> future) throws EvaluationException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EvaluationException("Interrupted while evaluating indicator cohorts", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof EvaluationException) {
+				throw (EvaluationException) e.getCause();
+			}
+			throw new EvaluationException("Unable to evaluate indicator cohort", e.getCause());
+		}
+	}
+
+	/**
+	 * The distinct cohorts needed by a data set, in an order in which each comes after all of the cohorts it combines
+	 */
+	private class Plan {
+
+		private EvaluationContext context;
+		private DefinitionKey keys = new DefinitionKey();
+		private Map<Object, Node> nodes = new LinkedHashMap<Object, Node>();
+		private Map<Mapped<? extends CohortIndicator>, Mapped<? extends CohortIndicator>> indicators = new IdentityHashMap<Mapped<? extends CohortIndicator>, Mapped<? extends CohortIndicator>>();
+
+		public Plan(EvaluationContext context) {
+			this.context = context;
+		}
+
+		/**
+		 * @return the indicator with its cohort replaced by the planned cohort, or the indicator itself if it is not
+		 * a simple count of a cohort
+		 */
+		public Mapped<? extends CohortIndicator> addIndicator(Mapped<? extends CohortIndicator> mapped) throws EvaluationException {
+			Mapped<? extends CohortIndicator> ret = indicators.get(mapped);
+			if (ret == null) {
+				ret = mapped;
+				CohortIndicator indicator = mapped.getParameterizable();
+				boolean count = indicator.getType() == CohortIndicator.IndicatorType.COUNT;
+				if (count && indicator.getCohortDefinition() != null && indicator.getDenominator() == null && indicator.getLocationFilter() == null) {
+					EvaluationContext indicatorContext = EvaluationContext.cloneForChild(context, mapped);
+					CohortIndicator planned = new CohortIndicator();
+					planned.setUuid(indicator.getUuid());
+					planned.setName(indicator.getName());
+					planned.setDescription(indicator.getDescription());
+					planned.setParameters(indicator.getParameters());
+					planned.setType(CohortIndicator.IndicatorType.COUNT);
+					planned.setCohortDefinition(addCohort(indicator.getCohortDefinition(), indicatorContext));
+					ret = new Mapped<CohortIndicator>(planned, mapped.getParameterMappings());
+				}
+				indicators.put(mapped, ret);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the dimension with the cohort of each option replaced by the planned cohort
+		 */
+		public Mapped<? extends Dimension> addDimension(Mapped<? extends Dimension> mapped) throws EvaluationException {
+			if (!(mapped.getParameterizable() instanceof CohortDefinitionDimension)) {
+				return mapped;
+			}
+			CohortDefinitionDimension dimension = (CohortDefinitionDimension) mapped.getParameterizable();
+			EvaluationContext dimensionContext = EvaluationContext.cloneForChild(context, mapped);
+			CohortDefinitionDimension planned = new CohortDefinitionDimension();
+			planned.setUuid(dimension.getUuid());
+			planned.setName(dimension.getName());
+			planned.setParameters(dimension.getParameters());
+			for (String option : dimension.getCohortDefinitions().keySet()) {
+				planned.addCohortDefinition(option, addCohort(dimension.getCohortDefinitions().get(option), dimensionContext));
+			}
+			return new Mapped<CohortDefinitionDimension>(planned, mapped.getParameterMappings());
+		}
+
+		/**
+		 * @return the planned cohort for the definition, as mapped from the parent context
+		 */
+		public Mapped<CohortDefinition> addCohort(Mapped<? extends CohortDefinition> mapped, EvaluationContext parentContext) throws EvaluationException {
+			EvaluationContext childContext = EvaluationContext.cloneForChild(parentContext, mapped);
+			CohortDefinition definition = mapped.getParameterizable();
+			if (definition instanceof MappedParametersCohortDefinition) {
+				return addCohort(((MappedParametersCohortDefinition) definition).getWrapped(), childContext);
+			}
+
+			Object key = Arrays.asList(keys.getKey(definition), keys.getKey(childContext.getParameterValues()));
+			Node node = nodes.get(key);
+			if (node == null) {
+				if (definition instanceof CompositionCohortDefinition) {
+					CompositionCohortDefinition composition = (CompositionCohortDefinition) definition;
+					CompositionCohortDefinition planned = new CompositionCohortDefinition();
+					planned.setCompositionString(composition.getCompositionString());
+					for (String searchKey : composition.getSearches().keySet()) {
+						planned.addSearch(searchKey, addCohort(composition.getSearches().get(searchKey), childContext));
+					}
+					node = new Node(planned, childContext, false);
+				}
+				else {
+					node = new Node(definition, childContext, true);
+				}
+				nodes.put(key, node);
+			}
+			return new Mapped<CohortDefinition>(node.getResult(), new HashMap<String, Object>());
+		}
+
+		public int getNumCohorts() {
+			return nodes.size();
+		}
+
+		/**
+		 * Evaluates the cohorts that do not depend on others concurrently, and then combines them in turn
+		 */
+		public void evaluate() throws EvaluationException {
+			ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+			try {
+				Map<Node, Future<Cohort>> futures = new IdentityHashMap<Node, Future<Cohort>>();
+				for (Node node : nodes.values()) {
+					if (node.isIndependent()) {
+						futures.put(node, evaluateInBackground(executor, node.getDefinition(), node.getContext()));
+					}
+				}
+				for (Node node : nodes.values()) {
+					if (node.isIndependent()) {
+						node.getResult().setCohort(getResult(futures.get(node)));
+					}
+					else {
+						node.getResult().setCohort(cohortDefinitionService.evaluate(node.getDefinition(), node.getContext()));
+					}
+				}
+			}
+			finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * A distinct cohort definition and the context to evaluate it in, and the cohort that stands in for it once it
+	 * has been evaluated
+	 */
+	private class Node {
+
+		private CohortDefinition definition;
+		private EvaluationContext context;
+		private boolean independent;
+		private PrecomputedCohortDefinition result = new PrecomputedCohortDefinition();
+
+		public Node(CohortDefinition definition, EvaluationContext context, boolean independent) {
+			this.definition = definition;
+			this.context = context;
+			this.independent = independent;
+		}
+
+		public CohortDefinition getDefinition() {
+			return definition;
+		}
+
+		public EvaluationContext getContext() {
+			return context;
+		}
+
+		public boolean isIndependent() {
+			return independent;
+		}
+
+		public PrecomputedCohortDefinition getResult() {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.openmrs.PatientProgram;
+import org.openmrs.module.pihmalawi.common.BatchPatientData;
+import org.openmrs.module.pihmalawi.common.ProgramHelper;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the data of a cohort of patients needed by a BreakdownRowRenderer, so that it can render each row without
+ * querying the database per patient.  In addition to the encounters, relationships and obs held by BatchPatientData,
+ * this holds the program enrollments of each patient, with their states.
+ */
+public class BreakdownPatientData extends BatchPatientData {
+
+	private Map<Integer, List<PatientProgram>> patientPrograms;
+
+	public BreakdownPatientData(Collection<Integer> patientIds) {
+		super(patientIds);
+		this.patientPrograms = ProgramHelper.loadPatientPrograms(patientIds);
+	}
+
+	/**
+	 * @return the non-voided program enrollments of each patient, ordered by enrollment date, with their states loaded.
+	 * Every patient in the cohort has an entry, which is empty if they have no enrollments.
+	 */
+	public Map<Integer, List<PatientProgram>> getPatientPrograms() {
+		return patientPrograms;
+	}
+}
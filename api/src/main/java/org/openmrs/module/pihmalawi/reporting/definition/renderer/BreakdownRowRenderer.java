@@ -17,6 +17,7 @@ import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
 import org.openmrs.Relationship;
+import org.openmrs.RelationshipType;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.pihmalawi.common.ProgramHelper;
 import org.openmrs.module.pihmalawi.reporting.definition.data.converter.PatientIdentifierConverter;
@@ -27,6 +28,7 @@ import org.openmrs.web.WebConstants;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -44,6 +46,8 @@ public abstract class BreakdownRowRenderer {
 	private Map<String, EncounterType> encounterTypeCache = null;
 	private Map<String, ProgramWorkflowState> programWorkflowStateCache = null;
 	private Map<String, PatientIdentifierType> patientIdentifierTypeCache = null;
+	private Map<String, RelationshipType> relationshipTypeCache = null;
+	private BreakdownPatientData patientData = null;
 	
 	ProgramHelper h = new ProgramHelper();
 
@@ -54,6 +58,23 @@ public abstract class BreakdownRowRenderer {
 		encounterTypeCache = new HashMap<String, EncounterType>();
 		programWorkflowStateCache = new HashMap<String, ProgramWorkflowState>();
 		patientIdentifierTypeCache = new HashMap<String, PatientIdentifierType>();
+		relationshipTypeCache = new HashMap<String, RelationshipType>();
+	}
+
+	/**
+	 * Loads the encounters, obs, program enrollments and relationships of all of the given patients up front, so that
+	 * rendering their rows reads from memory rather than querying the database for each patient
+	 */
+	public void prefetch(Collection<Integer> patientIds) {
+		patientData = new BreakdownPatientData(patientIds);
+		h.setPatientPrograms(patientData.getPatientPrograms());
+	}
+
+	/**
+	 * @return the data prefetched for the patients being rendered, or null if none was prefetched
+	 */
+	protected BreakdownPatientData getPatientData() {
+		return patientData;
 	}
 	
 	public DataSetRow renderRow(Patient p,
@@ -213,17 +234,14 @@ public abstract class BreakdownRowRenderer {
 			DataSetColumn c;
 			c = new DataSetColumn("VHW", "VHW", String.class);
 			String vhw = "";
-			List<Relationship> ships = Context.getPersonService()
-					.getRelationshipsByPerson(p);
+			List<Relationship> ships = getRelationships(p);
 			for (Relationship r : ships) {
 				if (r.getRelationshipType().equals(
-						Context.getPersonService().getRelationshipTypeByName(
-								"Patient/Village Health Worker"))) {
+						lookupRelationshipType("Patient/Village Health Worker"))) {
 					vhw = r.getPersonB().getGivenName() + " "
 							+ r.getPersonB().getFamilyName();
 				} else if (r.getRelationshipType().equals(
-						Context.getPersonService().getRelationshipTypeByName(
-								"Patient/Guardian"))) {
+						lookupRelationshipType("Patient/Guardian"))) {
 					vhw = r.getPersonB().getGivenName() + " "
 							+ r.getPersonB().getFamilyName() + " (Guardian)";
 				}
@@ -237,9 +255,7 @@ public abstract class BreakdownRowRenderer {
 	protected void addLastVisitCols(DataSetRow row, Patient p,
 			List<EncounterType> encounterTypes, String visitClassification) {
 		try {
-			List<Encounter> encounters = Context.getEncounterService()
-					.getEncounters(p, null, null, null, null, encounterTypes,
-							null, false);
+			List<Encounter> encounters = getEncounters(p, null, encounterTypes);
 			DataSetColumn c1 = new DataSetColumn("Last visit date " + visitClassification + " (not filtered)",
 					"Last visit date " + visitClassification, Date.class);
 			DataSetColumn c2 = new DataSetColumn("Last visit loc",
@@ -254,12 +270,9 @@ public abstract class BreakdownRowRenderer {
 				row.addColumnValue(c2, e.getLocation());
 
 				// rvd from last encounter
-				Set<Obs> observations = e.getObs();
-				for (Obs o : observations) {
-					if (o.getConcept().equals(lookupConcept("Appointment date"))) {
-						row.addColumnValue(c3, o.getValueDatetime());
-						break;
-					}
+				Obs appointmentDate = getObsInEncounter(e, lookupConcept("Appointment date"));
+				if (appointmentDate != null) {
+					row.addColumnValue(c3, appointmentDate.getValueDatetime());
 				}
 				row.addColumnValue(c4, e.getEncounterType().getName());
 			} else {
@@ -277,9 +290,7 @@ public abstract class BreakdownRowRenderer {
 	protected void addVisitColsOfVisitX(DataSetRow row, Patient p,
 			List<EncounterType> encounterTypes, int visitNumber, String visitClassification) {
 		try {
-			List<Encounter> encounters = Context.getEncounterService()
-					.getEncounters(p, null, null, null, null, encounterTypes,
-							null, false);
+			List<Encounter> encounters = getEncounters(p, null, encounterTypes);
 			DataSetColumn c1 = new DataSetColumn("Visit #" + visitNumber + " date " + visitClassification + " (not filtered)",
 					"Visit #" + visitNumber + " date " + visitClassification + " (not filtered)", Date.class);
 			DataSetColumn c2 = new DataSetColumn("Visit #" + visitNumber + " loc",
@@ -294,12 +305,9 @@ public abstract class BreakdownRowRenderer {
 				row.addColumnValue(c2, e.getLocation());
 
 				// rvd from last encounter
-				Set<Obs> observations = e.getObs();
-				for (Obs o : observations) {
-					if (o.getConcept().equals(lookupConcept("Appointment date"))) {
-						row.addColumnValue(c3, o.getValueDatetime());
-						break;
-					}
+				Obs appointmentDate = getObsInEncounter(e, lookupConcept("Appointment date"));
+				if (appointmentDate != null) {
+					row.addColumnValue(c3, appointmentDate.getValueDatetime());
 				}
 				row.addColumnValue(c4, e.getEncounterType().getName());
 			} else {
@@ -455,9 +463,7 @@ public abstract class BreakdownRowRenderer {
 	protected void addFirstEncounterCols(DataSetRow row, Patient p,
 			EncounterType encounterType, String label, Date endDate) {
 		try {
-			List<Encounter> encounters = Context.getEncounterService()
-					.getEncounters(p, null, null, endDate, null,
-							Arrays.asList(encounterType), null, false);
+			List<Encounter> encounters = getEncounters(p, endDate, Arrays.asList(encounterType));
 			DataSetColumn c1 = new DataSetColumn(label + " date", label
 					+ " date", Date.class);
 			DataSetColumn c2 = new DataSetColumn(label + " location", label
@@ -502,25 +508,16 @@ public abstract class BreakdownRowRenderer {
 	protected void addMostRecentVitalsCols(DataSetRow row, Patient p,
 			Date endDateParameter) {
 		try {
-			List<Encounter> es = Context.getEncounterService().getEncounters(p,
-					null, null, endDateParameter, null, null, null, false);
-			List<Obs> obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es,
-					Arrays.asList(lookupConcept("Height (cm)")), null, null,
-					null, null, 1, null, null, endDateParameter, false);
+			List<Encounter> es = getEncounters(p, endDateParameter, null);
+			Obs o = getLatestObs(p, lookupConcept("Height (cm)"), endDateParameter, es);
 			DataSetColumn c = null;
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			if (o != null) {
 				c = new DataSetColumn("Height (cm)", "Height (cm)",
 						String.class);
 				row.addColumnValue(c, (o.getValueNumeric()));
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es,
-					Arrays.asList(lookupConcept("Weight (kg)")), null, null,
-					null, null, 1, null, null, endDateParameter, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("Weight (kg)"), endDateParameter, es);
+			if (o != null) {
 				c = new DataSetColumn("Weight (kg)", "Weight (kg)",
 						String.class);
 				row.addColumnValue(c, (o.getValueNumeric()));
@@ -536,13 +533,9 @@ public abstract class BreakdownRowRenderer {
 	protected void addMostRecentDatetimeObsCols(DataSetRow row, Patient p,
 			Concept concept, Date endDate) {
 		try {
-			List<Encounter> es = Context.getEncounterService().getEncounters(p,
-					null, null, endDate, null, null, null, false);
-			List<Obs> obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(concept),
-					null, null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			List<Encounter> es = getEncounters(p, endDate, null);
+			Obs o = getLatestObs(p, concept, endDate, es);
+			if (o != null) {
 				DataSetColumn c = new DataSetColumn("Last "
 						+ concept.getName(Context.getLocale()).getName(),
 						"Last "
@@ -558,13 +551,9 @@ public abstract class BreakdownRowRenderer {
 	protected void addMostRecentObsCols(DataSetRow row, Patient p,
 			Concept concept, Date endDate) {
 		try {
-			List<Encounter> es = Context.getEncounterService().getEncounters(p,
-					null, null, endDate, null, null, null, false);
-			List<Obs> obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(concept),
-					null, null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			List<Encounter> es = getEncounters(p, endDate, null);
+			Obs o = getLatestObs(p, concept, endDate, es);
+			if (o != null) {
 				DataSetColumn c = new DataSetColumn("Last "
 						+ concept.getName(Context.getLocale()).getName(),
 						"Last "
@@ -587,13 +576,9 @@ public abstract class BreakdownRowRenderer {
 	protected void addMostRecentNumericObsCols(DataSetRow row, Patient p,
 			Concept concept, Date endDate) {
 		try {
-			List<Encounter> es = Context.getEncounterService().getEncounters(p,
-					null, null, endDate, null, null, null, false);
-			List<Obs> obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(concept),
-					null, null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			List<Encounter> es = getEncounters(p, endDate, null);
+			Obs o = getLatestObs(p, concept, endDate, es);
+			if (o != null) {
 				DataSetColumn c = new DataSetColumn("Last "
 						+ concept.getName(Context.getLocale()).getName(),
 						"Last "
@@ -615,50 +600,31 @@ public abstract class BreakdownRowRenderer {
 
 	protected void addReasonStartingArvsCols(DataSetRow row, Patient p, Date endDate) {
 		try {
-			List<Encounter> es = Context.getEncounterService().getEncounters(p,
-					null, null, endDate, null, Arrays.asList(lookupEncounterType("ART_INITIAL")), null, false);
+			List<Encounter> es = getEncounters(p, endDate, Arrays.asList(lookupEncounterType("ART_INITIAL")));
 			String reasons = "";
 
-			List<Obs> obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("CD4 count")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			Obs o = getLatestObs(p, lookupConcept("CD4 count"), endDate, es);
+			if (o != null) {
 				reasons += ", CD4: " + o.getValueAsString(Context.getLocale());
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("Kaposis sarcoma side effects worsening while on ARVs?")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("Kaposis sarcoma side effects worsening while on ARVs?"), endDate, es);
+			if (o != null) {
 				reasons += ", KS: " + o.getValueAsString(Context.getLocale());
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("Tuberculosis treatment status")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("Tuberculosis treatment status"), endDate, es);
+			if (o != null) {
 				reasons += ", TB: " + o.getValueAsString(Context.getLocale());
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("WHO stage")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("WHO stage"), endDate, es);
+			if (o != null) {
 				reasons += ", STAGE: " + o.getValueAsString(Context.getLocale());
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("CD4 percent")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("CD4 percent"), endDate, es);
+			if (o != null) {
 				reasons += ", TLC: " + o.getValueAsString(Context.getLocale());
 			}
-			obs = Context.getObsService().getObservations(
-					Arrays.asList((Person) p), es, Arrays.asList(lookupConcept("Presumed severe HIV criteria present")), null,
-					null, null, null, 1, null, null, endDate, false);
-			if (obs.iterator().hasNext()) {
-				Obs o = obs.iterator().next();
+			o = getLatestObs(p, lookupConcept("Presumed severe HIV criteria present"), endDate, es);
+			if (o != null) {
 				reasons += ", PSHD: " + o.getValueAsString(Context.getLocale());
 			}
 			DataSetColumn c = new DataSetColumn("ARV start reasons", "ARV start reasons", String.class);
@@ -668,6 +634,50 @@ public abstract class BreakdownRowRenderer {
 		}
 	}
 
+	/**
+	 * @return the non-voided encounters of the patient on or before endDate (if specified), of the given types
+	 * (if any are specified), ordered by encounter date
+	 */
+	protected List<Encounter> getEncounters(Patient p, Date endDate, List<EncounterType> encounterTypes) {
+		if (patientData != null && patientData.contains(p)) {
+			return patientData.getEncounters(p, endDate, encounterTypes);
+		}
+		return Context.getEncounterService().getEncounters(p, null, null, endDate, null, encounterTypes, null, false);
+	}
+
+	/**
+	 * @return the most recent obs of the patient for the concept on or before endDate (if specified), within
+	 * the given encounters, or within any encounter if the list is empty
+	 */
+	protected Obs getLatestObs(Patient p, Concept concept, Date endDate, List<Encounter> encounters) {
+		if (patientData != null && patientData.contains(p)) {
+			return patientData.getLatestObs(p, concept, endDate, encounters);
+		}
+		List<Obs> obs = Context.getObsService().getObservations(
+				Arrays.asList((Person) p), encounters, Arrays.asList(concept),
+				null, null, null, null, 1, null, null, endDate, false);
+		return (obs.isEmpty() ? null : obs.get(0));
+	}
+
+	protected Obs getObsInEncounter(Encounter e, Concept concept) {
+		if (patientData != null && patientData.contains(e.getPatient())) {
+			return patientData.getLatestObs(e.getPatient(), concept, null, Arrays.asList(e));
+		}
+		for (Obs o : e.getObs()) {
+			if (o.getConcept().equals(concept)) {
+				return o;
+			}
+		}
+		return null;
+	}
+
+	protected List<Relationship> getRelationships(Patient p) {
+		if (patientData != null && patientData.contains(p)) {
+			return patientData.getRelationships(p);
+		}
+		return Context.getPersonService().getRelationshipsByPerson(p);
+	}
+
 	private Location firstTimeInStateAtLocation(Patient p, Program program, ProgramWorkflowState firstTimeInState, Date endDate) {
 		PatientState ps = h.getFirstTimeInState(p, program, firstTimeInState, endDate);
 		if (ps != null) {
@@ -683,6 +693,13 @@ public abstract class BreakdownRowRenderer {
 		return patientIdentifierTypeCache.get(name);
 	}
 
+	protected RelationshipType lookupRelationshipType(String name) {
+		if (!relationshipTypeCache.containsKey(name)) {
+			relationshipTypeCache.put(name, Context.getPersonService().getRelationshipTypeByName(name));
+		}
+		return relationshipTypeCache.get(name);
+	}
+
 	protected Concept lookupConcept(String name) {
 		if (!conceptCache.containsKey(name)) {
 			conceptCache.put(name, Context.getConceptService().getConceptByName(name));
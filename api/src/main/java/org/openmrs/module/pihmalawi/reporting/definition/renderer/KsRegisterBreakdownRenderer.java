@@ -11,10 +11,21 @@ import org.openmrs.module.reporting.dataset.DataSetRow;
 
 public class KsRegisterBreakdownRenderer extends BreakdownRowRenderer {
 
+	private PatientDataHelper pdh = new PatientDataHelper();
+
+	@Override
+	public void prefetch(Collection<Integer> patientIds) {
+		super.prefetch(patientIds);
+		pdh = new PatientDataHelper();
+		pdh.setPatientData(getPatientData());
+		List<String> concepts = new ArrayList<String>(PatientDataHelper.REASON_STARTING_ARVS_CONCEPTS);
+		concepts.addAll(Arrays.asList("DATE OF HIV DIAGNOSIS", "Malawi Antiretroviral drugs received", "Height (cm)", "Paclitaxel (taxol) dose received"));
+		pdh.prefetchObs(concepts);
+	}
+
 	public DataSetRow renderRow(Patient p, PatientIdentifierType patientIdentifierType, Location location, Date startDate, Date endDate) {
 
-		PatientDataHelper pdh = new PatientDataHelper();
-		ProgramHelper ph = new ProgramHelper();
+		ProgramHelper ph = h;
 		HivMetadata hivMetadata = new HivMetadata();
 
 		DataSetRow row = new DataSetRow();
@@ -0,0 +1,132 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.ObjectUtil;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.ReportDesignResource;
+import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.renderer.RenderingException;
+import org.openmrs.module.reporting.report.renderer.ReportDesignRenderer;
+import org.openmrs.module.reporting.report.renderer.XlsReportRenderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders each data set of a report to its own sheet of an XLSX workbook, streaming rows through a
+ * StreamingExcelWriter so that large data exports such as the registers can be rendered within a bounded heap.
+ *
+ * If the design has an xlsx resource, it is used as a template.  The rows of any sheet named after a data set are kept
+ * as a header region above that data set, with any #parameterName# in them replaced by the value of that parameter.
+ */
+@Handler
+public class StreamingExcelRenderer extends ReportDesignRenderer {
+
+	public static final String TEMPLATE_EXTENSION = "xlsx";
+
+	@Override
+	public String getRenderedContentType(ReportRequest request) {
+		return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+	}
+
+	@Override
+	public String getFilename(ReportRequest request) {
+		Date endDate = (Date)request.getReportDefinition().getParameterMappings().get("endDate");
+		if (endDate == null) {
+			endDate = new Date();
+		}
+		return request.getReportDefinition().getParameterizable().getName() + "_" + DateUtil.formatDate(endDate, "yyyyMMdd") + ".xlsx";
+	}
+
+	@Override
+	public void render(ReportData reportData, String argument, OutputStream out) throws IOException, RenderingException {
+		ReportDesign design = getDesign(argument);
+		XSSFWorkbook template = getTemplate(design, reportData.getContext().getParameterValues());
+
+		StreamingExcelWriter writer = new StreamingExcelWriter(template, StreamingExcelWriter.DEFAULT_ROW_ACCESS_WINDOW);
+		writer.setPassword(design.getPropertyValue(XlsReportRenderer.PASSWORD_PROPERTY, null));
+
+		for (Map.Entry<String, DataSet> e : reportData.getDataSets().entrySet()) {
+			DataSet dataSet = e.getValue();
+			List<DataSetColumn> columns = dataSet.getMetaData().getColumns();
+			List<String> columnHeaders = new ArrayList<String>();
+			for (DataSetColumn column : columns) {
+				columnHeaders.add(column.getLabel());
+			}
+			writer.startSheet(e.getKey(), columnHeaders);
+
+			List<Object> values = new ArrayList<Object>(columns.size());
+			for (DataSetRow row : dataSet) {
+				values.clear();
+				for (DataSetColumn column : columns) {
+					values.add(row.getColumnValue(column));
+				}
+				writer.writeRow(values);
+			}
+		}
+
+		writer.write(out);
+	}
+
+	/**
+	 * @return the xlsx template resource of the design with parameters replaced, or null if there is none
+	 */
+	protected XSSFWorkbook getTemplate(ReportDesign design, Map<String, Object> parameterValues) throws IOException {
+		for (ReportDesignResource resource : design.getResources()) {
+			if (TEMPLATE_EXTENSION.equalsIgnoreCase(resource.getExtension())) {
+				XSSFWorkbook template = new XSSFWorkbook(new ByteArrayInputStream(resource.getContents()));
+				for (int i = 0; i < template.getNumberOfSheets(); i++) {
+					replaceParameters(template.getSheetAt(i), parameterValues);
+				}
+				return template;
+			}
+		}
+		return null;
+	}
+
+	protected void replaceParameters(Sheet sheet, Map<String, Object> parameterValues) {
+		for (Row row : sheet) {
+			for (Cell cell : row) {
+				if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
+					String value = cell.getStringCellValue();
+					for (Map.Entry<String, Object> e : parameterValues.entrySet()) {
+						String key = "#" + e.getKey() + "#";
+						if (value.contains(key)) {
+							Object parameterValue = e.getValue();
+							String formatted = (parameterValue instanceof Date ? DateUtil.formatDate((Date) parameterValue, "dd/MMM/yyyy") : ObjectUtil.format(parameterValue));
+							value = value.replace(key, ObjectUtil.nvlStr(formatted, ""));
+						}
+					}
+					cell.setCellValue(value);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.crypt.Encryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.ObjectUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rows to an XLSX workbook as a stream, so that only a bounded window of rows is held in memory at once and
+ * the rest are flushed to a temporary file.  This allows data sets with hundreds of thousands of rows to be written
+ * without holding the whole workbook in memory, as an HSSF workbook would.
+ *
+ * A single cell style is created and reused for each style of cell, rather than one per cell.  If started from a
+ * template, the rows already in each sheet of the template are kept as a header region, and rows are written below.
+ * If a sheet reaches the maximum number of rows, subsequent rows continue on a new sheet.
+ *
+ * If a password is set, the workbook is encrypted with it, so that it can't be opened without it.  As the package has
+ * to be complete before it is encrypted, it is first written to a temporary file.  The encrypted package is then
+ * written into a POIFSFileSystem, which holds the whole encrypted document in memory until it is written out, so a
+ * password-protected export needs heap for its full compressed size, unlike an unprotected one.
+ */
+public class StreamingExcelWriter {
+
+	public static final int DEFAULT_ROW_ACCESS_WINDOW = 100;
+
+	public static final String STYLE_HEADER = "header";
+	public static final String STYLE_DATE = "date";
+	public static final String STYLE_DATETIME = "datetime";
+
+	private XSSFWorkbook template;
+	private SXSSFWorkbook workbook;
+	private Map<String, CellStyle> styles = new HashMap<String, CellStyle>();
+	private String password;
+
+	private Sheet currentSheet;
+	private String currentSheetName;
+	private int currentSheetNum;
+	private List<String> currentColumnHeaders;
+	private int currentRowNum;
+
+	public StreamingExcelWriter() {
+		this(null, DEFAULT_ROW_ACCESS_WINDOW);
+	}
+
+	/**
+	 * @param template a workbook whose sheets' existing rows are kept as a header region, or null for none
+	 * @param rowAccessWindow the number of rows to keep in memory before flushing them to disk
+	 */
+	public StreamingExcelWriter(XSSFWorkbook template, int rowAccessWindow) {
+		this.template = template;
+		workbook = (template == null ? new SXSSFWorkbook(rowAccessWindow) : new SXSSFWorkbook(template, rowAccessWindow));
+		workbook.setCompressTempFiles(true);
+	}
+
+	/**
+	 * Starts writing to the sheet with the given name.  If a sheet of this name exists in the template, rows are
+	 * written below its existing rows, otherwise a new sheet is created.  If columnHeaders is not empty, these are
+	 * written as a header row, and repeated at the top of any continuation sheets.
+	 */
+	public void startSheet(String name, List<String> columnHeaders) {
+		currentSheetName = WorkbookUtil.createSafeSheetName(name);
+		currentSheetNum = 1;
+		currentColumnHeaders = columnHeaders;
+		Sheet templateSheet = (template == null ? null : template.getSheet(currentSheetName));
+		if (templateSheet == null) {
+			currentSheet = workbook.createSheet(currentSheetName);
+			currentRowNum = 0;
+		}
+		else {
+			// Rows of the template are not visible through the streaming sheet, so find where they end from the template
+			currentSheet = workbook.getSheet(currentSheetName);
+			currentRowNum = (templateSheet.getPhysicalNumberOfRows() == 0 ? 0 : templateSheet.getLastRowNum() + 1);
+		}
+		protectCurrentSheet();
+		writeColumnHeaders();
+	}
+
+	/**
+	 * Writes a row of values to the current sheet, continuing on a new sheet if it is full
+	 */
+	public void writeRow(List<?> values) {
+		if (currentRowNum > SpreadsheetVersion.EXCEL2007.getLastRowIndex()) {
+			currentSheetNum++;
+			String name = StringUtils.abbreviate(currentSheetName, 25) + " (" + currentSheetNum + ")";
+			currentSheet = workbook.createSheet(WorkbookUtil.createSafeSheetName(name));
+			currentRowNum = 0;
+			protectCurrentSheet();
+			writeColumnHeaders();
+		}
+		Row row = currentSheet.createRow(currentRowNum++);
+		for (int i = 0; i < values.size(); i++) {
+			if (values.get(i) != null) {
+				setCellValue(row.createCell(i), values.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Sets the value of the cell, using a reused style for dates
+	 */
+	protected void setCellValue(Cell cell, Object value) {
+		if (value instanceof Number) {
+			cell.setCellValue(((Number) value).doubleValue());
+		}
+		else if (value instanceof Boolean) {
+			cell.setCellValue((Boolean) value);
+		}
+		else if (value instanceof Date) {
+			Date d = (Date) value;
+			cell.setCellValue(d);
+			cell.setCellStyle(getStyle(d.equals(DateUtil.getStartOfDay(d)) ? STYLE_DATE : STYLE_DATETIME));
+		}
+		else {
+			cell.setCellValue(ObjectUtil.format(value));
+		}
+	}
+
+	/**
+	 * @return the cell style with the given name, creating it on first use
+	 */
+	public CellStyle getStyle(String name) {
+		CellStyle style = styles.get(name);
+		if (style == null) {
+			style = workbook.createCellStyle();
+			if (STYLE_HEADER.equals(name)) {
+				Font font = workbook.createFont();
+				font.setBoldweight(Font.BOLDWEIGHT_BOLD);
+				style.setFont(font);
+			}
+			else if (STYLE_DATE.equals(name)) {
+				style.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+			}
+			else if (STYLE_DATETIME.equals(name)) {
+				style.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd hh:mm"));
+			}
+			styles.put(name, style);
+		}
+		return style;
+	}
+
+	/**
+	 * Sets a password with which the workbook is encrypted, and every sheet is protected against editing
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * Writes the workbook to the given stream, and deletes the temporary files that back it
+	 */
+	public void write(OutputStream out) throws IOException {
+		try {
+			if (StringUtils.isEmpty(password)) {
+				workbook.write(out);
+			}
+			else {
+				writeEncrypted(out);
+			}
+		}
+		finally {
+			workbook.dispose();
+		}
+	}
+
+	/**
+	 * Writes the workbook to a temporary file, and then encrypts it with the password into the given stream.  The
+	 * encrypted package is held in memory by the POIFSFileSystem until it is written to the stream.
+	 */
+	protected void writeEncrypted(OutputStream out) throws IOException {
+		File packageFile = File.createTempFile("pihmalawi-export", ".xlsx");
+		try {
+			OutputStream packageOut = new FileOutputStream(packageFile);
+			try {
+				workbook.write(packageOut);
+			}
+			finally {
+				IOUtils.closeQuietly(packageOut);
+			}
+
+			POIFSFileSystem fs = new POIFSFileSystem();
+			Encryptor encryptor = new EncryptionInfo(EncryptionMode.agile).getEncryptor();
+			encryptor.confirmPassword(password);
+			InputStream packageIn = new FileInputStream(packageFile);
+			try {
+				OutputStream encryptedOut = encryptor.getDataStream(fs);
+				IOUtils.copy(packageIn, encryptedOut);
+				encryptedOut.close();
+			}
+			finally {
+				IOUtils.closeQuietly(packageIn);
+			}
+			fs.writeFilesystem(out);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("Unable to encrypt workbook", e);
+		}
+		finally {
+			packageFile.delete();
+		}
+	}
+
+	public SXSSFWorkbook getWorkbook() {
+		return workbook;
+	}
+
+	public Sheet getCurrentSheet() {
+		return currentSheet;
+	}
+
+	public int getCurrentRowNum() {
+		return currentRowNum;
+	}
+
+	private void writeColumnHeaders() {
+		if (currentColumnHeaders != null && !currentColumnHeaders.isEmpty()) {
+			Row row = currentSheet.createRow(currentRowNum++);
+			for (int i = 0; i < currentColumnHeaders.size(); i++) {
+				Cell cell = row.createCell(i);
+				cell.setCellValue(currentColumnHeaders.get(i));
+				cell.setCellStyle(getStyle(STYLE_HEADER));
+			}
+			currentSheet.createFreezePane(0, currentRowNum);
+		}
+	}
+
+	private void protectCurrentSheet() {
+		if (StringUtils.isNotEmpty(password)) {
+			currentSheet.protectSheet(password);
+		}
+	}
+}
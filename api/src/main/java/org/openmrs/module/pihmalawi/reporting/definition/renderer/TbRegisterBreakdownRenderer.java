@@ -8,7 +8,6 @@ import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PatientState;
-import org.openmrs.Person;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
@@ -79,9 +78,7 @@ public class TbRegisterBreakdownRenderer extends BreakdownRowRenderer {
 		DataSetRow row = new DataSetRow();
 		DataSetColumn c = null;
 
-		List<Encounter> es = Context.getEncounterService()
-				.getEncounters(p, null, null, endDateParameter, null,
-						encounterTypes, null, false);
+		List<Encounter> es = getEncounters(p, endDateParameter, encounterTypes);
 		// take first one for now
 		Encounter e = es.isEmpty() ? null : es.get(0);
 
@@ -253,12 +250,9 @@ public class TbRegisterBreakdownRenderer extends BreakdownRowRenderer {
 	}
 
 	private String obsFromEncounter(Patient p, Encounter e, Concept concept) {
-		List<Obs> obs = Context.getObsService().getObservations(
-				Arrays.asList((Person) p), Arrays.asList(e),
-				Arrays.asList(concept), null, null, null, null, 1, null, null,
-				null, false);
-		if (obs.iterator().hasNext()) {
-			return obs.iterator().next().getValueAsString(Context.getLocale());
+		Obs o = obsFromEncounterAsObs(p, e, concept);
+		if (o != null) {
+			return o.getValueAsString(Context.getLocale());
 		}
 		return "&nbsp";
 	}
@@ -272,14 +266,7 @@ public class TbRegisterBreakdownRenderer extends BreakdownRowRenderer {
 	}
 
 	private Obs obsFromEncounterAsObs(Patient p, Encounter e, Concept concept) {
-		List<Obs> obs = Context.getObsService().getObservations(
-				Arrays.asList((Person) p), Arrays.asList(e),
-				Arrays.asList(concept), null, null, null, null, 1, null, null,
-				null, false);
-		if (obs.iterator().hasNext()) {
-			return obs.iterator().next();
-		}
-		return null;
+		return getLatestObs(p, concept, null, Arrays.asList(e));
 	}
 
 }
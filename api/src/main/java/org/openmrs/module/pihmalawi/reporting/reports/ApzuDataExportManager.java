@@ -40,7 +40,7 @@ public abstract class ApzuDataExportManager extends ApzuReportManager {
     @Override
     public List<ReportDesign> constructReportDesigns(ReportDefinition reportDefinition) {
         List<ReportDesign> l = new ArrayList<ReportDesign>();
-        ReportDesign excelDesign = createExcelDesign(getExcelDesignUuid(), reportDefinition);
+        ReportDesign excelDesign = createStreamingExcelDesign(getExcelDesignUuid(), reportDefinition);
         l.add(excelDesign);
         return l;
     }
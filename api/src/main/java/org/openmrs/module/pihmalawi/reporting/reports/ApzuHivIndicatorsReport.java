@@ -15,6 +15,7 @@ package org.openmrs.module.pihmalawi.reporting.reports;
 
 import org.openmrs.Location;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
@@ -90,7 +91,7 @@ public class ApzuHivIndicatorsReport extends ApzuReportManager {
 
 		// Base Data Set Definition
 
-		CohortIndicatorDataSetDefinition dsd = new CohortIndicatorDataSetDefinition();
+		CohortIndicatorDataSetDefinition dsd = new ParallelCohortIndicatorDataSetDefinition();
 		dsd.setParameters(getParameters());
 		dsd.addParameter(df.getOptionalLocationParameter());
 		multiPeriodDsd.setBaseDefinition(dsd);
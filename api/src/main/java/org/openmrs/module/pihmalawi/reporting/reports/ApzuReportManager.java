@@ -15,6 +15,7 @@
 package org.openmrs.module.pihmalawi.reporting.reports;
 
 import org.openmrs.module.pihmalawi.reporting.ApzuReportUtil;
+import org.openmrs.module.pihmalawi.reporting.definition.renderer.StreamingExcelRenderer;
 import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.data.encounter.definition.EncounterDataDefinition;
 import org.openmrs.module.reporting.data.encounter.definition.PatientToEncounterDataDefinition;
@@ -34,7 +35,6 @@ import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.manager.BaseReportManager;
 import org.openmrs.module.reporting.report.manager.ReportManagerUtil;
 import org.openmrs.module.reporting.report.renderer.RenderingMode;
-import org.openmrs.module.reporting.report.renderer.XlsReportRenderer;
 import org.openmrs.module.reporting.report.util.ReportUtil;
 
 import java.util.Map;
@@ -77,6 +77,10 @@ public abstract class ApzuReportManager extends BaseReportManager {
 		return ApzuReportUtil.createExcelDesign(reportDesignUuid, reportDefinition);
 	}
 
+    protected ReportDesign createStreamingExcelDesign(String reportDesignUuid, ReportDefinition reportDefinition) {
+		return ApzuReportUtil.createStreamingExcelDesign(reportDesignUuid, reportDefinition);
+	}
+
     protected ReportRequest createMonthlyScheduledReportRequest(String requestUuid, String reportDesignUuid, Map<String, Object> parameters, ReportDefinition reportDefinition) {
         try {
             ReportRequest rr = new ReportRequest();
@@ -84,7 +88,7 @@ public abstract class ApzuReportManager extends BaseReportManager {
             rr.setReportDefinition(new Mapped<ReportDefinition>(reportDefinition, parameters));
             rr.setPriority(ReportRequest.Priority.NORMAL);
             rr.setProcessAutomatically(true);
-            rr.setRenderingMode(new RenderingMode(XlsReportRenderer.class.newInstance(), "Excel", reportDesignUuid, Integer.MAX_VALUE));
+            rr.setRenderingMode(new RenderingMode(StreamingExcelRenderer.class.newInstance(), "Excel", reportDesignUuid, Integer.MAX_VALUE));
             rr.setSchedule("0 0 4 1 * ?"); // Run monthly on the first of the month at 4:00am
             rr.setMinimumDaysToPreserve(45);
             return rr;
@@ -15,6 +15,7 @@ package org.openmrs.module.pihmalawi.reporting.reports;
 
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.RelativeDateCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.HivPatientDataLibrary;
@@ -95,7 +96,7 @@ public class ArvQuarterlyReport extends ApzuReportManager {
 		rd.setParameters(getParameters());
 		rd.setBaseCohortDefinition(Mapped.mapStraightThrough(getRegisteredEver()));
 
-		CohortIndicatorDataSetDefinition dsd = new CohortIndicatorDataSetDefinition();
+		CohortIndicatorDataSetDefinition dsd = new ParallelCohortIndicatorDataSetDefinition();
 		dsd.setParameters(getParameters());
 		rd.addDataSetDefinition("indicators", Mapped.mapStraightThrough(dsd));
 
@@ -13,6 +13,7 @@
  */
 package org.openmrs.module.pihmalawi.reporting.reports;
 
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.reporting.ReportingConstants;
@@ -81,7 +82,7 @@ public class HccQuarterlyReport extends ApzuReportManager {
 		rd.setDescription(getDescription());
 		rd.setParameters(getParameters());
 
-		CohortIndicatorDataSetDefinition dsd = new CohortIndicatorDataSetDefinition();
+		CohortIndicatorDataSetDefinition dsd = new ParallelCohortIndicatorDataSetDefinition();
 		dsd.setParameters(getParameters());
 		rd.addDataSetDefinition("indicators", Mapped.mapStraightThrough(dsd));
 
@@ -0,0 +1,513 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.ConceptComplex;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptNumeric;
+import org.openmrs.ConceptSet;
+import org.openmrs.Drug;
+import org.openmrs.DrugOrder;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.PersonName;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.Relationship;
+import org.openmrs.RelationshipType;
+import org.openmrs.api.context.Context;
+import org.openmrs.event.EventListener;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.pihmalawi.common.DefinitionKey;
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.BirthAndDeathCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CodedObsCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.DateObsCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.EncounterCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.InProgramCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.InStateCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.NumericObsCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.PatientIdentifierCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.PatientStateCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.ProgramEnrollmentCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persistent cache of evaluated cohorts, shared by every report run, so that the building-block cohorts that many
+ * reports are composed of are only evaluated once for the same parameters until the data they are based on changes.
+ *
+ * Cohorts are keyed by a digest of the configuration of the definition, the parameter values and base cohort it was
+ * evaluated with, the day it was evaluated on and the version of this module.  Each is stored with a data version,
+ * and is only returned while the data version is unchanged.  A version is kept for each of the CHANGE_TABLES in the
+ * VERSION_TABLE_NAME table, and is incremented by every save, void or purge event of the types stored in it, so
+ * versions and the cohorts cached for them are kept when the module restarts.  The data version of a cohort is a
+ * digest of the versions of the tables that its definition reads, as listed in DEFINITION_TABLES, or of all of them
+ * for any other definition, so that a cohort is only evaluated again when one of those tables changes.  Events are
+ * counted in memory and added to the stored versions on the next lookup, and cohorts are only stored if the data
+ * version has not changed while they were evaluated.  Cohorts cached on an earlier day are removed the first time a
+ * cohort is stored each day.  Changes made directly in the database, or while the module is stopped, are not seen.
+ *
+ * The tables are created by the CohortResultCacheInitializer when the module starts.  Caching can be turned off by
+ * setting the pihmalawi.cohortCacheEnabled global property to false.  Any failure to read from or write to the cache
+ * is logged and the cohort is evaluated as usual.
+ */
+@Component
+public class CohortResultCache implements EventListener {
+
+	protected Log log = LogFactory.getLog(getClass());
+
+	public static final String TABLE_NAME = "pihmalawi_cohort_cache";
+	public static final String VERSION_TABLE_NAME = "pihmalawi_cohort_cache_version";
+	public static final String ENABLED_PROPERTY = "pihmalawi.cohortCacheEnabled";
+	public static final String MODULE_ID = "pihmalawi";
+
+	/**
+	 * The version that all metadata changes are counted in, as they are rare and may change any cohort
+	 */
+	public static final String METADATA = "metadata";
+
+	/**
+	 * The patient data and metadata whose changes invalidate cached cohorts, and the table each is versioned by
+	 */
+	public static final Map<Class<?>, String> CHANGE_TABLES = new LinkedHashMap<Class<?>, String>();
+
+	/**
+	 * The tables read by each type of cohort definition whose evaluator is known
+	 */
+	public static final Map<Class<? extends CohortDefinition>, List<String>> DEFINITION_TABLES = new HashMap<Class<? extends CohortDefinition>, List<String>>();
+
+	static {
+		CHANGE_TABLES.put(Person.class, "person");
+		CHANGE_TABLES.put(PersonName.class, "person_name");
+		CHANGE_TABLES.put(PersonAddress.class, "person_address");
+		CHANGE_TABLES.put(PersonAttribute.class, "person_attribute");
+		CHANGE_TABLES.put(Patient.class, "patient");
+		CHANGE_TABLES.put(PatientIdentifier.class, "patient_identifier");
+		CHANGE_TABLES.put(PatientProgram.class, "patient_program");
+		CHANGE_TABLES.put(PatientState.class, "patient_state");
+		CHANGE_TABLES.put(Encounter.class, "encounter");
+		CHANGE_TABLES.put(Obs.class, "obs");
+		CHANGE_TABLES.put(Order.class, "orders");
+		CHANGE_TABLES.put(DrugOrder.class, "orders");
+		CHANGE_TABLES.put(Relationship.class, "relationship");
+		CHANGE_TABLES.put(Cohort.class, "cohort");
+		for (Class<?> type : new Class<?>[] { Concept.class, ConceptNumeric.class, ConceptComplex.class, ConceptName.class,
+				ConceptAnswer.class, ConceptSet.class, Drug.class, Program.class, ProgramWorkflow.class,
+				ProgramWorkflowState.class, EncounterType.class, Location.class, PatientIdentifierType.class,
+				PersonAttributeType.class, RelationshipType.class }) {
+			CHANGE_TABLES.put(type, METADATA);
+		}
+
+		addDefinitionTables(GenderCohortDefinition.class);
+		addDefinitionTables(AgeCohortDefinition.class);
+		addDefinitionTables(BirthAndDeathCohortDefinition.class);
+		addDefinitionTables(EncounterCohortDefinition.class, "encounter");
+		addDefinitionTables(CodedObsCohortDefinition.class, "obs", "encounter");
+		addDefinitionTables(NumericObsCohortDefinition.class, "obs", "encounter");
+		addDefinitionTables(DateObsCohortDefinition.class, "obs", "encounter");
+		addDefinitionTables(InProgramCohortDefinition.class, "patient_program");
+		addDefinitionTables(ProgramEnrollmentCohortDefinition.class, "patient_program");
+		addDefinitionTables(InStateCohortDefinition.class, "patient_program", "patient_state");
+		addDefinitionTables(PatientStateCohortDefinition.class, "patient_program", "patient_state");
+		addDefinitionTables(PatientIdentifierCohortDefinition.class, "patient_identifier");
+	}
+
+	private static void addDefinitionTables(Class<? extends CohortDefinition> type, String... tables) {
+		List<String> l = new ArrayList<String>(Arrays.asList("person", "patient", METADATA));
+		l.addAll(Arrays.asList(tables));
+		DEFINITION_TABLES.put(type, l);
+	}
+
+	@Autowired
+	private CohortDefinitionService cohortDefinitionService;
+
+	private final Map<String, Long> uncountedChanges = new HashMap<String, Long>();
+	private String cleanedDay = null;
+	private Cohort lastBaseCohort = null;
+	private String lastBaseCohortDigest = null;
+
+	/**
+	 * Counts the change against the table of the changed type, or against every table if the type is not known,
+	 * which invalidates every cohort cached until now that was evaluated from it
+	 */
+	@Override
+	public void onMessage(Message message) {
+		String table = getChangedTable(message);
+		synchronized (uncountedChanges) {
+			for (String t : (table == null ? getAllTables() : Collections.singleton(table))) {
+				Long count = uncountedChanges.get(t);
+				uncountedChanges.put(t, (count == null ? 1 : count + 1));
+			}
+		}
+	}
+
+	/**
+	 * @return the cohort for the definition in the given context, from the cache if it has been evaluated with the
+	 * same configuration, parameters and base cohort since the data it is evaluated from last changed, otherwise by
+	 * evaluating it.  The cache is read and written on a single connection of its own.
+	 */
+	public Cohort evaluate(CohortDefinition definition, EvaluationContext context) throws EvaluationException {
+		String key = (isEnabled() ? getCacheKey(definition, context) : null);
+		if (key == null) {
+			return evaluateDefinition(definition, context);
+		}
+		Collection<String> tables = getTables(definition);
+		Connection connection = openConnection();
+		try {
+			String version = null;
+			try {
+				version = getDataVersion(connection, tables);
+				Cohort cached = load(connection, key, version);
+				if (cached != null) {
+					log.debug("Found " + definition.getClass().getSimpleName() + " " + key + " in the cohort cache");
+					return cached;
+				}
+			}
+			catch (SQLException e) {
+				log.warn("Unable to read from the cohort cache", e);
+				version = null;
+			}
+			Cohort cohort = evaluateDefinition(definition, context);
+			if (version != null) {
+				try {
+					if (version.equals(getDataVersion(connection, tables))) {
+						connection.setAutoCommit(false);
+						store(connection, key, version, definition.getClass().getName(), cohort);
+						connection.commit();
+					}
+				}
+				catch (SQLException e) {
+					log.warn("Unable to write to the cohort cache", e);
+					rollbackQuietly(connection);
+					synchronized (this) {
+						cleanedDay = null;
+					}
+				}
+			}
+			return cohort;
+		}
+		finally {
+			MysqlRunner.closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * @return the key under which the cohort for the definition in the given context is cached, or null if the
+	 * definition cannot be recognised in another run and so cannot be cached
+	 */
+	public String getCacheKey(CohortDefinition definition, EvaluationContext context) {
+		DefinitionKey keys = new DefinitionKey();
+		List<Object> key = new ArrayList<Object>();
+		key.add(getModuleVersion());
+		key.add(new SimpleDateFormat("yyyy-MM-dd").format(context.getEvaluationDate()));
+		key.add(keys.getKey(definition));
+		key.add(keys.getKey(context.getParameterValues()));
+		key.add(getBaseCohortDigest(context.getBaseCohort()));
+		return DefinitionKey.digest(key);
+	}
+
+	/**
+	 * @return the cached cohort with the given key, if it was cached for the given data version, or null
+	 */
+	public Cohort load(Connection connection, String key, String version) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement("select member_ids from " + TABLE_NAME + " where cache_key = ? and data_version = ?");
+		try {
+			statement.setString(1, key);
+			statement.setString(2, version);
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? new Cohort(decode(resultSet.getBytes(1))) : null;
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Caches the cohort with the given key, as evaluated from the given data version, and removes the cohorts cached
+	 * on earlier days if they have not been removed yet today.  The changes are made in the transaction of the given
+	 * connection, and are only seen by others once it is committed.
+	 */
+	public void store(Connection connection, String key, String version, String definitionClass, Cohort cohort) throws SQLException {
+		Date now = new Date(currentTimeMillis());
+		synchronized (this) {
+			String today = new SimpleDateFormat("yyyy-MM-dd").format(now);
+			if (!today.equals(cleanedDay)) {
+				execute(connection, "delete from " + TABLE_NAME + " where date_created < ?", new Timestamp(DateUtil.getStartOfDay(now).getTime()));
+				cleanedDay = today;
+			}
+		}
+		execute(connection, "delete from " + TABLE_NAME + " where cache_key = ?", key);
+		execute(connection, "insert into " + TABLE_NAME + " (cache_key, data_version, definition_class, num_patients, member_ids, date_created) values (?, ?, ?, ?, ?, ?)",
+				key, version, definitionClass, cohort.size(), encode(cohort.getMemberIds()), new Timestamp(now.getTime()));
+	}
+
+	/**
+	 * Adds the changes counted since the last lookup to the stored versions of their tables
+	 * @return a digest of the stored versions of the given tables, which changes whenever the data in any of them does
+	 */
+	public String getDataVersion(Connection connection, Collection<String> tables) throws SQLException {
+		synchronized (uncountedChanges) {
+			for (Iterator<Map.Entry<String, Long>> i = uncountedChanges.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, Long> e = i.next();
+				if (execute(connection, "update " + VERSION_TABLE_NAME + " set version = version + ? where table_name = ?", e.getValue(), e.getKey()) == 0) {
+					execute(connection, "insert into " + VERSION_TABLE_NAME + " (table_name, version) values (?, ?)", e.getKey(), e.getValue());
+				}
+				i.remove();
+			}
+		}
+		Map<String, Long> versions = new TreeMap<String, Long>();
+		for (String table : tables) {
+			versions.put(table, 0L);
+		}
+		PreparedStatement statement = connection.prepareStatement("select table_name, version from " + VERSION_TABLE_NAME);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				if (versions.containsKey(resultSet.getString(1))) {
+					versions.put(resultSet.getString(1), resultSet.getLong(2));
+				}
+			}
+		}
+		finally {
+			statement.close();
+		}
+		return DefinitionKey.digest(versions);
+	}
+
+	/**
+	 * @return the tables that the cohort for the definition is evaluated from
+	 */
+	public Collection<String> getTables(CohortDefinition definition) {
+		List<String> tables = DEFINITION_TABLES.get(definition.getClass());
+		return (tables == null ? getAllTables() : tables);
+	}
+
+	/**
+	 * Removes all cached cohorts
+	 */
+	public synchronized void clear(Connection connection) throws SQLException {
+		execute(connection, "delete from " + TABLE_NAME);
+		cleanedDay = null;
+	}
+
+	/**
+	 * Creates the tables of the cache if they do not exist yet
+	 */
+	public void createTables() {
+		Connection connection = openConnection();
+		try {
+			createTables(connection);
+		}
+		catch (SQLException e) {
+			log.warn("Unable to create the cohort cache tables", e);
+		}
+		finally {
+			MysqlRunner.closeQuietly(connection);
+		}
+	}
+
+	protected void createTables(Connection connection) throws SQLException {
+		execute(connection, "create table if not exists " + TABLE_NAME + " (" +
+				"cache_key varchar(64) not null primary key, " +
+				"data_version varchar(64) not null, " +
+				"definition_class varchar(255), " +
+				"num_patients int not null, " +
+				"member_ids longblob not null, " +
+				"date_created datetime not null)");
+		execute(connection, "create table if not exists " + VERSION_TABLE_NAME + " (" +
+				"table_name varchar(64) not null primary key, " +
+				"version bigint not null)");
+	}
+
+	/**
+	 * @return the table whose version counts changes of the type in the event message, or null if it is not known
+	 */
+	protected String getChangedTable(Message message) {
+		try {
+			String className = (message instanceof MapMessage ? ((MapMessage) message).getString("classname") : null);
+			for (Map.Entry<Class<?>, String> e : CHANGE_TABLES.entrySet()) {
+				if (e.getKey().getName().equals(className)) {
+					return e.getValue();
+				}
+			}
+		}
+		catch (JMSException e) {
+			log.warn("Unable to read the changed type from the event message", e);
+		}
+		return null;
+	}
+
+	protected Set<String> getAllTables() {
+		return new TreeSet<String>(CHANGE_TABLES.values());
+	}
+
+	/**
+	 * @return a digest of the members of the base cohort, which is reused while the same base cohort is passed
+	 */
+	protected synchronized String getBaseCohortDigest(Cohort baseCohort) {
+		if (baseCohort == null) {
+			return null;
+		}
+		if (baseCohort != lastBaseCohort) {
+			lastBaseCohortDigest = DefinitionKey.digest(encode(baseCohort.getMemberIds()));
+			lastBaseCohort = baseCohort;
+		}
+		return lastBaseCohortDigest;
+	}
+
+	/**
+	 * @return a new connection to the database, on which the cache is read and written
+	 */
+	protected Connection openConnection() {
+		return MysqlRunner.openConnection();
+	}
+
+	protected Cohort evaluateDefinition(CohortDefinition definition, EvaluationContext context) throws EvaluationException {
+		return cohortDefinitionService.evaluate(definition, context);
+	}
+
+	protected boolean isEnabled() {
+		return !"false".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(ENABLED_PROPERTY));
+	}
+
+	protected String getModuleVersion() {
+		Module module = ModuleFactory.getModuleById(MODULE_ID);
+		return (module == null ? null : module.getVersion());
+	}
+
+	/**
+	 * @return the current time, at which cohorts are stored
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the member ids sorted, stored as the differences between each and the one before it, and compressed
+	 */
+	public static byte[] encode(Collection<Integer> memberIds) {
+		List<Integer> ids = new ArrayList<Integer>(memberIds);
+		Collections.sort(ids);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+			out.writeInt(ids.size());
+			int previous = 0;
+			for (Integer id : ids) {
+				out.writeInt(id - previous);
+				previous = id;
+			}
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Unable to encode cohort", e);
+		}
+	}
+
+	/**
+	 * @return the member ids stored by encode
+	 */
+	public static List<Integer> decode(byte[] encoded) {
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(encoded)));
+			int size = in.readInt();
+			List<Integer> ids = new ArrayList<Integer>(size);
+			int previous = 0;
+			for (int i = 0; i < size; i++) {
+				previous += in.readInt();
+				ids.add(previous);
+			}
+			in.close();
+			return ids;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Unable to decode cohort", e);
+		}
+	}
+
+	private int execute(Connection connection, String sql, Object... parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (int i=0; i<parameters.length; i++) {
+				statement.setObject(i+1, parameters[i]);
+			}
+			return statement.executeUpdate();
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private void rollbackQuietly(Connection connection) {
+		try {
+			connection.rollback();
+		}
+		catch (SQLException e) {
+			log.warn("Unable to roll back the cohort cache", e);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+import org.openmrs.module.reporting.report.util.ReportUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Warehouse of the IC3 register, built by the procedures in ic3RegisterSqlProcedures.sql and reportingSqlProcedures.sql
+ */
+@Component
+public class Ic3RegisterWarehouse extends IncrementalWarehouse {
+
+	public static final String NAME = "ic3Register";
+	public static final String COHORT_SCRIPT = "org/openmrs/module/pihmalawi/sql/ic3RegisterWarehouseCohort.sql";
+	public static final String COLUMNS_SCRIPT = "org/openmrs/module/pihmalawi/sql/ic3RegisterWarehouseColumns.sql";
+
+	public Ic3RegisterWarehouse() {
+		setName(NAME);
+		setTableName("ic3_register_warehouse");
+		setSourceTableName("warehouseCohortTable");
+		setPatientIdColumn("PID");
+		setEndDateParameter("reportEndDate");
+		addChangeSource("select person_id as patient_id from person", "date_created", "date_changed", "date_voided");
+		addChangeSource("select person_id as patient_id from person_name", "date_created", "date_changed", "date_voided");
+		addChangeSource("select person_id as patient_id from person_address", "date_created", "date_changed", "date_voided");
+		addChangeSource("select patient_id from patient_identifier", "date_created", "date_changed", "date_voided");
+		addChangeSource("select patient_id from patient_program", "date_created", "date_changed", "date_voided");
+		addChangeSource("select pp.patient_id from patient_state ps inner join patient_program pp on ps.patient_program_id = pp.patient_program_id", "ps.date_created", "ps.date_changed", "ps.date_voided");
+		addChangeSource("select patient_id from encounter", "date_created", "date_changed", "date_voided");
+		addChangeSource("select person_id as patient_id from obs", "date_created", "date_voided");
+		addEndDateSource("select person_id as patient_id from person where timestampdiff(year, birthdate, @earlierEndDate) <> timestampdiff(year, birthdate, @laterEndDate)");
+		addDatedEndDateSource("select person_id as patient_id from person", "death_date");
+		addDatedEndDateSource("select patient_id from patient_identifier", "date_created");
+		addDatedEndDateSource("select patient_id from patient_program", "date_enrolled");
+		addDatedEndDateSource("select patient_id from patient_program", "date_completed");
+		addDatedEndDateSource("select pp.patient_id from patient_state ps inner join patient_program pp on ps.patient_program_id = pp.patient_program_id", "ps.start_date");
+		addDatedEndDateSource("select pp.patient_id from patient_state ps inner join patient_program pp on ps.patient_program_id = pp.patient_program_id", "ps.end_date");
+		addDatedEndDateSource("select patient_id from encounter", "encounter_datetime");
+		addDatedEndDateSource("select person_id as patient_id from obs", "obs_datetime");
+	}
+
+	/**
+	 * Adds an end date source for the patients with a value of the given column on or between the two end dates
+	 */
+	private void addDatedEndDateSource(String patientIdQuery, String dateColumn) {
+		addEndDateSource(patientIdQuery + " where " + dateColumn + " >= @earlierEndDate and " + dateColumn + " < date_add(@laterEndDate, interval 1 day)");
+	}
+
+	@Override
+	public String getCohortScript() {
+		if (super.getCohortScript() == null) {
+			setCohortScript(ReportUtil.readStringFromResource(COHORT_SCRIPT));
+		}
+		return super.getCohortScript();
+	}
+
+	@Override
+	public String getColumnsScript() {
+		if (super.getColumnsScript() == null) {
+			setColumnsScript(ReportUtil.readStringFromResource(COLUMNS_SCRIPT));
+		}
+		return super.getColumnsScript();
+	}
+}
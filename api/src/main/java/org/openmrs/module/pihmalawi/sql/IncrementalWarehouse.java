@@ -0,0 +1,412 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains a persistent, patient-keyed copy of a table that is built by SQL scripts for the latest end date requested.
+ *
+ * The cohort script creates the source table with one row per patient, and the columns script fills in its columns.
+ * The first refresh runs both scripts for all patients and copies the source table into the warehouse table.  Each
+ * subsequent refresh finds the patients with rows in the change sources created, changed or voided since the
+ * high-water mark stored for the warehouse, runs the cohort script with @changedPatientsOnly set to 1 so that it may
+ * build the source table for just the patients in the changed patient table, and replaces only their rows in the
+ * warehouse table.  The source table is restricted to the changed patients whether or not the cohort script does so.
+ *
+ * The warehouse table only holds rows for a single end date, which is stored with the high-water mark.  When a refresh
+ * is for another end date, the patients found by the end date sources, whose dated rows fall between the previous and
+ * the new end date, are recomputed along with the changed patients, and the rows of all other patients are moved to
+ * the new end date.
+ *
+ * The high-water mark is the database time at which the last refresh started, so rows saved by transactions that
+ * were still open at that time may carry an earlier timestamp.  Changes are therefore looked for from changeOverlap
+ * before the high-water mark, and the patients in that window are recomputed again.  Columns that depend on metadata,
+ * such as concept or location names, are not covered by the change sources, so all patients are recomputed once
+ * fullRefreshInterval has passed since they last were.
+ *
+ * The warehouse table has the columns of the source table plus report_end_date.  If the columns of the source table
+ * change, the warehouse table is recreated and all patients are recomputed.
+ */
+public class IncrementalWarehouse {
+
+	protected Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * The number of milliseconds before the high-water mark from which changes are looked for by default
+	 */
+	public static final long DEFAULT_CHANGE_OVERLAP = 10 * 60 * 1000;
+
+	/**
+	 * The number of milliseconds after which all patients are recomputed by default
+	 */
+	public static final long DEFAULT_FULL_REFRESH_INTERVAL = 24 * 60 * 60 * 1000;
+
+	private String name;
+	private String tableName;
+	private String sourceTableName;
+	private String patientIdColumn;
+	private String endDateParameter;
+	private String cohortScript;
+	private String columnsScript;
+	private Map<String, List<String>> changeSources = new LinkedHashMap<String, List<String>>();
+	private List<String> endDateSources = new ArrayList<String>();
+	private long changeOverlap = DEFAULT_CHANGE_OVERLAP;
+	private long fullRefreshInterval = DEFAULT_FULL_REFRESH_INTERVAL;
+
+	public IncrementalWarehouse() {}
+
+	/**
+	 * Refreshes the warehouse table for the end date found in the given parameter values.  The scripts run DDL, which
+	 * implicitly commits, so the connection should be a dedicated one, such as from MysqlRunner.openConnection()
+	 */
+	public void refresh(Connection connection, Map<String, Object> parameterValues) {
+		Object endDate = parameterValues.get(getEndDateParameter());
+		if (!(endDate instanceof Date)) {
+			throw new IllegalArgumentException("The " + getName() + " warehouse requires a " + getEndDateParameter() + " date parameter");
+		}
+		refresh(connection, (Date) endDate);
+	}
+
+	/**
+	 * Brings the rows of the warehouse table up to date for the given end date
+	 * @return the number of patients whose rows were recomputed, or -1 if all patients were recomputed
+	 */
+	public synchronized int refresh(Connection connection, Date endDate) {
+		java.sql.Date endDateValue = (java.sql.Date) MysqlRunner.getParameterBindingValue(endDate);
+		try {
+			createStatusTable(connection);
+			createChangedTable(connection);
+			Timestamp refreshStarted = queryTimestamp(connection, "select current_timestamp");
+			String statusQuery = "select %s from " + getStatusTableName() + " where warehouse_name = ?";
+			Timestamp lastEndDate = queryTimestamp(connection, String.format(statusQuery, "report_end_date"), getName());
+			Timestamp highWaterMark = queryTimestamp(connection, String.format(statusQuery, "high_water_mark"), getName());
+			Timestamp lastFullRefresh = queryTimestamp(connection, String.format(statusQuery, "last_full_refresh"), getName());
+
+			int numChanged = -1;
+			if (highWaterMark != null && refreshStarted.getTime() - lastFullRefresh.getTime() < getFullRefreshInterval()) {
+				Timestamp changedSince = new Timestamp(highWaterMark.getTime() - getChangeOverlap());
+				numChanged = loadChangedPatients(connection, changedSince, new java.sql.Date(lastEndDate.getTime()), endDateValue);
+				log.debug(numChanged + " patients changed since " + changedSince + " in the " + getName() + " warehouse");
+				if (numChanged == 0) {
+					execute(connection, "update " + getTableName() + " set report_end_date = ? where report_end_date <> ?", endDateValue, endDateValue);
+					setStatus(connection, endDateValue, refreshStarted, lastFullRefresh);
+					return 0;
+				}
+			}
+
+			runScript(connection, getCohortScript(), getParameterValues(endDate, numChanged > 0));
+			if (!warehouseTableMatchesSourceTable(connection)) {
+				log.info("Creating " + getTableName() + " table for the " + getName() + " warehouse");
+				execute(connection, "drop table if exists " + getTableName());
+				execute(connection, "create table " + getTableName() + " as select * from " + getSourceTableName() + " where 1=0");
+				execute(connection, "alter table " + getTableName() + " add column report_end_date date");
+				execute(connection, "create index " + getTableName() + "_end_date_idx on " + getTableName() + " (report_end_date, " + getPatientIdColumn() + ")");
+				if (numChanged > 0) {
+					runScript(connection, getCohortScript(), getParameterValues(endDate, false));
+				}
+				numChanged = -1;
+			}
+
+			String changedPatients = "select patient_id from " + getChangedTableName();
+			if (numChanged > 0) {
+				execute(connection, "delete from " + getSourceTableName() + " where " + getPatientIdColumn() + " not in (" + changedPatients + ")");
+			}
+			runScript(connection, getColumnsScript(), getParameterValues(endDate, numChanged > 0));
+
+			if (numChanged > 0) {
+				execute(connection, "update " + getTableName() + " set report_end_date = ? where report_end_date <> ?", endDateValue, endDateValue);
+				execute(connection, "delete from " + getTableName() + " where " + getPatientIdColumn() + " in (" + changedPatients + ")");
+			}
+			else {
+				execute(connection, "delete from " + getTableName());
+			}
+			execute(connection, "insert into " + getTableName() + " select t.*, cast(? as date) from " + getSourceTableName() + " t", endDateValue);
+
+			setStatus(connection, endDateValue, refreshStarted, numChanged == -1 ? refreshStarted : lastFullRefresh);
+			log.info("Refreshed " + (numChanged == -1 ? "all" : Integer.toString(numChanged)) + " patients in the " + getName() + " warehouse");
+			return numChanged;
+		}
+		catch (SQLException e) {
+			throw new IllegalStateException("Unable to refresh the " + getName() + " warehouse", e);
+		}
+	}
+
+	/**
+	 * @return the parameter values passed to the scripts
+	 */
+	protected Map<String, Object> getParameterValues(Date endDate, boolean changedPatientsOnly) {
+		Map<String, Object> parameterValues = new HashMap<String, Object>();
+		parameterValues.put(getEndDateParameter(), endDate);
+		parameterValues.put("changedPatientsOnly", changedPatientsOnly ? 1 : 0);
+		return parameterValues;
+	}
+
+	/**
+	 * Creates the status table, which has a single row for the warehouse.  A status table from a version that kept a row
+	 * per end date is recreated, in which case all patients are recomputed on the next refresh
+	 */
+	protected void createStatusTable(Connection connection) throws SQLException {
+		try {
+			if (getColumnCount(connection, getStatusTableName()) != 4) {
+				execute(connection, "drop table " + getStatusTableName());
+			}
+		}
+		catch (SQLException e) {
+			log.debug("Status table " + getStatusTableName() + " does not exist yet");
+		}
+		execute(connection, "create table if not exists " + getStatusTableName() + " (warehouse_name varchar(50) not null primary key, " +
+				"report_end_date date not null, high_water_mark datetime not null, last_full_refresh datetime not null)");
+	}
+
+	/**
+	 * Creates the changed patient table, so that the cohort script may refer to it whether or not it is restricted
+	 */
+	protected void createChangedTable(Connection connection) throws SQLException {
+		execute(connection, "create table if not exists " + getChangedTableName() + " (patient_id int not null primary key)");
+	}
+
+	/**
+	 * Populates the changed patient table with all patients that have a row in any change source whose timestamp
+	 * columns are on or after the given time, and if the end date has changed, all patients found by the end date sources
+	 * @return the number of changed patients
+	 */
+	protected int loadChangedPatients(Connection connection, Timestamp changedSince, java.sql.Date lastEndDate, java.sql.Date endDate) throws SQLException {
+		execute(connection, "delete from " + getChangedTableName());
+
+		List<Object> parameters = new ArrayList<Object>();
+		StringBuilder query = new StringBuilder();
+		for (String changeSource : getChangeSources().keySet()) {
+			query.append(query.length() == 0 ? "" : " union ").append(changeSource).append(" where ");
+			List<String> timestampColumns = getChangeSources().get(changeSource);
+			for (int i=0; i<timestampColumns.size(); i++) {
+				query.append(i == 0 ? "" : " or ").append(timestampColumns.get(i)).append(" >= ?");
+				parameters.add(changedSince);
+			}
+		}
+		if (!endDate.equals(lastEndDate)) {
+			boolean later = endDate.after(lastEndDate);
+			execute(connection, "set @earlierEndDate = ?", later ? lastEndDate : endDate);
+			execute(connection, "set @laterEndDate = ?", later ? endDate : lastEndDate);
+			for (String endDateSource : getEndDateSources()) {
+				query.append(query.length() == 0 ? "" : " union ").append(endDateSource);
+			}
+		}
+		execute(connection, "insert into " + getChangedTableName() + " (patient_id) select c.patient_id from (" + query + ") c", parameters.toArray());
+		PreparedStatement statement = connection.prepareStatement("select count(*) from " + getChangedTableName());
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	protected boolean warehouseTableMatchesSourceTable(Connection connection) {
+		try {
+			return getColumnCount(connection, getTableName()) == getColumnCount(connection, getSourceTableName()) + 1;
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	protected void setStatus(Connection connection, java.sql.Date endDate, Timestamp highWaterMark, Timestamp lastFullRefresh) throws SQLException {
+		execute(connection, "delete from " + getStatusTableName() + " where warehouse_name = ?", getName());
+		execute(connection, "insert into " + getStatusTableName() + " (warehouse_name, report_end_date, high_water_mark, last_full_refresh) values (?, ?, ?, ?)",
+				getName(), endDate, highWaterMark, lastFullRefresh);
+	}
+
+	protected void runScript(Connection connection, String script, Map<String, Object> parameterValues) {
+		MysqlResult result = new MysqlResult();
+		MysqlRunner.executeSql(connection, script, parameterValues, result);
+		if (!result.getErrors().isEmpty()) {
+			throw new IllegalStateException("Errors occurred building the " + getName() + " warehouse: " + result.getErrors());
+		}
+	}
+
+	private int getColumnCount(Connection connection, String table) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery("select * from " + table + " where 1=0");
+			return resultSet.getMetaData().getColumnCount();
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private void execute(Connection connection, String sql, Object... parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (int i=0; i<parameters.length; i++) {
+				statement.setObject(i+1, parameters[i]);
+			}
+			statement.execute();
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private Timestamp queryTimestamp(Connection connection, String sql, Object... parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (int i=0; i<parameters.length; i++) {
+				statement.setObject(i+1, parameters[i]);
+			}
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getTimestamp(1) : null;
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Adds a query selecting a single column named patient_id, whose rows are considered changed if any of the given
+	 * timestamp columns are on or after the high-water mark.  The query must not have a where clause.
+	 */
+	public void addChangeSource(String patientIdQuery, String... timestampColumns) {
+		List<String> columns = new ArrayList<String>();
+		for (String column : timestampColumns) {
+			columns.add(column);
+		}
+		changeSources.put(patientIdQuery, columns);
+	}
+
+	/**
+	 * Adds a query selecting a single column named patient_id, for the patients whose rows may differ between two end
+	 * dates, such as those with dated rows between them.  The query may refer to @earlierEndDate and @laterEndDate.
+	 */
+	public void addEndDateSource(String patientIdQuery) {
+		endDateSources.add(patientIdQuery);
+	}
+
+	//***** Properties *****
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+	}
+
+	public String getStatusTableName() {
+		return getTableName() + "_status";
+	}
+
+	public String getChangedTableName() {
+		return getTableName() + "_changed";
+	}
+
+	public String getSourceTableName() {
+		return sourceTableName;
+	}
+
+	public void setSourceTableName(String sourceTableName) {
+		this.sourceTableName = sourceTableName;
+	}
+
+	public String getPatientIdColumn() {
+		return patientIdColumn;
+	}
+
+	public void setPatientIdColumn(String patientIdColumn) {
+		this.patientIdColumn = patientIdColumn;
+	}
+
+	public String getEndDateParameter() {
+		return endDateParameter;
+	}
+
+	public void setEndDateParameter(String endDateParameter) {
+		this.endDateParameter = endDateParameter;
+	}
+
+	public String getCohortScript() {
+		return cohortScript;
+	}
+
+	public void setCohortScript(String cohortScript) {
+		this.cohortScript = cohortScript;
+	}
+
+	public String getColumnsScript() {
+		return columnsScript;
+	}
+
+	public void setColumnsScript(String columnsScript) {
+		this.columnsScript = columnsScript;
+	}
+
+	public Map<String, List<String>> getChangeSources() {
+		return changeSources;
+	}
+
+	public void setChangeSources(Map<String, List<String>> changeSources) {
+		this.changeSources = changeSources;
+	}
+
+	public List<String> getEndDateSources() {
+		return endDateSources;
+	}
+
+	public void setEndDateSources(List<String> endDateSources) {
+		this.endDateSources = endDateSources;
+	}
+
+	/**
+	 * @return the number of milliseconds before the high-water mark from which changes are looked for
+	 */
+	public long getChangeOverlap() {
+		return changeOverlap;
+	}
+
+	public void setChangeOverlap(long changeOverlap) {
+		this.changeOverlap = changeOverlap;
+	}
+
+	/**
+	 * @return the number of milliseconds after which all patients are recomputed
+	 */
+	public long getFullRefreshInterval() {
+		return fullRefreshInterval;
+	}
+
+	public void setFullRefreshInterval(long fullRefreshInterval) {
+		this.fullRefreshInterval = fullRefreshInterval;
+	}
+}
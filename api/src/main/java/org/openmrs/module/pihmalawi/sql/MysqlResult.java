@@ -9,18 +9,50 @@
  */
 package org.openmrs.module.pihmalawi.sql;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Encapsulates the result from executing a script with MysqlRunner
+ * Encapsulates the result from executing a script with MysqlRunner.
+ * Rows are held as typed value arrays.  The data property exposes them as String maps, converted on access,
+ * in the same format that the mysql command line client produces.
  */
-public class MysqlResult {
+public class MysqlResult implements MysqlRowHandler {
 
     private List<String> columns;
+    private List<Class<?>> columnTypes;
+    private List<Object[]> rows;
     private List<Map<String, String>> data;
     private List<String> errors;
+    private int numResultsStarted = 0;
+
+    //***** MysqlRowHandler *****
+
+    /**
+     * Only the first result set produced by a script is retained
+     */
+    public void startResult(List<String> columns, List<Class<?>> columnTypes) {
+        numResultsStarted++;
+        if (numResultsStarted == 1) {
+            setColumns(columns);
+            setColumnTypes(columnTypes);
+        }
+    }
+
+    public void handleRow(Object[] values) {
+        if (numResultsStarted == 1) {
+            getRows().add(values);
+        }
+    }
+
+    public void handleError(String error) {
+        getErrors().add(error);
+    }
+
+    //***** Properties *****
 
     public List<String> getColumns() {
         if (columns == null) {
@@ -33,9 +65,31 @@ public class MysqlResult {
         this.columns = columns;
     }
 
+    public List<Class<?>> getColumnTypes() {
+        if (columnTypes == null) {
+            columnTypes = new ArrayList<Class<?>>();
+        }
+        return columnTypes;
+    }
+
+    public void setColumnTypes(List<Class<?>> columnTypes) {
+        this.columnTypes = columnTypes;
+    }
+
+    public List<Object[]> getRows() {
+        if (rows == null) {
+            rows = new ArrayList<Object[]>();
+        }
+        return rows;
+    }
+
+    public void setRows(List<Object[]> rows) {
+        this.rows = rows;
+    }
+
     public List<Map<String, String>> getData() {
         if (data == null) {
-            data = new ArrayList<Map<String, String>>();
+            data = new StringRowView();
         }
         return data;
     }
@@ -54,4 +108,41 @@ public class MysqlResult {
     public void setErrors(List<String> errors) {
         this.errors = errors;
     }
+
+    /**
+     * View of the typed rows as column name to String value maps
+     */
+    private class StringRowView extends AbstractList<Map<String, String>> {
+
+        @Override
+        public Map<String, String> get(int index) {
+            Object[] values = getRows().get(index);
+            Map<String, String> row = new LinkedHashMap<String, String>();
+            for (int i=0; i<getColumns().size(); i++) {
+                row.put(getColumns().get(i), MysqlRunner.formatValue(values[i]));
+            }
+            return row;
+        }
+
+        @Override
+        public void add(int index, Map<String, String> row) {
+            Object[] values = new Object[getColumns().size()];
+            for (int i=0; i<values.length; i++) {
+                values[i] = row.get(getColumns().get(i));
+            }
+            getRows().add(index, values);
+        }
+
+        @Override
+        public Map<String, String> remove(int index) {
+            Map<String, String> row = get(index);
+            getRows().remove(index);
+            return row;
+        }
+
+        @Override
+        public int size() {
+            return getRows().size();
+        }
+    }
 }
@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+import java.util.List;
+
+/**
+ * Receives the rows of a script executed with MysqlRunner as they are read from the result cursor
+ */
+public interface MysqlRowHandler {
+
+    /**
+     * Called once for each result set produced by the script, before any of its rows
+     * @param columns the column labels, in order
+     * @param columnTypes the java type of each column, as returned by MysqlRunner#getColumnType
+     */
+    void startResult(List<String> columns, List<Class<?>> columnTypes);
+
+    /**
+     * Called for each row of the current result set.  The array is not reused between calls.
+     */
+    void handleRow(Object[] values);
+
+    /**
+     * Called for each statement that fails.  Execution of the script stops after the first error.
+     */
+    void handleError(String error);
+}
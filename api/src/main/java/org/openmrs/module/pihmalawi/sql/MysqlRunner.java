@@ -9,35 +9,61 @@
  */
 package org.openmrs.module.pihmalawi.sql;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.report.util.ReportUtil;
-import org.openmrs.util.DatabaseUpdater;
-import org.openmrs.util.OpenmrsUtil;
 
-import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * Executes a MySQL script using the native process and returns results
+ * Executes a MySQL script over a JDBC connection from the OpenMRS connection pool and returns results.
+ * Parameters are bound as user variables (@paramName) on the connection, statements are executed in order,
+ * and the rows of each result set are streamed from the cursor to a MysqlRowHandler with typed values.
  */
 public class MysqlRunner {
 
 	private static Log log = LogFactory.getLog(MysqlRunner.class);
 
+    /**
+     * Line used in our procedure scripts to separate statements that themselves contain semi-colons
+     */
+    public static final String HASH_DELIMITER = "#";
+
+    /**
+     * The statement delimiter until a script changes it with a DELIMITER line
+     */
+    public static final String DEFAULT_DELIMITER = ";";
+
+    private static final Pattern DELIMITER_LINE = Pattern.compile("\\s*delimiter\\s+(\\S+)\\s*", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CREATE_TEMPORARY_TABLE = Pattern.compile("\\s*create\\s+temporary\\s+table\\s+(if\\s+not\\s+exists\\s+)?([`\\w.]+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern STORED_PROGRAM = Pattern.compile("create\\s+(definer\\s*=\\s*\\S+\\s+)?(procedure|function|trigger|event)\\b.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Executes a Sql Script located under resources
      */
@@ -64,96 +90,391 @@ public class MysqlRunner {
      * Executes a Sql Script
 	 */
 	public static MysqlResult executeSql(String sql, Map<String, Object> parameterValues) {
+        MysqlResult result = new MysqlResult();
+        executeSql(sql, parameterValues, result);
+        return result;
+	}
 
-        log.info("Executing SQL...");
-
-        File toExecute = null;
+    /**
+     * Executes a Sql Script against a connection from the OpenMRS connection pool, streaming results to the handler
+     */
+    public static void executeSql(String sql, Map<String, Object> parameterValues, MysqlRowHandler handler) {
+        Connection connection = openConnection();
         try {
-            // Writing SQL to temporary file for execution
-            toExecute = File.createTempFile("mysqlrunner", ".sql");
+            executeSql(connection, sql, parameterValues, handler);
+        }
+        finally {
+            closeQuietly(connection);
+        }
+    }
 
-            StringBuilder sqlToWrite = new StringBuilder();
+    /**
+     * Scripts are run on their own connection from the OpenMRS connection pool rather than on that of the current
+     * Hibernate session, so that any DDL they run does not implicitly commit the transaction of the session.  The
+     * temporary tables they create and the user variables they set are dropped before the connection is returned.
+     * @return a connection from the connection provider of the OpenMRS session factory, in auto-commit mode, which
+     * the caller must close to return it to the pool
+     */
+    public static Connection openConnection() {
+        SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+        try {
+            Connection connection = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider().getConnection();
+            connection.setAutoCommit(true);
+            return connection;
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException("Unable to obtain a connection from the OpenMRS connection pool", e);
+        }
+    }
 
-            if (parameterValues != null) {
-                for (String paramName : parameterValues.keySet()) {
-                    Object paramValue = parameterValues.get(paramName);
-                    sqlToWrite.append("set @").append(paramName);
-                    sqlToWrite.append("=").append(getParameterAssignmentString(paramValue)).append(";");
-                    sqlToWrite.append(System.getProperty("line.separator"));
-                }
+    /**
+     * Closes the connection, logging rather than throwing any error
+     */
+    public static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                log.debug("Error closing connection", e);
             }
-            sqlToWrite.append(sql);
+        }
+    }
 
-            FileUtils.writeStringToFile(toExecute, sqlToWrite.toString());
-            log.debug("Wrote SQL file for execution: " + toExecute.getAbsolutePath());
-            log.debug("Contents:\n" + sqlToWrite);
+    /**
+     * Executes a Sql Script against the given connection, streaming results to the handler.
+     * The connection is left open.  Any user variables set for the parameters are reset to null, and any temporary
+     * tables created by the script are dropped, on completion, so that none are left on a pooled connection.
+     */
+    public static void executeSql(Connection connection, String sql, Map<String, Object> parameterValues, MysqlRowHandler handler) {
 
-            // Constructing command line elements to execute
-            List<String> commands = new ArrayList<String>();
-            commands.add("mysql");
-            commands.add("-u" + Context.getRuntimeProperties().getProperty("connection.username"));
-            commands.add("-p" + Context.getRuntimeProperties().getProperty("connection.password"));
-            commands.add("-esource " + toExecute.getAbsolutePath());
+        log.info("Executing SQL...");
 
-            commands.add(DatabaseUpdater.getConnection().getCatalog()); // Database Name
-            log.debug("Constructed command to execute: \n" + OpenmrsUtil.join(commands, " "));
+        if (parameterValues == null) {
+            parameterValues = new HashMap<String, Object>();
+        }
 
-            Process process = Runtime.getRuntime().exec(commands.toArray(new String[]{}));
+        List<String> temporaryTables = new ArrayList<String>();
+        try {
+            for (String paramName : parameterValues.keySet()) {
+                Object paramValue = parameterValues.get(paramName);
+                log.debug("set @" + paramName + "=" + getParameterAssignmentString(paramValue));
+                setUserVariable(connection, paramName, getParameterBindingValue(paramValue));
+            }
 
-            MysqlResult result = new MysqlResult();
-            LineIterator successIterator = null;
-            try {
-                successIterator = IOUtils.lineIterator(process.getInputStream(), "UTF-8");
-                while (successIterator.hasNext()) {
-                    String line = successIterator.nextLine();
-                    String[] elements = StringUtils.splitPreserveAllTokens(line, '\t');
-                    if (result.getColumns().isEmpty()) {
-                        result.setColumns(Arrays.asList(elements));
+            boolean streamResults = isMysql(connection);
+            for (String statementSql : splitStatements(sql)) {
+                log.debug("Executing statement:\n" + statementSql);
+                Matcher temporaryTable = CREATE_TEMPORARY_TABLE.matcher(statementSql);
+                if (temporaryTable.matches()) {
+                    temporaryTables.add(temporaryTable.group(2));
+                }
+                Statement statement = null;
+                try {
+                    statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    if (streamResults) {
+                        statement.setFetchSize(Integer.MIN_VALUE); // Tells the MySQL driver to stream rows rather than buffer them
                     }
-                    else {
-                        Map<String, String> row = new LinkedHashMap<String, String>();
-                        for (int i=0; i<result.getColumns().size(); i++) {
-                            String value = elements[i].trim();
-                            if ("NULL".equals(value)) {
-                                value = null;
+                    boolean isResultSet = statement.execute(statementSql);
+                    while (isResultSet || statement.getUpdateCount() != -1) {
+                        if (isResultSet) {
+                            ResultSet resultSet = statement.getResultSet();
+                            try {
+                                streamResultSet(resultSet, handler);
+                            }
+                            finally {
+                                resultSet.close();
                             }
-                            row.put(result.getColumns().get(i), value);
                         }
-                        result.getData().add(row);
+                        isResultSet = statement.getMoreResults();
                     }
                 }
+                catch (SQLException e) {
+                    log.debug("Error executing statement", e);
+                    handler.handleError(e.getMessage());
+                    break;
+                }
+                finally {
+                    closeQuietly(statement);
+                }
             }
-            finally {
-                successIterator.close();
+        }
+        catch (Exception e) {
+            throw new RuntimeException("An error occurred while executing a SQL file", e);
+        }
+        finally {
+            for (String paramName : parameterValues.keySet()) {
+                try {
+                    setUserVariable(connection, paramName, null);
+                }
+                catch (Exception e) {
+                    log.debug("Unable to reset user variable @" + paramName, e);
+                }
             }
+            dropTemporaryTables(connection, temporaryTables);
+        }
+	}
 
-            LineIterator errorIterator = null;
-            try {
-                errorIterator = IOUtils.lineIterator(process.getErrorStream(), "UTF-8");
-                while (errorIterator.hasNext()) {
-                    String line = errorIterator.nextLine();
-                    if (!line.toLowerCase().startsWith("warning")) {
-                        result.getErrors().add(line);
-                    }
+    /**
+     * Splits a script into individual statements, dropping comments and empty statements.
+     * If the script contains any line consisting solely of the HASH_DELIMITER, as in our procedure scripts,
+     * statements are split on those lines only, and only full-line comments are removed from them.
+     * Otherwise statements are split on semi-colons that are not within quotes or comments, or on the delimiter set
+     * by the last DELIMITER line, as the mysql client does.  Text ended by another delimiter is kept as one statement
+     * if it creates a stored program, and is otherwise split on semi-colons, as the server would run it.
+     */
+    public static List<String> splitStatements(String sql) {
+        List<String> statements = new ArrayList<String>();
+        if (sql == null) {
+            return statements;
+        }
+        String[] lines = sql.split("\\r?\\n");
+        boolean hashDelimited = false;
+        for (String line : lines) {
+            if (line.trim().equals(HASH_DELIMITER)) {
+                hashDelimited = true;
+            }
+        }
+        if (hashDelimited) {
+            StringBuilder current = new StringBuilder();
+            for (String line : lines) {
+                if (line.trim().equals(HASH_DELIMITER)) {
+                    addStatement(statements, current.toString());
+                    current = new StringBuilder();
+                }
+                else if (!line.trim().startsWith("--")) {
+                    current.append(line).append("\n");
                 }
             }
-            finally {
-                errorIterator.close();
+            addStatement(statements, current.toString());
+            return statements;
+        }
+        splitOnDelimiters(sql, statements);
+        return statements;
+    }
+
+    private static void splitOnDelimiters(String sql, List<String> statements) {
+        StringBuilder current = new StringBuilder();
+        String delimiter = DEFAULT_DELIMITER;
+        char quote = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            char next = (i+1 < sql.length() ? sql.charAt(i+1) : 0);
+            if (quote == 0 && (i == 0 || sql.charAt(i-1) == '\n')) {
+                int lineEnd = sql.indexOf('\n', i);
+                Matcher matcher = DELIMITER_LINE.matcher(sql.substring(i, lineEnd == -1 ? sql.length() : lineEnd));
+                if (matcher.matches()) {
+                    addStatements(statements, current.toString(), delimiter);
+                    current = new StringBuilder();
+                    delimiter = matcher.group(1);
+                    i = (lineEnd == -1 ? sql.length() : lineEnd + 1);
+                    continue;
+                }
+            }
+            if (quote != 0) {
+                current.append(c);
+                if (c == '\\' && quote != '`' && next != 0) {
+                    current.append(next);
+                    i++;
+                }
+                else if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                current.append(c);
             }
+            else if (sql.startsWith(delimiter, i)) {
+                addStatements(statements, current.toString(), delimiter);
+                current = new StringBuilder();
+                i += delimiter.length() - 1;
+            }
+            else if (c == '#' || (c == '-' && next == '-' && (i+2 >= sql.length() || Character.isWhitespace(sql.charAt(i+2))))) {
+                while (i < sql.length() && sql.charAt(i) != '\n') {
+                    i++;
+                }
+                current.append('\n');
+            }
+            else if (c == '/' && next == '*') {
+                int end = sql.indexOf("*/", i+2);
+                i = (end == -1 ? sql.length() : end+1);
+                current.append(' ');
+            }
+            else {
+                current.append(c);
+            }
+            i++;
+        }
+        addStatements(statements, current.toString(), delimiter);
+    }
 
-            return result;
+    /**
+     * Adds text that was ended by the given delimiter, splitting it on semi-colons unless that is the delimiter or it
+     * creates a stored program
+     */
+    private static void addStatements(List<String> statements, String text, String delimiter) {
+        if (DEFAULT_DELIMITER.equals(delimiter) || STORED_PROGRAM.matcher(text.trim()).matches()) {
+            addStatement(statements, text);
         }
-        catch (Exception e) {
-            throw new RuntimeException("An error occurred while executing a SQL file", e);
+        else {
+            splitOnDelimiters(text, statements);
         }
-        finally {
-            FileUtils.deleteQuietly(toExecute);
+    }
+
+    private static void addStatement(List<String> statements, String statement) {
+        statement = statement.trim();
+        if (statement.length() > 0) {
+            statements.add(statement);
         }
-	}
+    }
+
+    /**
+     * Reads every row of the result set, passing typed values to the handler
+     */
+    protected static void streamResultSet(ResultSet resultSet, MysqlRowHandler handler) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int numColumns = metaData.getColumnCount();
+        List<String> columns = new ArrayList<String>(numColumns);
+        List<Class<?>> columnTypes = new ArrayList<Class<?>>(numColumns);
+        int[] sqlTypes = new int[numColumns];
+        for (int i=1; i<=numColumns; i++) {
+            columns.add(metaData.getColumnLabel(i));
+            sqlTypes[i-1] = metaData.getColumnType(i);
+            columnTypes.add(getColumnType(sqlTypes[i-1]));
+        }
+        handler.startResult(columns, columnTypes);
+        while (resultSet.next()) {
+            Object[] values = new Object[numColumns];
+            for (int i=0; i<numColumns; i++) {
+                values[i] = readValue(resultSet, i+1, sqlTypes[i]);
+            }
+            handler.handleRow(values);
+        }
+    }
+
+    /**
+     * @return the java type that values of the given java.sql.Types column type are read as
+     */
+    public static Class<?> getColumnType(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Integer.class;
+            case Types.BIGINT:
+                return Long.class;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return Double.class;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Boolean.class;
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                return Date.class;
+            default:
+                return String.class;
+        }
+    }
+
+    /**
+     * @return the value of the given column in the current row, as the type returned by getColumnType
+     */
+    protected static Object readValue(ResultSet resultSet, int index, int sqlType) throws SQLException {
+        Object value;
+        Class<?> type = getColumnType(sqlType);
+        if (type == Integer.class) {
+            value = resultSet.getInt(index);
+        }
+        else if (type == Long.class) {
+            value = resultSet.getLong(index);
+        }
+        else if (type == Double.class) {
+            value = resultSet.getDouble(index);
+        }
+        else if (type == Boolean.class) {
+            value = resultSet.getBoolean(index);
+        }
+        else if (sqlType == Types.DATE) {
+            value = resultSet.getDate(index);
+        }
+        else if (sqlType == Types.TIME) {
+            value = resultSet.getTime(index);
+        }
+        else if (sqlType == Types.TIMESTAMP) {
+            value = resultSet.getTimestamp(index);
+        }
+        else if (sqlType == Types.BINARY || sqlType == Types.VARBINARY || sqlType == Types.LONGVARBINARY) {
+            byte[] bytes = resultSet.getBytes(index);
+            try {
+                value = (bytes == null ? null : new String(bytes, "UTF-8"));
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        else {
+            value = resultSet.getString(index);
+        }
+        return resultSet.wasNull() ? null : value;
+    }
+
+    /**
+     * @return the value formatted as the mysql command line client would display it, or null if the value is null
+     */
+    public static String formatValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Timestamp) {
+            return DateUtil.formatDate((Date)value, "yyyy-MM-dd HH:mm:ss");
+        }
+        if (value instanceof Time) {
+            return DateUtil.formatDate((Date)value, "HH:mm:ss");
+        }
+        if (value instanceof Date) {
+            return DateUtil.formatDate((Date)value, "yyyy-MM-dd");
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean)value) ? "1" : "0";
+        }
+        if (value instanceof Double && !((Double)value).isNaN() && !((Double)value).isInfinite()) {
+            return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+        }
+        return value.toString().trim();
+    }
 
+    /**
+     * @return the value to bind to the user variable for the given parameter value
+     */
+    public static Object getParameterBindingValue(Object paramValue) {
+        if (paramValue == null) {
+            return null;
+        }
+        if (paramValue instanceof Date) {
+            return new java.sql.Date(DateUtil.getStartOfDay((Date)paramValue).getTime());
+        }
+        if (paramValue instanceof Number) {
+            return paramValue;
+        }
+        if (paramValue instanceof OpenmrsObject) {
+            return ((OpenmrsObject)paramValue).getId();
+        }
+        return paramValue.toString();
+    }
+
+    /**
+     * @return the parameter value as it would appear in a "set @paramName=" statement, used for logging
+     */
     public static String getParameterAssignmentString(Object paramValue) {
         if (paramValue == null) {
-            return "'null'";
+            return "null";
         }
         else {
             if (paramValue instanceof Date) {
@@ -170,4 +491,62 @@ public class MysqlRunner {
             }
         }
     }
+
+    private static void setUserVariable(Connection connection, String name, Object value) throws SQLException {
+        if (!name.matches("\\w+")) {
+            throw new IllegalArgumentException("Invalid parameter name: " + name);
+        }
+        PreparedStatement statement = connection.prepareStatement("set @" + name + " = ?");
+        try {
+            if (value == null) {
+                statement.setNull(1, Types.VARCHAR);
+            }
+            else {
+                statement.setObject(1, value);
+            }
+            statement.execute();
+        }
+        finally {
+            closeQuietly(statement);
+        }
+    }
+
+    private static boolean isMysql(Connection connection) {
+        try {
+            return connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops the given temporary tables, logging rather than throwing any error
+     */
+    private static void dropTemporaryTables(Connection connection, List<String> tableNames) {
+        for (String tableName : tableNames) {
+            Statement statement = null;
+            try {
+                statement = connection.createStatement();
+                statement.execute("drop " + (isMysql(connection) ? "temporary " : "") + "table if exists " + tableName);
+            }
+            catch (Exception e) {
+                log.debug("Unable to drop temporary table " + tableName, e);
+            }
+            finally {
+                closeQuietly(statement);
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {
+                log.debug("Error closing statement", e);
+            }
+        }
+    }
 }
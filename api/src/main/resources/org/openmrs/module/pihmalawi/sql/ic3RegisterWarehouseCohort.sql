@@ -0,0 +1,8 @@
+-- Builds warehouseCohortTable with one row of demographic data per patient in the IC3 register cohort
+-- as of @reportEndDate.  Used by Ic3RegisterWarehouse, which sets @changedPatientsOnly to 1 when only the patients
+-- in ic3_register_warehouse_changed need to be recomputed.
+
+-- Create an empty table
+CALL createIc3RegisterTable();
+-- Create cohort with demographic data
+CALL createIc3RegisterCohort(@reportEndDate, @changedPatientsOnly);
@@ -0,0 +1,105 @@
+-- Fills in the columns of warehouseCohortTable for each patient it contains, as of @reportEndDate.
+-- Used by Ic3RegisterWarehouse after running ic3RegisterWarehouseCohort.sql.
+
+-- Call Routines to fill columns
+-- ---------------------------
+-- Warehousing 
+CALL warehouseProgramEnrollment();
+-- Demographics
+CALL getAllIdentifiers(@reportEndDate,'4','allArtIds');
+CALL getAllIdentifiers(@reportEndDate,'19','allPreArtIds');
+CALL getAllIdentifiers(@reportEndDate,'21','allCccIds');
+-- General Visits and outcomes
+CALL getEncounterDatetimeBeforeEndDate('67,69,29,115,118,119,122,123,124,125', @reportEndDate, 'last', 'lastNcdVisitDate');
+CALL getEncounterLocationBeforeEndDate('67,69,29,115,118,119,122,123,124,125', @reportEndDate, 'last', 'lastNcdVisitLocation');
+CALL getEncounterDatetimeBeforeEndDate('9,10,11,12', @reportEndDate, 'first', 'firstHivVisitDate');
+CALL getEncounterDatetimeBeforeEndDate('9,10,11,12', @reportEndDate, 'last', 'lastHivVisitDate');
+CALL getEncounterLocationBeforeEndDate('9,10,11,12', @reportEndDate, 'last', 'lastHivVisitLocation');
+CALL getEncounterDatetimeBeforeEndDate('9,10,11,12,67,69,29,115,118,119,122,123,124,125', @reportEndDate, 'last', 'lastVisitDate');
+CALL getEncounterLocationBeforeEndDate('9,10,11,12,67,69,29,115,118,119,122,123,124,125', @reportEndDate, 'last', 'lastVisitLocation');
+CALL getEncounterDatetimeBeforeEndDate('29,115', @reportEndDate, 'last', 'lastHtnDmVisitDate');
+CALL getEncounterDatetimeBeforeEndDate('122,123', @reportEndDate, 'last', 'lastEpilepsyVisitDate');
+CALL getEncounterDatetimeBeforeEndDate('118,119', @reportEndDate, 'last', 'lastChronicLungVisitDate');
+CALL getEncounterDatetimeBeforeEndDate('124,125', @reportEndDate, 'last', 'lastMentalHealthVisitDate');
+CALL updateIc3EnrollmentInfo(@reportEndDate);
+CALL updateProgramsEnrollmentDate();
+-- HIV Program Information
+CALL updateFirstViralLoad();
+CALL updateLastViralLoad();
+CALL getLastOutcomeForProgram(1, @reportEndDate, 'lastHivOutcome', 'lastHivOutcomeDate');
+CALL getLastOutcomeForProgram(10, @reportEndDate, 'lastNcdOutcome', 'lastNcdOutcomeDate');
+CALL getEncounterLocationBeforeEndDate('9,10,11,12', @reportEndDate, 'last', 'lastHivVisitLocation');
+CALL getDatetimeObsBeforeDate(6132, @reportEndDate, 'last', 'artInitialDate');
+CALL updateRecentRegimen(@reportEndDate);
+CALL getCodedObsFromEncounterBeforeDate(7459, '9,10,11,12', @reportEndDate, 'last', 'lastTbValueInHiv');
+CALL getEncounterDatetimeBeforeEndDate('9,10,11,12', @reportEndDate, 'last', 'lastTbDateInHiv');
+
+-- Hypertension Information
+CALL getDiagnosisBoolean(3683, '903', @reportEndDate, 'htnDx');
+CALL getDiagnosisDate(3683, '903', 6774, @reportEndDate, 'first', 'firstHtnDxDate');
+CALL getEncounterDateForCodedObs('1193', '3182,3187,1242,250,3186,3183,254,8466,8465,8464,8463,88,8462', @reportEndDate, 'first', 'firstHtnMedsDate');
+CALL getEncounterDateForCodedObs('1193', '3182,3187,1242,250,3186,3183,254,8466,8465,8464,8463', @reportEndDate, 'last', 'lastHtnMedsDate');
+CALL getEncounterLocationForCodedObs('1193', '3182,3187,1242,250,3186,3183,254,8466,8465,8464,8463', @reportEndDate, 'last', 'lastHtnMedsLocation');
+CALL getBloodPressureBeforeDate(@reportEndDate, 'first', 'firstBpDate', 'firstBp');
+CALL getBloodPressureBeforeDate(@reportEndDate, 'last', 'lastBpDate', 'lastBp');
+-- Hypertension Meds
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '8466,1243,99,4061', @reportEndDate, 'last', 'diuretic');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '8465,3187,250', @reportEndDate, 'last', 'calciumChannelBlocker');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '8464,1242,3182,3183', @reportEndDate, 'last', 'aceIInhibitor');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '8463,3186,8612,254', @reportEndDate, 'last', 'betaBlocker');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '8462,8613,8614,8210', @reportEndDate, 'last', 'statin');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '88,929,7121', @reportEndDate, 'last', 'otherHtnMeds');
+-- Diabetes Information
+CALL getDiagnosisBoolean(3683, '6409,6410,3720', @reportEndDate, 'dmDx');
+CALL getDiagnosisDate(3683, '6409,6410,3720', 6774, @reportEndDate, 'first', 'firstDmDxDate');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('3683', '29', '6409,6410', @reportEndDate, 'last', 'diabetesType');
+CALL getEncounterDateForCodedObs('1193', '4052,8413,4046', @reportEndDate, 'first', 'firstDmMedsDate');
+CALL getEncounterDateForCodedObs('1193', '4052,8413,4046', @reportEndDate, 'last', 'lastDmMedsDate');
+CALL getEncounterLocationForCodedObs('1193', '4052,8413,4046', @reportEndDate, 'last', 'lastDmMedsLocation');
+CALL getBloodGlucoseBeforeDate(@reportEndDate, 'first', 'firstGlucoseMonitoringDate','firstVisitHba1c','firstVisitRandomBloodSugar','firstVisitFastingBloodSugar');
+CALL getBloodGlucoseBeforeDate(@reportEndDate, 'last', 'lastGlucoseMonitoringDate','lastVisitHba1c','lastVisitRandomBloodSugar','lastVisitFastingBloodSugar');
+-- Diabetes Meds
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '282', @reportEndDate, 'last', 'shortActingRegularInsulin');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '6750', @reportEndDate, 'last', 'longActingInsulin');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '4052', @reportEndDate, 'last', 'metformin');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '69,115', '4046', @reportEndDate, 'last', 'glibenclamide');
+-- Epilepsy Information
+CALL getDiagnosisBoolean(3683, '155', @reportEndDate, 'epilepsyDx');
+CALL getDiagnosisDate(3683, '155', 6774, @reportEndDate, 'first', 'firstEpilepsyDxDate');
+CALL getEncounterDateForCodedObs('1193', '238,273,920', @reportEndDate, 'first', 'firstEpilepsyMedsDate');
+CALL getEncounterDateForCodedObs('1193', '238,273,920', @reportEndDate, 'last', 'lastEpilepsyMedsDate');
+CALL getEncounterLocationForCodedObs('1193', '238,273,920', @reportEndDate, 'last', 'lastEpilepsyMedsLocation');
+CALL getEncounterDateForObs(7924, @reportEndDate, 'first', 'firstSeizuresDate');
+CALL getNumericObsBeforeDate(7924, @reportEndDate, 'first', 'firstSeizures');
+CALL getEncounterDateForObs(7924, @reportEndDate, 'last', 'lastSeizuresDate');
+CALL getNumericObsBeforeDate(7924, @reportEndDate, 'last', 'lastSeizures');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193', '123', '8531,8532,8533,8534,8535,8536,8537', @reportEndDate, 'last', 'seizureTriggers');
+-- Asthma Information (added COPD)
+CALL getDiagnosisBoolean(3683, '5', @reportEndDate, 'asthmaDx');
+CALL getDiagnosisDate(3683, '5', 6774, @reportEndDate, 'first', 'firstAsthmaDxDate');
+CALL getEncounterDateForCodedObs('1193,8474', '798,1240,8471,8472,8473,5622', @reportEndDate, 'first', 'firstChronicLungMedsDate');
+CALL getEncounterDateForCodedObs('1193,8474', '798,1240,8471,8472,8473,5622', @reportEndDate, 'last', 'lastChronicLungMedsDate');
+CALL getEncounterLocationForCodedObs('1193,8474', '798,1240,8471,8472,8473,5622', @reportEndDate, 'last', 'lastChronicLungMedsLocation');
+CALL getEncounterDateForCodedObs('8410', '1905,8405,8406,8407,8408,8409', @reportEndDate, 'first', 'firstAsthmaSeverityDate');
+CALL getCodedObsBeforeDate(8410, @reportEndDate, 'first', 'firstAsthmaSeverity');
+CALL getEncounterDateForCodedObs('8410', '1905,8405,8406,8407,8408,8409', @reportEndDate, 'last', 'lastAsthmaSeverityDate');
+CALL getCodedObsBeforeDate(8410, @reportEndDate, 'last', 'lastAsthmaSeverity');
+CALL getDiagnosisBoolean(3683, '3716', @reportEndDate, 'copdDx');
+CALL getDiagnosisDate(3683, '3716', 6774, @reportEndDate, 'first', 'copdDiagnosisDate');
+-- Asthma Meds
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193,8474', '69,119', '8471,978', @reportEndDate, 'last', 'inhaledBAgonist');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193,8474', '69,119', '8472,1240', @reportEndDate, 'last', 'inhaledSteroid');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193,8474', '69,119', '8473', @reportEndDate, 'last', 'oralSteroid');
+CALL getCodedObsWithValuesFromEncounterBeforeDate('1193,8474', '69,119', '5622', @reportEndDate, 'last', 'otherAsthmaMeds');
+-- Mental Health Information
+CALL getDiagnosisBoolean(3683, '467,207,8419,8487,2719,8488,8489,8562,8563,8491,8420,8580,8581', @reportEndDate, 'mentalDx');
+CALL getDiagnosisDate(3683, '467,207,8419,8487,2719,8488,8489,8562,8563,8491,8420,8580,8581', 6774, @reportEndDate, 'first', 'firstMentalHealthDxDate');
+CALL getEncounterDateForCodedObs('1193', '914,4047,927,920,920,4060,8498,4045,8582,8583,8237,8584,6408', @reportEndDate, 'first', 'firstMentalHealthMedsDate');
+CALL getEncounterDateForCodedObs('1193', '914,4047,927,920,920,4060,8498,4045,8582,8583,8237,8584,6408', @reportEndDate, 'last', 'lastMentalHealthMedsDate');        
+CALL getEncounterLocationForCodedObs('1193', '914,4047,927,920,920,4060,8498,4045,8582,8583,8237,8584,6408', @reportEndDate, 'last', 'lastMentalHealthMedsLocation');
+-- BMI Information
+CALL getEncounterDateForObs(5089, @reportEndDate, 'last', 'lastWeightDate');
+CALL getNumericObsBeforeDate(5090, @reportEndDate, 'last', 'lastHeight');
+CALL getNumericObsBeforeDate(5089, @reportEndDate, 'last', 'lastWeight');
+-- Diagnoses Logic
+CALL diagnosesLogic(); -- Must be last!
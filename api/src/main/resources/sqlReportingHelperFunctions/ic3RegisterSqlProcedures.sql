@@ -154,12 +154,13 @@ END
 -- createIc3RegisterCohort()
 --
 -- Procedure defines cohort and adds cohort (plus demographic data) to IC3 register table
+-- If changedPatientsOnly is 1, only patients in ic3_register_warehouse_changed are added
 
 DROP PROCEDURE IF EXISTS createIc3RegisterCohort;
 
 #
 
-CREATE PROCEDURE createIc3RegisterCohort(IN reportEndDate DATE)
+CREATE PROCEDURE createIc3RegisterCohort(IN reportEndDate DATE, IN changedPatientsOnly INT)
 BEGIN
 
 	-- Create Initial Cohort With Basic Demographic Data
@@ -189,14 +190,16 @@ BEGIN
 							and voided = 0) xps on xps.patient_program_id = ppi.patient_program_id
 						where ppi.voided = 0 
 						and program_id in (1,10) 
+						and (changedPatientsOnly = 0 or ppi.patient_id in (select patient_id from ic3_register_warehouse_changed))
 						and (date_enrolled <= reportEndDate or date_enrolled is NULL)
 						order by date_enrolled DESC) 
 					ppi group by patient_id) pp -- Most recent Program Enrollment - sub query ensures have been On ARVs, Pre-ART (continue), and CC continue
-	join 		(select * from person where voided = 0) p on p.person_id = pp.patient_id -- remove voided persons
+	join 		(select * from person where voided = 0 and (changedPatientsOnly = 0 or person_id in (select patient_id from ic3_register_warehouse_changed))) p on p.person_id = pp.patient_id -- remove voided persons
 	join 		(select patient_id, identifier from 
 					(select * 
 					from patient_identifier 
 					where voided = 0 
+					and (changedPatientsOnly = 0 or patient_id in (select patient_id from ic3_register_warehouse_changed))
 					and identifier_type in (4, 19, 21) 
 					order by date_created desc) pii 
 				group by patient_id) pi 
@@ -213,6 +216,7 @@ BEGIN
 							END AS lastMod
 					from person_name
 					where voided = 0
+					and (changedPatientsOnly = 0 or person_id in (select patient_id from ic3_register_warehouse_changed))
 					order by preferred desc, lastMod desc, date_created desc) pni 
 				group by person_id) pn on pn.person_id = pp.patient_id
 	left join 		(select * from 
@@ -228,6 +232,7 @@ BEGIN
 							END AS lastMod
 					from person_address
 					where voided = 0
+					and (changedPatientsOnly = 0 or person_id in (select patient_id from ic3_register_warehouse_changed))
 					order by preferred desc, lastMod desc, date_created desc) pai 
 				group by person_id) pa on pa.person_id = pp.patient_id				
 	order by 	pp.patient_id asc;
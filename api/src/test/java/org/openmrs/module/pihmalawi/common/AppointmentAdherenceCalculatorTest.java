@@ -0,0 +1,128 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the AppointmentAdherenceCalculator
+ */
+public class AppointmentAdherenceCalculatorTest {
+
+	@Test
+	public void getIntervals_shouldReturnOverallThenQuarterlyThenSixMonthly() throws Exception {
+		List<Integer> intervals = AppointmentAdherenceCalculator.getIntervals();
+		Assert.assertEquals(25, intervals.size());
+		Assert.assertNull(intervals.get(0));
+		Assert.assertEquals(90, intervals.get(1).intValue());
+		Assert.assertEquals(360, intervals.get(4).intValue());
+		Assert.assertEquals(180, intervals.get(5).intValue());
+		Assert.assertEquals(3600, intervals.get(24).intValue());
+	}
+
+	@Test
+	public void calculate_shouldCountVisitsWithinTheGracePeriodAsOnTime() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 1, 1), date(2012, 12, 31));
+		calculator.addActualVisit(date(2012, 1, 1), true);
+		calculator.addScheduledVisit(date(2012, 2, 1));
+		calculator.addActualVisit(date(2012, 2, 3), true);
+		calculator.addScheduledVisit(date(2012, 3, 1));
+		calculator.addActualVisit(date(2012, 3, 1), true);
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(2, results.get("Num Scheduled Visits").intValue());
+		Assert.assertEquals(2, results.get("Num Actual Visits").intValue());
+		Assert.assertEquals(0, results.get("DaysMissed").intValue());
+		Assert.assertEquals(2, results.get("OntimeAppts").intValue());
+		Assert.assertEquals(2, results.get("OverallAppts").intValue());
+		Assert.assertEquals(366, results.get("DaysOverall").intValue());
+	}
+
+	@Test
+	public void calculate_shouldCountDaysLateBeyondTheGracePeriodAsMissed() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 1, 1), date(2012, 12, 31));
+		calculator.addActualVisit(date(2012, 1, 1), true);
+		calculator.addScheduledVisit(date(2012, 2, 1));
+		calculator.addActualVisit(date(2012, 2, 11), true);
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(8, results.get("DaysMissed").intValue());
+		Assert.assertEquals(0, results.get("OntimeAppts").intValue());
+		Assert.assertEquals(1, results.get("OverallAppts").intValue());
+		Assert.assertEquals(8, results.get("LocationDaysMissed").intValue());
+		Assert.assertEquals(1, results.get("LocationOverallAppts").intValue());
+	}
+
+	@Test
+	public void calculate_shouldCountAppointmentsNeverAttendedAsMissedUntilThePeriodEnd() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 5, 1), date(2012, 6, 30));
+		calculator.addActualVisit(date(2012, 5, 1), true);
+		calculator.addScheduledVisit(date(2012, 6, 1));
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(0, results.get("Num Actual Visits").intValue());
+		Assert.assertEquals(27, results.get("DaysMissed").intValue());
+		Assert.assertEquals(0, results.get("OntimeAppts").intValue());
+		Assert.assertEquals(0, results.get("LocationOverallAppts").intValue());
+	}
+
+	@Test
+	public void calculate_shouldIgnoreAppointmentsAfterThePeriodEnd() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 1, 1), date(2012, 3, 31));
+		calculator.addActualVisit(date(2012, 1, 1), true);
+		calculator.addScheduledVisit(date(2012, 4, 1));
+		calculator.addScheduledVisit(null);
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(0, results.get("Num Scheduled Visits").intValue());
+		Assert.assertEquals(0, results.get("OverallAppts").intValue());
+	}
+
+	@Test
+	public void calculate_shouldOnlyIncludeIntervalsWithinThePeriodAndCapDaysMissedAtTheIntervalEnd() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 5, 1), date(2012, 8, 31));
+		calculator.addActualVisit(date(2012, 5, 1), true);
+		calculator.addScheduledVisit(date(2012, 7, 24)); // 84 days from the start
+		calculator.addActualVisit(date(2012, 8, 9), true);
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(14, results.get("DaysMissed").intValue());
+		Assert.assertEquals(123, results.get("DaysOverall").intValue());
+		Assert.assertEquals(6, results.get("90dDaysMissed").intValue());
+		Assert.assertEquals(90, results.get("90dDaysOverall").intValue());
+		Assert.assertFalse(results.containsKey("180dDaysMissed"));
+	}
+
+	@Test
+	public void calculate_shouldOnlyIncludeAppointmentsAttendedAtTheLocationForLocationAdherence() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 1, 1), date(2012, 12, 31));
+		calculator.addActualVisit(date(2012, 1, 1), true);
+		calculator.addScheduledVisit(date(2012, 2, 1));
+		calculator.addActualVisit(date(2012, 2, 1), false);
+		calculator.addScheduledVisit(date(2012, 3, 1));
+		calculator.addActualVisit(date(2012, 3, 11), true);
+
+		Map<String, Integer> results = calculator.calculate();
+		Assert.assertEquals(2, results.get("OverallAppts").intValue());
+		Assert.assertEquals(1, results.get("LocationOverallAppts").intValue());
+		Assert.assertEquals(8, results.get("LocationDaysMissed").intValue());
+		Assert.assertEquals(0, results.get("LocationOntimeAppts").intValue());
+	}
+
+	@Test
+	public void calculate_shouldNotChangeTheVisitsAdded() throws Exception {
+		AppointmentAdherenceCalculator calculator = new AppointmentAdherenceCalculator(date(2012, 1, 1), date(2012, 12, 31));
+		calculator.addActualVisit(date(2012, 1, 1), true);
+		calculator.addScheduledVisit(date(2012, 2, 1));
+		calculator.addActualVisit(date(2012, 2, 11), true);
+		Assert.assertEquals(calculator.calculate(), calculator.calculate());
+	}
+
+	private Date date(int year, int month, int day) {
+		return DateUtil.getDateTime(year, month, day);
+	}
+}
@@ -0,0 +1,125 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.common.BooleanOperator;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tests the DefinitionKey
+ */
+public class DefinitionKeyTest {
+
+	@Test
+	public void of_shouldMatchDefinitionsWithTheSameConfiguration() throws Exception {
+		GenderCohortDefinition males = getGender("Males", true, false);
+		Assert.assertEquals(DefinitionKey.of(males), DefinitionKey.of(getGender("Men", true, false)));
+		Assert.assertEquals(DefinitionKey.of(males).hashCode(), DefinitionKey.of(getGender("Men", true, false)).hashCode());
+		Assert.assertFalse(DefinitionKey.of(males).equals(DefinitionKey.of(getGender("Males", false, true))));
+	}
+
+	@Test
+	public void of_shouldNotMatchDefinitionsWithDifferentParameters() throws Exception {
+		GenderCohortDefinition withStartDate = getGender("Males", true, false);
+		withStartDate.addParameter(new Parameter("startDate", "Start date", Date.class));
+		GenderCohortDefinition withEndDate = getGender("Males", true, false);
+		withEndDate.addParameter(new Parameter("endDate", "End date", Date.class));
+		Assert.assertFalse(DefinitionKey.of(withStartDate).equals(DefinitionKey.of(withEndDate)));
+	}
+
+	@Test
+	public void of_shouldMatchSavedObjectsById() throws Exception {
+		Assert.assertEquals(DefinitionKey.of(getConcept(1)), DefinitionKey.of(getConcept(1)));
+		Assert.assertFalse(DefinitionKey.of(getConcept(1)).equals(DefinitionKey.of(getConcept(2))));
+		Assert.assertFalse(DefinitionKey.of(getConcept(null)).equals(DefinitionKey.of(getConcept(null))));
+		Concept unsaved = getConcept(null);
+		Assert.assertEquals(DefinitionKey.of(unsaved), DefinitionKey.of(unsaved));
+	}
+
+	@Test
+	public void of_shouldMatchCompositionsOfSeparatelyConstructedDefinitions() throws Exception {
+		CohortDefinition first = getComposition(getGender("Males", true, false), getGender("Females", false, true));
+		CohortDefinition second = getComposition(getGender("Men", true, false), getGender("Women", false, true));
+		CohortDefinition reversed = getComposition(getGender("Females", false, true), getGender("Males", true, false));
+		Assert.assertEquals(DefinitionKey.of(first), DefinitionKey.of(second));
+		Assert.assertFalse(DefinitionKey.of(first).equals(DefinitionKey.of(reversed)));
+	}
+
+	@Test
+	public void of_shouldCompareDatesByTime() throws Exception {
+		Assert.assertEquals(DefinitionKey.of(Arrays.asList(new Date(1000))), DefinitionKey.of(Arrays.asList(new java.sql.Timestamp(1000))));
+	}
+
+	@Test
+	public void digest_shouldBeTheSameForEqualKeys() throws Exception {
+		CohortDefinition first = getComposition(getGender("Males", true, false), getGender("Females", false, true));
+		CohortDefinition second = getComposition(getGender("Men", true, false), getGender("Women", false, true));
+		String digest = DefinitionKey.digest(DefinitionKey.of(first));
+		Assert.assertEquals(64, digest.length());
+		Assert.assertEquals(digest, DefinitionKey.digest(DefinitionKey.of(second)));
+		Assert.assertFalse(digest.equals(DefinitionKey.digest(DefinitionKey.of(getGender("Males", true, false)))));
+	}
+
+	@Test
+	public void digest_shouldNotDependOnTheOrderOfSetsAndMaps() throws Exception {
+		Map<String, Object> forwards = new LinkedHashMap<String, Object>();
+		Map<String, Object> backwards = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 100; i++) {
+			forwards.put("p" + i, new HashSet<Integer>(Arrays.asList(i, i * 2, i * 3)));
+			backwards.put("p" + (99 - i), new TreeSet<Integer>(Arrays.asList((99 - i) * 3, (99 - i) * 2, 99 - i)));
+		}
+		Assert.assertEquals(DefinitionKey.digest(DefinitionKey.of(forwards)), DefinitionKey.digest(DefinitionKey.of(backwards)));
+	}
+
+	@Test
+	public void digest_shouldBeStableAcrossRuns() throws Exception {
+		Map<String, Object> parameterValues = new HashMap<String, Object>();
+		parameterValues.put("endDate", new Date(1372550400000L));
+		parameterValues.put("location", getConcept(2));
+		parameterValues.put("includeOld", Boolean.TRUE);
+		parameterValues.put("operator", BooleanOperator.OR);
+		StringBuilder canonical = new StringBuilder();
+		Assert.assertTrue(DefinitionKey.appendCanonical(canonical, DefinitionKey.of(parameterValues)));
+		Assert.assertEquals("{\"endDate\"=[class:java.util.Date,Long:1372550400000,],\"includeOld\"=Boolean:true," +
+				"\"location\"=[class:org.openmrs.Concept,Integer:2,],\"operator\"=org.openmrs.module.reporting.common.BooleanOperator.OR,}", canonical.toString());
+		Assert.assertEquals("857d031ec9f13c2aa2df24fc7e279ddcd8b7835472dc1fbba9028a2d49f7d9c6", DefinitionKey.digest(DefinitionKey.of(parameterValues)));
+	}
+
+	@Test
+	public void digest_shouldBeNullForKeysThatOnlyMatchThemselves() throws Exception {
+		Assert.assertNull(DefinitionKey.digest(DefinitionKey.of(Arrays.asList(getConcept(1), getConcept(null)))));
+		Assert.assertNotNull(DefinitionKey.digest(DefinitionKey.of(Arrays.asList(getConcept(1), null))));
+	}
+
+	protected GenderCohortDefinition getGender(String name, boolean male, boolean female) {
+		GenderCohortDefinition cd = new GenderCohortDefinition();
+		cd.setName(name);
+		cd.setMaleIncluded(male);
+		cd.setFemaleIncluded(female);
+		return cd;
+	}
+
+	protected CompositionCohortDefinition getComposition(CohortDefinition... elements) {
+		CompositionCohortDefinition cd = new CompositionCohortDefinition();
+		cd.initializeFromQueries(BooleanOperator.AND, elements);
+		return cd;
+	}
+
+	protected Concept getConcept(Integer id) {
+		Concept concept = new Concept();
+		concept.setId(id);
+		return concept;
+	}
+}
@@ -0,0 +1,135 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the DuplicatePatientIndex against a synthetic population of distinct patients with planted duplicates
+ */
+public class DuplicatePatientIndexTest {
+
+	private static final int POPULATION_SIZE = 20000;
+	private static final String[] GIVEN_NAMES = { "Chikondi", "Chisomo", "Dalitso", "Kondwani", "Mphatso", "Tadala", "Thoko", "Yamikani", "Madalitso", "Limbani" };
+	private static final String[] FAMILY_NAMES = { "Banda", "Phiri", "Mwale", "Tembo", "Zulu", "Chirwa", "Nyirenda", "Kumwenda", "Mbewe", "Gondwe" };
+
+	private DuplicatePatientIndex index;
+	private String[] givenNames = new String[POPULATION_SIZE + 1];
+	private String[] familyNames = new String[POPULATION_SIZE + 1];
+	private Date[] birthdates = new Date[POPULATION_SIZE + 1];
+
+	@Before
+	public void setup() throws Exception {
+		index = new DuplicatePatientIndex();
+		Random random = new Random(42);
+
+		// Every synthetic patient has unique soundex codes, so none of them match each other by chance
+		for (int i=1; i<=POPULATION_SIZE; i++) {
+			givenNames[i] = GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)];
+			familyNames[i] = FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)];
+			birthdates[i] = DateUtil.getDateTime(1940 + random.nextInt(70), 1 + random.nextInt(12), 1 + random.nextInt(28));
+			index.addName(i, givenNames[i], familyNames[i], "G" + i, "F" + i, (i % 2 == 0 ? "M" : "F"), birthdates[i]);
+		}
+	}
+
+	@Test
+	public void findMatches_shouldFindPlantedDuplicatesOrderedByScore() throws Exception {
+		index.addName(100001, givenNames[1], familyNames[1], "G1", "F1", "F", birthdates[1]); // An exact duplicate of patient 1
+		index.addName(100002, givenNames[1] + "h", familyNames[1] + "h", "G1", "F1", null, null); // A misspelled duplicate of patient 1
+		index.addName(3, "Other", "Name", "G1", "F1", "F", birthdates[1]); // A second name of patient 3
+
+		List<DuplicatePatientIndex.Match> matches = index.findMatches(100001, false, null);
+		Assert.assertEquals(3, matches.size());
+		Assert.assertEquals(1, matches.get(0).getPatientId().intValue());
+		Assert.assertEquals(1.0, matches.get(0).getScore(), 0.001);
+		Assert.assertEquals(3, matches.get(1).getPatientId().intValue());
+		Assert.assertEquals(0.7, matches.get(1).getScore(), 0.001);
+		Assert.assertEquals(100002, matches.get(2).getPatientId().intValue());
+		Assert.assertEquals(0.5, matches.get(2).getScore(), 0.001);
+
+		matches = index.findMatches(1, false, null);
+		Assert.assertEquals(3, matches.size());
+		Assert.assertEquals(100001, matches.get(0).getPatientId().intValue());
+	}
+
+	@Test
+	public void findMatches_shouldNotMatchDifferentGendersOrDistantBirthYears() throws Exception {
+		index.addName(100001, "Chisomo", "Phiri", "G10", "F10", "F", DateUtil.getDateTime(1940, 1, 1));
+		index.addName(100002, "Chisomo", "Phiri", "G10", "F10", "M", DateUtil.getDateTime(2015, 1, 1));
+		index.addName(100003, "Chisomo", "Phiri", "G10", "F10", null, DateUtil.getDateTime(2015, 1, 1));
+		index.addName(100004, "Chisomo", "Phiri", "G10", "F10", "M", null);
+
+		List<DuplicatePatientIndex.Match> matches = index.findMatches(100002, false, null);
+		Assert.assertEquals(2, matches.size());
+		Assert.assertEquals(100003, matches.get(0).getPatientId().intValue());
+		Assert.assertEquals(100004, matches.get(1).getPatientId().intValue());
+	}
+
+	@Test
+	public void findMatches_shouldMatchSwappedGivenAndFamilyNamesIfRequested() throws Exception {
+		index.addName(100001, "Banda", "Chikondi", "F7", "G7", "F", null);
+		Assert.assertTrue(index.findMatches(100001, false, null).isEmpty());
+
+		List<DuplicatePatientIndex.Match> matches = index.findMatches(100001, true, null);
+		Assert.assertEquals(1, matches.size());
+		Assert.assertEquals(7, matches.get(0).getPatientId().intValue());
+	}
+
+	@Test
+	public void findMatches_shouldOnlyReturnCandidatesInTheGivenSet() throws Exception {
+		index.addName(100001, "Tadala", "Mwale", "G20", "F20", null, null);
+		index.addName(100002, "Tadala", "Mwale", "G20", "F20", null, null);
+
+		Set<Integer> candidates = new HashSet<Integer>();
+		candidates.add(100002);
+		List<DuplicatePatientIndex.Match> matches = index.findMatches(100001, false, candidates);
+		Assert.assertEquals(1, matches.size());
+		Assert.assertEquals(100002, matches.get(0).getPatientId().intValue());
+	}
+
+	@Test
+	public void findMatches_shouldFindNoMatchesInAPopulationWithoutDuplicates() throws Exception {
+		int numMatched = 0;
+		for (int i=1; i<=POPULATION_SIZE; i++) {
+			numMatched += index.findMatches(i, false, null).size();
+		}
+		Assert.assertEquals(0, numMatched);
+		Assert.assertEquals(POPULATION_SIZE, index.getPatientIds().size());
+	}
+
+	@Test
+	public void findMatches_shouldFindEveryPlantedDuplicateInAPopulationWithCommonNames() throws Exception {
+		// Index the same population by the codes of their names, so that each block holds about 200 patients
+		DuplicatePatientIndex commonNames = new DuplicatePatientIndex();
+		for (int i=1; i<=POPULATION_SIZE; i++) {
+			commonNames.addName(i, givenNames[i], familyNames[i], "G" + givenNames[i], "F" + familyNames[i], (i % 2 == 0 ? "M" : "F"), birthdates[i]);
+		}
+		for (int i=1; i<=POPULATION_SIZE; i+=400) {
+			commonNames.addName(100000 + i, givenNames[i], familyNames[i], "G" + givenNames[i], "F" + familyNames[i], (i % 2 == 0 ? "M" : "F"), birthdates[i]);
+		}
+		for (int i=1; i<=POPULATION_SIZE; i+=400) {
+			List<DuplicatePatientIndex.Match> matches = commonNames.findMatches(100000 + i, false, null);
+			Assert.assertTrue(matches.size() < POPULATION_SIZE / 100);
+			Assert.assertEquals(1.0, matches.get(0).getScore(), 0.001);
+			boolean found = false;
+			for (DuplicatePatientIndex.Match match : matches) {
+				found = found || match.getPatientId() == i;
+			}
+			Assert.assertTrue("Planted duplicate of patient " + i + " not found", found);
+		}
+	}
+
+	@Test
+	public void addName_shouldIgnoreNamesWithoutSoundexCodes() throws Exception {
+		index.addName(100001, "Thoko", "Tembo", null, "F30", "F", null);
+		Assert.assertTrue(index.findMatches(100001, false, null).isEmpty());
+		Assert.assertFalse(index.getPatientIds().contains(100001));
+	}
+}
@@ -0,0 +1,208 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the ExpiringCache
+ */
+public class ExpiringCacheTest {
+
+	@Test
+	public void get_shouldLoadEachValueOnceUntilItExpires() throws Exception {
+		TestCache cache = new TestCache(1000, 10);
+		CountingLoader loader = new CountingLoader("value");
+		Assert.assertEquals("value", cache.get("a", 0, loader));
+		Assert.assertEquals("value", cache.get("a", 0, loader));
+		Assert.assertEquals(1, loader.getCount());
+
+		cache.time = 999;
+		Assert.assertEquals("value", cache.get("a", 0, loader));
+		Assert.assertEquals(1, loader.getCount());
+
+		cache.time = 1000;
+		Assert.assertEquals("value", cache.get("a", 0, loader));
+		Assert.assertEquals(2, loader.getCount());
+	}
+
+	@Test
+	public void get_shouldReloadValuesFromAnOlderGeneration() throws Exception {
+		TestCache cache = new TestCache(1000, 10);
+		CountingLoader loader = new CountingLoader("value");
+		cache.get("a", 0, loader);
+		cache.get("a", 1, loader);
+		Assert.assertEquals(2, loader.getCount());
+		Assert.assertNull(cache.getIfPresent("a", 0));
+		Assert.assertEquals("value", cache.getIfPresent("a", 1));
+	}
+
+	@Test
+	public void get_shouldRemoveTheLeastRecentlyUsedValuesBeyondTheMaximumSize() throws Exception {
+		TestCache cache = new TestCache(1000, 2);
+		cache.put("a", "1", 0);
+		cache.put("b", "2", 0);
+		cache.getIfPresent("a", 0);
+		cache.put("c", "3", 0);
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("1", cache.getIfPresent("a", 0));
+		Assert.assertNull(cache.getIfPresent("b", 0));
+		Assert.assertEquals("3", cache.getIfPresent("c", 0));
+	}
+
+	@Test
+	public void get_shouldNotCacheFailedLoads() throws Exception {
+		TestCache cache = new TestCache(1000, 10);
+		try {
+			cache.get("a", 0, new Callable<String>() {
+				public String call() throws Exception {
+					throw new IllegalStateException("Failed");
+				}
+			});
+			Assert.fail("The load should have failed");
+		}
+		catch (IllegalStateException e) {
+			Assert.assertEquals("Failed", e.getMessage());
+		}
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals("value", cache.get("a", 0, new CountingLoader("value")));
+	}
+
+	@Test
+	public void get_shouldCoalesceConcurrentLoadsOfTheSameKey() throws Exception {
+		final TestCache cache = new TestCache(1000, 10);
+		final CountDownLatch loadStarted = new CountDownLatch(1);
+		final CountDownLatch releaseLoad = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final Callable<String> slowLoader = new Callable<String>() {
+			public String call() throws Exception {
+				loads.incrementAndGet();
+				loadStarted.countDown();
+				releaseLoad.await();
+				return "value";
+			}
+		};
+
+		int numThreads = 20;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < numThreads; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return cache.get("a", 0, slowLoader);
+					}
+				}));
+			}
+			Assert.assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+			Thread.sleep(100);
+			releaseLoad.countDown();
+			for (Future<String> result : results) {
+				Assert.assertEquals("value", result.get(5, TimeUnit.SECONDS));
+			}
+			Assert.assertEquals(1, loads.get());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void get_shouldLoadDifferentKeysConcurrently() throws Exception {
+		final TestCache cache = new TestCache(1000, 10);
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final String key : new String[] { "a", "b" }) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return cache.get(key, 0, new Callable<String>() {
+							public String call() throws Exception {
+								bothStarted.countDown();
+								Assert.assertTrue("Loads were not concurrent", bothStarted.await(5, TimeUnit.SECONDS));
+								return key;
+							}
+						});
+					}
+				}));
+			}
+			Assert.assertEquals("a", results.get(0).get(10, TimeUnit.SECONDS));
+			Assert.assertEquals("b", results.get(1).get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void get_shouldNotWaitForALoadOfAnOlderGeneration() throws Exception {
+		final TestCache cache = new TestCache(1000, 10);
+		final CountDownLatch loadStarted = new CountDownLatch(1);
+		final CountDownLatch releaseLoad = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> oldResult = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return cache.get("a", 0, new Callable<String>() {
+						public String call() throws Exception {
+							loadStarted.countDown();
+							releaseLoad.await();
+							return "old";
+						}
+					});
+				}
+			});
+			Assert.assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals("new", cache.get("a", 1, new CountingLoader("new")));
+			releaseLoad.countDown();
+			Assert.assertEquals("old", oldResult.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals("new", cache.getIfPresent("a", 1));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private class TestCache extends ExpiringCache<String, String> {
+
+		private long time = 0;
+
+		public TestCache(long timeToLive, int maxSize) {
+			super(timeToLive, maxSize);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return time;
+		}
+	}
+
+	private class CountingLoader implements Callable<String> {
+
+		private String value;
+		private int count = 0;
+
+		public CountingLoader(String value) {
+			this.value = value;
+		}
+
+		public synchronized String call() throws Exception {
+			count++;
+			return value;
+		}
+
+		public synchronized int getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.DrugOrder;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Looks up the same data about each patient with a PatientDataHelper that queries each patient's data, and one that
+ * loads the data of the whole cohort up front, and checks that every answer is identical
+ */
+public class PatientDataHelperBatchTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Cohort cohort = new Cohort("40332,57691,17043,19626,56337");
+		Location location = hivMetadata.getLigoweHc();
+		Date endDate = DateUtil.getDateTime(2013, 3, 31);
+		List<EncounterType> artEncounterTypes = hivMetadata.getArtEncounterTypes();
+		List<String> concepts = Arrays.asList("CD4 count", "Height (cm)", "Paclitaxel (taxol) dose received");
+
+		PatientDataHelper single = new PatientDataHelper();
+		List<String> prefetchedConcepts = new ArrayList<String>(PatientDataHelper.REASON_STARTING_ARVS_CONCEPTS);
+		prefetchedConcepts.add("Height (cm)");
+		PatientDataHelper batch = PatientDataHelper.forPatients(cohort.getMemberIds(), prefetchedConcepts);
+
+		for (Patient p : Context.getPatientSetService().getPatients(cohort.getMemberIds())) {
+			String patient = "Patient " + p.getPatientId() + " ";
+			for (String concept : concepts) {
+				assertSameObs(patient + "latest " + concept, single.getLatestObs(p, concept, null, endDate), batch.getLatestObs(p, concept, null, endDate));
+				assertSameObs(patient + "latest ART " + concept, single.getLatestObs(p, concept, artEncounterTypes, endDate), batch.getLatestObs(p, concept, artEncounterTypes, endDate));
+				assertSameObs(patient + "earliest " + concept, single.getEarliestObs(p, concept, null, endDate), batch.getEarliestObs(p, concept, null, endDate));
+			}
+			Assert.assertEquals(patient + "reasons starting ARVs", single.getReasonStartingArvs(p, endDate), batch.getReasonStartingArvs(p, endDate));
+			Assert.assertEquals(patient + "drug orders", getIds(single.getDrugOrdersByStartDateAscending(p, "Paclitaxel", endDate)), getIds(batch.getDrugOrdersByStartDateAscending(p, "Paclitaxel", endDate)));
+			Assert.assertEquals(patient + "drugs taking", single.getDrugsTakingOnDate(p, endDate), batch.getDrugsTakingOnDate(p, endDate));
+			assertSameEncounter(patient + "first encounter", single.getFirstEncounterOfType(p, artEncounterTypes, endDate), batch.getFirstEncounterOfType(p, artEncounterTypes, endDate));
+			assertSameEncounter(patient + "first encounter at location", single.getFirstEncounterAtLocationOfType(p, artEncounterTypes, endDate, location), batch.getFirstEncounterAtLocationOfType(p, artEncounterTypes, endDate, location));
+			Assert.assertEquals(patient + "VHW", single.vhwName(p, false), batch.vhwName(p, false));
+			Assert.assertEquals(patient + "VHW or guardian", single.vhwName(p, true), batch.vhwName(p, true));
+		}
+	}
+
+	protected void assertSameObs(String message, Obs expected, Obs actual) {
+		Assert.assertEquals(message, expected == null ? null : expected.getObsId(), actual == null ? null : actual.getObsId());
+	}
+
+	protected void assertSameEncounter(String message, Encounter expected, Encounter actual) {
+		Assert.assertEquals(message, expected == null ? null : expected.getEncounterId(), actual == null ? null : actual.getEncounterId());
+	}
+
+	protected List<Integer> getIds(List<DrugOrder> drugOrders) {
+		List<Integer> ret = new ArrayList<Integer>();
+		for (DrugOrder drugOrder : drugOrders) {
+			ret.add(drugOrder.getOrderId());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,108 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition.MatchMode;
+
+/**
+ * Tests the PatientSearchIndex
+ */
+public class PatientSearchIndexTest {
+
+	private PatientSearchIndex index;
+
+	@Before
+	public void setUp() {
+		index = new PatientSearchIndex();
+		addPatient(1, false, Arrays.asList("NNO 123", "P1234"), "John", "Banda", null);
+		addPatient(2, false, Arrays.asList("NNO 1234"), "Mary", "Phiri", "Banda");
+		addPatient(3, false, Arrays.asList("LSI 23"), "Ibrahim", "Mbandazayo", null);
+		addPatient(4, true, Arrays.asList("NNO 12"), "Joseph", "Banda", null);
+		index.setBuilt(true);
+	}
+
+	@Test
+	public void findPatientsByIdentifier_shouldMatchEachModeIgnoringCase() {
+		assertResults(index.findPatientsByIdentifier("nno 123", MatchMode.EXACT), 1);
+		assertResults(index.findPatientsByIdentifier("NNO 12", MatchMode.START), 1, 2);
+		assertResults(index.findPatientsByIdentifier("23", MatchMode.END), 1, 3);
+		assertResults(index.findPatientsByIdentifier("  NNO   123 ", MatchMode.ANYWHERE), 1, 2);
+		assertResults(index.findPatientsByIdentifier("2", MatchMode.ANYWHERE), 1, 2, 3);
+		assertResults(index.findPatientsByIdentifier("NNO 99", MatchMode.ANYWHERE));
+		assertResults(index.findPatientsByIdentifier("", MatchMode.ANYWHERE));
+	}
+
+	@Test
+	public void findPatientsByIdentifier_shouldRankExactMatchesFirst() {
+		assertResults(index.findPatientsByIdentifier("P1234", MatchMode.ANYWHERE), 1);
+		assertResults(index.findPatientsByIdentifier("NNO 1234", MatchMode.ANYWHERE), 2);
+		assertResults(index.findPatientsByIdentifier("1234", MatchMode.ANYWHERE), 1, 2);
+		assertResults(index.findPatientsByIdentifier("NNO 123", MatchMode.START), 1, 2);
+		addPatient(5, false, Arrays.asList("XNNO 123"), "Grace", "Zulu", null);
+		assertResults(index.findPatientsByIdentifier("NNO 123", MatchMode.ANYWHERE), 1, 2, 5);
+	}
+
+	@Test
+	public void findPatientsByName_shouldMatchEveryWordAgainstTheSameName() {
+		assertResults(index.findPatientsByName("banda", MatchMode.EXACT), 1, 2, 4);
+		assertResults(index.findPatientsByName("banda", MatchMode.ANYWHERE), 1, 2, 4, 3);
+		assertResults(index.findPatientsByName("Ban", MatchMode.START), 1, 2, 4);
+		assertResults(index.findPatientsByName("yo", MatchMode.END), 3);
+		assertResults(index.findPatientsByName("jo banda", MatchMode.START), 1, 4);
+		assertResults(index.findPatientsByName("mary banda", MatchMode.EXACT), 2);
+		assertResults(index.findPatientsByName("mary john", MatchMode.ANYWHERE));
+	}
+
+	@Test
+	public void findPatientsByName_shouldNotMatchWordsAcrossDifferentNames() {
+		Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+		names.put(50, new String[] { "Alice", "Mwale", null });
+		names.put(51, new String[] { "Alinafe", "Tembo", null });
+		index.setPatient(5, false, null, names);
+		assertResults(index.findPatientsByName("ali tembo", MatchMode.START), 5);
+		assertResults(index.findPatientsByName("alice tembo", MatchMode.EXACT));
+	}
+
+	@Test
+	public void setPatient_shouldReplaceThePreviouslyIndexedData() {
+		addPatient(1, false, Arrays.asList("NNO 555"), "John", "Mwale", null);
+		assertResults(index.findPatientsByIdentifier("NNO 123", MatchMode.EXACT));
+		assertResults(index.findPatientsByIdentifier("NNO 555", MatchMode.EXACT), 1);
+		assertResults(index.findPatientsByName("banda", MatchMode.EXACT), 2, 4);
+		assertResults(index.findPatientsByName("mwale", MatchMode.EXACT), 1);
+
+		addPatient(2, true, Arrays.asList("NNO 1234"), "Mary", "Phiri", "Banda");
+		assertResults(index.findPatientsByIdentifier("NNO 1234", MatchMode.EXACT));
+		assertResults(index.findPatientsByName("mary", MatchMode.EXACT), 2);
+
+		index.removePatient(3);
+		assertResults(index.findPatientsByIdentifier("LSI 23", MatchMode.EXACT));
+		assertResults(index.findPatientsByName("ibrahim", MatchMode.EXACT));
+		Assert.assertEquals(3, index.getNumPatients());
+	}
+
+	@Test
+	public void clear_shouldRemoveAllPatientsAndMarkTheIndexAsNotBuilt() {
+		index.clear();
+		Assert.assertFalse(index.isBuilt());
+		Assert.assertEquals(0, index.getNumPatients());
+		assertResults(index.findPatientsByName("banda", MatchMode.ANYWHERE));
+	}
+
+	private void addPatient(Integer patientId, boolean voided, List<String> identifiers, String givenName, String familyName, String familyName2) {
+		Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+		names.put(patientId * 10, new String[] { givenName, familyName, familyName2 });
+		index.setPatient(patientId, voided, identifiers, names);
+	}
+
+	private void assertResults(List<Integer> actual, Integer... expected) {
+		Assert.assertEquals(Arrays.asList(expected), actual);
+	}
+}
@@ -0,0 +1,174 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition.MatchMode;
+
+/**
+ * Tests the handling of events by the PatientSearchIndexUpdater, against identifiers held in memory in place of the
+ * database, and with background rebuilds run only when the test chooses
+ */
+public class PatientSearchIndexUpdaterTest {
+
+	private TestUpdater updater;
+
+	@Before
+	public void setUp() {
+		updater = new TestUpdater();
+		updater.identifiers.put(1, "NNO 1");
+		updater.identifiers.put(2, "NNO 2");
+		updater.buildIndex();
+		updater.loaded.clear();
+	}
+
+	@Test
+	public void getIndex_shouldReturnNullUntilTheIndexIsBuilt() throws Exception {
+		TestUpdater unbuilt = new TestUpdater();
+		Assert.assertNull(unbuilt.getIndex());
+		unbuilt.buildIndex();
+		Assert.assertNotNull(unbuilt.getIndex());
+		unbuilt.clearIndex();
+		Assert.assertNull(unbuilt.getIndex());
+	}
+
+	@Test
+	public void getIndex_shouldReloadOnlyThePatientsOfChangesReceived() throws Exception {
+		updater.identifiers.put(2, "LSI 2");
+		updater.onMessage(message(PatientIdentifier.class, "2"));
+		Assert.assertEquals(1, updater.getChangeCount());
+		Assert.assertTrue(updater.loaded.isEmpty());
+
+		PatientSearchIndex index = updater.getIndex();
+		Assert.assertEquals(Arrays.asList(2), index.findPatientsByIdentifier("LSI 2", MatchMode.EXACT));
+		Assert.assertTrue(index.findPatientsByIdentifier("NNO 2", MatchMode.EXACT).isEmpty());
+		Assert.assertEquals(Arrays.asList(Arrays.asList(2)), updater.loaded);
+
+		// Changes are applied once
+		Assert.assertSame(index, updater.getIndex());
+		Assert.assertEquals(1, updater.loaded.size());
+	}
+
+	@Test
+	public void onMessage_shouldCountChangesToPersonsWithoutReloadingThem() throws Exception {
+		updater.onMessage(message(Person.class, "1"));
+		Assert.assertEquals(1, updater.getChangeCount());
+		updater.getIndex();
+		Assert.assertTrue(updater.loaded.isEmpty());
+	}
+
+	@Test
+	public void getIndex_shouldRebuildInTheBackgroundIfAChangedObjectIsNotFound() throws Exception {
+		PatientSearchIndex index = updater.getIndex();
+		updater.identifiers.remove(2);
+		updater.identifiers.put(3, "NNO 3");
+		updater.onMessage(message(Patient.class, "99"));
+
+		// The previous index is searched until the new one is built
+		Assert.assertSame(index, updater.getIndex());
+		Assert.assertTrue(updater.isRebuilding());
+		Assert.assertEquals(Arrays.asList(2), updater.getIndex().findPatientsByIdentifier("NNO 2", MatchMode.EXACT));
+
+		// Changes received during the rebuild are left for the new index
+		updater.onMessage(message(PatientIdentifier.class, "3"));
+		Assert.assertSame(index, updater.getIndex());
+		Assert.assertTrue(updater.loaded.isEmpty());
+
+		updater.runBackgroundTasks();
+		Assert.assertFalse(updater.isRebuilding());
+		PatientSearchIndex rebuilt = updater.getIndex();
+		Assert.assertNotSame(index, rebuilt);
+		Assert.assertTrue(rebuilt.findPatientsByIdentifier("NNO 2", MatchMode.EXACT).isEmpty());
+		Assert.assertEquals(Arrays.asList(3), rebuilt.findPatientsByIdentifier("NNO 3", MatchMode.EXACT));
+	}
+
+	@Test
+	public void getIndex_shouldRebuildIfAMessageCannotBeRead() throws Exception {
+		ActiveMQMapMessage unreadable = new ActiveMQMapMessage();
+		unreadable.setString("classname", "org.openmrs.NoSuchClass");
+		updater.onMessage(unreadable);
+
+		PatientSearchIndex index = updater.getIndex();
+		Assert.assertTrue(updater.isRebuilding());
+		updater.runBackgroundTasks();
+		Assert.assertNotSame(index, updater.getIndex());
+		Assert.assertFalse(updater.isRebuilding());
+	}
+
+	@Test
+	public void getIndex_shouldStartOnlyOneRebuildAtATime() throws Exception {
+		updater.onMessage(message(Patient.class, "98"));
+		updater.getIndex();
+		updater.onMessage(message(Patient.class, "99"));
+		updater.getIndex();
+		Assert.assertEquals(1, updater.backgroundTasks.size());
+	}
+
+	private Message message(Class<?> type, String uuid) throws Exception {
+		ActiveMQMapMessage message = new ActiveMQMapMessage();
+		message.setString("classname", type.getName());
+		message.setString("uuid", uuid);
+		return message;
+	}
+
+	/**
+	 * Loads patients from a map of identifiers, in which the uuid of every object of a patient is their patient id
+	 */
+	private class TestUpdater extends PatientSearchIndexUpdater {
+
+		Map<Integer, String> identifiers = new LinkedHashMap<Integer, String>();
+		List<List<Integer>> loaded = new ArrayList<List<Integer>>();
+		List<Runnable> backgroundTasks = new ArrayList<Runnable>();
+
+		@Override
+		protected List<Integer> getPatientIds(Class<?> type, Set<String> uuids) {
+			List<Integer> ret = new ArrayList<Integer>();
+			for (String uuid : uuids) {
+				if (identifiers.containsKey(Integer.valueOf(uuid))) {
+					ret.add(Integer.valueOf(uuid));
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		protected void loadPatients(PatientSearchIndex index, Collection<Integer> patientIds) {
+			loaded.add(patientIds == null ? null : new ArrayList<Integer>(patientIds));
+			for (Integer patientId : (patientIds == null ? identifiers.keySet() : patientIds)) {
+				if (identifiers.containsKey(patientId)) {
+					index.setPatient(patientId, false, Arrays.asList(identifiers.get(patientId)), null);
+				}
+				else {
+					index.removePatient(patientId);
+				}
+			}
+		}
+
+		@Override
+		protected void runInBackground(Runnable task) {
+			backgroundTasks.add(task);
+		}
+
+		void runBackgroundTasks() {
+			for (Runnable task : backgroundTasks) {
+				task.run();
+			}
+			backgroundTasks.clear();
+			loaded.clear();
+		}
+	}
+}
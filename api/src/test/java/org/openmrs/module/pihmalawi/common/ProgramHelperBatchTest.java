@@ -0,0 +1,86 @@
+package org.openmrs.module.pihmalawi.common;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers the same questions about each patient with a ProgramHelper that queries each patient's enrollments, and one
+ * that loads the enrollments of the whole cohort up front, and checks that every answer is identical
+ */
+public class ProgramHelperBatchTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Cohort cohort = new Cohort("40332,57691,17043,19626,56337");
+		Location location = hivMetadata.getLigoweHc();
+		Date endDate = DateUtil.getDateTime(2013, 3, 31);
+		ProgramWorkflow workflow = hivMetadata.getTreatmentStatusWorkfow();
+		ProgramWorkflowState onArvs = hivMetadata.getOnArvsState();
+		List<ProgramWorkflowState> referenceStates = Arrays.asList(hivMetadata.getPreArtState(), onArvs);
+
+		ProgramHelper single = new ProgramHelper();
+		ProgramHelper batch = ProgramHelper.forPatients(cohort.getMemberIds());
+
+		for (Patient p : Context.getPatientSetService().getPatients(cohort.getMemberIds())) {
+			String patient = "Patient " + p.getPatientId() + " ";
+			assertSameState(patient + "first time in state", single.getFirstTimeInStateAtLocation(p, workflow.getProgram(), onArvs, endDate, location), batch.getFirstTimeInStateAtLocation(p, workflow.getProgram(), onArvs, endDate, location));
+			assertSameState(patient + "first time in state anywhere", single.getFirstTimeInState(p, workflow.getProgram(), onArvs, endDate), batch.getFirstTimeInState(p, workflow.getProgram(), onArvs, endDate));
+			assertSameProgram(patient + "most recent enrollment", single.getMostRecentProgramEnrollment(p, workflow.getProgram(), endDate), batch.getMostRecentProgramEnrollment(p, workflow.getProgram(), endDate));
+			assertSameProgram(patient + "most recent enrollment at location", single.getMostRecentProgramEnrollmentAtLocation(p, workflow.getProgram(), location), batch.getMostRecentProgramEnrollmentAtLocation(p, workflow.getProgram(), location));
+			assertSameState(patient + "most recent state at location", single.getMostRecentStateAtLocation(p, workflow, location), batch.getMostRecentStateAtLocation(p, workflow, location));
+			assertSameState(patient + "most recent state at location and date", single.getMostRecentStateAtLocationAndDate(p, workflow, location, endDate), batch.getMostRecentStateAtLocationAndDate(p, workflow, location, endDate));
+			assertSameState(patient + "most recent state at date", single.getMostRecentStateAtDate(p, workflow, endDate), batch.getMostRecentStateAtDate(p, workflow, endDate));
+			assertSameStates(patient + "states in workflow at location", single.getPatientStatesByWorkflowAtLocation(p, onArvs, location), batch.getPatientStatesByWorkflowAtLocation(p, onArvs, location));
+			assertSameStates(patient + "most recent states", single.getMostRecentStates(p), batch.getMostRecentStates(p));
+			assertSameStates(patient + "active states", single.getActiveStatesOnDate(p, endDate), batch.getActiveStatesOnDate(p, endDate));
+			if (batch.getMostRecentProgramEnrollmentAtLocation(p, workflow.getProgram(), location) != null) {
+				assertSameState(patient + "state after state", single.getStateAfterStateAtLocation(p, workflow, referenceStates, location, endDate), batch.getStateAfterStateAtLocation(p, workflow, referenceStates, location, endDate));
+			}
+		}
+	}
+
+	protected void assertSameState(String message, PatientState expected, PatientState actual) {
+		Assert.assertEquals(message, expected == null ? null : expected.getPatientStateId(), actual == null ? null : actual.getPatientStateId());
+	}
+
+	protected void assertSameProgram(String message, PatientProgram expected, PatientProgram actual) {
+		Assert.assertEquals(message, expected == null ? null : expected.getPatientProgramId(), actual == null ? null : actual.getPatientProgramId());
+	}
+
+	protected void assertSameStates(String message, Iterable<PatientState> expected, Iterable<PatientState> actual) {
+		Assert.assertEquals(message, getIds(expected), getIds(actual));
+	}
+
+	protected Set<Integer> getIds(Iterable<PatientState> states) {
+		Set<Integer> ret = new HashSet<Integer>();
+		for (PatientState state : states) {
+			ret.add(state.getPatientStateId());
+		}
+		return ret;
+	}
+}
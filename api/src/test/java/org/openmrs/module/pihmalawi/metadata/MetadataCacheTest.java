@@ -0,0 +1,172 @@
+package org.openmrs.module.pihmalawi.metadata;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptNumeric;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.LocationAttribute;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflowState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests the MetadataCache
+ */
+public class MetadataCacheTest {
+
+	@Test
+	public void get_shouldReturnCachedValuesAndCountHitsAndMisses() throws Exception {
+		MetadataCache cache = new MetadataCache(10);
+		Assert.assertNull(cache.get(Concept.class, "CD4 count"));
+		cache.put(Concept.class, "CD4 count", 5497, cache.getGeneration());
+		Assert.assertEquals(5497, cache.get(Concept.class, "CD4 count"));
+		Assert.assertNull(cache.get(Program.class, "CD4 count"));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedEntryWhenFull() throws Exception {
+		MetadataCache cache = new MetadataCache(3);
+		cache.put(Concept.class, "1", 1, cache.getGeneration());
+		cache.put(Concept.class, "2", 2, cache.getGeneration());
+		cache.put(Concept.class, "3", 3, cache.getGeneration());
+		cache.get(Concept.class, "1");
+		cache.put(Concept.class, "4", 4, cache.getGeneration());
+
+		Assert.assertEquals(3, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertNull(cache.get(Concept.class, "2"));
+		Assert.assertEquals(1, cache.get(Concept.class, "1"));
+		Assert.assertEquals(3, cache.get(Concept.class, "3"));
+		Assert.assertEquals(4, cache.get(Concept.class, "4"));
+	}
+
+	@Test
+	public void invalidate_shouldRemoveEntriesOfTypesThatDependOnTheChangedType() throws Exception {
+		MetadataCache cache = new MetadataCache(10);
+		long generation = cache.getGeneration();
+		cache.put(Concept.class, "CD4 count", 5497, generation);
+		cache.put(Program.class, "HIV program", 1, generation);
+		cache.put(ProgramWorkflowState.class, "HIV program|Treatment status|On antiretrovirals", 7, generation);
+		cache.put(PatientIdentifierType.class, "ARV Number", 4, generation);
+		cache.put(Location.class, "shortNames", Collections.singletonMap("uuid", "NNO"), generation);
+
+		cache.invalidate(ConceptName.class);
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertNull(cache.get(Concept.class, "CD4 count"));
+		Assert.assertNull(cache.get(Program.class, "HIV program"));
+		Assert.assertNull(cache.get(ProgramWorkflowState.class, "HIV program|Treatment status|On antiretrovirals"));
+		Assert.assertEquals(4, cache.get(PatientIdentifierType.class, "ARV Number"));
+
+		cache.invalidate(LocationAttribute.class);
+		Assert.assertNull(cache.get(Location.class, "shortNames"));
+		Assert.assertEquals(2, cache.getInvalidations());
+	}
+
+	@Test
+	public void invalidate_shouldRemoveEntriesThatDependOnASuperclassOfTheChangedType() throws Exception {
+		MetadataCache cache = new MetadataCache(10);
+		long generation = cache.getGeneration();
+		cache.put(Concept.class, "CD4 count", 5497, generation);
+		cache.put(Program.class, "HIV program", 1, generation);
+		cache.put(PatientIdentifierType.class, "ARV Number", 4, generation);
+
+		cache.invalidate(ConceptNumeric.class);
+		Assert.assertNull(cache.get(Concept.class, "CD4 count"));
+		Assert.assertNull(cache.get(Program.class, "HIV program"));
+		Assert.assertEquals(4, cache.get(PatientIdentifierType.class, "ARV Number"));
+
+		cache.put(PatientIdentifierType.class, "National ID", 5, cache.getGeneration());
+		PatientIdentifierType proxy = new PatientIdentifierType() {};
+		cache.invalidate(proxy.getClass());
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void getInvalidatingTypes_shouldIncludeSubclassesThatRaiseTheirOwnEvents() throws Exception {
+		Assert.assertTrue(MetadataCache.getInvalidatingTypes().contains(Concept.class));
+		Assert.assertTrue(MetadataCache.getInvalidatingTypes().contains(ConceptNumeric.class));
+	}
+
+	@Test
+	public void invalidate_shouldIgnoreChangesToTypesThatAreNotCached() throws Exception {
+		MetadataCache cache = new MetadataCache(10);
+		long generation = cache.getGeneration();
+		cache.put(Concept.class, "CD4 count", 5497, generation);
+		cache.invalidate(EncounterType.class);
+		Assert.assertEquals(generation, cache.getGeneration());
+		Assert.assertEquals(5497, cache.get(Concept.class, "CD4 count"));
+	}
+
+	@Test
+	public void put_shouldNotCacheValuesLookedUpBeforeAnInvalidation() throws Exception {
+		MetadataCache cache = new MetadataCache(10);
+		long generation = cache.getGeneration();
+		cache.invalidate(Concept.class);
+		cache.put(Concept.class, "CD4 count", 5497, generation);
+		Assert.assertNull(cache.get(Concept.class, "CD4 count"));
+
+		cache.put(Concept.class, "CD4 count", 5497, cache.getGeneration());
+		Assert.assertEquals(5497, cache.get(Concept.class, "CD4 count"));
+	}
+
+	@Test
+	public void get_shouldRemainBoundedAndConsistentUnderConcurrentAccess() throws Exception {
+		final MetadataCache cache = new MetadataCache(100);
+		final int numThreads = 8;
+		final int numIterations = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<numThreads; t++) {
+			final int threadNum = t;
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i=0; i<numIterations; i++) {
+							String lookup = Integer.toString(i % 250);
+							Object value = cache.get(Concept.class, lookup);
+							if (value == null) {
+								cache.put(Concept.class, lookup, i % 250, cache.getGeneration());
+							}
+							else if (!value.equals(i % 250)) {
+								throw new IllegalStateException("Lookup " + lookup + " returned " + value);
+							}
+							if (threadNum == 0 && i % 1000 == 0) {
+								cache.invalidate(Program.class);
+							}
+							if (cache.getSize() > cache.getMaxSize()) {
+								throw new IllegalStateException("Cache exceeded its maximum size: " + cache);
+							}
+						}
+					}
+					catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(numThreads * numIterations, cache.getHits() + cache.getMisses());
+		Assert.assertTrue(cache.getEvictions() > 0);
+		Assert.assertTrue(cache.getSize() <= 100);
+	}
+}
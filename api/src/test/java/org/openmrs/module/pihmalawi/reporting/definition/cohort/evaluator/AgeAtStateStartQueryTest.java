@@ -0,0 +1,294 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.InAgeRangeAtStateStartCohortDefinition;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.reporting.common.Age;
+import org.openmrs.module.reporting.common.AgeRange;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests the query of the InAgeRangeAtStartStartCohortDefinitionEvaluator, and the age computed in it, against an
+ * EmbeddedDatabase
+ */
+public class AgeAtStateStartQueryTest {
+
+    private static final int ON_ARVS = 10;
+    private static final int OTHER_STATE = 11;
+    private static final int NENO = 100;
+    private static final int MAGALETA = 101;
+
+    private EmbeddedDatabase db;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+        db.addPerson(1, "2000-06-15", false);
+        db.addPerson(2, "2000-02-29", false);
+        db.addPerson(3, "2014-01-31", false);
+        db.addPerson(4, "2000-01-01", true);
+        db.addPerson(5, "2014-06-15", false);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldCountFullYearsUpToTheBirthday() throws Exception {
+        assertAge(14, Age.Unit.YEARS, 1, "2015-06-14");
+        assertAge(15, Age.Unit.YEARS, 1, "2015-06-15");
+        assertAge(15, Age.Unit.YEARS, 1, "2016-06-14");
+        assertAge(0, Age.Unit.YEARS, 1, "2000-06-15");
+    }
+
+    @Test
+    public void shouldCountFullMonthsUpToTheDayOfTheMonth() throws Exception {
+        assertAge(0, Age.Unit.MONTHS, 1, "2000-07-14");
+        assertAge(1, Age.Unit.MONTHS, 1, "2000-07-15");
+        assertAge(23, Age.Unit.MONTHS, 1, "2002-06-14");
+        assertAge(24, Age.Unit.MONTHS, 1, "2002-06-15");
+    }
+
+    @Test
+    public void shouldOnlyCountALeapDayBirthdayOnceTheDayHasPassed() throws Exception {
+        assertAge(0, Age.Unit.YEARS, 2, "2001-02-28");
+        assertAge(1, Age.Unit.YEARS, 2, "2001-03-01");
+        assertAge(4, Age.Unit.YEARS, 2, "2004-02-29");
+        assertAge(11, Age.Unit.MONTHS, 2, "2001-02-28");
+        assertAge(12, Age.Unit.MONTHS, 2, "2001-03-01");
+    }
+
+    @Test
+    public void shouldOnlyCountAMonthAtTheEndOfAShorterMonthOnceTheDayHasPassed() throws Exception {
+        assertAge(0, Age.Unit.MONTHS, 3, "2014-02-28");
+        assertAge(1, Age.Unit.MONTHS, 3, "2014-03-01");
+        assertAge(1, Age.Unit.MONTHS, 3, "2014-03-30");
+        assertAge(2, Age.Unit.MONTHS, 3, "2014-03-31");
+    }
+
+    @Test
+    public void shouldUseEstimatedBirthdatesAsTheyAre() throws Exception {
+        assertAge(14, Age.Unit.YEARS, 4, "2014-12-31");
+        assertAge(15, Age.Unit.YEARS, 4, "2015-01-01");
+        assertAge(179, Age.Unit.MONTHS, 4, "2014-12-31");
+        assertAge(180, Age.Unit.MONTHS, 4, "2015-01-01");
+    }
+
+    @Test
+    public void shouldMatchAgeRangesAtTheirBoundaries() throws Exception {
+        AgeRange adult = new AgeRange(15, Age.Unit.YEARS, null, null, "");
+        AgeRange child = new AgeRange(2, Age.Unit.YEARS, 14, Age.Unit.YEARS, "");
+        AgeRange infant = new AgeRange(null, null, 1, Age.Unit.MONTHS, "");
+        AgeRange toddler = new AgeRange(2, Age.Unit.MONTHS, 23, Age.Unit.MONTHS, "");
+        AgeRange anyAge = new AgeRange(null, null, null, null, "");
+
+        addProgramStartingOnArvs(1, 1, "2015-06-14");
+        addProgramStartingOnArvs(2, 4, "2015-01-01");
+        addProgramStartingOnArvs(3, 5, "2014-07-31");
+        addProgramStartingOnArvs(4, 5, "2014-08-15");
+        addProgramStartingOnArvs(5, 5, "2016-06-14");
+        addProgramStartingOnArvs(6, 3, "2014-03-01");
+
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(2)), getProgramsStartedInRange(adult));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1)), getProgramsStartedInRange(child));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(3, 6)), getProgramsStartedInRange(infant));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(4, 5)), getProgramsStartedInRange(toddler));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2, 3, 4, 5, 6)), getProgramsStartedInRange(anyAge));
+    }
+
+    @Test
+    public void shouldFindPatientsWhoStartedTheStateInTheAgeRange() throws Exception {
+        addQueryFixture();
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 11)), getPatients(getAdultsStartingOnArvs(), null));
+    }
+
+    @Test
+    public void shouldFlagEachAgeRangeThePatientStartedTheStateIn() throws Exception {
+        addQueryFixture();
+        db.addProgram(12, 1, null, NENO, false);
+        db.addState(12, ON_ARVS, "2015-02-01", null, false);
+
+        List<AgeRange> ageRanges = new ArrayList<AgeRange>();
+        ageRanges.add(new AgeRange(15, Age.Unit.YEARS, null, null, ""));
+        ageRanges.add(new AgeRange(null, null, 14, Age.Unit.YEARS, ""));
+        ageRanges.add(new AgeRange(10, Age.Unit.YEARS, 19, Age.Unit.YEARS, ""));
+        ageRanges.add(new AgeRange(30, Age.Unit.YEARS, null, null, ""));
+
+        List<Set<Integer>> patients = getPatientsInAgeRanges(getAdultsStartingOnArvs(), ageRanges, null);
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 11)), patients.get(0));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 3)), patients.get(1));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4)), patients.get(2));
+        Assert.assertEquals(new TreeSet<Integer>(), patients.get(3));
+
+        patients = getPatientsInAgeRanges(getAdultsStartingOnArvs(), ageRanges, Arrays.asList(3, 4));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(4)), patients.get(0));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(3)), patients.get(1));
+    }
+
+    @Test
+    public void shouldExcludeVoidedStatesProgramsAndPatients() throws Exception {
+        addQueryFixture();
+        InAgeRangeAtStateStartCohortDefinition cd = getAdultsStartingOnArvs();
+        cd.setLocation(null);
+        cd.setStartedOnOrAfter(null);
+        cd.setStartedOnOrBefore(null);
+        Set<Integer> patients = getPatients(cd, null);
+        Assert.assertFalse(patients.contains(2));
+        Assert.assertFalse(patients.contains(6));
+        Assert.assertFalse(patients.contains(7));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 9, 10, 11)), patients);
+    }
+
+    @Test
+    public void shouldOnlyApplyTheLocationAndDatesThatAreSet() throws Exception {
+        addQueryFixture();
+        InAgeRangeAtStateStartCohortDefinition cd = getAdultsStartingOnArvs();
+        cd.setLocation(null);
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 9, 11)), getPatients(cd, null));
+
+        cd = getAdultsStartingOnArvs();
+        cd.setStartedOnOrAfter(null);
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 11)), getPatients(cd, null));
+        cd.setStartedOnOrBefore(null);
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 10, 11)), getPatients(cd, null));
+    }
+
+    @Test
+    public void shouldLimitToTheBaseCohort() throws Exception {
+        addQueryFixture();
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1)), getPatients(getAdultsStartingOnArvs(), Arrays.asList(1, 3, 6, 9)));
+        Assert.assertEquals(new TreeSet<Integer>(), getPatients(getAdultsStartingOnArvs(), new ArrayList<Integer>()));
+    }
+
+    /**
+     * Adds patients who started a state on or around 2015, of whom only 1, 4 and 11 started ON_ARVS at NENO in 2015
+     * aged 15 or over, in non-voided states, programs and patients
+     */
+    protected void addQueryFixture() {
+        for (int personId = 6; personId <= 11; personId++) {
+            db.addPerson(personId, "1990-01-01", false);
+        }
+        for (int patientId = 1; patientId <= 11; patientId++) {
+            db.addPatient(patientId, patientId == 6);
+            db.addProgram(patientId, patientId, null, (patientId == 9 ? MAGALETA : NENO), patientId == 7);
+        }
+        db.addState(1, ON_ARVS, "2015-06-15", null, false);
+        db.addState(2, ON_ARVS, "2015-03-01", null, true);
+        db.addState(3, ON_ARVS, "2015-01-01", null, false);
+        db.addState(4, ON_ARVS, "2015-01-01", null, false);
+        db.addState(6, ON_ARVS, "2015-06-01", null, false);
+        db.addState(7, ON_ARVS, "2015-06-01", null, false);
+        db.addState(8, OTHER_STATE, "2015-06-01", null, false);
+        db.addState(9, ON_ARVS, "2015-06-01", null, false);
+        db.addState(10, ON_ARVS, "2016-01-01", null, false);
+        db.addState(11, ON_ARVS, "2015-12-31", null, false);
+    }
+
+    protected InAgeRangeAtStateStartCohortDefinition getAdultsStartingOnArvs() {
+        ProgramWorkflowState state = new ProgramWorkflowState(ON_ARVS);
+        Location location = new Location(NENO);
+        InAgeRangeAtStateStartCohortDefinition cd = new InAgeRangeAtStateStartCohortDefinition();
+        cd.setState(state);
+        cd.setLocation(location);
+        cd.setMinAge(15);
+        cd.setStartedOnOrAfter(DateUtil.getDateTime(2015, 1, 1));
+        cd.setStartedOnOrBefore(DateUtil.getDateTime(2015, 12, 31));
+        return cd;
+    }
+
+    protected Set<Integer> getPatients(InAgeRangeAtStateStartCohortDefinition cd, Collection<Integer> patientIds) {
+        Set<Integer> ret = new TreeSet<Integer>();
+        for (Object[] row : query(cd, InAgeRangeAtStartStartCohortDefinitionEvaluator.getQuery(cd, patientIds))) {
+            ret.add(((Number) row[0]).intValue());
+        }
+        return ret;
+    }
+
+    /**
+     * @return the patients flagged for each of the age ranges, in the order of the ranges
+     */
+    protected List<Set<Integer>> getPatientsInAgeRanges(InAgeRangeAtStateStartCohortDefinition cd, List<AgeRange> ageRanges, Collection<Integer> patientIds) {
+        List<Set<Integer>> ret = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < ageRanges.size(); i++) {
+            ret.add(new TreeSet<Integer>());
+        }
+        for (Object[] row : query(cd, InAgeRangeAtStartStartCohortDefinitionEvaluator.getQuery(cd, ageRanges, patientIds))) {
+            for (int i = 0; i < ageRanges.size(); i++) {
+                if (((Number) row[i + 1]).intValue() == 1) {
+                    ret.get(i).add(((Number) row[0]).intValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    protected List<Object[]> query(InAgeRangeAtStateStartCohortDefinition cd, String sql) {
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("startedOnOrAfter", cd.getStartedOnOrAfter());
+        parameterValues.put("startedOnOrBefore", cd.getStartedOnOrBefore());
+        return db.query(sql.replace(":startedOnOr", "@startedOnOr"), parameterValues);
+    }
+
+    /**
+     * Checks the age computed in the query, and that the reporting module's Age gives the same age
+     */
+    protected void assertAge(int expected, Age.Unit unit, int personId, String onDate) throws Exception {
+        String age = InAgeRangeAtStartStartCohortDefinitionEvaluator.getAge(unit, "p.birthdate", "cast('" + onDate + "' as date)");
+        List<Object[]> rows = db.query("select " + age + ", p.birthdate from person p where p.person_id = " + personId);
+        Assert.assertEquals(unit + " on " + onDate, expected, ((Number) rows.get(0)[0]).intValue());
+
+        Age reportingAge = new Age((Date) rows.get(0)[1], new SimpleDateFormat("yyyy-MM-dd").parse(onDate));
+        Integer reportingValue = (unit == Age.Unit.MONTHS ? reportingAge.getFullMonths() : reportingAge.getFullYears());
+        Assert.assertEquals("Age in " + unit + " on " + onDate, Integer.valueOf(expected), reportingValue);
+    }
+
+    /**
+     * @return the ids of the programs with a state started in the age range
+     */
+    protected Set<Integer> getProgramsStartedInRange(AgeRange ageRange) {
+        String condition = InAgeRangeAtStartStartCohortDefinitionEvaluator.getAgeRangeCondition(ageRange, "p.birthdate", "ps.start_date");
+        Set<Integer> ret = new TreeSet<Integer>();
+        for (Object[] row : db.query("select ps.patient_program_id from patient_state ps, patient_program pp, person p " +
+                "where ps.patient_program_id = pp.patient_program_id and pp.patient_id = p.person_id and " + condition)) {
+            ret.add(((Number) row[0]).intValue());
+        }
+        return ret;
+    }
+
+    protected void addProgramStartingOnArvs(int patientProgramId, int personId, String startDate) {
+        db.addProgram(patientProgramId, personId, null, null, false);
+        db.addState(patientProgramId, ON_ARVS, startDate, null, false);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests the query of the EncounterAfterTerminalStateCohortDefinitionEvaluator against an EmbeddedDatabase.
+ * Each fixture patient is described by the case it covers, and each test checks the exact set of patients found.
+ */
+public class EncounterAfterTerminalStateQueryTest {
+
+    private static final int HIV_PROGRAM = 1;
+    private static final int OTHER_PROGRAM = 2;
+    private static final int ON_ARVS = 10;
+    private static final int DIED = 11;
+    private static final int TRANSFERRED_OUT = 12;
+    private static final int ART_FOLLOWUP = 20;
+    private static final int OTHER_ENCOUNTER = 21;
+    private static final int NENO = 100;
+    private static final int MAGALETA = 101;
+
+    private EmbeddedDatabase db;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+        db.execute("insert into program_workflow_state (program_workflow_state_id, terminal) values (" + ON_ARVS + ", 0);" +
+                "insert into program_workflow_state (program_workflow_state_id, terminal) values (" + DIED + ", 1);" +
+                "insert into program_workflow_state (program_workflow_state_id, terminal) values (" + TRANSFERRED_OUT + ", 1);");
+
+        // Died, then seen again at the same location
+        db.addPatient(1, false);
+        db.addProgram(1, 1, HIV_PROGRAM, NENO, false);
+        db.addState(1, ON_ARVS, "2013-01-01", null, false);
+        db.addState(1, DIED, "2014-01-01", null, false);
+        db.addEncounter(1, 1, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Transferred out and then back on ARVs, so the most recent state is not terminal
+        db.addPatient(2, false);
+        db.addProgram(2, 2, HIV_PROGRAM, NENO, false);
+        db.addState(2, TRANSFERRED_OUT, "2014-01-01", null, false);
+        db.addState(2, ON_ARVS, "2014-03-01", null, false);
+        db.addEncounter(2, 2, ART_FOLLOWUP, NENO, "2014-04-01 09:00:00", false);
+
+        // Transferred out at one location, and seen at another
+        db.addPatient(3, false);
+        db.addProgram(3, 3, HIV_PROGRAM, NENO, false);
+        db.addState(3, TRANSFERRED_OUT, "2014-01-01", null, false);
+        db.addEncounter(3, 3, ART_FOLLOWUP, MAGALETA, "2014-02-01 09:00:00", false);
+
+        // Seen later on the day the terminal state started
+        db.addPatient(4, false);
+        db.addProgram(4, 4, HIV_PROGRAM, NENO, false);
+        db.addState(4, DIED, "2014-01-01", null, false);
+        db.addEncounter(4, 4, ART_FOLLOWUP, NENO, "2014-01-01 10:30:00", false);
+
+        // Seen before the terminal state started
+        db.addPatient(5, false);
+        db.addProgram(5, 5, HIV_PROGRAM, NENO, false);
+        db.addState(5, DIED, "2014-01-01", null, false);
+        db.addEncounter(5, 5, ART_FOLLOWUP, NENO, "2013-12-01 09:00:00", false);
+
+        // Voided patient
+        db.addPatient(6, true);
+        db.addProgram(6, 6, HIV_PROGRAM, NENO, false);
+        db.addState(6, DIED, "2014-01-01", null, false);
+        db.addEncounter(6, 6, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Seen with another type of encounter
+        db.addPatient(7, false);
+        db.addProgram(7, 7, HIV_PROGRAM, NENO, false);
+        db.addState(7, DIED, "2014-01-01", null, false);
+        db.addEncounter(7, 7, OTHER_ENCOUNTER, NENO, "2014-02-01 09:00:00", false);
+
+        // Terminal state in another program
+        db.addPatient(8, false);
+        db.addProgram(8, 8, OTHER_PROGRAM, NENO, false);
+        db.addState(8, DIED, "2014-01-01", null, false);
+        db.addEncounter(8, 8, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Matches at two locations
+        db.addPatient(9, false);
+        db.addProgram(9, 9, HIV_PROGRAM, NENO, false);
+        db.addState(9, TRANSFERRED_OUT, "2013-06-01", null, false);
+        db.addProgram(10, 9, HIV_PROGRAM, MAGALETA, false);
+        db.addState(10, DIED, "2014-01-01", null, false);
+        db.addEncounter(9, 9, ART_FOLLOWUP, NENO, "2013-07-01 09:00:00", false);
+        db.addEncounter(10, 9, ART_FOLLOWUP, MAGALETA, "2014-02-01 09:00:00", false);
+
+        // Terminal and non-terminal states starting on the same day at the same location
+        db.addPatient(10, false);
+        db.addProgram(11, 10, HIV_PROGRAM, NENO, false);
+        db.addState(11, ON_ARVS, "2014-01-01", null, false);
+        db.addState(11, DIED, "2014-01-01", null, false);
+        db.addEncounter(11, 10, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Encounter without a location
+        db.addPatient(11, false);
+        db.addProgram(12, 11, HIV_PROGRAM, NENO, false);
+        db.addState(12, DIED, "2014-01-01", null, false);
+        db.addEncounter(12, 11, ART_FOLLOWUP, null, "2014-02-01 09:00:00", false);
+
+        // Seen after the terminal state only in a voided encounter
+        db.addPatient(12, false);
+        db.addProgram(13, 12, HIV_PROGRAM, NENO, false);
+        db.addState(13, DIED, "2014-01-01", null, false);
+        db.addEncounter(13, 12, ART_FOLLOWUP, NENO, "2013-12-01 09:00:00", false);
+        db.addEncounter(14, 12, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", true);
+
+        // Most recent state is terminal but voided
+        db.addPatient(13, false);
+        db.addProgram(14, 13, HIV_PROGRAM, NENO, false);
+        db.addState(14, ON_ARVS, "2013-01-01", null, false);
+        db.addState(14, DIED, "2014-01-01", null, true);
+        db.addEncounter(15, 13, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Terminal state followed by a voided state
+        db.addPatient(14, false);
+        db.addProgram(15, 14, HIV_PROGRAM, NENO, false);
+        db.addState(15, DIED, "2014-01-01", null, false);
+        db.addState(15, ON_ARVS, "2014-01-15", null, true);
+        db.addEncounter(16, 14, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+
+        // Terminal state in a voided program
+        db.addPatient(15, false);
+        db.addProgram(16, 15, HIV_PROGRAM, NENO, true);
+        db.addState(16, DIED, "2014-01-01", null, false);
+        db.addEncounter(17, 15, ART_FOLLOWUP, NENO, "2014-02-01 09:00:00", false);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldFindPatientsSeenAfterTheirMostRecentStateWasTerminal() throws Exception {
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 9, 10, 14)), getPatients(Arrays.asList(ART_FOLLOWUP), null, null));
+    }
+
+    @Test
+    public void shouldOnlyTakeEncountersOfTheGivenTypes() throws Exception {
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 7, 9, 10, 14)), getPatients(Arrays.asList(ART_FOLLOWUP, OTHER_ENCOUNTER), null, null));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(7)), getPatients(Arrays.asList(OTHER_ENCOUNTER), null, null));
+    }
+
+    @Test
+    public void shouldLimitToTheGivenLocationsAndPatients() throws Exception {
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 4, 9, 10, 14)), getPatients(Arrays.asList(ART_FOLLOWUP), Arrays.asList(NENO), null));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(9)), getPatients(Arrays.asList(ART_FOLLOWUP), Arrays.asList(MAGALETA), null));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(1, 9)), getPatients(Arrays.asList(ART_FOLLOWUP), Arrays.asList(NENO, MAGALETA), Arrays.asList(1, 2, 3, 9)));
+        Assert.assertEquals(new TreeSet<Integer>(Arrays.asList(4)), getPatients(Arrays.asList(ART_FOLLOWUP), null, Arrays.asList(2, 3, 4)));
+        Assert.assertEquals(new TreeSet<Integer>(), getPatients(Arrays.asList(ART_FOLLOWUP), new TreeSet<Integer>(), null));
+    }
+
+    protected Set<Integer> getPatients(Collection<Integer> encounterTypes, Collection<Integer> locations, Collection<Integer> patients) {
+        String sql = EncounterAfterTerminalStateCohortDefinitionEvaluator.getQuery(HIV_PROGRAM, encounterTypes, locations, patients);
+        Set<Integer> ret = new TreeSet<Integer>();
+        for (Object[] row : db.query(sql)) {
+            ret.add(((Number) row[0]).intValue());
+        }
+        return ret;
+    }
+}
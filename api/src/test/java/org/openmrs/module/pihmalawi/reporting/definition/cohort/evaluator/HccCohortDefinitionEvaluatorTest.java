@@ -0,0 +1,75 @@
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.HccCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+
+/**
+ * Checks the HCC cohort against the union of the library cohorts that were each evaluated before
+ */
+public class HccCohortDefinitionEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	HivCohortDefinitionLibrary hivCohorts;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Date endDate = DateUtil.getDateTime(2016, 6, 30);
+		for (Location location : hivMetadata.getHivStaticSystemLocations()) {
+			test(endDate, location, false);
+			test(endDate, location, true);
+		}
+	}
+
+	private void test(Date endDate, Location location, boolean includeOldPreArtPatients) throws Exception {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("location", location);
+		context.addParameterValue("endDate", endDate);
+
+		long startTime = System.currentTimeMillis();
+		Cohort expected = new Cohort();
+		add(hivCohorts.getStartedPreArtWithHccNumberAtLocationByEndDate(), context, expected);
+		add(hivCohorts.getStartedExposedChildWithHccNumberAtLocationByEndDate(), context, expected);
+		if (includeOldPreArtPatients) {
+			add(hivCohorts.getStartedPreArtIncludingOldPatientsAtLocationByEndDate(), context, expected);
+		}
+		System.out.println("Evaluated each cohort in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		HccCohortDefinition cd = new HccCohortDefinition();
+		cd.setEndDate(endDate);
+		cd.setLocation(location);
+		cd.setIncludeOldPreArtPatients(includeOldPreArtPatients);
+		startTime = System.currentTimeMillis();
+		Cohort actual = cohortDefinitionService.evaluate(cd, new EvaluationContext());
+		System.out.println("Evaluated HCC cohort in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		Assert.assertEquals(location.getName(), expected.getMemberIds(), actual.getMemberIds());
+		System.out.println(location.getName() + ": " + actual.size() + " patients");
+	}
+
+	private void add(CohortDefinition cd, EvaluationContext context, Cohort c) throws Exception {
+		c.getMemberIds().addAll(cohortDefinitionService.evaluate(cd, context).getMemberIds());
+	}
+}
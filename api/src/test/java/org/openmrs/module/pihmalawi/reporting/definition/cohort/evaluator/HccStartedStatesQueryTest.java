@@ -0,0 +1,164 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.HccCohortDefinition;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the started states query of the HccCohortDefinitionEvaluator against an EmbeddedDatabase, and the
+ * combination of the patients who started each state with those who have an HCC number
+ */
+public class HccStartedStatesQueryTest {
+
+    private static final int PRE_ART = 1;
+    private static final int EXPOSED_CHILD = 2;
+    private static final int OTHER_STATE = 3;
+    private static final int NENO = 100;
+    private static final int MAGALETA = 101;
+
+    private EmbeddedDatabase db;
+    private BitSet hasHccNumber;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+
+        // Started Pre-ART, with and without an HCC number
+        addStartedState(1, 1, PRE_ART, NENO, "2015-01-01", false, false);
+        addStartedState(2, 2, PRE_ART, NENO, "2015-01-01", false, false);
+
+        // Started Exposed Child, with and without an HCC number
+        addStartedState(3, 3, EXPOSED_CHILD, NENO, "2015-01-01", false, false);
+        addStartedState(4, 4, EXPOSED_CHILD, NENO, "2015-01-01", false, false);
+
+        // With an HCC number, but started Pre-ART after the end date, at another location, in a voided state or
+        // program, or only started another state
+        addStartedState(5, 5, PRE_ART, NENO, "2016-07-01", false, false);
+        addStartedState(6, 6, PRE_ART, MAGALETA, "2015-01-01", false, false);
+        addStartedState(7, 7, PRE_ART, NENO, "2015-01-01", true, false);
+        addStartedState(8, 8, PRE_ART, NENO, "2015-01-01", false, true);
+        addStartedState(9, 9, OTHER_STATE, NENO, "2015-01-01", false, false);
+
+        // Started both states in the same program without an HCC number, and in separate programs with one
+        addStartedState(10, 10, PRE_ART, NENO, "2014-01-01", false, false);
+        db.addState(10, EXPOSED_CHILD, "2015-01-01", null, false);
+        addStartedState(11, 11, EXPOSED_CHILD, NENO, "2014-01-01", false, false);
+        addStartedState(12, 11, PRE_ART, NENO, "2015-01-01", false, false);
+
+        hasHccNumber = getBitSet(1, 3, 5, 6, 7, 8, 9, 11);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldFindThePatientsWhoStartedEachStateAtTheLocationByTheEndDate() throws Exception {
+        Map<Integer, BitSet> started = getPatientsByState(getDefinition(NENO), null);
+        Assert.assertEquals(getBitSet(1, 2, 10, 11), started.get(PRE_ART));
+        Assert.assertEquals(getBitSet(3, 4, 10, 11), started.get(EXPOSED_CHILD));
+    }
+
+    @Test
+    public void shouldOnlyApplyTheLocationAndEndDateThatAreSet() throws Exception {
+        HccCohortDefinition cd = getDefinition(null);
+        Assert.assertEquals(getBitSet(1, 2, 6, 10, 11), getPatientsByState(cd, null).get(PRE_ART));
+
+        cd = getDefinition(NENO);
+        cd.setEndDate(null);
+        Assert.assertEquals(getBitSet(1, 2, 5, 10, 11), getPatientsByState(cd, null).get(PRE_ART));
+    }
+
+    @Test
+    public void shouldLimitToTheBaseCohort() throws Exception {
+        Map<Integer, BitSet> started = getPatientsByState(getDefinition(NENO), Arrays.asList(1, 2, 4, 99));
+        Assert.assertEquals(getBitSet(1, 2), started.get(PRE_ART));
+        Assert.assertEquals(getBitSet(4), started.get(EXPOSED_CHILD));
+
+        started = getPatientsByState(getDefinition(NENO), new ArrayList<Integer>());
+        Assert.assertTrue(started.get(PRE_ART).isEmpty());
+        Assert.assertTrue(started.get(EXPOSED_CHILD).isEmpty());
+    }
+
+    @Test
+    public void shouldOnlyIncludeThePatientsWithAnHccNumber() throws Exception {
+        Assert.assertEquals(getBitSet(1, 3, 11), getMembers(getDefinition(NENO), false));
+    }
+
+    @Test
+    public void shouldIncludeAllPatientsWhoStartedPreArtIfOldPreArtPatientsAreIncluded() throws Exception {
+        Assert.assertEquals(getBitSet(1, 2, 3, 10, 11), getMembers(getDefinition(NENO), true));
+    }
+
+    protected HccCohortDefinition getDefinition(Integer locationId) {
+        HccCohortDefinition cd = new HccCohortDefinition();
+        cd.setEndDate(DateUtil.getDateTime(2016, 6, 30));
+        cd.setLocation(locationId == null ? null : new Location(locationId));
+        return cd;
+    }
+
+    protected Map<Integer, BitSet> getPatientsByState(HccCohortDefinition cd, Collection<Integer> patientIds) {
+        String sql = HccCohortDefinitionEvaluator.getStartedStatesQuery(cd, patientIds, PRE_ART, EXPOSED_CHILD);
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("endDate", cd.getEndDate());
+        List<Object[]> rows = db.query(sql.replace(":endDate", "@endDate"), parameterValues);
+        return HccCohortDefinitionEvaluator.getPatientsByState(rows, PRE_ART, EXPOSED_CHILD);
+    }
+
+    /**
+     * @return the members combined from the started states and HCC numbers, checking that these are left unchanged
+     */
+    protected BitSet getMembers(HccCohortDefinition cd, boolean includeOldPreArtPatients) {
+        Map<Integer, BitSet> started = getPatientsByState(cd, null);
+        BitSet startedPreArt = (BitSet) started.get(PRE_ART).clone();
+        BitSet startedExposedChild = (BitSet) started.get(EXPOSED_CHILD).clone();
+        BitSet withHccNumber = (BitSet) hasHccNumber.clone();
+
+        BitSet members = HccCohortDefinitionEvaluator.getMembers(started.get(PRE_ART), started.get(EXPOSED_CHILD), hasHccNumber, includeOldPreArtPatients);
+        Assert.assertEquals(startedPreArt, started.get(PRE_ART));
+        Assert.assertEquals(startedExposedChild, started.get(EXPOSED_CHILD));
+        Assert.assertEquals(withHccNumber, hasHccNumber);
+        return members;
+    }
+
+    protected BitSet getBitSet(int... patientIds) {
+        BitSet ret = new BitSet();
+        for (int patientId : patientIds) {
+            ret.set(patientId);
+        }
+        return ret;
+    }
+
+    protected void addStartedState(int patientProgramId, int patientId, int stateId, int locationId, String startDate, boolean stateVoided, boolean programVoided) {
+        db.addProgram(patientProgramId, patientId, null, locationId, programVoided);
+        db.addState(patientProgramId, stateId, startDate, null, stateVoided);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the identifier formats checked by the InvalidIdentifierCohortDefinitionEvaluator, as configured in the
+ * HivDataQualityReport
+ */
+public class InvalidIdentifierFormatTest {
+
+	private static final String ARV_FORMAT = "^<location> [1-9][0-9]?[0-9]?[0-9]?$";
+	private static final String PART_FORMAT = "^P-<location>-[0-9][0-9][0-9][0-9]$";
+	private static final String HCC_FORMAT = "^<location> [1-9][0-9]?[0-9]?[0-9]? HCC$";
+
+	private static final List<String> SITE_CODES = Arrays.asList("NNO", "MGT", "NSM", "LSI", "CZK", "DAM", "MTE", "NKA", "ZLA", "LWAN");
+
+	@Test
+	public void shouldCompileAFormatForEachSiteCode() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(ARV_FORMAT, SITE_CODES);
+		Assert.assertEquals(SITE_CODES.size(), formats.size());
+		Assert.assertEquals("^NNO [1-9][0-9]?[0-9]?[0-9]?$", formats.get(0).pattern());
+		Assert.assertEquals(1, InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(ARV_FORMAT, Arrays.asList("NNO", "NNO")).size());
+		Assert.assertEquals(1, InvalidIdentifierCohortDefinitionEvaluator.getValidFormats("^[0-9]+$", SITE_CODES).size());
+	}
+
+	@Test
+	public void shouldValidateArvNumbersForEachSiteCode() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(ARV_FORMAT, SITE_CODES);
+		for (String code : SITE_CODES) {
+			assertValid(true, code + " 1", formats);
+			assertValid(true, code + " 10", formats);
+			assertValid(true, code + " 9999", formats);
+			assertValid(false, code + " 0", formats);
+			assertValid(false, code + " 0100", formats);
+			assertValid(false, code + " 10000", formats);
+			assertValid(false, code + "-100", formats);
+			assertValid(false, code + " 100 HCC", formats);
+			assertValid(false, code, formats);
+			assertValid(false, " " + code + " 100", formats);
+		}
+		assertValid(false, "XYZ 100", formats);
+	}
+
+	@Test
+	public void shouldValidatePreArtNumbersForEachSiteCode() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(PART_FORMAT, SITE_CODES);
+		for (String code : SITE_CODES) {
+			assertValid(true, "P-" + code + "-0001", formats);
+			assertValid(true, "P-" + code + "-1234", formats);
+			assertValid(false, "P-" + code + "-123", formats);
+			assertValid(false, "P-" + code + "-12345", formats);
+			assertValid(false, code + "-1234", formats);
+		}
+		assertValid(false, "P-XYZ-1234", formats);
+	}
+
+	@Test
+	public void shouldValidateHccNumbersForEachSiteCode() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(HCC_FORMAT, SITE_CODES);
+		for (String code : SITE_CODES) {
+			assertValid(true, code + " 1 HCC", formats);
+			assertValid(true, code + " 1234 HCC", formats);
+			assertValid(false, code + " 1234", formats);
+			assertValid(false, code + " 0 HCC", formats);
+			assertValid(false, code + " 12345 HCC", formats);
+			assertValid(false, code + " 1234 CCC", formats);
+		}
+		assertValid(false, "XYZ 1 HCC", formats);
+	}
+
+	@Test
+	public void shouldIgnoreCaseAsMysqlDid() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(HCC_FORMAT, SITE_CODES);
+		assertValid(true, "nno 12 hcc", formats);
+	}
+
+	@Test
+	public void shouldOnlyMatchWholeIdentifiersWhenTheFormatIsAnchored() {
+		assertValid(true, "NNO 12 extra", InvalidIdentifierCohortDefinitionEvaluator.getValidFormats("<location> [1-9]", SITE_CODES));
+		assertValid(false, "NNO 12 extra", InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(ARV_FORMAT, SITE_CODES));
+	}
+
+	@Test
+	public void shouldTreatEveryIdentifierAsInvalidWithoutSiteCodes() {
+		List<Pattern> formats = InvalidIdentifierCohortDefinitionEvaluator.getValidFormats(ARV_FORMAT, Arrays.<String>asList());
+		assertValid(false, "NNO 1", formats);
+	}
+
+	protected void assertValid(boolean expected, String identifier, List<Pattern> formats) {
+		Assert.assertEquals(identifier, expected, InvalidIdentifierCohortDefinitionEvaluator.isValid(identifier, formats));
+	}
+}
@@ -3,13 +3,16 @@ package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 import org.junit.Assert;
 import org.openmrs.Cohort;
 import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.RelativeDateCohortDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.HivPatientDataLibrary;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.common.DurationUnit;
 import org.openmrs.module.reporting.common.RangeComparator;
+import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.StaticValuePatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
@@ -17,6 +20,11 @@ import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
 public class RelativeDateCohortDefinitionEvaluatorTest extends StandaloneContextSensitiveTest {
 
 	@Autowired
@@ -28,6 +36,12 @@ public class RelativeDateCohortDefinitionEvaluatorTest extends StandaloneContext
 	@Autowired
 	HivPatientDataLibrary hivData;
 
+	@Autowired
+	HivCohortDefinitionLibrary hivCohorts;
+
+	@Autowired
+	HivMetadata hivMetadata;
+
 	@Autowired
 	PatientDataService patientDataService;
 
@@ -52,6 +66,47 @@ public class RelativeDateCohortDefinitionEvaluatorTest extends StandaloneContext
 		test(RangeComparator.LESS_THAN, null, null, true);
 		test(RangeComparator.GREATER_THAN, null, null, false);
 		test(RangeComparator.EQUAL, null, null, false);
+
+		testQueryMatchesDates((RelativeDateCohortDefinition) hivCohorts.getPatientsWhoStartedArtAtLocationAfterPreviousDefaultByEnd());
+		testQueryMatchesDates((RelativeDateCohortDefinition) hivCohorts.getPatientsWhoStartedArtAtLocationAfterPreviousTreatmentStopByEnd());
+		testQueryMatchesDates((RelativeDateCohortDefinition) hivCohorts.getPatientsWhoStartedArtAtLocationAfterPreviousOnArvsByEnd());
+	}
+
+	/**
+	 * Checks the patients found by comparing state start dates in a query against those found by comparing the dates
+	 * of each patient
+	 */
+	private void testQueryMatchesDates(RelativeDateCohortDefinition cd) throws EvaluationException {
+		cd.setDifferenceNumber(6);
+		cd.setDifferenceUnit(DurationUnit.MONTHS);
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("endDate", DateUtil.getDateTime(2016, 6, 30));
+		context.addParameterValue("location", hivMetadata.getNenoHospital());
+
+		long startTime = System.currentTimeMillis();
+		Cohort actual = cohortDefinitionService.evaluate(cd, context);
+		System.out.println("Compared dates in a query in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		startTime = System.currentTimeMillis();
+		PatientData data1 = patientDataService.evaluate(cd.getEarlierDateDefinition(), context);
+		PatientData data2 = patientDataService.evaluate(cd.getLaterDateDefinition(), context);
+		Set<Integer> allPats = new HashSet<Integer>(data1.getData().keySet());
+		allPats.addAll(data2.getData().keySet());
+		Cohort expected = new Cohort();
+		for (Integer pId : allPats) {
+			long d1 = toMillis((Date) data1.getData().get(pId));
+			long d2 = toMillis((Date) data2.getData().get(pId));
+			if (RelativeDateCohortDefinitionEvaluator.isIncluded(cd, d1, d2, Calendar.getInstance())) {
+				expected.addMember(pId);
+			}
+		}
+		System.out.println("Compared dates for each patient in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		Assert.assertEquals(expected.getMemberIds(), actual.getMemberIds());
+	}
+
+	private long toMillis(Date d) {
+		return (d == null ? RelativeDateCohortDefinitionEvaluator.NO_DATE : d.getTime());
 	}
 
 	private void test(RangeComparator operator, Integer number, DurationUnit unit, boolean shouldPass) throws EvaluationException{
@@ -0,0 +1,146 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.RelativeDateCohortDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.DurationUnit;
+import org.openmrs.module.reporting.common.RangeComparator;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Tests the comparison of dates by the RelativeDateCohortDefinitionEvaluator, in memory and as SQL
+ */
+public class RelativeDateComparisonTest {
+
+	private static final long NO_DATE = RelativeDateCohortDefinitionEvaluator.NO_DATE;
+
+	private Date earlier = DateUtil.getDateTime(2012, 1, 31, 10, 30, 0, 0);
+
+	@Test
+	public void shouldCompareDatesWithoutADifference() {
+		Date later = DateUtil.getDateTime(2012, 2, 1);
+		assertIncluded(true, RangeComparator.LESS_THAN, null, null, earlier, later);
+		assertIncluded(true, RangeComparator.LESS_EQUAL, null, null, earlier, later);
+		assertIncluded(false, RangeComparator.EQUAL, null, null, earlier, later);
+		assertIncluded(false, RangeComparator.GREATER_EQUAL, null, null, earlier, later);
+		assertIncluded(false, RangeComparator.GREATER_THAN, null, null, earlier, later);
+
+		assertIncluded(false, RangeComparator.LESS_THAN, null, null, earlier, earlier);
+		assertIncluded(true, RangeComparator.LESS_EQUAL, null, null, earlier, earlier);
+		assertIncluded(true, RangeComparator.EQUAL, null, null, earlier, earlier);
+		assertIncluded(true, RangeComparator.GREATER_EQUAL, null, null, earlier, earlier);
+		assertIncluded(false, RangeComparator.GREATER_THAN, null, null, earlier, earlier);
+
+		assertIncluded(true, RangeComparator.GREATER_THAN, null, null, later, earlier);
+	}
+
+	@Test
+	public void shouldCompareDatesADifferenceApartInEveryUnit() {
+		for (DurationUnit unit : DurationUnit.values()) {
+			Date exactlyApart = DateUtil.adjustDate(earlier, 2, unit);
+			Date lessApart = new Date(exactlyApart.getTime() - 1);
+			Date moreApart = new Date(exactlyApart.getTime() + 1);
+
+			assertIncluded(true, RangeComparator.EQUAL, 2, unit, earlier, exactlyApart);
+			assertIncluded(true, RangeComparator.LESS_EQUAL, 2, unit, earlier, exactlyApart);
+			assertIncluded(true, RangeComparator.GREATER_EQUAL, 2, unit, earlier, exactlyApart);
+			assertIncluded(false, RangeComparator.LESS_THAN, 2, unit, earlier, exactlyApart);
+			assertIncluded(false, RangeComparator.GREATER_THAN, 2, unit, earlier, exactlyApart);
+
+			assertIncluded(true, RangeComparator.LESS_THAN, 2, unit, earlier, lessApart);
+			assertIncluded(true, RangeComparator.LESS_EQUAL, 2, unit, earlier, lessApart);
+			assertIncluded(false, RangeComparator.EQUAL, 2, unit, earlier, lessApart);
+			assertIncluded(false, RangeComparator.GREATER_THAN, 2, unit, earlier, lessApart);
+
+			assertIncluded(true, RangeComparator.GREATER_THAN, 2, unit, earlier, moreApart);
+			assertIncluded(true, RangeComparator.GREATER_EQUAL, 2, unit, earlier, moreApart);
+			assertIncluded(false, RangeComparator.EQUAL, 2, unit, earlier, moreApart);
+			assertIncluded(false, RangeComparator.LESS_THAN, 2, unit, earlier, moreApart);
+		}
+	}
+
+	@Test
+	public void shouldAdjustMonthsToTheEndOfShorterMonths() {
+		assertIncluded(true, RangeComparator.EQUAL, 1, DurationUnit.MONTHS, earlier, DateUtil.getDateTime(2012, 2, 29, 10, 30, 0, 0));
+		assertIncluded(true, RangeComparator.GREATER_THAN, 1, DurationUnit.MONTHS, earlier, DateUtil.getDateTime(2012, 3, 1));
+	}
+
+	@Test
+	public void shouldPassMissingDatesOnlyIfConfigured() {
+		long d = earlier.getTime();
+		for (RangeComparator operator : RangeComparator.values()) {
+			Assert.assertFalse(isIncluded(getDefinition(operator, null, null, false, false), NO_DATE, d));
+			Assert.assertTrue(isIncluded(getDefinition(operator, null, null, true, false), NO_DATE, d));
+			Assert.assertTrue(isIncluded(getDefinition(operator, null, null, true, false), NO_DATE, NO_DATE));
+			Assert.assertFalse(isIncluded(getDefinition(operator, null, null, false, true), NO_DATE, NO_DATE));
+
+			Assert.assertFalse(isIncluded(getDefinition(operator, 1, DurationUnit.DAYS, false, false), d, NO_DATE));
+			Assert.assertTrue(isIncluded(getDefinition(operator, 1, DurationUnit.DAYS, false, true), d, NO_DATE));
+			Assert.assertFalse(isIncluded(getDefinition(operator, 1, DurationUnit.DAYS, true, false), d, NO_DATE));
+		}
+	}
+
+	@Test
+	public void shouldWriteIntervalsForEveryUnit() {
+		Assert.assertEquals("interval 3 SECOND", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.SECONDS));
+		Assert.assertEquals("interval 3 MINUTE", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.MINUTES));
+		Assert.assertEquals("interval 3 HOUR", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.HOURS));
+		Assert.assertEquals("interval 3 DAY", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.DAYS));
+		Assert.assertEquals("interval 21 DAY", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.WEEKS));
+		Assert.assertEquals("interval 3 MONTH", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.MONTHS));
+		Assert.assertEquals("interval 3 YEAR", RelativeDateCohortDefinitionEvaluator.getInterval(3, DurationUnit.YEARS));
+	}
+
+	@Test
+	public void shouldWriteComparisonsThatMatchTheInMemoryComparison() {
+		Assert.assertEquals("d1 < d2", getComparison(RangeComparator.LESS_THAN, null, null));
+		Assert.assertEquals("d1 >= d2", getComparison(RangeComparator.GREATER_EQUAL, null, null));
+		Assert.assertEquals("d1 = d2", getComparison(RangeComparator.EQUAL, null, null));
+
+		// More than the difference having gone by means the later date is after the adjusted earlier date
+		Assert.assertEquals("d2 > date_add(d1, interval 6 MONTH)", getComparison(RangeComparator.GREATER_THAN, 6, DurationUnit.MONTHS));
+		Assert.assertEquals("d2 <= date_add(d1, interval 6 MONTH)", getComparison(RangeComparator.LESS_EQUAL, 6, DurationUnit.MONTHS));
+		Assert.assertEquals("d2 = date_add(d1, interval 14 DAY)", getComparison(RangeComparator.EQUAL, 2, DurationUnit.WEEKS));
+	}
+
+	protected void assertIncluded(boolean expected, RangeComparator operator, Integer number, DurationUnit unit, Date d1, Date d2) {
+		RelativeDateCohortDefinition cd = getDefinition(operator, number, unit, false, false);
+		String message = operator + " " + number + " " + unit + " from " + d1 + " to " + d2;
+		Assert.assertEquals(message, expected, isIncluded(cd, d1.getTime(), d2.getTime()));
+	}
+
+	protected boolean isIncluded(RelativeDateCohortDefinition cd, long d1, long d2) {
+		return RelativeDateCohortDefinitionEvaluator.isIncluded(cd, d1, d2, Calendar.getInstance());
+	}
+
+	protected String getComparison(RangeComparator operator, Integer number, DurationUnit unit) {
+		return RelativeDateCohortDefinitionEvaluator.getComparison(getDefinition(operator, number, unit, false, false), "d1", "d2");
+	}
+
+	protected RelativeDateCohortDefinition getDefinition(RangeComparator operator, Integer number, DurationUnit unit, boolean passIfDate1Null, boolean passIfDate2Null) {
+		RelativeDateCohortDefinition cd = new RelativeDateCohortDefinition();
+		cd.setDifferenceOperator(operator);
+		cd.setDifferenceNumber(number);
+		cd.setDifferenceUnit(unit);
+		cd.setPassIfDate1Null(passIfDate1Null);
+		cd.setPassIfDate2Null(passIfDate2Null);
+		return cd;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.RelativeDateCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator.RelativeDateCohortDefinitionEvaluator.StateStartDateQuery;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.RangeComparator;
+import org.openmrs.module.reporting.common.TimeQualifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tests the query of the RelativeDateCohortDefinitionEvaluator that compares the start dates of two program states
+ * against an EmbeddedDatabase.  Differences in units are written as MySQL intervals, whose comparisons are covered
+ * by the RelativeDateComparisonTest, so the dates are compared here without a difference.
+ */
+public class RelativeDateQueryTest {
+
+    private static final int PRE_ART = 1;
+    private static final int ON_ARVS = 2;
+    private static final int NENO = 100;
+    private static final int MAGALETA = 101;
+    private static final Date ON_OR_BEFORE = DateUtil.getDateTime(2014, 6, 30);
+
+    private EmbeddedDatabase db;
+    private int numPrograms = 0;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+
+        // Started the earlier state first
+        addState(1, PRE_ART, NENO, "2013-01-01", false);
+        addState(1, ON_ARVS, NENO, "2013-06-01", false);
+
+        // Started the earlier state before and after the later state
+        addState(2, PRE_ART, NENO, "2013-01-01", false);
+        addState(2, PRE_ART, NENO, "2013-09-01", false);
+        addState(2, ON_ARVS, NENO, "2013-06-01", false);
+
+        // Only started the earlier state
+        addState(3, PRE_ART, NENO, "2013-01-01", false);
+
+        // Only started the later state
+        addState(4, ON_ARVS, NENO, "2013-01-01", false);
+
+        // Started the earlier state after the date
+        addState(5, PRE_ART, NENO, "2014-08-01", false);
+        addState(5, ON_ARVS, NENO, "2013-01-01", false);
+
+        // Voided earlier state
+        addState(6, PRE_ART, NENO, "2012-01-01", true);
+        addState(6, ON_ARVS, NENO, "2013-01-01", false);
+
+        // Earlier state at another location
+        addState(7, PRE_ART, MAGALETA, "2012-01-01", false);
+        addState(7, ON_ARVS, NENO, "2013-01-01", false);
+
+        // Started both states on the same date
+        addState(8, PRE_ART, NENO, "2013-03-01", false);
+        addState(8, ON_ARVS, NENO, "2013-03-01", false);
+
+        // Started the later state after the earlier state, but between the dates each is started by
+        addState(9, PRE_ART, NENO, "2014-01-01", false);
+        addState(9, ON_ARVS, NENO, "2014-03-01", false);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldCompareTheStartDatesOfPatientsWithBoth() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 2, 9), getPatients(getDefinition(RangeComparator.LESS_THAN, false, false), TimeQualifier.FIRST, NENO, null));
+        Assert.assertEquals(Arrays.asList(1, 2, 8, 9), getPatients(getDefinition(RangeComparator.LESS_EQUAL, false, false), TimeQualifier.FIRST, NENO, null));
+        Assert.assertEquals(Arrays.asList(8), getPatients(getDefinition(RangeComparator.EQUAL, false, false), TimeQualifier.FIRST, NENO, null));
+        Assert.assertEquals(Arrays.asList(2), getPatients(getDefinition(RangeComparator.GREATER_THAN, false, false), TimeQualifier.LAST, NENO, null));
+    }
+
+    @Test
+    public void shouldPassPatientsWithOnlyOneOfTheDatesOnlyIfConfigured() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 2, 4, 5, 6, 7, 9), getPatients(getDefinition(RangeComparator.LESS_THAN, true, false), TimeQualifier.FIRST, NENO, null));
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 9), getPatients(getDefinition(RangeComparator.LESS_THAN, false, true), TimeQualifier.FIRST, NENO, null));
+    }
+
+    @Test
+    public void shouldOnlyTakeStatesAtTheLocationIfThereIsOne() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 2, 7, 9), getPatients(getDefinition(RangeComparator.LESS_THAN, false, false), TimeQualifier.FIRST, null, null));
+    }
+
+    @Test
+    public void shouldLimitEachDateToItsOwnEndDate() throws Exception {
+        RelativeDateCohortDefinition cd = getDefinition(RangeComparator.LESS_THAN, false, false);
+        String sql = RelativeDateCohortDefinitionEvaluator.getQuery(cd, getStateQuery(PRE_ART, TimeQualifier.FIRST, NENO),
+                getStateQuery(ON_ARVS, TimeQualifier.LAST, NENO), null);
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("earlierOnOrBefore", ON_OR_BEFORE);
+        parameterValues.put("laterOnOrBefore", DateUtil.getDateTime(2014, 2, 1));
+        Assert.assertEquals(Arrays.asList(1, 2), getPatients(sql, parameterValues));
+    }
+
+    @Test
+    public void shouldLimitToTheBaseCohort() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 4), getPatients(getDefinition(RangeComparator.LESS_THAN, true, false), TimeQualifier.FIRST, NENO, Arrays.asList(1, 3, 4, 99)));
+    }
+
+    @Test
+    public void shouldQueryTheStatesOfEachDateOnce() throws Exception {
+        String sql = RelativeDateCohortDefinitionEvaluator.getQuery(getDefinition(RangeComparator.LESS_THAN, false, false),
+                getStateQuery(PRE_ART, TimeQualifier.FIRST, NENO), getStateQuery(ON_ARVS, TimeQualifier.LAST, NENO), null);
+        Assert.assertEquals(2, sql.split("patient_state").length - 1);
+    }
+
+    /**
+     * @return the ids of the patients found when comparing the first or last earlier state with the last later state
+     */
+    protected List<Integer> getPatients(RelativeDateCohortDefinition cd, TimeQualifier earlierWhich, Integer locationId, Collection<Integer> patientIds) {
+        String sql = RelativeDateCohortDefinitionEvaluator.getQuery(cd, getStateQuery(PRE_ART, earlierWhich, locationId),
+                getStateQuery(ON_ARVS, TimeQualifier.LAST, locationId), patientIds);
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("earlierOnOrBefore", ON_OR_BEFORE);
+        parameterValues.put("laterOnOrBefore", ON_OR_BEFORE);
+        return getPatients(sql, parameterValues);
+    }
+
+    protected List<Integer> getPatients(String sql, Map<String, Object> parameterValues) {
+        sql = sql.replace(":earlierOnOrBefore", "@earlierOnOrBefore").replace(":laterOnOrBefore", "@laterOnOrBefore");
+        TreeSet<Integer> ret = new TreeSet<Integer>();
+        for (Object[] row : db.query(sql, parameterValues)) {
+            ret.add(((Number) row[0]).intValue());
+        }
+        return new ArrayList<Integer>(ret);
+    }
+
+    protected StateStartDateQuery getStateQuery(int stateId, TimeQualifier which, Integer locationId) {
+        return new StateStartDateQuery(stateId, which, ON_OR_BEFORE, locationId);
+    }
+
+    protected RelativeDateCohortDefinition getDefinition(RangeComparator operator, boolean passIfDate1Null, boolean passIfDate2Null) {
+        RelativeDateCohortDefinition cd = new RelativeDateCohortDefinition();
+        cd.setDifferenceOperator(operator);
+        cd.setPassIfDate1Null(passIfDate1Null);
+        cd.setPassIfDate2Null(passIfDate2Null);
+        return cd;
+    }
+
+    /**
+     * Adds the state in a program of its own
+     */
+    protected void addState(int patientId, int stateId, int locationId, String startDate, boolean voided) {
+        numPrograms++;
+        db.addProgram(numPrograms, patientId, null, locationId, false);
+        db.addState(numPrograms, stateId, startDate, null, voided);
+    }
+}
@@ -1,12 +1,20 @@
 package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
 
+import org.junit.Assert;
 import org.openmrs.Cohort;
 import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
 import org.openmrs.module.pihmalawi.common.AppointmentInfo;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.metadata.group.ArtTreatmentGroup;
+import org.openmrs.module.pihmalawi.reporting.definition.data.definition.AppointmentStatusDataDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.ChronicCarePatientDataLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.HivPatientDataLibrary;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.service.PatientDataService;
@@ -15,6 +23,7 @@ import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 
@@ -37,6 +46,15 @@ public class AppointmentStatusDataDefinitionEvaluatorTest extends StandaloneCont
     @Autowired
     HivMetadata hivMetadata;
 
+    @Autowired
+    ArtTreatmentGroup artTreatmentGroup;
+
+    @Autowired
+    HivCohortDefinitionLibrary hivCohortDefinitionLibrary;
+
+    @Autowired
+    CohortDefinitionService cohortDefinitionService;
+
 	@Override
 	protected boolean isEnabled() {
 		return false;
@@ -50,8 +68,59 @@ public class AppointmentStatusDataDefinitionEvaluatorTest extends StandaloneCont
         printData(patientDataService.evaluate(hivPatientDataLibrary.getHccAppointmentStatus(), context));
         printData(patientDataService.evaluate(hivPatientDataLibrary.getArtAppointmentStatus(), context));
         printData(patientDataService.evaluate(chronicCarePatientDataLibrary.getChronicCareAppointmentStatus(), context));
+        checkAppointmentsAreFilteredByDateAndLocation();
 	}
 
+    /**
+     * The scheduled appointment must come from an encounter of the given types, at the given locations, on or before
+     * the date, and each patient with a scheduled appointment must also have a last encounter date.
+     */
+    public void checkAppointmentsAreFilteredByDateAndLocation() throws Exception {
+        Date onDate = DateUtil.getDateTime(2014, 6, 30);
+        Location location = hivMetadata.getNenoHospital();
+
+        AppointmentStatusDataDefinition def = new AppointmentStatusDataDefinition();
+        def.setActiveStates(artTreatmentGroup.getActiveStates());
+        def.setEncounterTypes(artTreatmentGroup.getEncounterTypes());
+        def.setLocations(Arrays.asList(location));
+        def.setOnDate(onDate);
+
+        EvaluationContext context = new EvaluationContext();
+        context.setBaseCohort(cohortDefinitionService.evaluate(hivCohortDefinitionLibrary.getEverEnrolledInHivProgramByEndDate(), getEndDateContext(onDate)));
+        PatientData data = patientDataService.evaluate(def, context);
+
+        HqlQueryBuilder q = new HqlQueryBuilder();
+        q.select("o.personId", "max(o.valueDatetime)");
+        q.from(Obs.class, "o");
+        q.whereInAny("o.concept", hivMetadata.getAppointmentDateConcept());
+        q.whereIn("o.encounter.encounterType", artTreatmentGroup.getEncounterTypes());
+        q.whereEqual("o.encounter.location", location);
+        q.whereLessOrEqualTo("o.encounter.encounterDatetime", onDate);
+        q.wherePersonIn("o.personId", context);
+        q.groupBy("o.personId");
+        Map<Integer, Date> expected = evaluationService.evaluateToMap(q, Integer.class, Date.class, context);
+
+        Assert.assertEquals(context.getBaseCohort().getMemberIds(), data.getData().keySet());
+        for (Integer patientId : data.getData().keySet()) {
+            AppointmentInfo ai = (AppointmentInfo) data.getData().get(patientId);
+            if (ai.getNextScheduledDate() != null) {
+                Assert.assertTrue(ai.isCurrentlyEnrolled());
+                Assert.assertNotNull(ai.getLastEncounterDate());
+                Assert.assertFalse(ai.getLastEncounterDate().after(onDate));
+                Assert.assertEquals(expected.get(patientId).getTime(), ai.getNextScheduledDate().getTime());
+            }
+            else if (ai.isCurrentlyEnrolled()) {
+                Assert.assertNull(expected.get(patientId));
+            }
+        }
+    }
+
+    protected EvaluationContext getEndDateContext(Date endDate) {
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("endDate", endDate);
+        return context;
+    }
+
     public void printData(PatientData data) throws Exception {
         AppointmentInfo ai = (AppointmentInfo) data.getData().get(pId);
         System.out.println("----------------");
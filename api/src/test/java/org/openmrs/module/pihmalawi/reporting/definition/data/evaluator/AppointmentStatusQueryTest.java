@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests the query of the AppointmentStatusDataEvaluator against an EmbeddedDatabase.
+ * Each patient found is returned as their last encounter date, latest appointment date and whether they are enrolled.
+ */
+public class AppointmentStatusQueryTest {
+
+    private static final int APPOINTMENT_DATE = 5096;
+    private static final int OTHER_CONCEPT = 5097;
+    private static final int ON_ARVS = 10;
+    private static final int DIED = 11;
+    private static final int ART_FOLLOWUP = 20;
+    private static final int OTHER_ENCOUNTER = 21;
+    private static final int NENO = 100;
+    private static final int MAGALETA = 101;
+    private static final Date ON_DATE = DateUtil.getDateTime(2014, 6, 30);
+
+    private EmbeddedDatabase db;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+
+        // Enrolled, with the latest appointment scheduled in the last encounter
+        db.addPatient(1, false);
+        db.addProgram(1, 1, null, NENO, false);
+        db.addState(1, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(1, 1, ART_FOLLOWUP, NENO, "2014-03-01", false);
+        db.addDatetimeObs(1, APPOINTMENT_DATE, "2014-06-01", false);
+        db.addEncounter(2, 1, ART_FOLLOWUP, NENO, "2014-05-01", false);
+        db.addDatetimeObs(2, APPOINTMENT_DATE, "2014-08-01", false);
+
+        // Seen again after the date
+        db.addPatient(2, false);
+        db.addProgram(2, 2, null, NENO, false);
+        db.addState(2, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(3, 2, ART_FOLLOWUP, NENO, "2014-02-01", false);
+        db.addDatetimeObs(3, APPOINTMENT_DATE, "2014-04-01", false);
+        db.addEncounter(4, 2, ART_FOLLOWUP, NENO, "2014-07-15", false);
+        db.addDatetimeObs(4, APPOINTMENT_DATE, "2014-10-01", false);
+
+        // Seen most recently at another location
+        db.addPatient(3, false);
+        db.addProgram(3, 3, null, NENO, false);
+        db.addState(3, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(5, 3, ART_FOLLOWUP, NENO, "2014-01-01", false);
+        db.addDatetimeObs(5, APPOINTMENT_DATE, "2014-03-01", false);
+        db.addEncounter(6, 3, ART_FOLLOWUP, MAGALETA, "2014-05-01", false);
+        db.addDatetimeObs(6, APPOINTMENT_DATE, "2014-07-01", false);
+
+        // Enrolled and seen without an appointment being scheduled
+        db.addPatient(4, false);
+        db.addProgram(4, 4, null, NENO, false);
+        db.addState(4, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(7, 4, ART_FOLLOWUP, NENO, "2014-04-01", false);
+
+        // Seen with only a voided appointment and another obs, and no longer enrolled
+        db.addPatient(5, false);
+        db.addProgram(5, 5, null, NENO, false);
+        db.addState(5, ON_ARVS, "2013-01-01", "2014-05-01", false);
+        db.addEncounter(8, 5, ART_FOLLOWUP, NENO, "2014-04-01", false);
+        db.addDatetimeObs(8, APPOINTMENT_DATE, "2014-07-01", true);
+        db.addDatetimeObs(8, OTHER_CONCEPT, "2014-08-01", false);
+
+        // Voided encounter and voided state
+        db.addPatient(6, false);
+        db.addProgram(6, 6, null, NENO, false);
+        db.addState(6, ON_ARVS, "2013-01-01", null, true);
+        db.addEncounter(9, 6, ART_FOLLOWUP, NENO, "2014-04-01", true);
+        db.addDatetimeObs(9, APPOINTMENT_DATE, "2014-07-01", false);
+
+        // State in a voided program, and seen with another type of encounter
+        db.addPatient(7, false);
+        db.addProgram(7, 7, null, NENO, true);
+        db.addState(7, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(10, 7, OTHER_ENCOUNTER, NENO, "2014-04-01", false);
+        db.addDatetimeObs(10, APPOINTMENT_DATE, "2014-07-01", false);
+
+        // Voided patient
+        db.addPatient(8, true);
+        db.addProgram(8, 8, null, NENO, false);
+        db.addState(8, ON_ARVS, "2013-01-01", null, false);
+        db.addEncounter(11, 8, ART_FOLLOWUP, NENO, "2014-04-01", false);
+        db.addDatetimeObs(11, APPOINTMENT_DATE, "2014-07-01", false);
+
+        // In a state that is not active on the date, and an active state that starts after it
+        db.addPatient(9, false);
+        db.addProgram(9, 9, null, NENO, false);
+        db.addState(9, DIED, "2013-01-01", null, false);
+        db.addState(9, ON_ARVS, "2014-07-01", null, false);
+
+        // Enrolled at another location and never seen
+        db.addPatient(10, false);
+        db.addProgram(10, 10, null, MAGALETA, false);
+        db.addState(10, ON_ARVS, "2013-01-01", null, false);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldFindTheLastEncounterLatestAppointmentAndEnrollmentOfEachPatient() throws Exception {
+        Map<Integer, String> expected = new TreeMap<Integer, String>();
+        expected.put(1, "2014-05-01 2014-08-01 1");
+        expected.put(2, "2014-02-01 2014-04-01 1");
+        expected.put(3, "2014-01-01 2014-03-01 1");
+        expected.put(4, "2014-04-01 null 1");
+        expected.put(5, "2014-04-01 null 0");
+        Assert.assertEquals(expected, getAppointmentStatus(Arrays.asList(NENO), null, ON_DATE));
+    }
+
+    @Test
+    public void shouldOnlyTakeEncountersAndStatesOnOrBeforeTheDate() throws Exception {
+        Map<Integer, String> data = getAppointmentStatus(Arrays.asList(NENO), null, null);
+        Assert.assertEquals("2014-07-15 2014-10-01 1", data.get(2));
+        Assert.assertEquals("2014-04-01 null 1", data.get(5));
+        Assert.assertEquals("null null 1", data.get(9));
+    }
+
+    @Test
+    public void shouldOnlyTakeEncountersAndProgramsAtTheLocations() throws Exception {
+        Map<Integer, String> data = getAppointmentStatus(null, null, ON_DATE);
+        Assert.assertEquals("2014-05-01 2014-07-01 1", data.get(3));
+        Assert.assertEquals("null null 1", data.get(10));
+
+        data = getAppointmentStatus(Arrays.asList(MAGALETA), null, ON_DATE);
+        Assert.assertEquals("2014-05-01 2014-07-01 0", data.get(3));
+        Assert.assertEquals("null null 1", data.get(10));
+        Assert.assertEquals(2, data.size());
+
+        Assert.assertTrue(getAppointmentStatus(Arrays.<Integer>asList(), null, ON_DATE).isEmpty());
+    }
+
+    @Test
+    public void shouldExcludeVoidedEncountersObsStatesProgramsAndPatients() throws Exception {
+        Map<Integer, String> data = getAppointmentStatus(null, null, ON_DATE);
+        Assert.assertFalse(data.containsKey(6));
+        Assert.assertFalse(data.containsKey(7));
+        Assert.assertFalse(data.containsKey(8));
+        Assert.assertEquals("2014-04-01 null 0", data.get(5));
+    }
+
+    @Test
+    public void shouldLimitToTheBaseCohort() throws Exception {
+        Map<Integer, String> data = getAppointmentStatus(Arrays.asList(NENO), Arrays.asList(1, 4, 6, 99), ON_DATE);
+        Assert.assertEquals(Arrays.asList(1, 4), new ArrayList<Integer>(data.keySet()));
+        Assert.assertTrue(getAppointmentStatus(Arrays.asList(NENO), Arrays.<Integer>asList(), ON_DATE).isEmpty());
+    }
+
+    /**
+     * @return the last encounter date, latest appointment date and enrollment of each patient found, as a string
+     */
+    protected Map<Integer, String> getAppointmentStatus(Collection<Integer> locations, Collection<Integer> patients, Date onDate) {
+        String sql = AppointmentStatusDataEvaluator.getQuery(APPOINTMENT_DATE, Arrays.asList(ART_FOLLOWUP), Arrays.asList(ON_ARVS),
+                locations, patients, onDate != null);
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("onDate", onDate);
+        Map<Integer, String> ret = new TreeMap<Integer, String>();
+        for (Object[] row : db.query(sql.replace(":onDate", "@onDate"), parameterValues)) {
+            ret.put(((Number) row[0]).intValue(), format(row[1]) + " " + format(row[2]) + " " + ((Number) row[3]).intValue());
+        }
+        return ret;
+    }
+
+    protected String format(Object date) {
+        return (date == null ? "null" : new SimpleDateFormat("yyyy-MM-dd").format((Date) date));
+    }
+}
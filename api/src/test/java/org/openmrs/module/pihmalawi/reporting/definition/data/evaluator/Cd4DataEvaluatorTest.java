@@ -0,0 +1,105 @@
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.Obs;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.data.definition.Cd4DataDefinition;
+import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.data.patient.PatientData;
+import org.openmrs.module.reporting.data.patient.service.PatientDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the CD4 obs read as scalar values against the same obs loaded as entities, as they were before.
+ */
+public class Cd4DataEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	HivCohortDefinitionLibrary hivCohorts;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	PatientDataService patientDataService;
+
+	@Autowired
+	EvaluationService evaluationService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Date endDate = DateUtil.getDateTime(2016, 6, 30);
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("endDate", endDate);
+		context.setBaseCohort(cohortDefinitionService.evaluate(hivCohorts.getEverEnrolledInHivProgramByEndDate(), context));
+
+		long startTime = System.currentTimeMillis();
+		Map<Integer, List<Obs>> expected = getCd4ObsAsEntities(endDate, context);
+		System.out.println("Loaded CD4 obs as entities in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		Cd4DataDefinition def = new Cd4DataDefinition();
+		def.setEndDate(endDate);
+		startTime = System.currentTimeMillis();
+		PatientData actual = patientDataService.evaluate(def, context);
+		System.out.println("Read CD4 obs as values in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		Assert.assertEquals(expected.keySet(), actual.getData().keySet());
+		for (Integer pId : expected.keySet()) {
+			List<Obs> expectedObs = expected.get(pId);
+			List<Obs> actualObs = (List<Obs>) actual.getData().get(pId);
+			Assert.assertEquals(expectedObs.size(), actualObs.size());
+			for (int i = 0; i < expectedObs.size(); i++) {
+				Obs e = expectedObs.get(i);
+				Obs a = actualObs.get(i);
+				Assert.assertEquals(e.getObsId(), a.getObsId());
+				Assert.assertEquals(e.getObsDatetime().getTime(), a.getObsDatetime().getTime());
+				Assert.assertEquals(e.getValueNumeric(), a.getValueNumeric());
+				Assert.assertEquals(e.getConcept(), a.getConcept());
+				Assert.assertEquals(e.getPersonId(), a.getPersonId());
+			}
+		}
+		System.out.println("CD4 obs matched for " + expected.size() + " patients");
+	}
+
+	protected Map<Integer, List<Obs>> getCd4ObsAsEntities(Date endDate, EvaluationContext context) {
+		HqlQueryBuilder q = new HqlQueryBuilder();
+		q.select("o.personId", "o");
+		q.from(Obs.class, "o");
+		q.wherePersonIn("o.personId", context);
+		q.whereInAny("o.concept", hivMetadata.getCd4CountConcept(), hivMetadata.getClinicianReportedCd4Concept());
+		q.whereLessOrEqualTo("o.obsDatetime", endDate);
+		q.orderAsc("o.obsDatetime");
+		q.orderAsc("o.obsId");
+
+		Map<Integer, List<Obs>> ret = new HashMap<Integer, List<Obs>>();
+		for (Object[] row : evaluationService.evaluateToList(q, context)) {
+			List<Obs> obsForPatient = ret.get((Integer) row[0]);
+			if (obsForPatient == null) {
+				obsForPatient = new ArrayList<Obs>();
+				ret.put((Integer) row[0], obsForPatient);
+			}
+			obsForPatient.add((Obs) row[1]);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tests the high blood pressure query of the PriorityPatientForTraceDataEvaluator against an EmbeddedDatabase.
+ * A patient is found if a systolic reading over 180 and a diastolic reading over 110 were recorded in the same encounter.
+ */
+public class HighBloodPressureQueryTest {
+
+    private static final int SYSTOLIC = 5085;
+    private static final int DIASTOLIC = 5086;
+    private static final int WEIGHT = 5089;
+    private static final int CHRONIC_CARE_FOLLOWUP = 30;
+    private static final int HTN_DIABETES_FOLLOWUP = 31;
+    private static final int ART_FOLLOWUP = 20;
+    private static final int NENO = 100;
+    private static final Date END_DATE = DateUtil.getDateTime(2014, 6, 30);
+
+    private EmbeddedDatabase db;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+
+        // Both readings over the thresholds in each of two encounters, of both types
+        addReadings(1, 1, CHRONIC_CARE_FOLLOWUP, "2014-01-01", 190, 120, false);
+        addReadings(2, 1, HTN_DIABETES_FOLLOWUP, "2014-03-01", 185, 115, false);
+
+        // Only the systolic reading over its threshold in one encounter and only the diastolic in another
+        addReadings(3, 2, CHRONIC_CARE_FOLLOWUP, "2014-01-01", 190, 100, false);
+        addReadings(4, 2, CHRONIC_CARE_FOLLOWUP, "2014-02-01", 170, 120, false);
+
+        // Readings on the thresholds, which must be exceeded
+        addReadings(5, 3, CHRONIC_CARE_FOLLOWUP, "2014-01-01", 180, 110, false);
+
+        // High readings in an encounter after the end date
+        addReadings(6, 4, CHRONIC_CARE_FOLLOWUP, "2014-07-01", 200, 130, false);
+
+        // High readings in a voided encounter, and in an encounter with a voided diastolic reading
+        addReadings(7, 5, CHRONIC_CARE_FOLLOWUP, "2014-01-01", 200, 130, true);
+        db.addEncounter(8, 5, CHRONIC_CARE_FOLLOWUP, NENO, "2014-02-01", false);
+        db.addNumericObs(8, SYSTOLIC, 200, false);
+        db.addNumericObs(8, DIASTOLIC, 130, true);
+
+        // High readings in an encounter of another type
+        addReadings(9, 6, ART_FOLLOWUP, "2014-01-01", 200, 130, false);
+
+        // High readings with other obs in the same encounter, on the end date
+        addReadings(10, 7, HTN_DIABETES_FOLLOWUP, "2014-06-30", 181, 111, false);
+        db.addNumericObs(10, WEIGHT, 200, false);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldFindPatientsWithBothReadingsOverTheThresholdsInTheSameEncounter() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 7), getPatients(null, END_DATE));
+    }
+
+    @Test
+    public void shouldOnlyTakeEncountersOnOrBeforeTheEndDateIfThereIsOne() throws Exception {
+        Assert.assertEquals(Arrays.asList(1, 4, 7), getPatients(null, null));
+        Assert.assertEquals(Arrays.asList(1), getPatients(null, DateUtil.getDateTime(2014, 6, 29)));
+    }
+
+    @Test
+    public void shouldReturnEachPatientOnce() throws Exception {
+        List<Object[]> rows = db.query(getQuery(null, false));
+        Assert.assertEquals(3, rows.size());
+    }
+
+    @Test
+    public void shouldLimitToTheBaseCohort() throws Exception {
+        Assert.assertEquals(Arrays.asList(7), getPatients(Arrays.asList(2, 5, 7, 99), END_DATE));
+    }
+
+    protected String getQuery(Collection<Integer> patientIds, boolean endDate) {
+        return PriorityPatientForTraceDataEvaluator.getHighBloodPressureQuery(SYSTOLIC, DIASTOLIC,
+                Arrays.asList(CHRONIC_CARE_FOLLOWUP, HTN_DIABETES_FOLLOWUP), patientIds, endDate);
+    }
+
+    /**
+     * @return the ids of the patients found, in order
+     */
+    protected List<Integer> getPatients(Collection<Integer> patientIds, Date endDate) {
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("endDate", endDate);
+        TreeSet<Integer> ret = new TreeSet<Integer>();
+        for (Object[] row : db.query(getQuery(patientIds, endDate != null).replace(":endDate", "@endDate"), parameterValues)) {
+            ret.add(((Number) row[0]).intValue());
+        }
+        return new ArrayList<Integer>(ret);
+    }
+
+    protected void addReadings(int encounterId, int patientId, int encounterTypeId, String encounterDatetime, double systolic, double diastolic, boolean voided) {
+        db.addEncounter(encounterId, patientId, encounterTypeId, NENO, encounterDatetime, voided);
+        db.addNumericObs(encounterId, SYSTOLIC, systolic, false);
+        db.addNumericObs(encounterId, DIASTOLIC, diastolic, false);
+    }
+}
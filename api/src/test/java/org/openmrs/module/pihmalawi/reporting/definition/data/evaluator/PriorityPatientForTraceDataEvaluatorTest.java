@@ -0,0 +1,108 @@
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.EncounterType;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
+import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.ChronicCareCohortDefinitionLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.ReportingConstants;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.data.encounter.library.BuiltInEncounterDataLibrary;
+import org.openmrs.module.reporting.data.patient.PatientData;
+import org.openmrs.module.reporting.data.patient.service.PatientDataService;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.definition.EncounterDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the priority flags for the patients diagnosed with hypertension against those found by evaluating every
+ * chronic care encounter with its blood pressure readings, as they were before the readings were queried directly.
+ */
+public class PriorityPatientForTraceDataEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	ChronicCareMetadata ccMetadata;
+
+	@Autowired
+	ChronicCareCohortDefinitionLibrary ccCohorts;
+
+	@Autowired
+	BasePatientDataLibrary basePatientData;
+
+	@Autowired
+	BuiltInEncounterDataLibrary builtInEncounterData;
+
+	@Autowired
+	DataFactory df;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	@Autowired
+	PatientDataService patientDataService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("endDate", DateUtil.getDateTime(2016, 6, 30));
+		context.setBaseCohort(cohortDefinitionService.evaluate(ccCohorts.getPatientsWithHypertensionDiagnosisByEndDate(), context));
+
+		long startTime = System.currentTimeMillis();
+		Cohort expected = getPatientsWithHighBloodPressureFromEncounters(context);
+		System.out.println("Evaluated blood pressure from encounters in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		startTime = System.currentTimeMillis();
+		PatientData data = patientDataService.evaluate(basePatientData.getPriorityPatientForTrace(), context);
+		System.out.println("Evaluated priority flags in " + (System.currentTimeMillis() - startTime) + " ms");
+
+		for (Integer pId : context.getBaseCohort().getMemberIds()) {
+			Set<?> reasons = (Set<?>) data.getData().get(pId);
+			boolean flagged = reasons != null && reasons.contains("BP > 180/110");
+			Assert.assertEquals("Patient " + pId, expected.contains(pId), flagged);
+		}
+		System.out.println(expected.size() + " of " + context.getBaseCohort().size() + " patients with BP > 180/110");
+	}
+
+	protected Cohort getPatientsWithHighBloodPressureFromEncounters(EvaluationContext context) throws Exception {
+		EncounterDataSetDefinition dsd = new EncounterDataSetDefinition();
+		dsd.addParameter(ReportingConstants.END_DATE_PARAMETER);
+
+		List<EncounterType> types = ccMetadata.getChronicCareEncounterTypes();
+		types.addAll(ccMetadata.getHtnDiabetesEncounterTypes());
+		dsd.addRowFilter(Mapped.mapStraightThrough(df.getEncountersOfTypeByEndDate(types)));
+
+		dsd.addColumn("PID", builtInEncounterData.getPatientId(), "");
+		dsd.addColumn("SYS", df.getSingleObsValueNumericForEncounter(ccMetadata.getSystolicBloodPressureConcept()), "");
+		dsd.addColumn("DIAS", df.getSingleObsValueNumericForEncounter(ccMetadata.getDiastolicBloodPressureConcept()), "");
+
+		Cohort c = new Cohort();
+		DataSet ds = dataSetDefinitionService.evaluate(dsd, context);
+		for (DataSetRow row : ds) {
+			Double sys = (Double) row.getColumnValue("SYS");
+			Double dias = (Double) row.getColumnValue("DIAS");
+			if (sys != null && dias != null && sys > 180 && dias > 110) {
+				c.addMember((Integer) row.getColumnValue("PID"));
+			}
+		}
+		return c;
+	}
+}
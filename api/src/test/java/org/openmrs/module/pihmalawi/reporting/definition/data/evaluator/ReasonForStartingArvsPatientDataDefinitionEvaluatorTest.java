@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests which obs are chosen for each reason for starting ARVs
+ */
+public class ReasonForStartingArvsPatientDataDefinitionEvaluatorTest {
+
+	private Concept cd4 = new Concept(5497);
+	private Concept stage = new Concept(7562);
+	private Concept pregnant = new Concept(6131);
+
+	@Test
+	public void shouldChooseTheEarliestObsForEachReason() {
+		Obs firstCd4 = obs(1, cd4);
+		Obs secondCd4 = obs(2, cd4);
+		Map<String, Obs> reasons = getReasons(firstCd4, secondCd4);
+		Assert.assertEquals(1, reasons.size());
+		Assert.assertSame(firstCd4, reasons.get("CD4"));
+	}
+
+	@Test
+	public void shouldReturnReasonsInTheOrderOfTheQuestions() {
+		Obs pregnantObs = obs(1, pregnant);
+		Obs stageObs = obs(2, stage);
+		Obs cd4Obs = obs(3, cd4);
+		Map<String, Obs> reasons = getReasons(pregnantObs, stageObs, cd4Obs);
+		Assert.assertEquals(Arrays.asList("CD4", "STAGE", "PREG"), new ArrayList<String>(reasons.keySet()));
+		Assert.assertSame(cd4Obs, reasons.get("CD4"));
+		Assert.assertSame(stageObs, reasons.get("STAGE"));
+		Assert.assertSame(pregnantObs, reasons.get("PREG"));
+	}
+
+	@Test
+	public void shouldOmitReasonsWithoutObs() {
+		Map<String, Obs> reasons = getReasons(obs(1, stage));
+		Assert.assertFalse(reasons.containsKey("CD4"));
+		Assert.assertFalse(reasons.containsKey("PREG"));
+		Assert.assertTrue(getReasons().isEmpty());
+	}
+
+	@Test
+	public void shouldIgnoreObsForOtherQuestions() {
+		Obs other = obs(1, new Concept(1234));
+		Obs stageObs = obs(2, stage);
+		Map<String, Obs> reasons = getReasons(other, stageObs);
+		Assert.assertEquals(1, reasons.size());
+		Assert.assertSame(stageObs, reasons.get("STAGE"));
+	}
+
+	@Test
+	public void shouldMatchQuestionsByConceptId() {
+		Obs stageObs = obs(1, new Concept(stage.getConceptId()));
+		Assert.assertSame(stageObs, getReasons(stageObs).get("STAGE"));
+	}
+
+	protected Map<String, Obs> getReasons(Obs... obs) {
+		Map<String, Concept> questions = new LinkedHashMap<String, Concept>();
+		questions.put("CD4", cd4);
+		questions.put("STAGE", stage);
+		questions.put("PREG", pregnant);
+		List<Obs> obsList = Arrays.asList(obs);
+		return ReasonForStartingArvsPatientDataDefinitionEvaluator.getFirstObsForEachReason(obsList, questions);
+	}
+
+	protected Obs obs(Integer obsId, Concept question) {
+		Obs o = new Obs();
+		o.setObsId(obsId);
+		o.setConcept(question);
+		return o;
+	}
+}
@@ -0,0 +1,94 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.MysqlCmdDataSetDefinition;
+import org.openmrs.module.pihmalawi.sql.EmbeddedDatabase;
+import org.openmrs.module.pihmalawi.sql.MysqlResult;
+import org.openmrs.module.pihmalawi.sql.MysqlRunner;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the MysqlResultDataSet against rows streamed from an EmbeddedDatabase
+ */
+public class MysqlResultDataSetTest {
+
+	private static final int NUM_PATIENTS = 500;
+
+	private EmbeddedDatabase db;
+
+	@Before
+	public void setup() throws Exception {
+		db = new EmbeddedDatabase();
+		StringBuilder sql = new StringBuilder();
+		for (int i=1; i<=NUM_PATIENTS; i++) {
+			sql.append("insert into obs (person_id, obs_datetime, value_numeric, value_text) values (").append(i);
+			sql.append(", '2016-0").append(i%9+1).append("-01 10:30:00', ");
+			sql.append(i%10 == 0 ? "null" : Double.toString(i*1.5)).append(", 'Patient ").append(i).append("');");
+		}
+		db.execute(sql.toString());
+	}
+
+	@After
+	public void teardown() throws Exception {
+		db.close();
+	}
+
+	@Test
+	public void shouldTypeColumnsFromResultSetMetadata() {
+		MysqlResultDataSet dataSet = evaluate("select person_id, obs_datetime, value_numeric, value_text from obs", null);
+		List<DataSetColumn> columns = dataSet.getMetaData().getColumns();
+		Assert.assertEquals(4, columns.size());
+		Assert.assertEquals(Integer.class, columns.get(0).getDataType());
+		Assert.assertEquals(Date.class, columns.get(1).getDataType());
+		Assert.assertEquals(Double.class, columns.get(2).getDataType());
+		Assert.assertEquals(String.class, columns.get(3).getDataType());
+
+		DataSetRow row = dataSet.iterator().next();
+		Assert.assertEquals(1, row.getColumnValue(columns.get(0)));
+		Assert.assertEquals(DateUtil.getDateTime(2016, 2, 1, 10, 30, 0, 0), row.getColumnValue(columns.get(1)));
+		Assert.assertEquals(1.5, row.getColumnValue(columns.get(2)));
+		Assert.assertEquals("Patient 1", row.getColumnValue(columns.get(3)));
+	}
+
+	@Test
+	public void shouldReturnAllRowsSharingOneColumnPerColumn() {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("minId", 101);
+		MysqlResultDataSet dataSet = evaluate("select person_id, value_numeric from obs where person_id >= @minId", parameters);
+		Assert.assertEquals(NUM_PATIENTS - 100, dataSet.getNumRows());
+
+		List<DataSetColumn> columns = dataSet.getMetaData().getColumns();
+		int numIterated = 0;
+		int numNull = 0;
+		for (DataSetRow row : dataSet) {
+			numIterated++;
+			Assert.assertEquals(2, row.getColumnValues().size());
+			for (DataSetColumn column : row.getColumnValues().keySet()) {
+				Assert.assertTrue(column == columns.get(0) || column == columns.get(1));
+			}
+			if (row.getColumnValue(columns.get(1)) == null) {
+				numNull++;
+			}
+		}
+		Assert.assertEquals(NUM_PATIENTS - 100, numIterated);
+		Assert.assertEquals((NUM_PATIENTS - 100)/10, numNull);
+	}
+
+	protected MysqlResultDataSet evaluate(String sql, Map<String, Object> parameters) {
+		MysqlResult result = new MysqlResult();
+		MysqlRunner.executeSql(db.getConnection(), sql, parameters, result);
+		Assert.assertTrue(result.getErrors().isEmpty());
+		return new MysqlResultDataSet(new MysqlCmdDataSetDefinition(), new EvaluationContext(), result);
+	}
+}
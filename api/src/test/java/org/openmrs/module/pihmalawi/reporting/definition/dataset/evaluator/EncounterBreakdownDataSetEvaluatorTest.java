@@ -0,0 +1,153 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.EncounterBreakdownDataSetDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the counts produced by the single grouped query match those of a separate query for each cell,
+ * as the evaluator used to run them
+ */
+public class EncounterBreakdownDataSetEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	@Autowired
+	EvaluationService evaluationService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Date endDate = DateUtil.getDateTime(2014, 3, 30);
+		for (EncounterBreakdownDataSetDefinition.Grouping grouping : EncounterBreakdownDataSetDefinition.Grouping.values()) {
+			EncounterBreakdownDataSetDefinition dsd = new EncounterBreakdownDataSetDefinition();
+			dsd.setEndDate(endDate);
+			dsd.setNumberOfWeeks(12);
+			dsd.setGrouping(grouping);
+			dsd.addType(hivMetadata.getArtInitialEncounterType());
+			dsd.addType(hivMetadata.getArtFollowupEncounterType());
+			dsd.addType(hivMetadata.getPreArtFollowupEncounterType());
+
+			MapDataSet data = (MapDataSet) dataSetDefinitionService.evaluate(dsd, new EvaluationContext());
+			assertMatchesQueryPerCell(dsd, data.getData());
+		}
+	}
+
+	protected void assertMatchesQueryPerCell(EncounterBreakdownDataSetDefinition dsd, DataSetRow row) {
+		Map<String, List<EncounterType>> encounterTypeFilters = new LinkedHashMap<String, List<EncounterType>>();
+		List<EncounterType> otherEncounterTypes = Context.getEncounterService().getAllEncounterTypes();
+		for (int encTypeNum=1; encTypeNum<=dsd.getTypes().size(); encTypeNum++) {
+			EncounterType encounterType = dsd.getTypes().get(encTypeNum-1);
+			encounterTypeFilters.put("enc"+encTypeNum, Arrays.asList(encounterType));
+			otherEncounterTypes.remove(encounterType);
+		}
+		encounterTypeFilters.put("otherenc", otherEncounterTypes);
+
+		Map<String, List<User>> userFilters = new LinkedHashMap<String, List<User>>();
+		Map<String, List<Location>> locationFilters = new LinkedHashMap<String, List<Location>>();
+
+		if (dsd.getGrouping() == EncounterBreakdownDataSetDefinition.Grouping.User) {
+			List<Object[]> ranking = getUserRanking(DateUtil.adjustDate(dsd.getEndDate(), -7*dsd.getNumberOfWeeks(), Calendar.DATE), dsd.getEndDate());
+			List<User> otherUsers = Context.getUserService().getAllUsers();
+			for (int userNum=1; userNum<=ranking.size() && userNum <= 10; userNum++) {
+				String userKey = "user"+userNum;
+				User user = Context.getUserService().getUserByUsername((String) row.getColumnValue(userKey + "name"));
+				Assert.assertEquals(userKey, ranking.get(userNum - 1)[1], getCount(ranking, user));  // Users with equal counts may be ranked in either order
+				userFilters.put(userKey, Arrays.asList(user));
+				otherUsers.remove(user);
+			}
+			userFilters.put("userother", otherUsers);
+		}
+		else {
+			List<Location> locations = hivMetadata.getSystemLocations();
+			List<Location> otherLocations = Context.getLocationService().getAllLocations();
+			for (int locationNum=1; locationNum<=locations.size(); locationNum++) {
+				Location location = locations.get(locationNum - 1);
+				String locationKey = "loc"+locationNum;
+				Assert.assertEquals(location.getName(), row.getColumnValue(locationKey + "name"));
+				List<Location> locList = hivMetadata.getAllLocations(location);
+				locationFilters.put(locationKey, locList);
+				otherLocations.removeAll(locList);
+			}
+			locationFilters.put("locother", otherLocations);
+		}
+
+		Date startDate, endDate = null;
+		for (int weekNum=0; weekNum<dsd.getNumberOfWeeks(); weekNum++) {
+			endDate = (endDate == null ? dsd.getEndDate() : DateUtil.adjustDate(endDate, -7, Calendar.DATE));
+			startDate = DateUtil.adjustDate(endDate, -6, Calendar.DATE);
+			for (String encounterTypeKey : encounterTypeFilters.keySet()) {
+				List<EncounterType> encounterTypes = encounterTypeFilters.get(encounterTypeKey);
+				for (String userKey : userFilters.keySet()) {
+					String key = userKey + encounterTypeKey + "ago" + weekNum;
+					Assert.assertEquals(key, countEncounters(startDate, endDate, encounterTypes, userFilters.get(userKey), null), row.getColumnValue(key));
+				}
+				for (String locationKey : locationFilters.keySet()) {
+					String key = locationKey + encounterTypeKey + "ago" + weekNum;
+					Assert.assertEquals(key, countEncounters(startDate, endDate, encounterTypes, null, locationFilters.get(locationKey)), row.getColumnValue(key));
+				}
+			}
+		}
+	}
+
+	protected List<Object[]> getUserRanking(Date startDate, Date endDate) {
+		HqlQueryBuilder qb = new HqlQueryBuilder();
+		qb.select("e.creator, count(*)");
+		qb.from(Encounter.class, "e");
+		qb.whereGreaterOrEqualTo("e.dateCreated", startDate);
+		qb.whereLessOrEqualTo("e.dateCreated", endDate);
+		qb.groupBy("e.creator");
+		qb.orderDesc("count(*)");
+		return evaluationService.evaluateToList(qb, new EvaluationContext());
+	}
+
+	protected Object getCount(List<Object[]> ranking, User user) {
+		for (Object[] r : ranking) {
+			if (r[0].equals(user)) {
+				return r[1];
+			}
+		}
+		return null;
+	}
+
+	protected Integer countEncounters(Date startDate, Date endDate, List<EncounterType> encounterTypes, List<User> users, List<Location> locations) {
+		HqlQueryBuilder qb = new HqlQueryBuilder();
+		qb.select("e.encounterId");
+		qb.from(Encounter.class, "e");
+		qb.whereGreaterOrEqualTo("e.dateCreated", startDate);
+		qb.whereLessOrEqualTo("e.dateCreated", endDate);
+		qb.whereIn("e.encounterType", encounterTypes);
+		qb.whereIn("e.creator", users);
+		qb.whereIn("e.location", locations);
+		return evaluationService.evaluateToList(qb, Integer.class, new EvaluationContext()).size();
+	}
+}
@@ -0,0 +1,104 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.MissedAppointmentDataSetDefinition;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.pihmalawi.reporting.reports.ArtMissedAppointmentReport;
+import org.openmrs.module.reporting.ReportingConstants;
+import org.openmrs.module.reporting.cohort.definition.BaseObsCohortDefinition.TimeModifier;
+import org.openmrs.module.reporting.cohort.definition.CodedObsCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.DurationUnit;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+
+/**
+ * Checks that the counts produced by evaluating each cohort once for all locations match those of evaluating the
+ * base cohort with each indicator for each location in turn, as the evaluator used to
+ */
+public class MissedAppointmentDataSetEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	DataFactory df;
+
+	@Autowired
+	ArtMissedAppointmentReport artMissedAppointmentReport;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		MissedAppointmentDataSetDefinition dsd = new MissedAppointmentDataSetDefinition();
+		dsd.setMode(MissedAppointmentDataSetDefinition.Mode.OVERVIEW);
+		dsd.setEndDate(DateUtil.getDateTime(2014, 6, 8));
+		dsd.setBaseCohort(artMissedAppointmentReport.getBaseCohort());
+		dsd.setLocations(artMissedAppointmentReport.getLocations());
+		dsd.setTreatmentGroup(artMissedAppointmentReport.getTreatmentGroup());
+
+		SimpleDataSet data = (SimpleDataSet) dataSetDefinitionService.evaluate(dsd, new EvaluationContext());
+		Assert.assertEquals(dsd.getLocations().size(), data.getRows().size());
+
+		for (int locationNum = 0; locationNum < dsd.getLocations().size(); locationNum++) {
+			Location location = dsd.getLocations().get(locationNum);
+			DataSetRow row = data.getRows().get(locationNum);
+			Assert.assertEquals(location.getName(), row.getColumnValue("location"));
+
+			for (int i = 0; i < 3; i++) {
+				Date endDate = DateUtil.adjustDate(dsd.getEndDate(), -1 * i, DurationUnit.WEEKS);
+				EvaluationContext context = new EvaluationContext();
+				context.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), endDate);
+				context.addParameterValue(ReportingConstants.LOCATION_PARAMETER.getName(), location);
+				String suffix = (i > 0 ? Integer.toString(i) : "");
+
+				assertSize(location, "base" + suffix, cohortDefinitionService.evaluate(dsd.getBaseCohort(), context), row);
+
+				CodedObsCohortDefinition noAppt = new CodedObsCohortDefinition();
+				noAppt.setTimeModifier(TimeModifier.NO);
+				noAppt.setQuestion(hivMetadata.getAppointmentDateConcept());
+				noAppt.setEncounterTypeList(dsd.getTreatmentGroup().getEncounterTypes());
+				noAppt.setOnOrBefore(endDate);
+				assertSize(location, "noapp" + suffix, evaluateForBase(dsd, noAppt, context), row);
+
+				Integer[][] weekRanges = { {2, 3}, {3, 8}, {8, 12}, {12, null} };
+				for (Integer[] weekRange : weekRanges) {
+					String olderThan = weekRange[0] + "w";
+					String onOrPriorTo = weekRange[1] == null ? null : (weekRange[1] + "w");
+					CohortDefinition lastApptInRange = df.getPatientsWhoseMostRecentObsDateIsBetweenValuesByEndDate(hivMetadata.getAppointmentDateConcept(), dsd.getTreatmentGroup().getEncounterTypes(), olderThan, onOrPriorTo);
+					assertSize(location, olderThan + "msd" + suffix, evaluateForBase(dsd, lastApptInRange, context), row);
+				}
+			}
+		}
+	}
+
+	protected Cohort evaluateForBase(MissedAppointmentDataSetDefinition dsd, CohortDefinition indicator, EvaluationContext context) throws Exception {
+		return cohortDefinitionService.evaluate(df.getPatientsInAll(dsd.getBaseCohort(), indicator), context);
+	}
+
+	protected void assertSize(Location location, String key, Cohort expected, DataSetRow row) {
+		Cohort actual = (Cohort) row.getColumnValue(key);
+		Assert.assertEquals(location.getName() + " " + key, expected.getMemberIds(), actual.getMemberIds());
+	}
+}
@@ -0,0 +1,240 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.metadata.group.TreatmentGroup;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.PatientIdentifierConverter;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.MissedAppointmentDataSetDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator.MissedAppointmentDataSetEvaluator.Indicator;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.ReportingConstants;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.DurationUnit;
+import org.openmrs.module.reporting.common.SortCriteria.SortDirection;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.library.BuiltInPatientDataLibrary;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the patient data sets of the patient list modes for cohorts of the standard test dataset, and checks that
+ * each matches a patient data set evaluated separately for its location and indicator, as the evaluator used to.
+ * The identifier column the rows are sorted by and one of the other columns depend on the location, and the rest do not.
+ */
+@ContextConfiguration(locations = {"classpath:openmrs-servlet.xml"}, inheritLocations = true)
+public class MissedAppointmentPatientDataFixtureTest extends BaseModuleContextSensitiveTest {
+
+	private static final Date END_DATE = DateUtil.getDateTime(2014, 6, 8);
+
+	@Autowired
+	DataFactory df;
+
+	@Autowired
+	BuiltInPatientDataLibrary builtInPatientData;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	private FixtureEvaluator evaluator;
+	private MissedAppointmentDataSetDefinition dsd;
+	private String sortColumn;
+
+	@Before
+	public void setup() throws Exception {
+		evaluator = new FixtureEvaluator();
+		applicationContext.getAutowireCapableBeanFactory().autowireBean(evaluator);
+
+		dsd = new MissedAppointmentDataSetDefinition();
+		dsd.setMode(MissedAppointmentDataSetDefinition.Mode.BETWEEN_2_AND_3_WEEKS_LATE);
+		dsd.setEndDate(END_DATE);
+		dsd.setTreatmentGroup(new FixtureTreatmentGroup(Context.getPatientService().getPatientIdentifierType(1)));
+		sortColumn = dsd.getTreatmentGroup().getIdentifierTypeShortName();
+	}
+
+	@Test
+	public void shouldReturnTheSameDataSetsAsEvaluatingEachLocationAndIndicatorSeparately() throws Exception {
+		Location unknownLocation = Context.getLocationService().getLocation(1);
+		Location xanadu = Context.getLocationService().getLocation(2);
+		Indicator noAppointment = new Indicator("noapp", "No appointment", 0, null, true);
+		Indicator missed = new Indicator("2wmsd", "Missed appointment >2 <=3 weeks", 0, null, false);
+		Indicator missedWeekAgo = new Indicator("2wmsd1", "Missed appointment >2 <=3 weeks 1 week ago", 1, null, false);
+
+		Map<Location, Map<Indicator, Cohort>> cohorts = new LinkedHashMap<Location, Map<Indicator, Cohort>>();
+		cohorts.put(unknownLocation, new LinkedHashMap<Indicator, Cohort>());
+		cohorts.get(unknownLocation).put(noAppointment, new Cohort(Arrays.asList(2, 7)));
+		cohorts.get(unknownLocation).put(missed, new Cohort(Arrays.asList(6, 7, 8)));
+		cohorts.get(unknownLocation).put(missedWeekAgo, new Cohort(Arrays.asList(7)));
+		cohorts.put(xanadu, new LinkedHashMap<Indicator, Cohort>());
+		cohorts.get(xanadu).put(noAppointment, new Cohort(Arrays.asList(7, 8)));
+		cohorts.get(xanadu).put(missed, new Cohort(new ArrayList<Integer>()));
+		cohorts.get(xanadu).put(missedWeekAgo, new Cohort(Arrays.asList(2, 6)));
+
+		Map<Location, Map<Indicator, DataSet>> patientDataSets = evaluator.getPatientDataSets(dsd, cohorts, new EvaluationContext());
+
+		Assert.assertEquals(cohorts.keySet(), patientDataSets.keySet());
+		boolean foundWeightAtLocation = false;
+		for (Location location : cohorts.keySet()) {
+			Assert.assertEquals(cohorts.get(location).keySet(), patientDataSets.get(location).keySet());
+			for (Map.Entry<Indicator, Cohort> e : cohorts.get(location).entrySet()) {
+				String description = location.getName() + " " + e.getKey().getKey();
+				DataSet actual = patientDataSets.get(location).get(e.getKey());
+				DataSet expected = evaluateSeparately(location, e.getKey(), e.getValue());
+
+				List<String> columnNames = new ArrayList<String>();
+				for (DataSetColumn column : actual.getMetaData().getColumns()) {
+					columnNames.add(column.getName());
+				}
+				Assert.assertEquals(description, new ArrayList<String>(evaluator.getPatientDataColumns(dsd.getTreatmentGroup()).keySet()), columnNames);
+
+				List<String> actualRows = getRows(actual, columnNames);
+				Assert.assertEquals(description, e.getValue().size(), actualRows.size());
+				Assert.assertEquals(description, sorted(getRows(expected, columnNames)), sorted(actualRows));
+				Assert.assertEquals(description + " sorted by " + sortColumn, sorted(getValues(actual, sortColumn)), getValues(actual, sortColumn));
+
+				for (String weight : getValues(actual, "Last weight at location")) {
+					foundWeightAtLocation = foundWeightAtLocation || !"null".equals(weight);
+				}
+			}
+		}
+		Assert.assertTrue(foundWeightAtLocation);
+	}
+
+	@Test
+	public void shouldKeyEachRowByItsPatientId() throws Exception {
+		Map<String, PatientDataDefinition> columns = new LinkedHashMap<String, PatientDataDefinition>();
+		columns.put("Gender", builtInPatientData.getGender());
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), END_DATE);
+
+		DataSet data = evaluator.evaluatePatientData(columns, "Gender", new HashSet<Integer>(Arrays.asList(2, 6, 7)), context);
+		Map<Integer, DataSetRow> rows = evaluator.getRowsByPatient(data);
+		Assert.assertEquals(3, rows.size());
+		for (Map.Entry<Integer, DataSetRow> e : rows.entrySet()) {
+			Assert.assertEquals(Context.getPatientService().getPatient(e.getKey()).getGender(), e.getValue().getColumnValue("Gender"));
+		}
+		Assert.assertEquals(sorted(getValues(data, "Gender")), getValues(data, "Gender"));
+	}
+
+	/**
+	 * @return the patient data of the given cohort, evaluated with a single definition for the location and indicator
+	 */
+	protected DataSet evaluateSeparately(Location location, Indicator indicator, Cohort cohort) throws Exception {
+		PatientDataSetDefinition separate = evaluator.getPatientDataSetDefinition();
+		for (Map.Entry<String, PatientDataDefinition> e : evaluator.getPatientDataColumns(dsd.getTreatmentGroup()).entrySet()) {
+			separate.addColumn(e.getKey(), e.getValue(), Mapped.straightThroughMappings(e.getValue()));
+		}
+		separate.addSortCriteria(sortColumn, SortDirection.ASC);
+
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue(ReportingConstants.END_DATE_PARAMETER.getName(), DateUtil.adjustDate(END_DATE, -1 * indicator.getWeeksAgo(), DurationUnit.WEEKS));
+		context.addParameterValue(ReportingConstants.LOCATION_PARAMETER.getName(), location);
+		context.setBaseCohort(cohort);
+		return dataSetDefinitionService.evaluate(separate, context);
+	}
+
+	protected List<String> getRows(DataSet data, List<String> columnNames) {
+		List<String> rows = new ArrayList<String>();
+		for (DataSetRow row : data) {
+			StringBuilder sb = new StringBuilder();
+			for (String columnName : columnNames) {
+				sb.append(columnName).append("=").append(row.getColumnValue(columnName)).append(";");
+			}
+			rows.add(sb.toString());
+		}
+		return rows;
+	}
+
+	protected List<String> getValues(DataSet data, String columnName) {
+		List<String> values = new ArrayList<String>();
+		for (DataSetRow row : data) {
+			values.add(String.valueOf(row.getColumnValue(columnName)));
+		}
+		return values;
+	}
+
+	protected List<String> sorted(List<String> values) {
+		List<String> ret = new ArrayList<String>(values);
+		Collections.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * An evaluator whose patient data columns only need the standard test dataset
+	 */
+	private class FixtureEvaluator extends MissedAppointmentDataSetEvaluator {
+
+		@Override
+		protected Map<String, PatientDataDefinition> getPatientDataColumns(TreatmentGroup treatmentGroup) {
+			Concept weight = Context.getConceptService().getConcept(5089);
+			Map<String, PatientDataDefinition> columns = new LinkedHashMap<String, PatientDataDefinition>();
+			columns.put(treatmentGroup.getIdentifierTypeShortName(), df.convert(df.getPreferredIdentifierOfTypes(treatmentGroup.getIdentifierType()), new PatientIdentifierConverter()));
+			columns.put("Gender", builtInPatientData.getGender());
+			columns.put("Last weight", df.getMostRecentObsByEndDate(weight, null, df.getObsValueNumericConverter()));
+			columns.put("Last weight at location", df.getMostRecentObsAtLocationByEndDate(weight, null, df.getObsValueNumericConverter()));
+			return columns;
+		}
+	}
+
+	/**
+	 * A treatment group of which only the identifier type is used
+	 */
+	private static class FixtureTreatmentGroup extends TreatmentGroup {
+
+		private PatientIdentifierType identifierType;
+
+		public FixtureTreatmentGroup(PatientIdentifierType identifierType) {
+			this.identifierType = identifierType;
+		}
+
+		public String getName() {
+			return "Fixture";
+		}
+
+		public Program getProgram() {
+			return null;
+		}
+
+		public ProgramWorkflow getStatusWorkflow() {
+			return null;
+		}
+
+		public List<ProgramWorkflowState> getActiveStates() {
+			return null;
+		}
+
+		public PatientIdentifierType getIdentifierType() {
+			return identifierType;
+		}
+
+		public List<EncounterType> getEncounterTypes() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
+import org.openmrs.module.pihmalawi.reporting.reports.ArvQuarterlyReport;
+import org.openmrs.module.pihmalawi.reporting.reports.CrossSiteIndicatorReport;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition.CohortIndicatorAndDimensionColumn;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.indicator.IndicatorResult;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Evaluates the indicators of quarterly reports both as plain cohort indicator data sets, one indicator after another,
+ * and with each distinct cohort planned and evaluated once in parallel, and checks that every indicator value is
+ * identical.  Prints the time each took.
+ */
+public class ParallelCohortIndicatorDataSetEvaluatorTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	ArvQuarterlyReport arvQuarterlyReport;
+
+	@Autowired
+	CrossSiteIndicatorReport crossSiteIndicatorReport;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		EvaluationContext arvContext = getContext();
+		arvContext.addParameterValue("location", hivMetadata.getNenoHospital());
+		compareIndicators(arvQuarterlyReport.constructReportDefinition(), arvContext);
+		compareIndicators(crossSiteIndicatorReport.constructReportDefinition(), getContext());
+	}
+
+	protected EvaluationContext getContext() {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("startDate", DateUtil.getDateTime(2013, 4, 1));
+		context.addParameterValue("endDate", DateUtil.getDateTime(2013, 6, 30));
+		return context;
+	}
+
+	protected void compareIndicators(ReportDefinition rd, EvaluationContext context) throws Exception {
+		if (rd.getBaseCohortDefinition() != null) {
+			context.setBaseCohort(cohortDefinitionService.evaluate(rd.getBaseCohortDefinition(), context));
+		}
+		for (String dsName : rd.getDataSetDefinitions().keySet()) {
+			Mapped<? extends DataSetDefinition> mapped = rd.getDataSetDefinitions().get(dsName);
+			ParallelCohortIndicatorDataSetDefinition parallel = (ParallelCohortIndicatorDataSetDefinition) mapped.getParameterizable();
+
+			CohortIndicatorDataSetDefinition serial = new CohortIndicatorDataSetDefinition();
+			serial.setParameters(parallel.getParameters());
+			for (String dimensionKey : parallel.getDimensions().keySet()) {
+				serial.addDimension(dimensionKey, parallel.getDimensions().get(dimensionKey));
+			}
+			for (CohortIndicatorAndDimensionColumn column : parallel.getColumns()) {
+				serial.addColumn(column.getName(), column.getLabel(), column.getIndicator(), column.getDimensionOptions());
+			}
+
+			long startTime = System.currentTimeMillis();
+			MapDataSet expected = (MapDataSet) dataSetDefinitionService.evaluate(new Mapped<DataSetDefinition>(serial, mapped.getParameterMappings()), context);
+			long serialTime = System.currentTimeMillis() - startTime;
+
+			startTime = System.currentTimeMillis();
+			MapDataSet actual = (MapDataSet) dataSetDefinitionService.evaluate(mapped, context);
+			long parallelTime = System.currentTimeMillis() - startTime;
+
+			for (CohortIndicatorAndDimensionColumn column : parallel.getColumns()) {
+				Assert.assertEquals(rd.getName() + " " + column.getName(), getValue(expected, column), getValue(actual, column));
+			}
+			System.out.println(rd.getName() + " " + dsName + ": " + parallel.getColumns().size() + " indicators");
+			System.out.println("Serial: " + serialTime + " ms, parallel: " + parallelTime + " ms, speedup: " + ((double) serialTime / Math.max(parallelTime, 1)) + "x");
+		}
+	}
+
+	protected Object getValue(MapDataSet data, CohortIndicatorAndDimensionColumn column) {
+		IndicatorResult result = (IndicatorResult) data.getData().getColumnValue(column.getName());
+		return result.getValue();
+	}
+}
@@ -0,0 +1,200 @@
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PrecomputedCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.ParallelCohortIndicatorDataSetDefinition;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.ReportingConstants;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.MappedParametersCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.DurationUnit;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition.CohortIndicatorAndDimensionColumn;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.indicator.CohortIndicator;
+import org.openmrs.module.reporting.indicator.CohortIndicatorAndDimensionResult;
+import org.openmrs.module.reporting.indicator.dimension.CohortDefinitionDimension;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Evaluates a parallel cohort indicator data set for the standard test dataset, with a cohort that is shared by
+ * several indicators, a composition and a dimension, and a cohort with mapped parameters that two indicators map
+ * differently.  Checks that each distinct cohort is evaluated once for each set of parameter values it is mapped to,
+ * and that the data set reassembled from the precomputed cohorts is the same as a plain cohort indicator data set.
+ * The independent cohorts are evaluated in the test thread, as the standard test dataset is only visible in its session.
+ */
+@ContextConfiguration(locations = {"classpath:openmrs-servlet.xml"}, inheritLocations = true)
+public class ParallelCohortIndicatorPlanFixtureTest extends BaseModuleContextSensitiveTest {
+
+	private static final Date START_DATE = DateUtil.getDateTime(2014, 4, 1);
+	private static final Date END_DATE = DateUtil.getDateTime(2014, 6, 30);
+
+	@Autowired
+	DataFactory df;
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	private FixtureEvaluator evaluator;
+	private GenderCohortDefinition males;
+	private GenderCohortDefinition females;
+	private CohortDefinition adults;
+	private ParallelCohortIndicatorDataSetDefinition dsd;
+
+	@Before
+	public void setup() throws Exception {
+		evaluator = new FixtureEvaluator();
+		applicationContext.getAutowireCapableBeanFactory().autowireBean(evaluator);
+
+		males = new GenderCohortDefinition();
+		males.setMaleIncluded(true);
+		females = new GenderCohortDefinition();
+		females.setFemaleIncluded(true);
+		adults = df.getAgeByEndDate(15, null);
+		CohortDefinition adultMales = df.createPatientComposition(males, "AND", adults);
+
+		CohortDefinitionDimension gender = new CohortDefinitionDimension();
+		gender.addParameter(ReportingConstants.END_DATE_PARAMETER);
+		gender.addCohortDefinition("male", Mapped.mapStraightThrough(males));
+		gender.addCohortDefinition("female", Mapped.mapStraightThrough(females));
+
+		dsd = new ParallelCohortIndicatorDataSetDefinition();
+		dsd.addParameter(ReportingConstants.START_DATE_PARAMETER);
+		dsd.addParameter(ReportingConstants.END_DATE_PARAMETER);
+		dsd.addDimension("gender", Mapped.mapStraightThrough(gender));
+		dsd.addColumn("males", "Males", Mapped.mapStraightThrough(getIndicator(males)), "");
+		dsd.addColumn("adults", "Adults", Mapped.mapStraightThrough(getIndicator(adults)), "");
+		dsd.addColumn("adults_f", "Adults (Female)", Mapped.mapStraightThrough(getIndicator(adults)), "gender=female");
+		dsd.addColumn("adult_males", "Adult males", Mapped.mapStraightThrough(getIndicator(adultMales)), "");
+		dsd.addColumn("adults_year_ago", "Adults a year ago", Mapped.map(getIndicator(adults), "startDate=${startDate-1y},endDate=${endDate-1y}"), "");
+	}
+
+	@Test
+	public void shouldEvaluateEachDistinctCohortOnceForEachSetOfMappedParameters() throws Exception {
+		evaluator.evaluate(dsd, getContext());
+
+		int numMales = 0;
+		List<Date> adultEffectiveDates = new ArrayList<Date>();
+		for (int i = 0; i < evaluator.evaluated.size(); i++) {
+			CohortDefinition definition = evaluator.evaluated.get(i);
+			Assert.assertFalse(definition instanceof CompositionCohortDefinition);
+			Assert.assertFalse(definition instanceof MappedParametersCohortDefinition);
+			Assert.assertFalse(definition instanceof PrecomputedCohortDefinition);
+			if (definition == males) {
+				numMales++;
+			}
+			else if (definition == ((MappedParametersCohortDefinition) adults).getWrapped().getParameterizable()) {
+				adultEffectiveDates.add((Date) evaluator.contexts.get(i).getParameterValue("effectiveDate"));
+			}
+		}
+		Assert.assertEquals(1, numMales);
+		Collections.sort(adultEffectiveDates);
+		Assert.assertEquals(2, adultEffectiveDates.size());
+		Assert.assertEquals(DateUtil.adjustDate(END_DATE, -1, DurationUnit.YEARS), adultEffectiveDates.get(0));
+		Assert.assertEquals(END_DATE, adultEffectiveDates.get(1));
+	}
+
+	@Test
+	public void shouldReturnTheSameIndicatorsAsAPlainCohortIndicatorDataSet() throws Exception {
+		CohortIndicatorDataSetDefinition serial = new CohortIndicatorDataSetDefinition();
+		serial.setParameters(dsd.getParameters());
+		for (String dimensionKey : dsd.getDimensions().keySet()) {
+			serial.addDimension(dimensionKey, dsd.getDimensions().get(dimensionKey));
+		}
+		for (CohortIndicatorAndDimensionColumn column : dsd.getColumns()) {
+			serial.addColumn(column.getName(), column.getLabel(), column.getIndicator(), column.getDimensionOptions());
+		}
+
+		MapDataSet expected = (MapDataSet) dataSetDefinitionService.evaluate(serial, getContext());
+		MapDataSet actual = (MapDataSet) evaluator.evaluate(dsd, getContext());
+
+		boolean foundPatients = false;
+		for (CohortIndicatorAndDimensionColumn column : dsd.getColumns()) {
+			List<Integer> expectedMembers = getMembers(expected, column);
+			Assert.assertEquals(column.getName(), expectedMembers, getMembers(actual, column));
+			Assert.assertEquals(column.getName(), getValue(expected, column), getValue(actual, column));
+			foundPatients = foundPatients || !expectedMembers.isEmpty();
+		}
+		Assert.assertTrue(foundPatients);
+	}
+
+	protected CohortIndicator getIndicator(CohortDefinition cohortDefinition) {
+		CohortIndicator ci = new CohortIndicator();
+		ci.addParameter(ReportingConstants.START_DATE_PARAMETER);
+		ci.addParameter(ReportingConstants.END_DATE_PARAMETER);
+		ci.setType(CohortIndicator.IndicatorType.COUNT);
+		ci.setCohortDefinition(Mapped.mapStraightThrough(cohortDefinition));
+		return ci;
+	}
+
+	protected EvaluationContext getContext() {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("startDate", START_DATE);
+		context.addParameterValue("endDate", END_DATE);
+		return context;
+	}
+
+	protected CohortIndicatorAndDimensionResult getResult(MapDataSet data, CohortIndicatorAndDimensionColumn column) {
+		return (CohortIndicatorAndDimensionResult) data.getData().getColumnValue(column.getName());
+	}
+
+	protected Object getValue(MapDataSet data, CohortIndicatorAndDimensionColumn column) {
+		return getResult(data, column).getValue();
+	}
+
+	protected List<Integer> getMembers(MapDataSet data, CohortIndicatorAndDimensionColumn column) {
+		List<Integer> ids = new ArrayList<Integer>(getResult(data, column).getCohortIndicatorAndDimensionCohort().getMemberIds());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * An evaluator that evaluates each independent cohort in the calling thread and records it
+	 */
+	private class FixtureEvaluator extends ParallelCohortIndicatorDataSetEvaluator {
+
+		List<CohortDefinition> evaluated = new ArrayList<CohortDefinition>();
+		List<EvaluationContext> contexts = new ArrayList<EvaluationContext>();
+
+		@Override
+		protected Future<Cohort> evaluateInBackground(ExecutorService executor, CohortDefinition definition, EvaluationContext context) {
+			evaluated.add(definition);
+			contexts.add(context);
+			try {
+				Cohort cohort = cohortDefinitionService.evaluate(definition, context);
+				FutureTask<Cohort> future = new FutureTask<Cohort>(new Runnable() {
+					public void run() {
+					}
+				}, cohort);
+				future.run();
+				return future;
+			}
+			catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.Relationship;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders every patient in the standard test dataset with and without prefetching their data, and checks that the
+ * output is identical.  The rows are rendered by a renderer that adds every kind of column whose data is prefetched,
+ * for all of the encounter types, concepts, programs and locations in the dataset.
+ */
+@ContextConfiguration(locations = {"classpath:openmrs-servlet.xml"}, inheritLocations = true)
+public class BreakdownRowRendererPrefetchFixtureTest extends BaseModuleContextSensitiveTest {
+
+	private static final Date END_DATE = DateUtil.getDateTime(2020, 12, 31);
+
+	@Test
+	public void shouldRenderIdenticalRowsWithPrefetchedData() throws Exception {
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (Patient p : Context.getPatientService().getAllPatients()) {
+			patientIds.add(p.getPatientId());
+		}
+		Assert.assertFalse(patientIds.isEmpty());
+
+		String expected = render(new FixtureRenderer(), patientIds);
+		Assert.assertTrue(expected.contains("Encounter 1="));
+		Assert.assertTrue(expected.contains("Relationship 1="));
+
+		Context.clearSession();
+		FixtureRenderer prefetchingRenderer = new FixtureRenderer();
+		prefetchingRenderer.prefetch(patientIds);
+		String actual = render(prefetchingRenderer, patientIds);
+
+		Assert.assertEquals(expected, actual);
+	}
+
+	protected String render(BreakdownRowRenderer renderer, List<Integer> patientIds) {
+		StringBuilder sb = new StringBuilder();
+		for (Location location : Context.getLocationService().getAllLocations()) {
+			for (Integer patientId : patientIds) {
+				Patient p = Context.getPatientService().getPatient(patientId);
+				sb.append("Patient ").append(patientId).append(" at ").append(location.getName()).append("\n");
+				for (Map.Entry<DataSetColumn, Object> e : renderer.renderRow(p, null, location, null, END_DATE).getColumnValues().entrySet()) {
+					sb.append(e.getKey().getLabel()).append("=").append(e.getValue()).append("\n");
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Adds the columns of BreakdownRowRenderer that read encounters, obs, relationships and program enrollments
+	 */
+	private static class FixtureRenderer extends BreakdownRowRenderer {
+
+		@Override
+		public DataSetRow renderRow(Patient p, PatientIdentifierType patientIdentifierType, Location locationParameter,
+									Date startDateParameter, Date endDateParameter) {
+			DataSetRow row = new DataSetRow();
+			List<EncounterType> encounterTypes = Context.getEncounterService().getAllEncounterTypes();
+
+			addLastVisitCols(row, p, encounterTypes, "any type");
+			addVisitColsOfVisitX(row, p, encounterTypes, 1, "any type");
+			addVisitColsOfVisitX(row, p, encounterTypes, 2, "any type");
+			for (EncounterType encounterType : encounterTypes) {
+				addFirstEncounterCols(row, p, encounterType, "Type " + encounterType.getEncounterTypeId(), endDateParameter);
+			}
+
+			int encounterNum = 0;
+			Set<Concept> concepts = new LinkedHashSet<Concept>();
+			for (Encounter e : getEncounters(p, endDateParameter, null)) {
+				encounterNum++;
+				addCol(row, "Encounter " + encounterNum, e.getEncounterId() + " " + e.getEncounterDatetime());
+				// Prefetched encounters are evicted from the session, so their obs are read from a newly loaded copy
+				for (Obs o : Context.getEncounterService().getEncounter(e.getEncounterId()).getObs()) {
+					concepts.add(o.getConcept());
+					Obs inEncounter = getObsInEncounter(e, o.getConcept());
+					addCol(row, "Encounter " + encounterNum + " " + o.getConcept().getConceptId(), inEncounter.getValueAsString(Context.getLocale()));
+				}
+			}
+			for (Concept concept : concepts) {
+				DataSetRow cols = new DataSetRow();
+				addMostRecentObsCols(cols, p, concept, endDateParameter);
+				addPrefixed(row, "By end date ", cols);
+				cols = new DataSetRow();
+				addMostRecentObsCols(cols, p, concept, DateUtil.getDateTime(2008, 8, 1));
+				addPrefixed(row, "By 2008-08-01 ", cols);
+			}
+			addMostRecentVitalsCols(row, p, endDateParameter);
+
+			int relationshipNum = 0;
+			for (Relationship r : getRelationships(p)) {
+				relationshipNum++;
+				addCol(row, "Relationship " + relationshipNum, r.getRelationshipId() + " " + r.getPersonB().getGivenName() + " " + r.getPersonB().getFamilyName());
+			}
+			addVhwCol(row, p);
+
+			addAllEnrollmentsCol(row, p);
+			for (Program program : Context.getProgramWorkflowService().getAllPrograms()) {
+				addEnrollmentDateCols(row, p, locationParameter, program, "Program " + program.getProgramId() + " enrollment");
+				for (ProgramWorkflow workflow : program.getAllWorkflows()) {
+					String prefix = "Workflow " + workflow.getProgramWorkflowId() + " ";
+					DataSetRow cols = new DataSetRow();
+					addOutcomeCols(cols, p, locationParameter, endDateParameter, workflow);
+					addPrefixed(row, prefix + "at location ", cols);
+					cols = new DataSetRow();
+					addOutcomeCols(cols, p, null, endDateParameter, workflow);
+					addPrefixed(row, prefix + "anywhere ", cols);
+					cols = new DataSetRow();
+					addOutcomeFromStateCols(cols, p, locationParameter, workflow, null);
+					addPrefixed(row, prefix + "from state ", cols);
+					cols = new DataSetRow();
+					addMostRecentOutcomeWithinDatabaseCols(cols, p, workflow);
+					addPrefixed(row, prefix, cols);
+					for (ProgramWorkflowState state : workflow.getStates()) {
+						String label = prefix + "state " + state.getProgramWorkflowStateId();
+						addFirstChangeToStateCols(row, p, state, endDateParameter, label);
+						addEnrollmentDateCols(row, p, locationParameter, state, label + " enrollment");
+					}
+				}
+			}
+			return row;
+		}
+
+		/**
+		 * Adds the columns of the given row with the prefix added to their labels, so that they are not replaced by
+		 * columns with the same label added for another concept or workflow
+		 */
+		protected void addPrefixed(DataSetRow row, String prefix, DataSetRow cols) {
+			for (Map.Entry<DataSetColumn, Object> e : cols.getColumnValues().entrySet()) {
+				String label = prefix + e.getKey().getLabel();
+				row.addColumnValue(new DataSetColumn(label, label, e.getKey().getDataType()), e.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the same patients with and without prefetching their data, and checks that every row is identical
+ */
+public class BreakdownRowRendererPrefetchTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		Cohort cohort = new Cohort("40332,57691,17043,19626,56337");
+		Location location = hivMetadata.getLigoweHc();
+		Date endDate = DateUtil.getDateTime(2013, 3, 31);
+
+		assertPrefetchedRowsMatch(new ArtRegisterBreakdownRenderer(), new ArtRegisterBreakdownRenderer(), cohort, "ARV Number", location, endDate);
+		assertPrefetchedRowsMatch(new HccRegisterBreakdownRenderer(), new HccRegisterBreakdownRenderer(), cohort, "HCC Number", location, endDate);
+		assertPrefetchedRowsMatch(new KsRegisterBreakdownRenderer(), new KsRegisterBreakdownRenderer(), cohort, "KS Number", location, endDate);
+		assertPrefetchedRowsMatch(new TbRegisterBreakdownRenderer(), new TbRegisterBreakdownRenderer(), cohort, "District TB Number", location, endDate);
+	}
+
+	protected void assertPrefetchedRowsMatch(BreakdownRowRenderer renderer, BreakdownRowRenderer prefetchingRenderer,
+											 Cohort cohort, String identifierType, Location location, Date endDate) {
+		PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByName(identifierType);
+		List<Patient> patients = Context.getPatientSetService().getPatients(cohort.getMemberIds());
+		prefetchingRenderer.prefetch(cohort.getMemberIds());
+		for (Patient p : patients) {
+			String expected = toString(renderer.renderRow(p, pit, location, null, endDate));
+			String actual = toString(prefetchingRenderer.renderRow(p, pit, location, null, endDate));
+			Assert.assertEquals(renderer.getClass().getSimpleName() + " patient " + p.getPatientId(), expected, actual);
+		}
+	}
+
+	protected String toString(DataSetRow row) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<DataSetColumn, Object> e : row.getColumnValues().entrySet()) {
+			sb.append(e.getKey().getLabel()).append("=").append(e.getValue()).append("\n");
+		}
+		return sb.toString();
+	}
+}
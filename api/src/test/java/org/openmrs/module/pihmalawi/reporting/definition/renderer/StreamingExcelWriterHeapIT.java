@@ -0,0 +1,75 @@
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes 200,000 rows with the StreamingExcelWriter in a JVM whose heap is far smaller than the rows would take if
+ * they were all held in memory.  The bounded-heap-tests execution of the surefire plugin runs this with -Xmx32m.
+ */
+public class StreamingExcelWriterHeapIT {
+
+	private static final long MAX_HEAP = 64 * 1024 * 1024;
+	private static final int NUM_ROWS = 200000;
+	private static final int NUM_COLUMNS = 20;
+
+	@Test
+	public void write_shouldWriteAllRowsWithinABoundedHeap() throws Exception {
+		Assert.assertTrue("Expected a heap of at most " + MAX_HEAP + " bytes but was " + Runtime.getRuntime().maxMemory(),
+				Runtime.getRuntime().maxMemory() <= MAX_HEAP);
+
+		List<String> columnHeaders = new ArrayList<String>();
+		for (int i = 0; i < NUM_COLUMNS; i++) {
+			columnHeaders.add("Column " + i);
+		}
+		Date birthdate = DateUtil.getDateTime(1980, 5, 17);
+		Date visitDate = DateUtil.getDateTime(2015, 3, 2, 10, 30, 0, 0);
+
+		StreamingExcelWriter writer = new StreamingExcelWriter();
+		writer.startSheet("ART Register", columnHeaders);
+		List<Object> values = new ArrayList<Object>();
+		for (int rowNum = 1; rowNum <= NUM_ROWS; rowNum++) {
+			values.clear();
+			values.add(rowNum);
+			values.add("NNO " + rowNum);
+			values.add(birthdate);
+			values.add(visitDate);
+			values.add(rowNum % 2 == 0);
+			for (int i = values.size(); i < NUM_COLUMNS; i++) {
+				values.add("Value " + i + " of patient " + rowNum);
+			}
+			writer.writeRow(values);
+		}
+
+		CountingOutputStream out = new CountingOutputStream();
+		writer.write(out);
+		Assert.assertEquals(NUM_ROWS + 1, writer.getCurrentRowNum());
+		Assert.assertTrue(out.getCount() > 0);
+	}
+
+	private class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package org.openmrs.module.pihmalawi.reporting.definition.renderer;
+
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests the StreamingExcelWriter
+ */
+public class StreamingExcelWriterTest {
+
+	private static final int NUM_ROWS = 200000;
+	private static final int NUM_COLUMNS = 20;
+	private static final int ROW_ACCESS_WINDOW = 100;
+
+	@Test
+	public void writeRow_shouldKeepOnlyTheRowAccessWindowInMemory() throws Exception {
+		List<String> columnHeaders = new ArrayList<String>();
+		for (int i = 0; i < NUM_COLUMNS; i++) {
+			columnHeaders.add("Column " + i);
+		}
+		Date birthdate = DateUtil.getDateTime(1980, 5, 17);
+		Date visitDate = DateUtil.getDateTime(2015, 3, 2, 10, 30, 0, 0);
+
+		StreamingExcelWriter writer = new StreamingExcelWriter(null, ROW_ACCESS_WINDOW);
+		writer.startSheet("ART Register", columnHeaders);
+
+		List<Object> values = new ArrayList<Object>();
+		for (int rowNum = 1; rowNum <= NUM_ROWS; rowNum++) {
+			values.clear();
+			values.add(rowNum);
+			values.add("NNO " + rowNum);
+			values.add(birthdate);
+			values.add(visitDate);
+			values.add(rowNum % 2 == 0);
+			for (int i = values.size(); i < NUM_COLUMNS; i++) {
+				values.add("Value " + i + " of patient " + rowNum);
+			}
+			writer.writeRow(values);
+
+			if (rowNum % 50000 == 0) {
+				Assert.assertNotNull(writer.getCurrentSheet().getRow(rowNum - ROW_ACCESS_WINDOW + 1));
+				Assert.assertNull("Row " + (rowNum - ROW_ACCESS_WINDOW) + " is still in memory", writer.getCurrentSheet().getRow(rowNum - ROW_ACCESS_WINDOW));
+				Assert.assertNull(writer.getCurrentSheet().getRow(1));
+			}
+		}
+		Assert.assertEquals(NUM_ROWS + 1, writer.getCurrentRowNum());
+
+		// The default style, header, date and datetime styles
+		Assert.assertEquals(4, writer.getWorkbook().getNumCellStyles());
+
+		CountingOutputStream out = new CountingOutputStream();
+		writer.write(out);
+		Assert.assertTrue(out.getCount() > 0);
+	}
+
+	@Test
+	public void startSheet_shouldWriteBelowTheHeaderRegionOfATemplate() throws Exception {
+		XSSFWorkbook template = new XSSFWorkbook();
+		Sheet templateSheet = template.createSheet("patients");
+		templateSheet.createRow(0).createCell(0).setCellValue("ART Register");
+		templateSheet.createRow(1).createCell(0).setCellValue("Neno District Hospital");
+
+		StreamingExcelWriter writer = new StreamingExcelWriter(template, 10);
+		writer.startSheet("patients", Arrays.asList("PID", "ARV #", "Birthdate"));
+		writer.writeRow(Arrays.<Object>asList(1, "NNO 1", DateUtil.getDateTime(1980, 5, 17)));
+		writer.writeRow(Arrays.<Object>asList(2, null, null));
+		writer.startSheet("other", Arrays.asList("Name"));
+		writer.writeRow(Arrays.<Object>asList("Only row"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(out);
+
+		XSSFWorkbook written = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
+		Sheet sheet = written.getSheet("patients");
+		Assert.assertEquals("ART Register", sheet.getRow(0).getCell(0).getStringCellValue());
+		Assert.assertEquals("Neno District Hospital", sheet.getRow(1).getCell(0).getStringCellValue());
+		Assert.assertEquals("ARV #", sheet.getRow(2).getCell(1).getStringCellValue());
+
+		Row row = sheet.getRow(3);
+		Assert.assertEquals(1, row.getCell(0).getNumericCellValue(), 0);
+		Assert.assertEquals("NNO 1", row.getCell(1).getStringCellValue());
+		Assert.assertEquals(DateUtil.getDateTime(1980, 5, 17), row.getCell(2).getDateCellValue());
+		Assert.assertEquals("yyyy-mm-dd", row.getCell(2).getCellStyle().getDataFormatString());
+		Assert.assertNull(sheet.getRow(4).getCell(1));
+		Assert.assertEquals(4, sheet.getLastRowNum());
+
+		Assert.assertEquals("Only row", written.getSheet("other").getRow(1).getCell(0).getStringCellValue());
+	}
+
+	@Test
+	public void write_shouldEncryptTheWorkbookWithThePassword() throws Exception {
+		StreamingExcelWriter writer = new StreamingExcelWriter();
+		writer.setPassword("secret");
+		writer.startSheet("patients", Arrays.asList("PID"));
+		writer.writeRow(Arrays.<Object>asList(1));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(out);
+
+		POIFSFileSystem fs = new POIFSFileSystem(new ByteArrayInputStream(out.toByteArray()));
+		Decryptor decryptor = Decryptor.getInstance(new EncryptionInfo(fs));
+		Assert.assertFalse(decryptor.verifyPassword("wrong"));
+		Assert.assertTrue(decryptor.verifyPassword("secret"));
+
+		XSSFWorkbook written = new XSSFWorkbook(decryptor.getDataStream(fs));
+		Sheet sheet = written.getSheet("patients");
+		Assert.assertTrue(sheet.getProtect());
+		Assert.assertEquals(1, sheet.getRow(1).getCell(0).getNumericCellValue(), 0);
+	}
+
+	private class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.openmrs.module.pihmalawi.reports.dataset;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.AppointmentAdherencePatientDataSetDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the appointment adherence data set evaluated for a whole cohort at once, against evaluating it one patient at
+ * a time, which issues the same per-patient queries as the evaluator did before it loaded its data cohort-wide.
+ * Checks that both produce the same rows.
+ */
+public class AppointmentAdherencePatientDataSetPerformanceTest extends StandaloneContextSensitiveTest {
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	DataSetDefinitionService dataSetDefinitionService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		AppointmentAdherencePatientDataSetDefinition dsd = new AppointmentAdherencePatientDataSetDefinition();
+		dsd.setEncounterTypes(Arrays.asList(hivMetadata.getArtFollowupEncounterType()));
+		dsd.setPatientIdentifierType(Context.getPatientService().getPatientIdentifierTypeByName("ARV Number"));
+
+		Cohort cohort = Context.getPatientSetService().getPatientsInProgram(hivMetadata.getHivProgram(), null, null);
+		List<Integer> patientIds = new ArrayList<Integer>(cohort.getMemberIds()).subList(0, Math.min(500, cohort.size()));
+
+		StopWatch sw = new StopWatch();
+		sw.start();
+		Map<Object, String> perPatientRows = new HashMap<Object, String>();
+		for (Integer patientId : patientIds) {
+			SimpleDataSet ds = (SimpleDataSet) dataSetDefinitionService.evaluate(dsd, getEvaluationContext(new Cohort(Arrays.asList(patientId))));
+			for (DataSetRow row : ds.getRows()) {
+				perPatientRows.put(row.getColumnValue("#"), toString(row));
+			}
+		}
+		sw.stop();
+		System.out.println("Evaluated " + patientIds.size() + " patients one at a time in: " + sw.toString());
+
+		Context.flushSession();
+		Context.clearSession();
+
+		sw.reset();
+		sw.start();
+		SimpleDataSet cohortDataSet = (SimpleDataSet) dataSetDefinitionService.evaluate(dsd, getEvaluationContext(new Cohort(patientIds)));
+		sw.stop();
+		System.out.println("Evaluated " + patientIds.size() + " patients as a cohort in: " + sw.toString());
+
+		Assert.assertEquals(perPatientRows.size(), cohortDataSet.getRows().size());
+		for (DataSetRow row : cohortDataSet.getRows()) {
+			Assert.assertEquals("patient " + row.getColumnValue("#"), perPatientRows.get(row.getColumnValue("#")), toString(row));
+		}
+	}
+
+	protected String toString(DataSetRow row) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<DataSetColumn, Object> e : row.getColumnValues().entrySet()) {
+			sb.append(e.getKey().getLabel()).append("=").append(e.getValue()).append("\n");
+		}
+		return sb.toString();
+	}
+
+	protected EvaluationContext getEvaluationContext(Cohort baseCohort) {
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(baseCohort);
+		context.addParameterValue("startDate", DateUtil.getDateTime(2006, 1, 1));
+		context.addParameterValue("endDate", DateUtil.getDateTime(2012, 11, 30));
+		context.addParameterValue("location", hivMetadata.getLuwaniHc());
+		return context;
+	}
+}
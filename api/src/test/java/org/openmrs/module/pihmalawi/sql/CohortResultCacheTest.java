@@ -0,0 +1,307 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.reporting.cohort.definition.CodedObsCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.SqlCohortDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import javax.jms.Message;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Tests the CohortResultCache against an EmbeddedDatabase.
+ * The clock is controlled by the test, and cohorts are evaluated by the test, which counts each evaluation.
+ * Changes are reported to the cache as the event messages for them would be.
+ */
+public class CohortResultCacheTest {
+
+    private EmbeddedDatabase db;
+    private Connection connection;
+    private TestCohortResultCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+        connection = db.getConnection();
+        cache = new TestCohortResultCache();
+        cache.createTables(connection);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldLoadAStoredCohortForTheSameDataVersion() throws Exception {
+        String version = getDataVersion(cache, getMales("Males"));
+        Assert.assertNull(cache.load(connection, "key", version));
+        cache.store(connection, "key", version, GenderCohortDefinition.class.getName(), new Cohort(Arrays.asList(3, 1, 2)));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), sorted(cache.load(connection, "key", version)));
+        Assert.assertNull(cache.load(connection, "key", "another version"));
+        Assert.assertNull(cache.load(connection, "another key", version));
+    }
+
+    @Test
+    public void shouldReplaceAStoredCohortWithTheSameKey() throws Exception {
+        String version = getDataVersion(cache, getMales("Males"));
+        cache.store(connection, "key", version, null, new Cohort(Arrays.asList(1, 2)));
+        cache.store(connection, "key", version, null, new Cohort(Arrays.asList(2)));
+        Assert.assertEquals(Arrays.asList(2), sorted(cache.load(connection, "key", version)));
+        Assert.assertEquals(1, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+    }
+
+    @Test
+    public void shouldOnlyChangeTheDataVersionOfCohortsEvaluatedFromAChangedTable() throws Exception {
+        GenderCohortDefinition males = getMales("Males");
+        CodedObsCohortDefinition obs = new CodedObsCohortDefinition();
+        String malesVersion = getDataVersion(cache, males);
+        String obsVersion = getDataVersion(cache, obs);
+        Assert.assertEquals(malesVersion, getDataVersion(cache, males));
+
+        cache.onMessage(getChangeMessage(Obs.class));
+        Assert.assertEquals(malesVersion, getDataVersion(cache, males));
+        String changed = getDataVersion(cache, obs);
+        Assert.assertFalse(obsVersion.equals(changed));
+
+        cache.onMessage(getChangeMessage(Person.class));
+        Assert.assertFalse(malesVersion.equals(getDataVersion(cache, males)));
+        Assert.assertFalse(changed.equals(getDataVersion(cache, obs)));
+    }
+
+    @Test
+    public void shouldChangeTheDataVersionOfEveryTableForAChangeOfAnUnknownType() throws Exception {
+        SqlCohortDefinition sql = new SqlCohortDefinition("select patient_id from patient");
+        Assert.assertEquals(new TreeSet<String>(CohortResultCache.CHANGE_TABLES.values()), new TreeSet<String>(cache.getTables(sql)));
+        String malesVersion = getDataVersion(cache, getMales("Males"));
+        String sqlVersion = getDataVersion(cache, sql);
+
+        cache.onMessage(new ActiveMQMapMessage());
+        Assert.assertFalse(malesVersion.equals(getDataVersion(cache, getMales("Males"))));
+        Assert.assertFalse(sqlVersion.equals(getDataVersion(cache, sql)));
+    }
+
+    @Test
+    public void shouldKeepDataVersionsWhenTheModuleRestarts() throws Exception {
+        GenderCohortDefinition males = getMales("Males");
+        cache.onMessage(getChangeMessage(Person.class));
+        String version = getDataVersion(cache, males);
+        Assert.assertEquals(version, getDataVersion(new TestCohortResultCache(), males));
+
+        cache.onMessage(getChangeMessage(Patient.class));
+        TestCohortResultCache restarted = new TestCohortResultCache();
+        Assert.assertEquals(version, getDataVersion(restarted, males));
+        Assert.assertFalse(version.equals(getDataVersion(cache, males)));
+        Assert.assertEquals(getDataVersion(cache, males), getDataVersion(restarted, males));
+    }
+
+    @Test
+    public void shouldRemoveCohortsCachedOnEarlierDaysWhenStoring() throws Exception {
+        String version = getDataVersion(cache, getMales("Males"));
+        cache.store(connection, "first", version, null, new Cohort(Arrays.asList(1, 2)));
+        cache.now = DateUtil.getDateTime(2014, 1, 1, 23, 0, 0, 0).getTime();
+        cache.store(connection, "second", version, null, new Cohort(Arrays.asList(1)));
+        Assert.assertEquals(2, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+
+        cache.now = DateUtil.getDateTime(2014, 1, 2, 1, 0, 0, 0).getTime();
+        cache.store(connection, "third", version, null, new Cohort(Arrays.asList(2)));
+        Assert.assertEquals(1, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+        Assert.assertEquals(Arrays.asList(2), sorted(cache.load(connection, "third", version)));
+    }
+
+    @Test
+    public void shouldEvaluateACohortOnceAndReadAndWriteTheCacheOnOneConnectionPerLookup() throws Exception {
+        EvaluationContext context = getContext(DateUtil.getDateTime(2013, 6, 30), null);
+        Assert.assertEquals(Arrays.asList(1, 2), sorted(cache.evaluate(getMales("Males"), context)));
+        Assert.assertEquals(1, cache.numEvaluated);
+        Assert.assertEquals(1, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+
+        Assert.assertEquals(Arrays.asList(1, 2), sorted(cache.evaluate(getMales("Males"), context)));
+        Assert.assertEquals(1, cache.numEvaluated);
+
+        Assert.assertEquals(2, cache.opened.size());
+        for (Connection opened : cache.opened) {
+            Assert.assertTrue(opened.isClosed());
+        }
+
+        cache.onMessage(getChangeMessage(Encounter.class));
+        cache.evaluate(getMales("Males"), context);
+        Assert.assertEquals(1, cache.numEvaluated);
+
+        cache.onMessage(getChangeMessage(Person.class));
+        cache.evaluate(getMales("Males"), context);
+        Assert.assertEquals(2, cache.numEvaluated);
+        Assert.assertEquals(1, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+    }
+
+    @Test
+    public void shouldNotCacheACohortIfTheDataChangesWhileItIsEvaluated() throws Exception {
+        cache.changeWhileEvaluating = true;
+        EvaluationContext context = getContext(DateUtil.getDateTime(2013, 6, 30), null);
+        cache.evaluate(getMales("Males"), context);
+        cache.evaluate(getMales("Males"), context);
+        Assert.assertEquals(2, cache.numEvaluated);
+        Assert.assertEquals(0, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+    }
+
+    @Test
+    public void shouldClearAllCachedCohorts() throws Exception {
+        String version = getDataVersion(cache, getMales("Males"));
+        cache.store(connection, "first", version, null, new Cohort(Arrays.asList(1)));
+        cache.store(connection, "second", version, null, new Cohort(Arrays.asList(2)));
+        cache.clear(connection);
+        Assert.assertEquals(0, count("select count(*) from " + CohortResultCache.TABLE_NAME));
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeMemberIds() throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 100000; i > 0; i -= 7) {
+            ids.add(i);
+        }
+        List<Integer> expected = new ArrayList<Integer>(ids);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, CohortResultCache.decode(CohortResultCache.encode(ids)));
+        Assert.assertEquals(new ArrayList<Integer>(), CohortResultCache.decode(CohortResultCache.encode(new ArrayList<Integer>())));
+    }
+
+    @Test
+    public void shouldKeyCohortsByDefinitionParametersAndBaseCohort() throws Exception {
+        String key = cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 6, 30), null));
+        Assert.assertEquals(64, key.length());
+        Assert.assertEquals(key, cache.getCacheKey(getMales("Men"), getContext(DateUtil.getDateTime(2013, 6, 30), null)));
+        Assert.assertFalse(key.equals(cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 9, 30), null))));
+        Assert.assertFalse(key.equals(cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 6, 30), new Cohort(Arrays.asList(1))))));
+
+        String withBaseCohort = cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 6, 30), new Cohort(Arrays.asList(1, 2))));
+        Assert.assertEquals(withBaseCohort, cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 6, 30), new Cohort(Arrays.asList(2, 1)))));
+
+        cache.moduleVersion = "2.0";
+        Assert.assertFalse(key.equals(cache.getCacheKey(getMales("Males"), getContext(DateUtil.getDateTime(2013, 6, 30), null))));
+    }
+
+    protected String getDataVersion(CohortResultCache cache, CohortDefinition definition) throws Exception {
+        return cache.getDataVersion(connection, cache.getTables(definition));
+    }
+
+    protected Message getChangeMessage(Class<?> type) throws Exception {
+        ActiveMQMapMessage message = new ActiveMQMapMessage();
+        message.setString("classname", type.getName());
+        message.setString("action", "UPDATED");
+        return message;
+    }
+
+    protected GenderCohortDefinition getMales(String name) {
+        GenderCohortDefinition cd = new GenderCohortDefinition();
+        cd.setName(name);
+        cd.setMaleIncluded(true);
+        return cd;
+    }
+
+    protected EvaluationContext getContext(Date endDate, Cohort baseCohort) {
+        EvaluationContext context = new EvaluationContext(DateUtil.getDateTime(2014, 1, 1));
+        context.addParameterValue("endDate", endDate);
+        context.setBaseCohort(baseCohort);
+        return context;
+    }
+
+    protected List<Integer> sorted(Cohort cohort) {
+        List<Integer> ids = new ArrayList<Integer>(cohort.getMemberIds());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    protected int count(String sql) {
+        return db.count(sql);
+    }
+
+    protected void execute(String sql) {
+        db.execute(sql);
+    }
+
+    /**
+     * A cache with a clock and module version set by the test, that does not need a running OpenMRS, and that
+     * evaluates every cohort to patients 1 and 2 on new connections to the EmbeddedDatabase
+     */
+    private class TestCohortResultCache extends CohortResultCache {
+
+        long now = DateUtil.getDateTime(2014, 1, 1).getTime();
+        String moduleVersion = "1.0";
+        int numEvaluated = 0;
+        boolean changeWhileEvaluating = false;
+        List<Connection> opened = new ArrayList<Connection>();
+
+        @Override
+        protected boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        protected String getModuleVersion() {
+            return moduleVersion;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        protected Connection openConnection() {
+            try {
+                Connection c = db.openConnection();
+                opened.add(c);
+                return c;
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected Cohort evaluateDefinition(CohortDefinition definition, EvaluationContext context) {
+            numEvaluated++;
+            if (changeWhileEvaluating) {
+                try {
+                    onMessage(getChangeMessage(Person.class));
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return new Cohort(Arrays.asList(1, 2));
+        }
+    }
+}
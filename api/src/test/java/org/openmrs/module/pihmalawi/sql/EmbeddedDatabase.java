@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory H2 database in MySQL mode, created with the fixture schema in SCHEMA_RESOURCE.
+ * Each instance is a new, empty database, which is dropped when it is closed.
+ * Tests populate it with the add methods, or with their own statements for anything these do not cover.
+ */
+public class EmbeddedDatabase {
+
+    public static final String SCHEMA_RESOURCE = "org/openmrs/module/pihmalawi/sql/embeddedSchema.sql";
+
+    private static int numCreated = 0;
+
+    private String url;
+    private Connection connection;
+
+    public EmbeddedDatabase() throws Exception {
+        Class.forName("org.h2.Driver");
+        url = "jdbc:h2:mem:embedded" + nextId() + ";MODE=MySQL";
+        connection = DriverManager.getConnection(url, "sa", "");
+        execute(readResource(SCHEMA_RESOURCE));
+    }
+
+    private static synchronized int nextId() {
+        return ++numCreated;
+    }
+
+    /**
+     * @return the contents of the given classpath resource
+     */
+    public static String readResource(String resourceName) throws Exception {
+        InputStream in = EmbeddedDatabase.class.getClassLoader().getResourceAsStream(resourceName);
+        Assert.assertNotNull("No resource named " + resourceName, in);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return a new connection to the same database, with its own transactions, to be closed by the caller
+     */
+    public Connection openConnection() throws Exception {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    /**
+     * Executes the given statements, failing if any of them fails
+     */
+    public void execute(String sql) {
+        query(sql, null);
+    }
+
+    /**
+     * @return the rows of the first result of the given statements, failing if any of them fails
+     */
+    public List<Object[]> query(String sql) {
+        return query(sql, null);
+    }
+
+    /**
+     * @return the rows of the first result of the given statements, with the given parameter values bound
+     */
+    public List<Object[]> query(String sql, Map<String, Object> parameterValues) {
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(connection, sql, parameterValues, result);
+        Assert.assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+        return result.getRows();
+    }
+
+    /**
+     * @return the number in the first column of the first row returned by the given query
+     */
+    public int count(String sql) {
+        return ((Number) query(sql).get(0)[0]).intValue();
+    }
+
+    public void addPerson(int personId, String birthdate, boolean birthdateEstimated) {
+        execute("insert into person (person_id, birthdate, birthdate_estimated) values (" +
+                personId + ", " + toSql(birthdate) + ", " + toSql(birthdateEstimated) + ");");
+    }
+
+    public void addPatient(int patientId, boolean voided) {
+        execute("insert into patient (patient_id, voided) values (" + patientId + ", " + toSql(voided) + ");");
+    }
+
+    public void addProgram(int patientProgramId, int patientId, Integer programId, Integer locationId, boolean voided) {
+        execute("insert into patient_program (patient_program_id, patient_id, program_id, location_id, voided) values (" +
+                patientProgramId + ", " + patientId + ", " + programId + ", " + locationId + ", " + toSql(voided) + ");");
+    }
+
+    public void addState(int patientProgramId, int stateId, String startDate, String endDate, boolean voided) {
+        execute("insert into patient_state (patient_program_id, state, start_date, end_date, voided) values (" +
+                patientProgramId + ", " + stateId + ", " + toSql(startDate) + ", " + toSql(endDate) + ", " + toSql(voided) + ");");
+    }
+
+    public void addEncounter(int encounterId, int patientId, int encounterTypeId, Integer locationId, String encounterDatetime, boolean voided) {
+        execute("insert into encounter (encounter_id, patient_id, encounter_type, location_id, encounter_datetime, voided) values (" +
+                encounterId + ", " + patientId + ", " + encounterTypeId + ", " + locationId + ", " + toSql(encounterDatetime) + ", " + toSql(voided) + ");");
+    }
+
+    /**
+     * Adds an obs with a date value to the encounter, for its patient, date and location
+     */
+    public void addDatetimeObs(int encounterId, int conceptId, String valueDatetime, boolean voided) {
+        addObs(encounterId, conceptId, "value_datetime", toSql(valueDatetime), voided);
+    }
+
+    /**
+     * Adds an obs with a numeric value to the encounter, for its patient, date and location
+     */
+    public void addNumericObs(int encounterId, int conceptId, double valueNumeric, boolean voided) {
+        addObs(encounterId, conceptId, "value_numeric", Double.toString(valueNumeric), voided);
+    }
+
+    protected void addObs(int encounterId, int conceptId, String valueColumn, String value, boolean voided) {
+        execute("insert into obs (person_id, encounter_id, obs_datetime, location_id, concept_id, " + valueColumn + ", voided) " +
+                "select patient_id, encounter_id, encounter_datetime, location_id, " + conceptId + ", " + value + ", " + toSql(voided) + " " +
+                "from encounter where encounter_id = " + encounterId + ";");
+    }
+
+    protected String toSql(String value) {
+        return (value == null ? "null" : "'" + value + "'");
+    }
+
+    protected String toSql(boolean value) {
+        return (value ? "1" : "0");
+    }
+
+    public void close() throws Exception {
+        connection.close();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the IncrementalWarehouse against an EmbeddedDatabase.
+ * The fixture cohort is all non-voided persons, with their last encounter date before the end date.
+ * Every patient added by the cohort script is recorded in cohort_log, and every patient processed by the columns
+ * script is recorded in refresh_log.
+ */
+public class IncrementalWarehouseTest {
+
+    private static final Date END_DATE = DateUtil.getDateTime(2016, 6, 30);
+
+    private EmbeddedDatabase db;
+    private IncrementalWarehouse warehouse;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+        execute("insert into person (person_id, gender, voided, date_created) values (1, 'F', 0, '2015-01-01');" +
+                "insert into person (person_id, gender, voided, date_created) values (2, 'M', 0, '2015-01-01');" +
+                "insert into person (person_id, gender, voided, date_created) values (3, 'F', 0, '2015-01-01');" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (1, 1, '2016-01-10', 0, '2016-01-10');" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (2, 2, '2016-02-10', 0, '2016-02-10');" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (3, 3, '2016-03-10', 0, '2016-03-10');" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (4, 3, '2016-08-10', 0, '2016-08-10');");
+
+        warehouse = new IncrementalWarehouse();
+        warehouse.setName("test");
+        warehouse.setTableName("test_warehouse");
+        warehouse.setSourceTableName("test_cohort");
+        warehouse.setPatientIdColumn("PID");
+        warehouse.setEndDateParameter("endDate");
+        warehouse.setCohortScript(
+                "create table if not exists cohort_log (PID int);" +
+                "create table if not exists refresh_log (PID int);" +
+                "drop table if exists test_cohort;" +
+                "create table test_cohort (PID int not null, gender varchar(1), lastVisitDate datetime);" +
+                "insert into test_cohort (PID, gender) select person_id, gender from person where voided = 0 " +
+                "and (@changedPatientsOnly = 0 or person_id in (select patient_id from test_warehouse_changed));" +
+                "insert into cohort_log (PID) select PID from test_cohort;");
+        warehouse.setColumnsScript(
+                "update test_cohort set lastVisitDate = (select max(encounter_datetime) from encounter e where e.patient_id = test_cohort.PID and e.voided = 0 and e.encounter_datetime <= @endDate);" +
+                "insert into refresh_log (PID) select PID from test_cohort;");
+        warehouse.addChangeSource("select person_id as patient_id from person", "date_created", "date_changed", "date_voided");
+        warehouse.addChangeSource("select patient_id from encounter", "date_created", "date_changed", "date_voided");
+        warehouse.addEndDateSource("select patient_id from encounter where encounter_datetime >= @earlierEndDate and encounter_datetime <= @laterEndDate");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldBuildAllPatientsOnFirstRefresh() throws Exception {
+        Assert.assertEquals(-1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(3, count("select count(*) from refresh_log"));
+        assertLastVisitDate(1, DateUtil.getDateTime(2016, 1, 10));
+        assertLastVisitDate(3, DateUtil.getDateTime(2016, 3, 10));
+    }
+
+    @Test
+    public void shouldNotRecomputeAnyPatientsIfNothingHasChanged() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        Assert.assertEquals(0, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(3, count("select count(*) from cohort_log"));
+        Assert.assertEquals(3, count("select count(*) from refresh_log"));
+    }
+
+    @Test
+    public void shouldRecomputeOnlyPatientsWithNewOrChangedRows() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (5, 2, '2016-05-01', 0, current_timestamp);" +
+                "update encounter set voided = 1, date_voided = current_timestamp where encounter_id = 1;");
+
+        Assert.assertEquals(2, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(5, count("select count(*) from cohort_log"));
+        Assert.assertEquals(5, count("select count(*) from refresh_log"));
+        assertLastVisitDate(1, null);
+        assertLastVisitDate(2, DateUtil.getDateTime(2016, 5, 1));
+        assertLastVisitDate(3, DateUtil.getDateTime(2016, 3, 10));
+    }
+
+    @Test
+    public void shouldRecomputePatientsChangedWithinTheOverlapBeforeTheHighWaterMark() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("update test_warehouse_status set high_water_mark = '2017-01-01 12:00:00';" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (5, 2, '2016-05-01', 0, '2017-01-01 11:55:00');" +
+                "insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (6, 1, '2016-05-01', 0, '2017-01-01 11:45:00');");
+
+        Assert.assertEquals(1, warehouse.refresh(db.getConnection(), END_DATE));
+        assertLastVisitDate(1, DateUtil.getDateTime(2016, 1, 10));
+        assertLastVisitDate(2, DateUtil.getDateTime(2016, 5, 1));
+    }
+
+    @Test
+    public void shouldRecomputeAllPatientsOnceTheFullRefreshIntervalHasPassed() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("update test_warehouse_status set last_full_refresh = '2016-01-01';");
+
+        Assert.assertEquals(-1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(6, count("select count(*) from refresh_log"));
+        Assert.assertEquals(0, warehouse.refresh(db.getConnection(), END_DATE));
+    }
+
+    @Test
+    public void shouldRecreateAStatusTableKeyedByEndDate() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("drop table test_warehouse_status;" +
+                "create table test_warehouse_status (report_end_date date not null primary key, high_water_mark datetime not null, last_full_refresh datetime not null);" +
+                "insert into test_warehouse_status values ('2016-06-30', current_timestamp, current_timestamp);");
+
+        Assert.assertEquals(-1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(0, warehouse.refresh(db.getConnection(), END_DATE));
+    }
+
+    @Test
+    public void shouldRemovePatientsThatLeaveTheCohort() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("update person set voided = 1, date_voided = current_timestamp where person_id = 2;");
+
+        Assert.assertEquals(1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(2, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(0, count("select count(*) from test_warehouse where PID = 2"));
+    }
+
+    @Test
+    public void shouldOnlyRecomputePatientsWithDatedRowsBetweenTheEndDatesWhenTheEndDateChanges() throws Exception {
+        Date laterEndDate = DateUtil.getDateTime(2016, 12, 31);
+        warehouse.refresh(db.getConnection(), END_DATE);
+        Assert.assertEquals(1, warehouse.refresh(db.getConnection(), laterEndDate));
+        Assert.assertEquals(4, count("select count(*) from cohort_log"));
+        Assert.assertEquals(4, count("select count(*) from refresh_log"));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse where report_end_date = '2016-12-31'"));
+        assertLastVisitDate(3, laterEndDate, DateUtil.getDateTime(2016, 8, 10));
+        assertLastVisitDate(1, laterEndDate, DateUtil.getDateTime(2016, 1, 10));
+
+        Assert.assertEquals(1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse where report_end_date = '2016-06-30'"));
+        assertLastVisitDate(3, DateUtil.getDateTime(2016, 3, 10));
+    }
+
+    @Test
+    public void shouldMoveAllRowsToTheNewEndDateIfNoPatientsChanged() throws Exception {
+        Date laterEndDate = DateUtil.getDateTime(2016, 7, 31);
+        warehouse.refresh(db.getConnection(), END_DATE);
+        Assert.assertEquals(0, warehouse.refresh(db.getConnection(), laterEndDate));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse where report_end_date = '2016-07-31'"));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+    }
+
+    @Test
+    public void shouldOnlyKeepTheLatestEndDateAfterRecomputingAllPatients() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("update test_warehouse_status set last_full_refresh = '2016-01-01';");
+        Assert.assertEquals(-1, warehouse.refresh(db.getConnection(), DateUtil.getDateTime(2016, 12, 31)));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse where report_end_date = '2016-12-31'"));
+    }
+
+    @Test
+    public void shouldRebuildIfTheSourceTableColumnsChange() throws Exception {
+        warehouse.refresh(db.getConnection(), END_DATE);
+        execute("insert into encounter (encounter_id, patient_id, encounter_datetime, voided, date_created) values (5, 2, '2016-05-01', 0, current_timestamp);");
+        warehouse.setCohortScript(warehouse.getCohortScript() + "alter table test_cohort add column extra int;");
+
+        Assert.assertEquals(-1, warehouse.refresh(db.getConnection(), END_DATE));
+        Assert.assertEquals(3, count("select count(*) from test_warehouse"));
+        assertLastVisitDate(2, DateUtil.getDateTime(2016, 5, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireTheEndDateParameter() throws Exception {
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        warehouse.refresh(db.getConnection(), parameterValues);
+    }
+
+    protected void assertLastVisitDate(int patientId, Date expected) throws Exception {
+        assertLastVisitDate(patientId, END_DATE, expected);
+    }
+
+    protected void assertLastVisitDate(int patientId, Date endDate, Date expected) throws Exception {
+        Map<String, Object> parameterValues = new HashMap<String, Object>();
+        parameterValues.put("endDate", endDate);
+        parameterValues.put("patientId", patientId);
+        List<Object[]> rows = db.query("select lastVisitDate from test_warehouse where PID = @patientId and report_end_date = @endDate", parameterValues);
+        Assert.assertEquals(1, rows.size());
+        Object actual = rows.get(0)[0];
+        if (expected == null) {
+            Assert.assertNull(actual);
+        }
+        else {
+            Assert.assertEquals(expected.getTime(), ((Date) actual).getTime());
+        }
+    }
+
+    protected int count(String sql) {
+        return db.count(sql);
+    }
+
+    protected void execute(String sql) {
+        db.execute(sql);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the MysqlRunner class against an EmbeddedDatabase
+ */
+public class MysqlRunnerEmbeddedDatabaseTest {
+
+    private EmbeddedDatabase db;
+
+    @Before
+    public void setup() throws Exception {
+        db = new EmbeddedDatabase();
+        db.execute("insert into person (person_id, gender, birthdate, voided) values (1, 'F', '2000-01-15', 0);" +
+                "insert into person (person_id, gender, birthdate, voided) values (2, 'M', '1980-06-01', 0);" +
+                "insert into person (person_id, gender, birthdate, voided) values (3, 'F', '1990-03-20', 0);" +
+                "insert into person (person_id, gender, birthdate, voided) values (4, 'F', '1970-01-01', 1);" +
+                "insert into obs (person_id, value_numeric) values (1, 55.5);" +
+                "insert into obs (person_id, value_numeric) values (2, 70);");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldSplitStatementsOnSemiColonsOutsideQuotesAndComments() {
+        List<String> statements = MysqlRunner.splitStatements(
+                "-- ## report_name = Test\n" +
+                "select 'a;b' from person; # trailing comment;\n" +
+                "/* block; comment */ select \"c;d\", `e;f` from person;\n" +
+                "select 1 -- comment; here\n" +
+                ";");
+        Assert.assertEquals(3, statements.size());
+        Assert.assertEquals("select 'a;b' from person", statements.get(0));
+        Assert.assertEquals("select \"c;d\", `e;f` from person", statements.get(1));
+        Assert.assertEquals("select 1", statements.get(2));
+    }
+
+    @Test
+    public void shouldSplitStatementsOnHashDelimiterLines() {
+        List<String> statements = MysqlRunner.splitStatements(
+                "-- A procedure\n" +
+                "DROP PROCEDURE IF EXISTS test;\n" +
+                "#\n" +
+                "CREATE PROCEDURE test()\n" +
+                "BEGIN\n" +
+                "  SELECT 1;\n" +
+                "  SELECT 2;\n" +
+                "END\n" +
+                "#\n" +
+                "-- Only a comment\n" +
+                "#\n");
+        Assert.assertEquals(2, statements.size());
+        Assert.assertEquals("DROP PROCEDURE IF EXISTS test;", statements.get(0));
+        Assert.assertTrue(statements.get(1).startsWith("CREATE PROCEDURE test()"));
+        Assert.assertTrue(statements.get(1).endsWith("END"));
+    }
+
+    @Test
+    public void shouldSplitStatementsOnTheDelimiterSetByDelimiterLines() throws Exception {
+        List<String> statements = MysqlRunner.splitStatements(EmbeddedDatabase.readResource(
+                "org/openmrs/module/pihmalawi/reporting/reports/sql/highViralLoad.sql"));
+        Assert.assertEquals(14, statements.size());
+        Assert.assertEquals("DROP FUNCTION IF EXISTS getPreviousVLDate", statements.get(4));
+
+        // Each function is kept whole, with the semi-colons in its body
+        Assert.assertTrue(statements.get(5).startsWith("CREATE FUNCTION getPreviousVL("));
+        Assert.assertTrue(statements.get(5).contains("DECLARE returnVL DOUBLE;"));
+        Assert.assertTrue(statements.get(5).endsWith("END"));
+        Assert.assertTrue(statements.get(6).startsWith("CREATE FUNCTION getPreviousVLDate("));
+        Assert.assertTrue(statements.get(6).endsWith("END"));
+
+        // The rest of the script is never ended by $$, and is split into statements as the server would run it
+        Assert.assertTrue(statements.get(7).startsWith("create temporary table temp_recent_regimen as"));
+        Assert.assertTrue(statements.get(8).startsWith("create temporary table temp_regimen_start as"));
+        Assert.assertTrue(statements.get(9).startsWith("select o.person_id as PID"));
+        Assert.assertEquals("DROP FUNCTION IF EXISTS getPreviousVLDate", statements.get(13));
+    }
+
+    @Test
+    public void shouldSplitOnSemiColonsAgainOnceTheDelimiterIsReset() {
+        List<String> statements = MysqlRunner.splitStatements(
+                "select 1;\n" +
+                "delimiter //\n" +
+                "create procedure test() begin select 1; select 2; end//\n" +
+                "delimiter ;\n" +
+                "select 'a//b';");
+        Assert.assertEquals(3, statements.size());
+        Assert.assertEquals("create procedure test() begin select 1; select 2; end", statements.get(1));
+        Assert.assertEquals("select 'a//b'", statements.get(2));
+    }
+
+    @Test
+    public void shouldBindParametersAndReturnTypedColumns() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("gender", "F");
+        parameters.put("endDate", DateUtil.getDateTime(2016, 1, 1));
+
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(db.getConnection(),
+                "select p.person_id, p.birthdate, o.value_numeric, p.gender from person p left join obs o on p.person_id = o.person_id " +
+                "where p.gender = @gender and p.birthdate < @endDate and p.voided = 0 order by p.person_id",
+                parameters, result);
+
+        Assert.assertTrue(result.getErrors().isEmpty());
+        Assert.assertEquals(4, result.getColumns().size());
+        Assert.assertEquals(Integer.class, result.getColumnTypes().get(0));
+        Assert.assertEquals(Date.class, result.getColumnTypes().get(1));
+        Assert.assertEquals(Double.class, result.getColumnTypes().get(2));
+        Assert.assertEquals(String.class, result.getColumnTypes().get(3));
+
+        Assert.assertEquals(2, result.getRows().size());
+        Assert.assertEquals(1, result.getRows().get(0)[0]);
+        Assert.assertEquals(55.5, result.getRows().get(0)[2]);
+        Assert.assertNull(result.getRows().get(1)[2]);
+    }
+
+    @Test
+    public void shouldExposeRowsAsStringMaps() {
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(db.getConnection(), "select p.person_id, p.birthdate, o.value_numeric from person p left join obs o on p.person_id = o.person_id where p.person_id in (2, 3) order by p.person_id", null, result);
+
+        Map<String, String> row = result.getData().get(0);
+        Assert.assertEquals("2", row.get(result.getColumns().get(0)));
+        Assert.assertEquals("1980-06-01", row.get(result.getColumns().get(1)));
+        Assert.assertEquals("70", row.get(result.getColumns().get(2)));
+        Assert.assertNull(result.getData().get(1).get(result.getColumns().get(2)));
+    }
+
+    @Test
+    public void shouldNotAllowParametersToInjectSql() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("gender", "F' or '1'='1");
+
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(db.getConnection(), "select person_id from person where gender = @gender", parameters, result);
+
+        Assert.assertTrue(result.getErrors().isEmpty());
+        Assert.assertEquals(0, result.getRows().size());
+    }
+
+    @Test
+    public void shouldStopAtFirstErrorAndReportIt() {
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(db.getConnection(), "select * from no_such_table; select person_id from person", null, result);
+
+        Assert.assertEquals(1, result.getErrors().size());
+        Assert.assertTrue(result.getData().isEmpty());
+    }
+
+    @Test
+    public void shouldRetainOnlyTheFirstResultSet() {
+        MysqlResult result = new MysqlResult();
+        MysqlRunner.executeSql(db.getConnection(), "select person_id from person where person_id = 1; select gender, birthdate from person", null, result);
+
+        Assert.assertEquals(1, result.getColumns().size());
+        Assert.assertEquals(1, result.getRows().size());
+    }
+
+    @Test
+    public void shouldDropTemporaryTablesCreatedByTheScript() {
+        String sql = "create temporary table temp_females as select person_id from person where gender = 'F';" +
+                "select count(*) from temp_females";
+        for (int i = 0; i < 2; i++) {
+            MysqlResult result = new MysqlResult();
+            MysqlRunner.executeSql(db.getConnection(), sql, null, result);
+            Assert.assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+            Assert.assertEquals(3, ((Number) result.getRows().get(0)[0]).intValue());
+        }
+    }
+}
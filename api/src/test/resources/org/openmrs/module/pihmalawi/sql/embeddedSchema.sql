@@ -0,0 +1,76 @@
+-- The OpenMRS tables, and the columns of them, that are queried by the SQL under test.
+-- Loaded into each EmbeddedDatabase, which tests then populate with their own rows.
+
+create table person (
+    person_id int primary key,
+    gender varchar(50),
+    birthdate date,
+    birthdate_estimated int default 0,
+    dead int default 0,
+    voided int default 0,
+    date_created datetime,
+    date_changed datetime,
+    date_voided datetime
+);
+
+create table patient (
+    patient_id int primary key,
+    voided int default 0,
+    date_created datetime,
+    date_changed datetime,
+    date_voided datetime
+);
+
+create table encounter (
+    encounter_id int primary key,
+    encounter_type int,
+    patient_id int,
+    location_id int,
+    encounter_datetime datetime,
+    voided int default 0,
+    date_created datetime,
+    date_changed datetime,
+    date_voided datetime
+);
+
+create table obs (
+    obs_id int auto_increment primary key,
+    person_id int,
+    concept_id int,
+    encounter_id int,
+    obs_datetime datetime,
+    location_id int,
+    value_coded int,
+    value_datetime datetime,
+    value_numeric double,
+    value_text varchar(255),
+    voided int default 0,
+    date_created datetime,
+    date_voided datetime
+);
+
+create table program_workflow_state (
+    program_workflow_state_id int primary key,
+    program_workflow_id int,
+    terminal int default 0,
+    retired int default 0
+);
+
+create table patient_program (
+    patient_program_id int primary key,
+    patient_id int,
+    program_id int,
+    location_id int,
+    date_enrolled datetime,
+    date_completed datetime,
+    voided int default 0
+);
+
+create table patient_state (
+    patient_state_id int auto_increment primary key,
+    patient_program_id int,
+    state int,
+    start_date date,
+    end_date date,
+    voided int default 0
+);
@@ -1,7 +1,14 @@
 package org.openmrs.module.pihmalawi.web.controller;
 
+import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.common.ExpiringCache;
+import org.openmrs.module.pihmalawi.common.PatientSearchIndex;
+import org.openmrs.module.pihmalawi.common.PatientSearchIndexUpdater;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.PatientSearchCohortDefinition;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator.PatientSearchCohortDefinitionEvaluator;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
 import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.converter.NullValueConverter;
@@ -12,8 +19,8 @@ import org.openmrs.module.reporting.dataset.SimpleDataSet;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
-import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Controller;
@@ -24,10 +31,19 @@ import org.springframework.web.bind.annotation.RequestParam;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Controller for the findPatient portlet that overrides the one supplied by core
+ *
+ * As the portlet searches as the user types, the results of each search are cached for a short time, and identical
+ * searches made while one is in progress wait for its results.  The row of each patient is cached in the same way, so
+ * that as a search is narrowed only the matching patient ids need to be found again.  Both caches are invalidated by
+ * any change to a patient, their identifiers, their names or their person details.  As the caches are shared by all
+ * users, the privileges needed to search for patients are checked on every request.
  */
 @Controller
 @Order(50)
@@ -36,6 +52,12 @@ public class FindPatientPortletController {
 	public static final String SOUNDEX_PREFIX = "s:";
 	public static final String SOUNDEX_SUFFIX = ":s";
 
+	public static final long CACHE_TIME_TO_LIVE = 60 * 1000;
+	public static final int MAX_CACHED_SEARCHES = 500;
+	public static final int MAX_CACHED_PATIENTS = 5000;
+
+	public static final String[] REQUIRED_PRIVILEGES = { PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_PATIENT_IDENTIFIERS };
+
 	@Autowired
 	BuiltInPatientDataLibrary builtInPatientData;
 
@@ -45,6 +67,15 @@ public class FindPatientPortletController {
 	@Autowired
 	DataSetDefinitionService dataSetDefinitionService;
 
+	@Autowired
+	PatientSearchCohortDefinitionEvaluator patientSearchEvaluator;
+
+	@Autowired
+	PatientSearchIndexUpdater patientSearchIndexUpdater;
+
+	private ExpiringCache<String, List<Map<String, Object>>> searchCache = new ExpiringCache<String, List<Map<String, Object>>>(CACHE_TIME_TO_LIVE, MAX_CACHED_SEARCHES);
+	private ExpiringCache<Integer, Map<String, Object>> patientRowCache = new ExpiringCache<Integer, Map<String, Object>>(CACHE_TIME_TO_LIVE, MAX_CACHED_PATIENTS);
+
 	//***** CONTROLLER METHODS *****
 
 	@RequestMapping(value = "**/findPatient.portlet")
@@ -58,16 +89,16 @@ public class FindPatientPortletController {
 							   @RequestParam(value = "soundexEnabled", required = false) String soundexEnabled,
 							   HttpServletResponse response) throws Exception {
 
-		List patientRows = findMatchingPatients(phrase, PatientSearchCohortDefinition.MatchMode.EXACT, Boolean.parseBoolean(soundexEnabled));
-		if (patientRows.isEmpty()) {
-			patientRows = findMatchingPatients(phrase, PatientSearchCohortDefinition.MatchMode.START, Boolean.parseBoolean(soundexEnabled));
-		}
+		List patientRows = findMatchingPatients(phrase, Boolean.parseBoolean(soundexEnabled));
 		response.setContentType("text/json");
 		ObjectMapper mapper = new ObjectMapper();
 		mapper.writeValue(response.getOutputStream(), patientRows);
 	}
 
-	public List findMatchingPatients(String phrase, PatientSearchCohortDefinition.MatchMode matchMode, boolean soundexEnabled) throws Exception {
+	/**
+	 * @return the rows of the patients exactly matching the phrase, or if none, those with a match starting with it
+	 */
+	public List<Map<String, Object>> findMatchingPatients(String phrase, boolean soundexEnabled) throws Exception {
 		if (phrase != null) {
 			phrase = phrase.trim();
 			if (phrase.toLowerCase().startsWith(SOUNDEX_PREFIX)) {
@@ -79,15 +110,77 @@ public class FindPatientPortletController {
 				soundexEnabled = true;
 			}
 		}
+		if (StringUtils.isEmpty(phrase)) {
+			return new ArrayList<Map<String, Object>>();
+		}
 
-		PatientDataSetDefinition dsd = new PatientDataSetDefinition();
-		dsd.addParameter(new Parameter("endDate", "End Date", Date.class));
+		// Cached results are shared by all users, so check that this user could have found them
+		for (String privilege : REQUIRED_PRIVILEGES) {
+			Context.requirePrivilege(privilege);
+		}
+
+		final String searchPhrase = phrase;
+		final boolean soundex = soundexEnabled;
+		final long generation = patientSearchIndexUpdater.getChangeCount();
+		String key = (soundex ? SOUNDEX_PREFIX : "") + PatientSearchIndex.normalize(phrase);
+
+		return searchCache.get(key, generation, new Callable<List<Map<String, Object>>>() {
+			public List<Map<String, Object>> call() throws Exception {
+				List<Integer> patientIds = getMatchingPatientIds(searchPhrase, PatientSearchCohortDefinition.MatchMode.EXACT, soundex);
+				if (patientIds.isEmpty()) {
+					patientIds = getMatchingPatientIds(searchPhrase, PatientSearchCohortDefinition.MatchMode.START, soundex);
+				}
+				return getPatientRows(patientIds, generation);
+			}
+		});
+	}
 
+	/**
+	 * @return the ids of the patients matching the phrase, best matches first
+	 */
+	public List<Integer> getMatchingPatientIds(String phrase, PatientSearchCohortDefinition.MatchMode matchMode, boolean soundexEnabled) throws Exception {
 		PatientSearchCohortDefinition cd = new PatientSearchCohortDefinition();
 		cd.setSearchPhrase(phrase);
 		cd.setSoundexEnabled(soundexEnabled);
 		cd.setIdentifierMatchMode(matchMode);
-		dsd.addRowFilter(Mapped.noMappings(cd));
+		return patientSearchEvaluator.getMatchingPatients(cd, new EvaluationContext());
+	}
+
+	/**
+	 * @return the row of each of the given patients, evaluating only those not already cached
+	 */
+	public List<Map<String, Object>> getPatientRows(List<Integer> patientIds, long generation) throws Exception {
+		Cohort uncachedPatients = new Cohort();
+		for (Integer patientId : patientIds) {
+			if (patientRowCache.getIfPresent(patientId, generation) == null) {
+				uncachedPatients.addMember(patientId);
+			}
+		}
+
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		Map<Integer, Map<String, Object>> evaluatedRows = new HashMap<Integer, Map<String, Object>>();
+		if (!uncachedPatients.isEmpty()) {
+			for (DataSetRow row : evaluatePatientRows(uncachedPatients).getRows()) {
+				Integer patientId = (Integer) row.getColumnValue("patientId");
+				evaluatedRows.put(patientId, row.getColumnValuesByKey());
+				patientRowCache.put(patientId, row.getColumnValuesByKey(), generation);
+			}
+		}
+		for (Integer patientId : patientIds) {
+			Map<String, Object> row = evaluatedRows.get(patientId);
+			if (row == null) {
+				row = patientRowCache.getIfPresent(patientId, generation);
+			}
+			if (row != null) {
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	protected SimpleDataSet evaluatePatientRows(Cohort patients) throws Exception {
+		PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+		dsd.addParameter(new Parameter("endDate", "End Date", Date.class));
 
 		DataConverter defaultConverter = new NullValueConverter("");
 
@@ -101,12 +194,8 @@ public class FindPatientPortletController {
 		dsd.addColumn("birthdateDisplay", basePatientData.getBirthdate(), "", new ObjectFormatter());
 		dsd.addColumn("birthdateYmd", basePatientData.getBirthdate(), "", new ObjectFormatter("yyyy-MM-dd"));
 
-		SimpleDataSet dataSet = (SimpleDataSet)dataSetDefinitionService.evaluate(dsd, new EvaluationContext());
-
-		List rows = new ArrayList();
-		for (DataSetRow row : dataSet.getRows()) {
-			rows.add(row.getColumnValuesByKey());
-		}
-		return rows;
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(patients);
+		return (SimpleDataSet)dataSetDefinitionService.evaluate(dsd, context);
 	}
 }